@@ -43,8 +43,7 @@ public class Main {
     props.setProperty(MailProps.USERNAME.toString(), "jim");
     props.setProperty(MailProps.PASSWORD.toString(), "");
     
-    try {
-      final EmailRulesProcessor processor = new EmailRulesProcessor(props);
+    try (final EmailRulesProcessor processor = new EmailRulesProcessor(props)) {
       processor.processInbox();
     } catch (EmailRuleProcessorException exception) {
       exception.printStackTrace();
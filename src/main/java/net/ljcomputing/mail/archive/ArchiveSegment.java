@@ -0,0 +1,454 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.archive;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One segment of an archive volume: a file of independently deflated blocks and its sparse index,
+ * which holds one entry (first UID, last UID, offset) per block rather than one per message. A
+ * block is found through the index and only that block is read and inflated.
+ * 
+ * <p>
+ * Block layout: magic, compressed length, raw length, CRC32 of the compressed bytes, then the
+ * compressed bytes. Inflated, a block is a run of (UID, length, raw RFC822 bytes) entries.
+ * </p>
+ * 
+ * @author James G. Willmore
+ *
+ */
+class ArchiveSegment {
+
+  /** The Constant logger. */
+  private final static Logger LOGGER = LoggerFactory.getLogger(ArchiveSegment.class);
+
+  /** The block magic number. */
+  static final int BLOCK_MAGIC = 0x4d415243;
+
+  /** The block header length. */
+  static final int HEADER = 16;
+
+  /** The index entry length. */
+  static final int INDEX_ENTRY = 24;
+
+  /** The segment number. */
+  private final int number;
+
+  /** The segment file. */
+  private final File file;
+
+  /** The index file. */
+  private final File indexFile;
+
+  /** The first UID of each block. */
+  private long[] firstUids = new long[64];
+
+  /** The last UID of each block. */
+  private long[] lastUids = new long[64];
+
+  /** The offset of each block. */
+  private long[] offsets = new long[64];
+
+  /** The number of blocks. */
+  private int blocks;
+
+  /** The length of the segment file, up to the end of the last indexed block. */
+  private long length;
+
+  /**
+   * Instantiates a new archive segment.
+   *
+   * @param directory the volume directory
+   * @param number the segment number
+   */
+  ArchiveSegment(final File directory, final int number) {
+    this.number = number;
+    this.file = new File(directory, String.format("segment-%06d.arc", number));
+    this.indexFile = new File(directory, String.format("segment-%06d.idx", number));
+  }
+
+  /**
+   * Parse the segment number from a segment file name.
+   *
+   * @param name the file name
+   * @return the number, or -1 when the name is not a segment file
+   */
+  static int numberOf(final String name) {
+    if (!name.startsWith("segment-") || !name.endsWith(".arc")) {
+      return -1;
+    }
+
+    try {
+      return Integer.parseInt(name.substring(8, name.length() - 4));
+    } catch (NumberFormatException exception) {
+      return -1;
+    }
+  }
+
+  /**
+   * Load the index, then recover the blocks a crash wrote to the segment but not to the index,
+   * and cut off anything torn after the last whole block.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  synchronized void load() throws IOException {
+    if (!file.exists()) {
+      return;
+    }
+
+    try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+        StandardOpenOption.WRITE)) {
+      if (indexFile.exists()) {
+        loadIndex(channel);
+      }
+
+      byte[] raw;
+
+      while ((raw = readBlock(channel, length)) != null) {
+        final long[] range = uidRange(raw);
+        LOGGER.warn("recovered unindexed block at {} of {}", length, file);
+        add(range[0], range[1], length, blockEnd(channel, length));
+      }
+
+      if (channel.size() > length) {
+        LOGGER.warn("truncating {} torn bytes from {}", channel.size() - length, file);
+        channel.truncate(length);
+      }
+    }
+
+    rewriteIndex();
+  }
+
+  /**
+   * Load the index entries that point at whole blocks, stopping at the first that does not.
+   *
+   * @param segment the segment channel
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void loadIndex(final FileChannel segment) throws IOException {
+    try (final FileChannel channel = FileChannel.open(indexFile.toPath(),
+        StandardOpenOption.READ)) {
+      final ByteBuffer buffer = ByteBuffer.allocate(INDEX_ENTRY);
+
+      while (channel.read(buffer) == INDEX_ENTRY) {
+        buffer.flip();
+        final long first = buffer.getLong();
+        final long last = buffer.getLong();
+        final long offset = buffer.getLong();
+        buffer.clear();
+
+        if (offset != length || offset + HEADER > segment.size()) {
+          return;
+        }
+
+        final long end = blockEnd(segment, offset);
+
+        if (end > segment.size()) {
+          return;
+        }
+
+        add(first, last, offset, end);
+      }
+    }
+  }
+
+  /**
+   * Gets the segment number.
+   *
+   * @return the number
+   */
+  int getNumber() {
+    return number;
+  }
+
+  /**
+   * Gets the segment file.
+   *
+   * @return the file
+   */
+  File getFile() {
+    return file;
+  }
+
+  /**
+   * Gets the index file.
+   *
+   * @return the index file
+   */
+  File getIndexFile() {
+    return indexFile;
+  }
+
+  /**
+   * Gets the length of the segment up to the end of its last block.
+   *
+   * @return the length
+   */
+  synchronized long getLength() {
+    return length;
+  }
+
+  /**
+   * Record a block written to the segment.
+   *
+   * @param first the first UID in the block
+   * @param last the last UID in the block
+   * @param offset the block offset
+   * @param end the offset just past the block
+   */
+  synchronized void add(final long first, final long last, final long offset, final long end) {
+    if (blocks == offsets.length) {
+      firstUids = Arrays.copyOf(firstUids, blocks * 2);
+      lastUids = Arrays.copyOf(lastUids, blocks * 2);
+      offsets = Arrays.copyOf(offsets, blocks * 2);
+    }
+
+    firstUids[blocks] = first;
+    lastUids[blocks] = last;
+    offsets[blocks] = offset;
+    blocks++;
+    length = end;
+  }
+
+  /**
+   * Find the newest block, before the given one, whose UID range covers the UID. Ranges only
+   * overlap when messages were archived out of UID order, so the first candidate nearly always
+   * holds the message.
+   *
+   * @param uid the uid
+   * @param before the block to search back from, exclusive
+   * @return the block, or -1
+   */
+  synchronized int find(final long uid, final int before) {
+    for (int b = Math.min(before, blocks) - 1; b >= 0; b--) {
+      if (firstUids[b] <= uid && uid <= lastUids[b]) {
+        return b;
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   * Gets the number of blocks.
+   *
+   * @return the blocks
+   */
+  synchronized int getBlocks() {
+    return blocks;
+  }
+
+  /**
+   * Gets the offset of a block.
+   *
+   * @param block the block
+   * @return the offset
+   */
+  synchronized long offsetOf(final int block) {
+    return offsets[block];
+  }
+
+  /**
+   * Read the raw message with the given UID from the block at the offset.
+   *
+   * @param offset the block offset
+   * @param uid the uid
+   * @return the raw message, or null when the block does not hold it
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  byte[] read(final long offset, final long uid) throws IOException {
+    final byte[] raw;
+
+    try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      raw = readBlock(channel, offset);
+    }
+
+    if (raw == null) {
+      throw new IOException("corrupt archive block at " + offset + " of " + file);
+    }
+
+    final ByteBuffer entries = ByteBuffer.wrap(raw);
+    byte[] found = null;
+
+    while (entries.remaining() >= 12) {
+      final long entryUid = entries.getLong();
+      final int entryLength = entries.getInt();
+
+      if (entryUid == uid) {
+        found = new byte[entryLength];
+        entries.get(found);
+      } else {
+        entries.position(entries.position() + entryLength);
+      }
+    }
+
+    return found;
+  }
+
+  /**
+   * Rewrite the index from the blocks held in memory.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void rewriteIndex() throws IOException {
+    final ByteBuffer buffer = ByteBuffer.allocate(blocks * INDEX_ENTRY);
+
+    for (int b = 0; b < blocks; b++) {
+      buffer.putLong(firstUids[b]).putLong(lastUids[b]).putLong(offsets[b]);
+    }
+
+    buffer.flip();
+
+    try (final FileChannel channel = FileChannel.open(indexFile.toPath(),
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+
+      channel.force(true);
+    }
+  }
+
+  /**
+   * The offset just past the block at the offset, read from its header.
+   *
+   * @param channel the channel
+   * @param offset the offset
+   * @return the end offset
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static long blockEnd(final FileChannel channel, final long offset) throws IOException {
+    final ByteBuffer header = ByteBuffer.allocate(HEADER);
+    readFully(channel, header, offset);
+
+    return offset + HEADER + header.getInt(4);
+  }
+
+  /**
+   * Read and inflate the block at the offset.
+   *
+   * @param channel the channel
+   * @param offset the offset
+   * @return the raw block, or null when there is no whole, intact block there
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  static byte[] readBlock(final FileChannel channel, final long offset) throws IOException {
+    final ByteBuffer header = ByteBuffer.allocate(HEADER);
+
+    if (offset + HEADER > channel.size() || !readFully(channel, header, offset)
+        || header.getInt(0) != BLOCK_MAGIC) {
+      return null;
+    }
+
+    final int compressedLength = header.getInt(4);
+    final int rawLength = header.getInt(8);
+
+    if (compressedLength < 0 || rawLength < 0
+        || offset + HEADER + compressedLength > channel.size()) {
+      return null;
+    }
+
+    final ByteBuffer compressed = ByteBuffer.allocate(compressedLength);
+    readFully(channel, compressed, offset + HEADER);
+
+    final CRC32 crc = new CRC32();
+    crc.update(compressed.array(), 0, compressedLength);
+
+    if ((int) crc.getValue() != header.getInt(12)) {
+      return null;
+    }
+
+    final Inflater inflater = new Inflater();
+
+    try {
+      final byte[] raw = new byte[rawLength];
+      inflater.setInput(compressed.array(), 0, compressedLength);
+
+      if (inflater.inflate(raw) != rawLength) {
+        return null;
+      }
+
+      return raw;
+    } catch (DataFormatException exception) {
+      return null;
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /**
+   * The first and last UID of the entries of a raw block.
+   *
+   * @param raw the raw block
+   * @return the first and last UID
+   */
+  static long[] uidRange(final byte[] raw) {
+    final ByteBuffer entries = ByteBuffer.wrap(raw);
+    long first = Long.MAX_VALUE;
+    long last = Long.MIN_VALUE;
+
+    while (entries.remaining() >= 12) {
+      final long uid = entries.getLong();
+      final int entryLength = entries.getInt();
+      first = Math.min(first, uid);
+      last = Math.max(last, uid);
+      entries.position(entries.position() + entryLength);
+    }
+
+    return new long[] { first, last };
+  }
+
+  /**
+   * Fill the buffer from the channel at the position, leaving it flipped for reading.
+   *
+   * @param channel the channel
+   * @param buffer the buffer
+   * @param position the position
+   * @return true, if the buffer was filled
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static boolean readFully(final FileChannel channel, final ByteBuffer buffer,
+      final long position) throws IOException {
+    long at = position;
+
+    while (buffer.hasRemaining()) {
+      final int read = channel.read(buffer, at);
+
+      if (read < 0) {
+        return false;
+      }
+
+      at += read;
+    }
+
+    buffer.flip();
+
+    return true;
+  }
+}
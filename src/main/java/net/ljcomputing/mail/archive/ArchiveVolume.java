@@ -0,0 +1,295 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.archive;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * The archive of one folder (and UIDVALIDITY): a directory of segments. Messages collect in an
+ * uncompressed block buffer that is deflated and appended to the current segment once it reaches
+ * the block size; the segment is rolled once the next block would take it past the segment size.
+ * Only the archive's writer thread appends; readers see every block that has been written.
+ * 
+ * @author James G. Willmore
+ *
+ */
+class ArchiveVolume {
+
+  /** The volume directory. */
+  private final File directory;
+
+  /** The block size. */
+  private final int blockSize;
+
+  /** The segment size. */
+  private final long segmentSize;
+
+  /** The segments, oldest first. */
+  private final List<ArchiveSegment> segments = new CopyOnWriteArrayList<ArchiveSegment>();
+
+  /** The block buffer. */
+  private ByteBuffer block;
+
+  /** The first UID in the block buffer. */
+  private long firstUid = Long.MAX_VALUE;
+
+  /** The last UID in the block buffer. */
+  private long lastUid = Long.MIN_VALUE;
+
+  /** The compressed block buffer. */
+  private byte[] compressed = new byte[0];
+
+  /** The current segment channel, or null before the first block. */
+  private FileChannel segmentChannel;
+
+  /** The current index channel. */
+  private FileChannel indexChannel;
+
+  /**
+   * Open the volume, loading and recovering its segments.
+   *
+   * @param directory the directory
+   * @param blockSize the block size
+   * @param segmentSize the segment size
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  ArchiveVolume(final File directory, final int blockSize, final long segmentSize)
+      throws IOException {
+    this.directory = directory;
+    this.blockSize = blockSize;
+    this.segmentSize = segmentSize;
+    this.block = ByteBuffer.allocate(blockSize);
+    directory.mkdirs();
+
+    final List<Integer> numbers = new ArrayList<Integer>();
+    final String[] names = directory.list();
+
+    for (final String name : names == null ? new String[0] : names) {
+      final int number = ArchiveSegment.numberOf(name);
+
+      if (number >= 0) {
+        numbers.add(number);
+      }
+    }
+
+    Collections.sort(numbers);
+
+    for (final Integer number : numbers) {
+      final ArchiveSegment segment = new ArchiveSegment(directory, number);
+      segment.load();
+      segments.add(segment);
+    }
+  }
+
+  /**
+   * Append a raw message to the block buffer, writing the block out first when the message does
+   * not fit. A message larger than a block gets a block of its own.
+   *
+   * @param uid the uid
+   * @param raw the raw message
+   * @param deflater the writer thread's deflater
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  void append(final long uid, final byte[] raw, final Deflater deflater) throws IOException {
+    final int entryLength = 12 + raw.length;
+
+    if (block.position() > 0 && block.remaining() < entryLength) {
+      flushBlock(deflater);
+    }
+
+    if (block.capacity() < entryLength) {
+      block = ByteBuffer.allocate(entryLength);
+    }
+
+    block.putLong(uid).putInt(raw.length).put(raw);
+    firstUid = Math.min(firstUid, uid);
+    lastUid = Math.max(lastUid, uid);
+
+    if (!block.hasRemaining()) {
+      flushBlock(deflater);
+    }
+  }
+
+  /**
+   * Deflate the block buffer and append it to the current segment, rolling to a new segment when
+   * it would grow past the segment size.
+   *
+   * @param deflater the writer thread's deflater
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  void flushBlock(final Deflater deflater) throws IOException {
+    if (block.position() == 0) {
+      return;
+    }
+
+    final int rawLength = block.position();
+    deflater.reset();
+    deflater.setInput(block.array(), 0, rawLength);
+    deflater.finish();
+
+    if (compressed.length < rawLength + (rawLength >> 8) + 64) {
+      compressed = new byte[rawLength + (rawLength >> 8) + 64];
+    }
+
+    int compressedLength = 0;
+
+    while (!deflater.finished()) {
+      compressedLength += deflater.deflate(compressed, compressedLength,
+          compressed.length - compressedLength);
+    }
+
+    final CRC32 crc = new CRC32();
+    crc.update(compressed, 0, compressedLength);
+
+    final ArchiveSegment segment = currentSegment(ArchiveSegment.HEADER + compressedLength);
+    final long offset = segment.getLength();
+    final ByteBuffer header = ByteBuffer.allocate(ArchiveSegment.HEADER);
+    header.putInt(ArchiveSegment.BLOCK_MAGIC).putInt(compressedLength).putInt(rawLength)
+        .putInt((int) crc.getValue()).flip();
+
+    writeFully(segmentChannel, header, offset);
+    writeFully(segmentChannel, ByteBuffer.wrap(compressed, 0, compressedLength),
+        offset + ArchiveSegment.HEADER);
+
+    final ByteBuffer entry = ByteBuffer.allocate(ArchiveSegment.INDEX_ENTRY);
+    entry.putLong(firstUid).putLong(lastUid).putLong(offset).flip();
+    writeFully(indexChannel, entry, indexChannel.size());
+
+    segment.add(firstUid, lastUid, offset,
+        offset + ArchiveSegment.HEADER + compressedLength);
+
+    if (block.capacity() > blockSize) {
+      block = ByteBuffer.allocate(blockSize);
+    } else {
+      block.clear();
+    }
+
+    firstUid = Long.MAX_VALUE;
+    lastUid = Long.MIN_VALUE;
+  }
+
+  /**
+   * Force the written blocks and their index entries to disk.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  void sync() throws IOException {
+    if (segmentChannel != null) {
+      segmentChannel.force(false);
+      indexChannel.force(false);
+    }
+  }
+
+  /**
+   * Read the raw message with the given UID, newest copy first.
+   *
+   * @param uid the uid
+   * @return the raw message, or null
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  byte[] read(final long uid) throws IOException {
+    for (int s = segments.size() - 1; s >= 0; s--) {
+      final ArchiveSegment segment = segments.get(s);
+      int block = segment.getBlocks();
+
+      while ((block = segment.find(uid, block)) >= 0) {
+        final byte[] raw = segment.read(segment.offsetOf(block), uid);
+
+        if (raw != null) {
+          return raw;
+        }
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Close the current segment.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  void close() throws IOException {
+    if (segmentChannel != null) {
+      sync();
+      segmentChannel.close();
+      indexChannel.close();
+      segmentChannel = null;
+      indexChannel = null;
+    }
+  }
+
+  /**
+   * The segment the next block is appended to, rolling to a new one when a block of the given
+   * length would take the current segment past the segment size.
+   *
+   * @param blockLength the block length
+   * @return the segment
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private ArchiveSegment currentSegment(final int blockLength) throws IOException {
+    ArchiveSegment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+
+    if (segment != null && segment.getLength() > 0
+        && segment.getLength() + blockLength > segmentSize) {
+      close();
+      segment = null;
+    }
+
+    if (segment == null) {
+      segment = new ArchiveSegment(directory,
+          segments.isEmpty() ? 1 : segments.get(segments.size() - 1).getNumber() + 1);
+      segments.add(segment);
+    }
+
+    if (segmentChannel == null) {
+      segmentChannel = FileChannel.open(segment.getFile().toPath(), StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE);
+      indexChannel = FileChannel.open(segment.getIndexFile().toPath(),
+          StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    return segment;
+  }
+
+  /**
+   * Write the whole buffer at the position.
+   *
+   * @param channel the channel
+   * @param buffer the buffer
+   * @param position the position
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void writeFully(final FileChannel channel, final ByteBuffer buffer,
+      final long position) throws IOException {
+    long at = position;
+
+    while (buffer.hasRemaining()) {
+      at += channel.write(buffer, at);
+    }
+  }
+}
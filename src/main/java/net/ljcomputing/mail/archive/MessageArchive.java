@@ -0,0 +1,427 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.archive;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.service.MailProperties;
+
+/**
+ * Compressed, append-only archive of raw RFC822 messages. Each folder (and UIDVALIDITY) is a
+ * volume of large segment files holding independently deflated blocks, with a sparse UID to block
+ * index for random access. Every write goes through a single writer thread fed by a bounded
+ * queue, so segments are written strictly sequentially and a full queue holds back the rules
+ * processor rather than memory.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class MessageArchive {
+
+  /** The Constant logger. */
+  private final static Logger LOGGER = LoggerFactory.getLogger(MessageArchive.class);
+
+  /** The archive directory property. */
+  public static final String DIRECTORY = "email.archive.dir";
+
+  /** The uncompressed block size (bytes) property. */
+  public static final String BLOCK_SIZE = "email.archive.block.size";
+
+  /** The segment size (bytes) property. */
+  public static final String SEGMENT_SIZE = "email.archive.segment.size";
+
+  /** The deflate level property. */
+  public static final String LEVEL = "email.archive.level";
+
+  /** The queue capacity (messages) property. */
+  public static final String QUEUE_CAPACITY = "email.archive.queue.capacity";
+
+  /** The idle flush interval (ms) property, after which a partial block is written out. */
+  public static final String FLUSH_INTERVAL = "email.archive.flush.interval";
+
+  /** The archive directory. */
+  private final File directory;
+
+  /** The block size. */
+  private final int blockSize;
+
+  /** The segment size. */
+  private final long segmentSize;
+
+  /** The idle flush interval in milliseconds. */
+  private final long flushInterval;
+
+  /** The queue feeding the writer thread. */
+  private final BlockingQueue<Entry> queue;
+
+  /** The open volumes, by name. */
+  private final Map<String, ArchiveVolume> volumes = new ConcurrentHashMap<String, ArchiveVolume>();
+
+  /** The writer thread. */
+  private final Thread writer;
+
+  /** The writer thread's deflater. */
+  private final Deflater deflater;
+
+  /** The failure that stopped the writer thread, if any. */
+  private volatile Exception failure;
+
+  /** Whether the archive accepts new messages. */
+  private volatile boolean running = true;
+
+  /** The count of messages archived. */
+  private long archived;
+
+  /** The count of raw bytes archived. */
+  private long rawBytes;
+
+  /**
+   * Open the archive, creating it if it does not exist.
+   *
+   * @param properties the properties
+   */
+  public MessageArchive(final MailProperties properties) {
+    this.directory = new File(properties.valueOf(DIRECTORY,
+        new File(properties.dataDirectory(), "archive").getPath()));
+    this.blockSize = properties.intValueOf(BLOCK_SIZE, 256 * 1024);
+    this.segmentSize = properties.longValueOf(SEGMENT_SIZE, 256L * 1024 * 1024);
+    this.flushInterval = properties.longValueOf(FLUSH_INTERVAL, 1000L);
+    this.queue = new ArrayBlockingQueue<Entry>(properties.intValueOf(QUEUE_CAPACITY, 256));
+    this.deflater = new Deflater(properties.intValueOf(LEVEL, Deflater.DEFAULT_COMPRESSION));
+    directory.mkdirs();
+
+    this.writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        drain();
+      }
+    }, "archive-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * The volume name for a folder and its UIDVALIDITY.
+   *
+   * @param folder the folder full name
+   * @param uidValidity the uid validity
+   * @return the volume name
+   */
+  public static String volumeOf(final String folder, final long uidValidity) {
+    return folder.replaceAll("[^A-Za-z0-9._-]", "_") + "-" + uidValidity;
+  }
+
+  /**
+   * Queue a raw message for archiving, waiting while the queue is full.
+   *
+   * @param volume the volume name
+   * @param uid the uid
+   * @param raw the raw message
+   * @throws EmailRuleProcessorException when the archive is closed or the writer has failed
+   */
+  public void append(final String volume, final long uid, final byte[] raw)
+      throws EmailRuleProcessorException {
+    put(new Entry(volume, uid, raw, null));
+  }
+
+  /**
+   * Write out every queued message and partial block, and force them to disk. Everything
+   * appended before the flush is readable once it returns.
+   *
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public void flush() throws EmailRuleProcessorException {
+    final CountDownLatch done = new CountDownLatch(1);
+    put(new Entry(null, 0, null, done));
+
+    try {
+      while (!done.await(flushInterval, TimeUnit.MILLISECONDS)) {
+        checkWriter();
+      }
+    } catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+      throw new EmailRuleProcessorException(exception);
+    }
+
+    checkFailure();
+  }
+
+  /**
+   * Read an archived raw message. Messages still queued or in a partial block are not visible
+   * until the next flush.
+   *
+   * @param volume the volume name
+   * @param uid the uid
+   * @return the raw message, or null when it has not been archived
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public byte[] read(final String volume, final long uid) throws EmailRuleProcessorException {
+    try {
+      ArchiveVolume archiveVolume = volumes.get(volume);
+
+      if (archiveVolume == null) {
+        if (!new File(directory, volume).isDirectory()) {
+          return null;
+        }
+
+        archiveVolume = volume(volume);
+      }
+
+      return archiveVolume.read(uid);
+    } catch (IOException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
+  /**
+   * Flush the archive and stop the writer thread.
+   *
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public void close() throws EmailRuleProcessorException {
+    if (!running) {
+      return;
+    }
+
+    flush();
+    running = false;
+    queue.offer(new Entry(null, 0, null, new CountDownLatch(1)));
+
+    try {
+      writer.join(TimeUnit.MINUTES.toMillis(1));
+    } catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Queue an entry for the writer thread, waiting while the queue is full and the writer is still
+   * taking entries.
+   *
+   * @param entry the entry
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  private void put(final Entry entry) throws EmailRuleProcessorException {
+    if (!running) {
+      throw new EmailRuleProcessorException("message archive has been closed.");
+    }
+
+    checkFailure();
+
+    try {
+      while (!queue.offer(entry, flushInterval, TimeUnit.MILLISECONDS)) {
+        checkWriter();
+      }
+    } catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
+  /**
+   * Throw when the writer thread has failed or stopped, so a caller waiting on it gives up.
+   *
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  private void checkWriter() throws EmailRuleProcessorException {
+    checkFailure();
+
+    if (!writer.isAlive()) {
+      throw new EmailRuleProcessorException("message archive writer has stopped.");
+    }
+  }
+
+  /**
+   * Throw the failure that stopped the writer thread, if any.
+   *
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  private void checkFailure() throws EmailRuleProcessorException {
+    if (failure != null) {
+      throw new EmailRuleProcessorException(failure);
+    }
+  }
+
+  /**
+   * Gets a volume, opening it on first use.
+   *
+   * @param name the volume name
+   * @return the volume
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private synchronized ArchiveVolume volume(final String name) throws IOException {
+    ArchiveVolume volume = volumes.get(name);
+
+    if (volume == null) {
+      volume = new ArchiveVolume(new File(directory, name), blockSize, segmentSize);
+      volumes.put(name, volume);
+    }
+
+    return volume;
+  }
+
+  /**
+   * The writer thread: append queued messages, writing out partial blocks once the queue has been
+   * idle for the flush interval, until the archive is closed.
+   */
+  private void drain() {
+    boolean stopped = false;
+
+    try {
+      drainQueue();
+      stopped = true;
+    } finally {
+      if (!stopped && failure == null) {
+        failure = new IOException("message archive writer stopped unexpectedly.");
+      }
+
+      closeVolumes();
+      releaseFlushes();
+    }
+  }
+
+  /**
+   * Append queued messages until the archive is closed.
+   */
+  private void drainQueue() {
+    boolean dirty = false;
+
+    while (running) {
+      try {
+        final Entry entry = queue.poll(flushInterval, TimeUnit.MILLISECONDS);
+
+        if (entry == null) {
+          if (dirty) {
+            writeBlocks();
+            dirty = false;
+          }
+        } else if (entry.done != null) {
+          try {
+            writeBlocks();
+            dirty = false;
+          } finally {
+            entry.done.countDown();
+          }
+        } else if (failure == null) {
+          volume(entry.volume).append(entry.uid, entry.raw, deflater);
+          archived++;
+          rawBytes += entry.raw.length;
+          dirty = true;
+        }
+      } catch (InterruptedException exception) {
+        break;
+      } catch (IOException | RuntimeException exception) {
+        LOGGER.error("FATAL: ", exception);
+        failure = exception;
+      }
+    }
+  }
+
+  /**
+   * Count down the flush markers left in the queue once the writer thread has stopped, so no
+   * caller waits on them.
+   */
+  private void releaseFlushes() {
+    Entry entry;
+
+    while ((entry = queue.poll()) != null) {
+      if (entry.done != null) {
+        entry.done.countDown();
+      }
+    }
+  }
+
+  /**
+   * Write out and sync the partial block of every volume.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void writeBlocks() throws IOException {
+    for (final ArchiveVolume volume : volumes.values()) {
+      volume.flushBlock(deflater);
+      volume.sync();
+    }
+  }
+
+  /**
+   * Close every volume on the way out of the writer thread.
+   */
+  private void closeVolumes() {
+    final Map<String, ArchiveVolume> open = new HashMap<String, ArchiveVolume>(volumes);
+
+    for (final Map.Entry<String, ArchiveVolume> volume : open.entrySet()) {
+      try {
+        volume.getValue().flushBlock(deflater);
+        volume.getValue().close();
+      } catch (IOException exception) {
+        LOGGER.error("failed to close archive volume {}: {}", volume.getKey(),
+            exception.getMessage());
+      }
+    }
+
+    deflater.end();
+    LOGGER.info("message archive closed: {} messages, {} raw bytes", archived, rawBytes);
+  }
+
+  /**
+   * A message queued for the writer thread, or a flush marker.
+   */
+  private static class Entry {
+
+    /** The volume name. */
+    private final String volume;
+
+    /** The uid. */
+    private final long uid;
+
+    /** The raw message. */
+    private final byte[] raw;
+
+    /** The latch counted down once a flush marker has been handled, or null. */
+    private final CountDownLatch done;
+
+    /**
+     * Instantiates a new entry.
+     *
+     * @param volume the volume
+     * @param uid the uid
+     * @param raw the raw message
+     * @param done the flush latch
+     */
+    private Entry(final String volume, final long uid, final byte[] raw,
+        final CountDownLatch done) {
+      this.volume = volume;
+      this.uid = uid;
+      this.raw = raw;
+      this.done = done;
+    }
+  }
+}
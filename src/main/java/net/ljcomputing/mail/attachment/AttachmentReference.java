@@ -0,0 +1,110 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.attachment;
+
+/**
+ * A reference from a message to a stored attachment blob.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class AttachmentReference {
+
+  /** The Message-ID of the referencing message. */
+  private final String messageId;
+
+  /** The attachment's (sanitized) filename. */
+  private final String filename;
+
+  /** The hex SHA-256 of the attachment content. */
+  private final String sha256;
+
+  /** The attachment size in bytes. */
+  private final long size;
+
+  /** Whether the blob already existed when the attachment was stored. */
+  private final boolean duplicate;
+
+  /**
+   * Instantiates a new attachment reference.
+   *
+   * @param messageId the message id
+   * @param filename the filename
+   * @param sha256 the hex SHA-256
+   * @param size the size
+   * @param duplicate whether the blob already existed
+   */
+  public AttachmentReference(final String messageId, final String filename, final String sha256,
+      final long size, final boolean duplicate) {
+    this.messageId = messageId;
+    this.filename = filename;
+    this.sha256 = sha256;
+    this.size = size;
+    this.duplicate = duplicate;
+  }
+
+  /**
+   * Gets the Message-ID of the referencing message.
+   *
+   * @return the message id
+   */
+  public String getMessageId() {
+    return messageId;
+  }
+
+  /**
+   * Gets the filename.
+   *
+   * @return the filename
+   */
+  public String getFilename() {
+    return filename;
+  }
+
+  /**
+   * Gets the hex SHA-256 of the content.
+   *
+   * @return the sha256
+   */
+  public String getSha256() {
+    return sha256;
+  }
+
+  /**
+   * Gets the size in bytes.
+   *
+   * @return the size
+   */
+  public long getSize() {
+    return size;
+  }
+
+  /**
+   * Checks if the blob already existed when the attachment was stored.
+   *
+   * @return true, if duplicate
+   */
+  public boolean isDuplicate() {
+    return duplicate;
+  }
+
+  @Override
+  public String toString() {
+    return "AttachmentReference [messageId=" + messageId + ", filename=" + filename + ", sha256="
+        + sha256 + ", size=" + size + ", duplicate=" + duplicate + "]";
+  }
+}
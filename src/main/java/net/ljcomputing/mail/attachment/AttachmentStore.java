@@ -0,0 +1,450 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.attachment;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.internet.MimeUtility;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.service.MailProperties;
+import net.ljcomputing.mail.trace.Phase;
+import net.ljcomputing.mail.trace.Span;
+import net.ljcomputing.mail.trace.Trace;
+
+/**
+ * Content-addressed attachment store. Each distinct attachment is kept once, as a blob named by
+ * the SHA-256 of its content under a two-level sharded directory ({@code blobs/ab/cd/abcd...}),
+ * and every message's use of it is recorded as a compact reference in an append-only index. The
+ * index is flushed to disk at the end of every processing run.
+ * 
+ * <p>
+ * Content is hashed while it is streamed, into memory up to a threshold and into a spill file
+ * beyond it, so a duplicate attachment below the threshold never touches the disk at all and a
+ * larger one is discarded the moment its hash is found to exist.
+ * </p>
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class AttachmentStore {
+
+  /** The Constant logger. */
+  private final static Logger LOGGER = LoggerFactory.getLogger(AttachmentStore.class);
+
+  /** The store directory property. */
+  public static final String DIRECTORY = "email.attachments.dir";
+
+  /** The in-memory threshold (bytes) property, beyond which content is spilled to disk. */
+  public static final String MEMORY_THRESHOLD = "email.attachments.memory.threshold";
+
+  /** The hex digits. */
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  /** The blob directory. */
+  private final File blobs;
+
+  /** The spill directory. */
+  private final File spill;
+
+  /** The reference index file. */
+  private final File indexFile;
+
+  /** The in-memory threshold in bytes. */
+  private final int memoryThreshold;
+
+  /** The reference index file stream, synced on flush. */
+  private final FileOutputStream indexFileStream;
+
+  /** The reference index. */
+  private final DataOutputStream index;
+
+  /** The count of blobs written. */
+  private final AtomicLong written = new AtomicLong();
+
+  /** The count of duplicate attachments not written. */
+  private final AtomicLong deduplicated = new AtomicLong();
+
+  /** The bytes not written thanks to de-duplication. */
+  private final AtomicLong bytesSaved = new AtomicLong();
+
+  /**
+   * Instantiates a new attachment store.
+   *
+   * @param properties the properties
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public AttachmentStore(final MailProperties properties) throws EmailRuleProcessorException {
+    final File root = new File(properties.valueOf(DIRECTORY,
+        new File(properties.dataDirectory(), "attachments").getPath()));
+    this.blobs = new File(root, "blobs");
+    this.spill = new File(root, "spill");
+    this.indexFile = new File(root, "references.idx");
+    this.memoryThreshold = properties.intValueOf(MEMORY_THRESHOLD, 8 * 1024 * 1024);
+    blobs.mkdirs();
+    spill.mkdirs();
+
+    try {
+      this.indexFileStream = new FileOutputStream(indexFile, true);
+      this.index = new DataOutputStream(new BufferedOutputStream(indexFileStream));
+    } catch (IOException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
+  /**
+   * Store an attachment for a message, consuming (but not closing) the stream.
+   *
+   * @param messageId the message id
+   * @param filename the filename, as given in the message
+   * @param content the content
+   * @return the attachment reference
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @SuppressWarnings("try")
+  public AttachmentReference store(final String messageId, final String filename,
+      final InputStream content) throws IOException {
+    try (final Span span = Trace.begin(Phase.ATTACHMENT, filename)) {
+      return write(messageId, filename, content);
+    }
+  }
+
+  /**
+   * Write an attachment to the store.
+   *
+   * @param messageId the message id
+   * @param filename the filename, as given in the message
+   * @param content the content
+   * @return the attachment reference
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private AttachmentReference write(final String messageId, final String filename,
+      final InputStream content) throws IOException {
+    final MessageDigest digest = sha256();
+    final ByteArrayOutputStream memory = new ByteArrayOutputStream(8192);
+    final byte[] buffer = new byte[8192];
+    File spillFile = null;
+    OutputStream spillStream = null;
+    long size = 0;
+    String sha256;
+    boolean duplicate;
+    int read;
+
+    try {
+      try {
+        while ((read = content.read(buffer)) != -1) {
+          digest.update(buffer, 0, read);
+          size += read;
+
+          if (spillStream == null && size > memoryThreshold) {
+            spillFile = File.createTempFile("attachment", ".spill", spill);
+            spillStream = new BufferedOutputStream(new FileOutputStream(spillFile), 64 * 1024);
+            memory.writeTo(spillStream);
+            memory.reset();
+          }
+
+          (spillStream == null ? memory : spillStream).write(buffer, 0, read);
+        }
+      } finally {
+        if (spillStream != null) {
+          spillStream.close();
+        }
+      }
+
+      sha256 = hex(digest.digest());
+      final File blob = blobFile(sha256);
+      duplicate = blob.exists();
+
+      if (!duplicate) {
+        if (spillFile == null) {
+          spillFile = File.createTempFile("attachment", ".spill", spill);
+
+          try (final OutputStream out = new FileOutputStream(spillFile)) {
+            memory.writeTo(out);
+          }
+        }
+
+        duplicate = !publish(spillFile, blob);
+      }
+    } finally {
+      // the spill file is scratch: a published blob is a link to it, or was moved from it
+      if (spillFile != null) {
+        Files.deleteIfExists(spillFile.toPath());
+      }
+    }
+
+    if (duplicate) {
+      deduplicated.incrementAndGet();
+      bytesSaved.addAndGet(size);
+    } else {
+      written.incrementAndGet();
+    }
+
+    final AttachmentReference reference = new AttachmentReference(messageId,
+        sanitize(filename), sha256, size, duplicate);
+    writeReference(reference);
+
+    return reference;
+  }
+
+  /**
+   * Publish a complete spill file as a blob. The blob is created as a link to the spill file, so
+   * it appears whole or not at all, and a blob another thread published first is never
+   * replaced.
+   *
+   * @param spillFile the spill file
+   * @param blob the blob file
+   * @return true, if the blob was created; false, if it already existed
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static boolean publish(final File spillFile, final File blob) throws IOException {
+    blob.getParentFile().mkdirs();
+
+    try {
+      Files.createLink(blob.toPath(), spillFile.toPath());
+    } catch (FileAlreadyExistsException exception) {
+      return false;
+    } catch (UnsupportedOperationException exception) {
+      // no hard links here; a move that is not ATOMIC_MOVE still refuses an existing target
+      try {
+        Files.move(spillFile.toPath(), blob.toPath());
+      } catch (FileAlreadyExistsException existing) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * The blob file for the given content hash.
+   *
+   * @param sha256 the hex SHA-256
+   * @return the file
+   */
+  public File blobFile(final String sha256) {
+    return new File(new File(new File(blobs, sha256.substring(0, 2)), sha256.substring(2, 4)),
+        sha256);
+  }
+
+  /**
+   * Scan the index for every attachment referenced by the given message.
+   *
+   * @param messageId the message id
+   * @return the references
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public List<AttachmentReference> references(final String messageId) throws IOException {
+    final List<AttachmentReference> references = new ArrayList<AttachmentReference>();
+
+    synchronized (index) {
+      index.flush();
+    }
+
+    try (final DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(indexFile)))) {
+      final byte[] hash = new byte[32];
+
+      while (true) {
+        final String referenceMessageId = readString(in);
+        final String filename = readString(in);
+        in.readFully(hash);
+        final long size = in.readLong();
+
+        if (referenceMessageId.equals(messageId)) {
+          references.add(new AttachmentReference(referenceMessageId, filename, hex(hash), size,
+              false));
+        }
+      }
+    } catch (EOFException exception) {
+      // end of the index
+    }
+
+    return references;
+  }
+
+  /**
+   * Write out the references appended so far and force them to disk.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public void flush() throws IOException {
+    synchronized (index) {
+      index.flush();
+      indexFileStream.getFD().sync();
+    }
+  }
+
+  /**
+   * Log the store counts and close the index.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public void close() throws IOException {
+    synchronized (index) {
+      index.close();
+    }
+
+    LOGGER.info("attachment store: {} blobs written, {} duplicates skipped ({} bytes saved)",
+        written.get(), deduplicated.get(), bytesSaved.get());
+  }
+
+  /**
+   * Append a reference to the index.
+   *
+   * @param reference the reference
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void writeReference(final AttachmentReference reference) throws IOException {
+    final byte[] hash = unhex(reference.getSha256());
+
+    synchronized (index) {
+      writeString(index, reference.getMessageId() == null ? "" : reference.getMessageId());
+      writeString(index, reference.getFilename());
+      index.write(hash);
+      index.writeLong(reference.getSize());
+    }
+  }
+
+  /**
+   * Write a string to the index as its UTF-8 length and bytes; unlike writeUTF, any length fits.
+   *
+   * @param out the out
+   * @param value the value
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void writeString(final DataOutputStream out, final String value)
+      throws IOException {
+    final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Read a string written by {@link #writeString(DataOutputStream, String)}.
+   *
+   * @param in the in
+   * @return the value
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static String readString(final DataInputStream in) throws IOException {
+    final byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Reduce a filename to a safe, single path segment.
+   *
+   * @param filename the filename
+   * @return the sanitized filename
+   */
+  static String sanitize(final String filename) {
+    if (filename == null) {
+      return "attachment";
+    }
+
+    String decoded;
+
+    try {
+      decoded = MimeUtility.decodeText(filename);
+    } catch (UnsupportedEncodingException exception) {
+      decoded = filename;
+    }
+
+    final String segment = decoded.substring(
+        Math.max(decoded.lastIndexOf('/'), decoded.lastIndexOf('\\')) + 1);
+    final String cleaned = segment.replaceAll("[\\p{Cntrl}:*?\"<>|]", "_").trim();
+
+    if (cleaned.isEmpty() || ".".equals(cleaned) || "..".equals(cleaned)) {
+      return "attachment";
+    }
+
+    return cleaned.length() > 255 ? cleaned.substring(0, 255) : cleaned;
+  }
+
+  /**
+   * A new SHA-256 digest.
+   *
+   * @return the message digest
+   */
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException exception) {
+      throw new IllegalStateException(exception);
+    }
+  }
+
+  /**
+   * Hex encode.
+   *
+   * @param bytes the bytes
+   * @return the hex string
+   */
+  private static String hex(final byte[] bytes) {
+    final char[] chars = new char[bytes.length * 2];
+
+    for (int b = 0; b < bytes.length; b++) {
+      chars[b * 2] = HEX[(bytes[b] >> 4) & 0xf];
+      chars[b * 2 + 1] = HEX[bytes[b] & 0xf];
+    }
+
+    return new String(chars);
+  }
+
+  /**
+   * Hex decode.
+   *
+   * @param hex the hex string
+   * @return the bytes
+   */
+  private static byte[] unhex(final String hex) {
+    final byte[] bytes = new byte[hex.length() / 2];
+
+    for (int b = 0; b < bytes.length; b++) {
+      bytes[b] = (byte) Integer.parseInt(hex.substring(b * 2, b * 2 + 2), 16);
+    }
+
+    return bytes;
+  }
+}
@@ -0,0 +1,137 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.bulkhead;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A circuit breaker that opens after a run of consecutive failures and stays open for a while,
+ * then lets a single trial call through: the breaker closes again if it succeeds and reopens if
+ * it fails.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class CircuitBreaker {
+
+  /** The Constant logger. */
+  private final static Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+
+  /**
+   * The breaker states.
+   */
+  public enum State {
+
+    /** Calls go through. */
+    CLOSED,
+
+    /** Calls are refused. */
+    OPEN,
+
+    /** A single trial call is going through. */
+    HALF_OPEN
+  }
+
+  /** The name of what the breaker guards. */
+  private final String name;
+
+  /** The consecutive failures that open the breaker. */
+  private final int failureThreshold;
+
+  /** How long the breaker stays open, in milliseconds. */
+  private final long openMillis;
+
+  /** The state. */
+  private State state = State.CLOSED;
+
+  /** The consecutive failures. */
+  private int failures;
+
+  /** The time the breaker opened. */
+  private long openedAt;
+
+  /**
+   * Instantiates a new circuit breaker.
+   *
+   * @param name the name of what the breaker guards
+   * @param failureThreshold the consecutive failures that open the breaker
+   * @param openMillis how long the breaker stays open
+   */
+  public CircuitBreaker(final String name, final int failureThreshold, final long openMillis) {
+    this.name = name;
+    this.failureThreshold = Math.max(1, failureThreshold);
+    this.openMillis = openMillis;
+  }
+
+  /**
+   * Checks if a call may go through.
+   *
+   * @return true, if allowed
+   */
+  public synchronized boolean allow() {
+    switch (state) {
+      case CLOSED:
+        return true;
+      case OPEN:
+        if (System.currentTimeMillis() - openedAt < openMillis) {
+          return false;
+        }
+
+        state = State.HALF_OPEN;
+        LOGGER.info("circuit for {} half open; trying one call", name);
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Record a successful call.
+   */
+  public synchronized void succeeded() {
+    if (state != State.CLOSED) {
+      LOGGER.info("circuit for {} closed", name);
+    }
+
+    state = State.CLOSED;
+    failures = 0;
+  }
+
+  /**
+   * Record a failed call.
+   */
+  public synchronized void failed() {
+    failures++;
+
+    if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+      LOGGER.warn("circuit for {} opened after {} consecutive failures; skipping it for {} ms",
+          name, failures, openMillis);
+      state = State.OPEN;
+      openedAt = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Gets the state.
+   *
+   * @return the state
+   */
+  public synchronized State getState() {
+    return state;
+  }
+}
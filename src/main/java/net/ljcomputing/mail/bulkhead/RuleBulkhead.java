@@ -0,0 +1,220 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.bulkhead;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.rules.MessageContext;
+import net.ljcomputing.mail.rules.ProcessingRule;
+import net.ljcomputing.mail.trace.Trace;
+
+/**
+ * Runs one processing rule on its own small, bounded executor under a per-invocation deadline.
+ * An invocation that overruns is cancelled (its thread interrupted) and the message moves on to
+ * the next rule; a rule whose executor is still tied up by earlier overruns is refused at once
+ * rather than queued behind them. Overruns and refusals count against the rule's circuit breaker,
+ * which skips the rule outright for a while once it keeps failing.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class RuleBulkhead {
+
+  /** The Constant logger. */
+  private final static Logger LOGGER = LoggerFactory.getLogger(RuleBulkhead.class);
+
+  /** The rule name. */
+  private final String name;
+
+  /** The executor. */
+  private final ThreadPoolExecutor executor;
+
+  /** The deadline per invocation in milliseconds, zero for none. */
+  private final long timeout;
+
+  /** The circuit breaker. */
+  private final CircuitBreaker breaker;
+
+  /** The count of invocations cancelled at the deadline. */
+  private final AtomicLong timeouts = new AtomicLong();
+
+  /** The count of invocations refused by a saturated executor. */
+  private final AtomicLong rejected = new AtomicLong();
+
+  /** The count of invocations skipped by the open circuit breaker. */
+  private final AtomicLong skipped = new AtomicLong();
+
+  /**
+   * Instantiates a new rule bulkhead.
+   *
+   * @param name the rule name
+   * @param threads the executor threads
+   * @param queue the invocations that may wait for a thread
+   * @param timeout the deadline per invocation in milliseconds, zero for none
+   * @param breaker the circuit breaker
+   */
+  public RuleBulkhead(final String name, final int threads, final int queue, final long timeout,
+      final CircuitBreaker breaker) {
+    this.name = name;
+    this.timeout = timeout;
+    this.breaker = breaker;
+    this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(Math.max(1, queue)), new RuleThreadFactory(name));
+  }
+
+  /**
+   * Run the rule over a message.
+   *
+   * @param rule the rule
+   * @param context the message context
+   * @return true, if the rule completed; false if it was skipped, refused or cancelled
+   * @throws EmailRuleProcessorException when the rule itself fails
+   */
+  public boolean run(final ProcessingRule rule, final MessageContext context)
+      throws EmailRuleProcessorException {
+    if (!breaker.allow()) {
+      skipped.incrementAndGet();
+      LOGGER.debug("circuit for rule {} is open; skipping it", name);
+      return false;
+    }
+
+    final long uid = Trace.currentUid();
+    final long size = Trace.currentSize();
+    final Future<Void> invocation;
+
+    try {
+      invocation = executor.submit(() -> {
+        Trace.enterMessage(uid, size);
+        Trace.enterRule(name);
+
+        try {
+          rule.processMessageRule(context);
+        } finally {
+          Trace.exitMessage();
+        }
+
+        return null;
+      });
+    } catch (RejectedExecutionException exception) {
+      rejected.incrementAndGet();
+      breaker.failed();
+      LOGGER.warn("rule {} is still tied up by earlier messages; skipping it", name);
+      return false;
+    }
+
+    try {
+      if (timeout > 0) {
+        invocation.get(timeout, TimeUnit.MILLISECONDS);
+      } else {
+        invocation.get();
+      }
+
+      breaker.succeeded();
+      return true;
+    } catch (TimeoutException exception) {
+      invocation.cancel(true);
+      executor.purge();
+      timeouts.incrementAndGet();
+      breaker.failed();
+      LOGGER.warn("rule {} overran its {} ms deadline; cancelled", name, timeout);
+      return false;
+    } catch (InterruptedException exception) {
+      invocation.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new EmailRuleProcessorException(exception);
+    } catch (ExecutionException exception) {
+      breaker.succeeded();
+
+      if (exception.getCause() instanceof EmailRuleProcessorException) {
+        throw (EmailRuleProcessorException) exception.getCause();
+      }
+
+      if (exception.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) exception.getCause();
+      }
+
+      LOGGER.error("FATAL: ", exception.getCause());
+      throw new EmailRuleProcessorException(exception.getCause());
+    }
+  }
+
+  /**
+   * Log the invocations cancelled, refused and skipped since the last report, and start over.
+   */
+  public void report() {
+    final long timedOut = timeouts.getAndSet(0L);
+    final long refused = rejected.getAndSet(0L);
+    final long open = skipped.getAndSet(0L);
+
+    if (timedOut + refused + open > 0) {
+      LOGGER.warn("rule {}: {} invocations overran the deadline, {} refused, {} skipped; "
+          + "circuit {}", name, timedOut, refused, open, breaker.getState());
+    }
+  }
+
+  /**
+   * Stop the executor, interrupting any invocation still running.
+   */
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Thread factory for the daemon threads of a rule.
+   */
+  private static class RuleThreadFactory implements ThreadFactory {
+
+    /** The rule name. */
+    private final String name;
+
+    /** The thread counter. */
+    private final AtomicInteger counter = new AtomicInteger();
+
+    /**
+     * Instantiates a new rule thread factory.
+     *
+     * @param name the rule name
+     */
+    private RuleThreadFactory(final String name) {
+      this.name = name;
+    }
+
+    /**
+     * @see java.util.concurrent.ThreadFactory#newThread(java.lang.Runnable)
+     */
+    @Override
+    public Thread newThread(final Runnable runnable) {
+      final Thread thread = new Thread(runnable, "rule-" + name + "-" + counter.incrementAndGet());
+      thread.setDaemon(true);
+
+      return thread;
+    }
+  }
+}
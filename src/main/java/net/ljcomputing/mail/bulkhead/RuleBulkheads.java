@@ -0,0 +1,118 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.bulkhead;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.rules.MessageContext;
+import net.ljcomputing.mail.rules.ProcessingRule;
+import net.ljcomputing.mail.service.MailProperties;
+
+/**
+ * The bulkheads of the processing rules, one per rule. The deadline may be set for every rule
+ * and overridden for a single rule by its class's simple name, e.g.
+ * email.bulkhead.PrintMessageContent.timeout.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class RuleBulkheads {
+
+  /** The property enabling the rule bulkheads. */
+  public static final String ENABLED = "email.bulkhead.enabled";
+
+  /** The deadline (ms) per rule invocation property; zero for none. */
+  public static final String TIMEOUT = "email.bulkhead.timeout";
+
+  /** The executor threads per rule property. */
+  public static final String THREADS = "email.bulkhead.threads";
+
+  /** The invocations that may wait for a rule's thread property. */
+  public static final String QUEUE = "email.bulkhead.queue";
+
+  /** The consecutive failures that open a rule's circuit breaker property. */
+  public static final String BREAKER_FAILURES = "email.bulkhead.breaker.failures";
+
+  /** How long (ms) an open circuit breaker skips its rule property. */
+  public static final String BREAKER_OPEN = "email.bulkhead.breaker.open";
+
+  /** The properties. */
+  private final MailProperties properties;
+
+  /** The bulkheads, by rule. */
+  private final Map<ProcessingRule, RuleBulkhead> bulkheads =
+      new ConcurrentHashMap<ProcessingRule, RuleBulkhead>();
+
+  /**
+   * Instantiates new rule bulkheads.
+   *
+   * @param properties the properties
+   */
+  public RuleBulkheads(final MailProperties properties) {
+    this.properties = properties;
+  }
+
+  /**
+   * Run a rule over a message in its bulkhead.
+   *
+   * @param rule the rule
+   * @param context the message context
+   * @return true, if the rule completed; false if it was skipped, refused or cancelled
+   * @throws EmailRuleProcessorException when the rule itself fails
+   */
+  public boolean run(final ProcessingRule rule, final MessageContext context)
+      throws EmailRuleProcessorException {
+    return bulkheads.computeIfAbsent(rule, this::create).run(rule, context);
+  }
+
+  /**
+   * Log what each bulkhead cancelled, refused and skipped since the last report.
+   */
+  public void report() {
+    for (final RuleBulkhead bulkhead : bulkheads.values()) {
+      bulkhead.report();
+    }
+  }
+
+  /**
+   * Stop every bulkhead.
+   */
+  public void close() {
+    for (final RuleBulkhead bulkhead : bulkheads.values()) {
+      bulkhead.close();
+    }
+  }
+
+  /**
+   * Create the bulkhead of a rule.
+   *
+   * @param rule the rule
+   * @return the bulkhead
+   */
+  private RuleBulkhead create(final ProcessingRule rule) {
+    final long timeout = properties.longValueOf(
+        "email.bulkhead." + rule.getClass().getSimpleName() + ".timeout",
+        properties.longValueOf(TIMEOUT, 30000L));
+
+    return new RuleBulkhead(rule.ruleName(), Math.max(1, properties.intValueOf(THREADS, 1)),
+        properties.intValueOf(QUEUE, 1), timeout,
+        new CircuitBreaker("rule " + rule.ruleName(), properties.intValueOf(BREAKER_FAILURES, 3),
+            properties.longValueOf(BREAKER_OPEN, 60000L)));
+  }
+}
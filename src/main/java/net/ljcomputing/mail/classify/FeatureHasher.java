@@ -0,0 +1,127 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.classify;
+
+/**
+ * Hashes the words of a text into 64-bit features without allocating. Words are runs of letters
+ * and digits, lower-cased and hashed with FNV-1a as they are scanned, starting from a per-field
+ * seed so the same word in the subject and the body are different features.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public final class FeatureHasher {
+
+  /** The subject field seed. */
+  public static final long SUBJECT = 0xcbf29ce484222325L;
+
+  /** The body field seed. */
+  public static final long BODY = 0x84222325cbf29ce4L;
+
+  /** The FNV-1a 64-bit prime. */
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  /** The shortest word hashed. */
+  private static final int MIN_LENGTH = 2;
+
+  /** The longest word hashed. */
+  private static final int MAX_LENGTH = 40;
+
+  /**
+   * Instantiates a new feature hasher.
+   */
+  private FeatureHasher() {
+  }
+
+  /**
+   * Hash every word of the text into a feature.
+   *
+   * @param text the text
+   * @param limit the most characters scanned
+   * @param seed the field seed
+   * @param visitor the feature visitor
+   */
+  public static void features(final CharSequence text, final int limit, final long seed,
+      final FeatureVisitor visitor) {
+    if (text == null) {
+      return;
+    }
+
+    final int end = Math.min(text.length(), limit);
+    long hash = seed;
+    int length = 0;
+
+    for (int i = 0; i < end; i++) {
+      final char c = text.charAt(i);
+
+      if (Character.isLetterOrDigit(c)) {
+        hash ^= Character.toLowerCase(c);
+        hash *= FNV_PRIME;
+        length++;
+      } else {
+        if (length >= MIN_LENGTH && length <= MAX_LENGTH) {
+          visitor.feature(feature(hash));
+        }
+
+        hash = seed;
+        length = 0;
+      }
+    }
+
+    if (length >= MIN_LENGTH && length <= MAX_LENGTH) {
+      visitor.feature(feature(hash));
+    }
+  }
+
+  /**
+   * The stored form of a feature hash; zero marks an empty table slot, so it is never a feature.
+   *
+   * @param hash the hash
+   * @return the feature
+   */
+  static long feature(final long hash) {
+    return hash == 0 ? 1L : hash;
+  }
+
+  /**
+   * Spread a feature over the slots of a table.
+   *
+   * @param feature the feature
+   * @return the mixed hash
+   */
+  static int slot(final long feature) {
+    long mixed = feature;
+    mixed ^= mixed >>> 33;
+    mixed *= 0xff51afd7ed558ccdL;
+    mixed ^= mixed >>> 33;
+
+    return (int) mixed;
+  }
+
+  /**
+   * Visitor over the features of a text.
+   */
+  public interface FeatureVisitor {
+
+    /**
+     * Visit a feature.
+     *
+     * @param feature the feature
+     */
+    void feature(long feature);
+  }
+}
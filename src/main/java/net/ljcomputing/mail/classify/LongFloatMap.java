@@ -0,0 +1,184 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.classify;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing map from non-zero long keys to float values, held in two primitive arrays so
+ * neither keys nor values are boxed.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class LongFloatMap {
+
+  /** The empty slot marker. */
+  private static final long EMPTY = 0L;
+
+  /** The maximum load factor before the table is grown. */
+  private static final double LOAD_FACTOR = 0.6;
+
+  /** The keys. */
+  private long[] keys;
+
+  /** The values, parallel to the keys. */
+  private float[] values;
+
+  /** The number of keys held. */
+  private int size;
+
+  /**
+   * Instantiates a new long float map.
+   *
+   * @param expected the expected number of keys
+   */
+  public LongFloatMap(final int expected) {
+    final int capacity = capacityFor(expected);
+    this.keys = new long[capacity];
+    this.values = new float[capacity];
+  }
+
+  /**
+   * The value for a key.
+   *
+   * @param key the key, never zero
+   * @param defaultValue the value when the key is not held
+   * @return the value
+   */
+  public float get(final long key, final float defaultValue) {
+    final int slot = slotOf(key);
+
+    return keys[slot] == EMPTY ? defaultValue : values[slot];
+  }
+
+  /**
+   * Add to the value for a key, starting from zero.
+   *
+   * @param key the key, never zero
+   * @param delta the delta
+   * @return the new value
+   */
+  public float add(final long key, final float delta) {
+    if (size + 1 > keys.length * LOAD_FACTOR) {
+      grow();
+    }
+
+    final int slot = slotOf(key);
+
+    if (keys[slot] == EMPTY) {
+      keys[slot] = key;
+      size++;
+    }
+
+    values[slot] += delta;
+
+    return values[slot];
+  }
+
+  /**
+   * Gets the number of keys held.
+   *
+   * @return the size
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Visit every key and value.
+   *
+   * @param visitor the visitor
+   */
+  public void forEach(final EntryVisitor visitor) {
+    for (int slot = 0; slot < keys.length; slot++) {
+      if (keys[slot] != EMPTY) {
+        visitor.visit(keys[slot], values[slot]);
+      }
+    }
+  }
+
+  /**
+   * Remove every key.
+   */
+  public void clear() {
+    Arrays.fill(keys, EMPTY);
+    Arrays.fill(values, 0f);
+    size = 0;
+  }
+
+  /**
+   * The power-of-two table capacity for a number of keys.
+   *
+   * @param expected the expected number of keys
+   * @return the capacity
+   */
+  static int capacityFor(final int expected) {
+    final long needed = (long) Math.ceil(Math.max(16, expected) / LOAD_FACTOR);
+
+    return (int) Math.min(1 << 30, Long.highestOneBit(needed - 1) << 1);
+  }
+
+  /**
+   * Find the slot holding the key, or the empty slot where it belongs.
+   *
+   * @param key the key
+   * @return the slot
+   */
+  private int slotOf(final long key) {
+    final int mask = keys.length - 1;
+    int slot = FeatureHasher.slot(key) & mask;
+
+    while (keys[slot] != EMPTY && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+
+    return slot;
+  }
+
+  /**
+   * Double the table.
+   */
+  private void grow() {
+    final long[] oldKeys = keys;
+    final float[] oldValues = values;
+    keys = new long[oldKeys.length * 2];
+    values = new float[oldValues.length * 2];
+
+    for (int slot = 0; slot < oldKeys.length; slot++) {
+      if (oldKeys[slot] != EMPTY) {
+        final int target = slotOf(oldKeys[slot]);
+        keys[target] = oldKeys[slot];
+        values[target] = oldValues[slot];
+      }
+    }
+  }
+
+  /**
+   * Visitor over the entries of the map.
+   */
+  public interface EntryVisitor {
+
+    /**
+     * Visit an entry.
+     *
+     * @param key the key
+     * @param value the value
+     */
+    void visit(long key, float value);
+  }
+}
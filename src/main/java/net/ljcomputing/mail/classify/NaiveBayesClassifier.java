@@ -0,0 +1,106 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.classify;
+
+/**
+ * Classifies text with a shared model. A classifier keeps its own score buffer and is reused
+ * message after message, so it must be confined to one thread; the model may be shared.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class NaiveBayesClassifier implements FeatureHasher.FeatureVisitor {
+
+  /** The model. */
+  private final NaiveBayesModel model;
+
+  /** The most characters of a text scanned. */
+  private final int maxChars;
+
+  /** The log scores of the last classification, one per category. */
+  private final double[] scores;
+
+  /** The best category of the last classification. */
+  private int best;
+
+  /**
+   * Instantiates a new naive bayes classifier.
+   *
+   * @param model the model
+   * @param maxChars the most characters of a text scanned
+   */
+  public NaiveBayesClassifier(final NaiveBayesModel model, final int maxChars) {
+    this.model = model;
+    this.maxChars = maxChars;
+    this.scores = new double[model.categories()];
+  }
+
+  /**
+   * Classify a message by its subject and body.
+   *
+   * @param subject the subject
+   * @param body the body text
+   * @return the index of the most likely category
+   */
+  public int classify(final CharSequence subject, final CharSequence body) {
+    model.prime(scores);
+    FeatureHasher.features(subject, maxChars, FeatureHasher.SUBJECT, this);
+    FeatureHasher.features(body, maxChars, FeatureHasher.BODY, this);
+
+    best = 0;
+
+    for (int c = 1; c < scores.length; c++) {
+      if (scores[c] > scores[best]) {
+        best = c;
+      }
+    }
+
+    return best;
+  }
+
+  /**
+   * @see net.ljcomputing.mail.classify.FeatureHasher.FeatureVisitor#feature(long)
+   */
+  @Override
+  public void feature(final long feature) {
+    model.accumulate(feature, scores);
+  }
+
+  /**
+   * The name of the most likely category of the last classification.
+   *
+   * @return the category
+   */
+  public String category() {
+    return model.category(best);
+  }
+
+  /**
+   * The posterior probability of the most likely category of the last classification.
+   *
+   * @return the confidence, between 0 and 1
+   */
+  public double confidence() {
+    double total = 0;
+
+    for (int c = 0; c < scores.length; c++) {
+      total += Math.exp(scores[c] - scores[best]);
+    }
+
+    return 1.0 / total;
+  }
+}
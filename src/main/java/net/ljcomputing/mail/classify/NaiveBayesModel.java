@@ -0,0 +1,208 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.classify;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A trained multinomial Naive Bayes model, memory-mapped from its file. The file holds the
+ * category names and log priors, followed by an open-addressing table of features: each slot is
+ * the 64-bit feature and one log likelihood per category. Lookups probe the mapped table
+ * directly, so the model costs no heap however large it is, and classifying allocates nothing.
+ * Features missing from the model are ignored.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class NaiveBayesModel {
+
+  /** The file magic number, "NBCL". */
+  static final int MAGIC = 0x4e42434c;
+
+  /** The file format version. */
+  static final int VERSION = 1;
+
+  /** The category names. */
+  private final String[] categories;
+
+  /** The log prior of each category. */
+  private final float[] priors;
+
+  /** The mapped feature table. */
+  private final MappedByteBuffer table;
+
+  /** The table slot mask. */
+  private final int mask;
+
+  /** The bytes per table slot. */
+  private final int slotBytes;
+
+  /**
+   * Map a model file.
+   *
+   * @param file the file
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public NaiveBayesModel(final File file) throws IOException {
+    try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      final CountingInputStream counting = new CountingInputStream(
+          Channels.newInputStream(channel));
+      final DataInputStream in = new DataInputStream(counting);
+
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException(file + " is not a classification model.");
+      }
+
+      final int classes = in.readInt();
+      final int capacity = in.readInt();
+      this.categories = new String[classes];
+      this.priors = new float[classes];
+
+      for (int c = 0; c < classes; c++) {
+        categories[c] = in.readUTF();
+        priors[c] = in.readFloat();
+      }
+
+      this.slotBytes = 8 + 4 * classes;
+      this.mask = capacity - 1;
+
+      final long tableBytes = (long) capacity * slotBytes;
+
+      if (Integer.bitCount(capacity) != 1 || tableBytes > Integer.MAX_VALUE
+          || counting.count + tableBytes > channel.size()) {
+        throw new IOException(file + " is truncated or corrupt.");
+      }
+
+      this.table = channel.map(FileChannel.MapMode.READ_ONLY, counting.count, tableBytes);
+    }
+  }
+
+  /**
+   * Gets the number of categories.
+   *
+   * @return the categories
+   */
+  public int categories() {
+    return categories.length;
+  }
+
+  /**
+   * Gets the name of a category.
+   *
+   * @param category the category index
+   * @return the name
+   */
+  public String category(final int category) {
+    return categories[category];
+  }
+
+  /**
+   * Start scores at the category priors.
+   *
+   * @param scores the scores, one per category
+   */
+  void prime(final double[] scores) {
+    for (int c = 0; c < categories.length; c++) {
+      scores[c] = priors[c];
+    }
+  }
+
+  /**
+   * Add a feature's log likelihoods to the scores, if the feature is in the model.
+   *
+   * @param feature the feature
+   * @param scores the scores, one per category
+   */
+  void accumulate(final long feature, final double[] scores) {
+    int slot = FeatureHasher.slot(feature) & mask;
+
+    while (true) {
+      final int position = slot * slotBytes;
+      final long key = table.getLong(position);
+
+      if (key == 0) {
+        return;
+      }
+
+      if (key == feature) {
+        for (int c = 0, offset = position + 8; c < categories.length; c++, offset += 4) {
+          scores[c] += table.getFloat(offset);
+        }
+
+        return;
+      }
+
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  /**
+   * Input stream counting the bytes read, to find where the mapped table starts.
+   */
+  private static class CountingInputStream extends InputStream {
+
+    /** The wrapped stream. */
+    private final InputStream in;
+
+    /** The bytes read. */
+    private long count;
+
+    /**
+     * Instantiates a new counting input stream.
+     *
+     * @param in the in
+     */
+    private CountingInputStream(final InputStream in) {
+      this.in = in;
+    }
+
+    /**
+     * @see java.io.InputStream#read()
+     */
+    @Override
+    public int read() throws IOException {
+      final int b = in.read();
+
+      if (b >= 0) {
+        count++;
+      }
+
+      return b;
+    }
+
+    /**
+     * @see java.io.InputStream#read(byte[], int, int)
+     */
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      final int read = in.read(b, off, len);
+
+      if (read > 0) {
+        count += read;
+      }
+
+      return read;
+    }
+  }
+}
@@ -0,0 +1,228 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.classify;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Trains a multinomial Naive Bayes model from labelled subject and body text, and writes it in the
+ * memory-mappable layout read by {@link NaiveBayesModel}. Feature counts are kept per category in
+ * primitive maps; features seen fewer than the minimum count times across all categories are
+ * dropped from the model.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class NaiveBayesTrainer implements FeatureHasher.FeatureVisitor {
+
+  /** The Laplace smoothing added to every feature count. */
+  private static final float ALPHA = 1.0f;
+
+  /** The categories, in model order. */
+  private final List<String> categories = new ArrayList<String>();
+
+  /** The feature counts, per category. */
+  private final List<LongFloatMap> counts = new ArrayList<LongFloatMap>();
+
+  /** The document counts, per category. */
+  private long[] documents = new long[8];
+
+  /** The feature counts over all categories. */
+  private final LongFloatMap vocabulary = new LongFloatMap(1 << 16);
+
+  /** The most characters of a text scanned. */
+  private final int maxChars;
+
+  /** The feature counts of the category being trained. */
+  private LongFloatMap current;
+
+  /**
+   * Instantiates a new naive bayes trainer.
+   *
+   * @param maxChars the most characters of a text scanned
+   */
+  public NaiveBayesTrainer(final int maxChars) {
+    this.maxChars = maxChars;
+  }
+
+  /**
+   * Train on one labelled message.
+   *
+   * @param category the category
+   * @param subject the subject
+   * @param body the body text
+   */
+  public void train(final String category, final CharSequence subject,
+      final CharSequence body) {
+    int index = categories.indexOf(category);
+
+    if (index < 0) {
+      index = categories.size();
+      categories.add(category);
+      counts.add(new LongFloatMap(1 << 14));
+
+      if (index == documents.length) {
+        documents = Arrays.copyOf(documents, index * 2);
+      }
+    }
+
+    current = counts.get(index);
+    documents[index]++;
+    FeatureHasher.features(subject, maxChars, FeatureHasher.SUBJECT, this);
+    FeatureHasher.features(body, maxChars, FeatureHasher.BODY, this);
+  }
+
+  /**
+   * @see net.ljcomputing.mail.classify.FeatureHasher.FeatureVisitor#feature(long)
+   */
+  @Override
+  public void feature(final long feature) {
+    current.add(feature, 1f);
+    vocabulary.add(feature, 1f);
+  }
+
+  /**
+   * Gets the categories trained.
+   *
+   * @return the categories
+   */
+  public List<String> getCategories() {
+    return Collections.unmodifiableList(categories);
+  }
+
+  /**
+   * Gets the number of distinct features seen.
+   *
+   * @return the features
+   */
+  public int getFeatures() {
+    return vocabulary.size();
+  }
+
+  /**
+   * Write the model.
+   *
+   * @param file the model file
+   * @param minCount the fewest occurrences of a feature kept in the model
+   * @return the number of features written
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public int write(final File file, final int minCount) throws IOException {
+    final int classes = categories.size();
+
+    if (classes == 0) {
+      throw new IOException("no categories have been trained.");
+    }
+
+    final long[] kept = keptFeatures(minCount);
+    final int capacity = Integer.highestOneBit(Math.max(16, kept.length * 2 - 1)) << 1;
+    final long[] keys = new long[capacity];
+    final float[] values = new float[capacity * classes];
+    final double[] denominators = new double[classes];
+    long totalDocuments = 0;
+
+    for (int c = 0; c < classes; c++) {
+      final LongFloatMap category = counts.get(c);
+      double total = 0;
+
+      for (final long feature : kept) {
+        total += category.get(feature, 0f);
+      }
+
+      denominators[c] = total + ALPHA * kept.length;
+      totalDocuments += documents[c];
+    }
+
+    for (final long feature : kept) {
+      int slot = FeatureHasher.slot(feature) & (capacity - 1);
+
+      while (keys[slot] != 0) {
+        slot = (slot + 1) & (capacity - 1);
+      }
+
+      keys[slot] = feature;
+
+      for (int c = 0; c < classes; c++) {
+        values[slot * classes + c] = (float) Math
+            .log((counts.get(c).get(feature, 0f) + ALPHA) / denominators[c]);
+      }
+    }
+
+    final File written = new File(file.getPath() + ".tmp");
+
+    try (final DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(written), 64 * 1024))) {
+      out.writeInt(NaiveBayesModel.MAGIC);
+      out.writeInt(NaiveBayesModel.VERSION);
+      out.writeInt(classes);
+      out.writeInt(capacity);
+
+      for (int c = 0; c < classes; c++) {
+        out.writeUTF(categories.get(c));
+        out.writeFloat((float) Math.log((double) documents[c] / totalDocuments));
+      }
+
+      for (int slot = 0; slot < capacity; slot++) {
+        out.writeLong(keys[slot]);
+
+        for (int c = 0; c < classes; c++) {
+          out.writeFloat(values[slot * classes + c]);
+        }
+      }
+    }
+
+    Files.move(written.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+
+    return kept.length;
+  }
+
+  /**
+   * The features seen at least the minimum number of times.
+   *
+   * @param minCount the minimum count
+   * @return the features
+   */
+  private long[] keptFeatures(final int minCount) {
+    final long[] kept = new long[vocabulary.size()];
+    final int[] size = new int[1];
+
+    vocabulary.forEach(new LongFloatMap.EntryVisitor() {
+      @Override
+      public void visit(final long key, final float value) {
+        if (value >= minCount) {
+          kept[size[0]++] = key;
+        }
+      }
+    });
+
+    final long[] trimmed = new long[size[0]];
+    System.arraycopy(kept, 0, trimmed, 0, size[0]);
+
+    return trimmed;
+  }
+}
@@ -0,0 +1,137 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.classify;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Properties;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.ljcomputing.mail.domain.MessageParts;
+
+/**
+ * Command line trainer for the classification model. The corpus directory holds one
+ * sub-directory per category, each containing that category's messages as .eml files (at any
+ * depth):
+ * 
+ * <pre>
+ * java net.ljcomputing.mail.classify.TrainModel corpus/ model.nbc [min-count]
+ * </pre>
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class TrainModel {
+
+  /** The Constant logger. */
+  private final static Logger LOGGER = LoggerFactory.getLogger(TrainModel.class);
+
+  /** The most characters of a message body scanned, matching the classification rule's default. */
+  private static final int MAX_CHARS = 65536;
+
+  /**
+   * The main method.
+   *
+   * @param args the corpus directory, the model file and optionally the minimum feature count
+   */
+  public static void main(final String[] args) {
+    if (args.length < 2) {
+      System.err.println("usage: TrainModel <corpus-dir> <model-file> [min-count]");
+      System.exit(2);
+    }
+
+    final File corpus = new File(args[0]);
+    final File model = new File(args[1]);
+    final int minCount = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+    final Session session = Session.getInstance(new Properties());
+    final NaiveBayesTrainer trainer = new NaiveBayesTrainer(MAX_CHARS);
+    final File[] categories = corpus.listFiles();
+
+    if (categories == null) {
+      System.err.println(corpus + " is not a directory");
+      System.exit(2);
+    }
+
+    try {
+      for (final File category : categories) {
+        if (category.isDirectory()) {
+          final long[] trained = train(trainer, session, category);
+          LOGGER.info("category {}: {} messages trained, {} skipped", category.getName(),
+              trained[0], trained[1]);
+        }
+      }
+
+      final int written = trainer.write(model, minCount);
+      LOGGER.info("wrote {} categories and {} of {} features to {}",
+          trainer.getCategories().size(), written, trainer.getFeatures(), model);
+    } catch (IOException exception) {
+      LOGGER.error("FATAL: ", exception);
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Train on every .eml file under a category directory.
+   *
+   * @param trainer the trainer
+   * @param session the session
+   * @param category the category directory
+   * @return the number of messages trained and skipped
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static long[] train(final NaiveBayesTrainer trainer, final Session session,
+      final File category) throws IOException {
+    final long[] trained = new long[2];
+
+    Files.walkFileTree(category.toPath(), new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(final Path file, final BasicFileAttributes attributes)
+          throws IOException {
+        if (file.getFileName().toString().toLowerCase().endsWith(".eml")) {
+          try (final InputStream in = new BufferedInputStream(
+              new FileInputStream(file.toFile()))) {
+            final MimeMessage message = new MimeMessage(session, in);
+            trainer.train(category.getName(), message.getSubject(),
+                MessageParts.of(message).getText());
+            trained[0]++;
+          } catch (MessagingException | IOException exception) {
+            LOGGER.warn("skipping {}: {}", file, exception.getMessage());
+            trained[1]++;
+          }
+        }
+
+        return FileVisitResult.CONTINUE;
+      }
+    });
+
+    return trained;
+  }
+}
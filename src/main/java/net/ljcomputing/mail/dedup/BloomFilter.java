@@ -0,0 +1,114 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.dedup;
+
+/**
+ * A fixed-size Bloom filter over 64-bit hashes. Probe positions are derived from the one hash by
+ * double hashing, so callers hash a key once no matter how many probes the filter uses.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class BloomFilter {
+
+  /** The bit set. */
+  private final long[] bits;
+
+  /** The number of bits. */
+  private final long bitCount;
+
+  /** The number of probes per key. */
+  private final int probes;
+
+  /**
+   * Instantiates a new Bloom filter sized for the expected number of keys and false positive
+   * probability.
+   *
+   * @param expectedKeys the expected keys
+   * @param falsePositiveProbability the false positive probability
+   */
+  public BloomFilter(final long expectedKeys, final double falsePositiveProbability) {
+    final long keys = Math.max(1L, expectedKeys);
+    final long optimalBits = (long) Math
+        .ceil(-keys * Math.log(falsePositiveProbability) / (Math.log(2) * Math.log(2)));
+
+    this.bits = new long[(int) Math.max(1L, (optimalBits + 63) / 64)];
+    this.bitCount = bits.length * 64L;
+    this.probes = Math.max(1, (int) Math.round((double) bitCount / keys * Math.log(2)));
+  }
+
+  /**
+   * Add the hash to the filter.
+   *
+   * @param hash the hash
+   */
+  public void put(final long hash) {
+    final long second = mix(hash);
+
+    for (int p = 0; p < probes; p++) {
+      final long bit = index(hash + p * second);
+      bits[(int) (bit >>> 6)] |= 1L << bit;
+    }
+  }
+
+  /**
+   * Check if the hash might have been added. A false result is definite.
+   *
+   * @param hash the hash
+   * @return true, if the hash might have been added
+   */
+  public boolean mightContain(final long hash) {
+    final long second = mix(hash);
+
+    for (int p = 0; p < probes; p++) {
+      final long bit = index(hash + p * second);
+
+      if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Bit index for a combined hash.
+   *
+   * @param combined the combined hash
+   * @return the bit index
+   */
+  private long index(final long combined) {
+    return (combined & Long.MAX_VALUE) % bitCount;
+  }
+
+  /**
+   * Derive a second, independent hash (the murmur3 64-bit finalizer), forced odd.
+   *
+   * @param hash the hash
+   * @return the second hash
+   */
+  static long mix(final long hash) {
+    long mixed = hash;
+    mixed ^= mixed >>> 33;
+    mixed *= 0xff51afd7ed558ccdL;
+    mixed ^= mixed >>> 33;
+    mixed *= 0xc4ceb9fe1a85ec53L;
+    mixed ^= mixed >>> 33;
+
+    return mixed | 1L;
+  }
+}
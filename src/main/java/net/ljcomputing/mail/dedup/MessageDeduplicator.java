@@ -0,0 +1,247 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.dedup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.service.MailProperties;
+
+/**
+ * Cross-mailbox message de-duplication by Message-ID. A Bloom filter answers the common "never
+ * seen" case without touching the store; only possible duplicates are confirmed against the
+ * persistent, expiring set of Message-ID hashes.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class MessageDeduplicator {
+
+  /** The Constant logger. */
+  private final static Logger LOGGER = LoggerFactory.getLogger(MessageDeduplicator.class);
+
+  /** The enabled property. */
+  public static final String ENABLED = "email.dedup.enabled";
+
+  /** The time-to-live (minutes) property. */
+  public static final String TTL_MINUTES = "email.dedup.ttl.minutes";
+
+  /** The expected number of Message-IDs property, used to size the Bloom filter. */
+  public static final String EXPECTED = "email.dedup.expected";
+
+  /** The property controlling whether skipped duplicates are flagged SEEN. */
+  public static final String MARK_SEEN = "email.dedup.mark.seen";
+
+  /** The Message-ID hash store. */
+  private final MessageIdStore store;
+
+  /** The Bloom filter over every hash in the store. */
+  private final BloomFilter filter;
+
+  /** Whether skipped duplicates are flagged SEEN. */
+  private final boolean markSeen;
+
+  /** The count of messages checked. */
+  private final AtomicLong checked = new AtomicLong();
+
+  /** The count of duplicates skipped. */
+  private final AtomicLong skipped = new AtomicLong();
+
+  /** The count of messages without a Message-ID. */
+  private final AtomicLong missingId = new AtomicLong();
+
+  /**
+   * Instantiates a new message deduplicator.
+   *
+   * @param properties the properties
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public MessageDeduplicator(final MailProperties properties) throws EmailRuleProcessorException {
+    final File file = new File(properties.dataDirectory(), "message-ids.dat");
+    final long ttl = properties.longValueOf(TTL_MINUTES, TimeUnit.DAYS.toMinutes(7));
+    this.markSeen = properties.booleanValueOf(MARK_SEEN, true);
+
+    try {
+      this.store = new MessageIdStore(file, ttl, TimeUnit.MINUTES);
+    } catch (IOException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+
+    final long expected = Math.max(store.size() * 2L,
+        properties.longValueOf(EXPECTED, 1000000L));
+    this.filter = new BloomFilter(expected, 0.01);
+    store.forEach(new MessageIdStore.HashVisitor() {
+      @Override
+      public void visit(final long hash) {
+        filter.put(hash);
+      }
+    });
+
+    LOGGER.info("loaded {} Message-ID hashes from {}", store.size(), file);
+  }
+
+  /**
+   * Checks if the message has already been processed. Only the Message-ID is read, which the
+   * caller should have prefetched with the envelope.
+   *
+   * @param message the message
+   * @return true, if the message is a duplicate
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public synchronized boolean isDuplicate(final Message message)
+      throws EmailRuleProcessorException {
+    checked.incrementAndGet();
+    final String messageId = messageId(message);
+
+    if (messageId == null) {
+      missingId.incrementAndGet();
+      return false;
+    }
+
+    final long hash = hash(messageId);
+
+    if (filter.mightContain(hash) && store.contains(hash)) {
+      skipped.incrementAndGet();
+      return true;
+    }
+
+    return false;
+  }
+
+  /**
+   * Record the message as processed.
+   *
+   * @param message the message
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public synchronized void record(final Message message) throws EmailRuleProcessorException {
+    final String messageId = messageId(message);
+
+    if (messageId != null) {
+      final long hash = hash(messageId);
+
+      try {
+        filter.put(hash);
+        store.add(hash);
+      } catch (IOException exception) {
+        throw new EmailRuleProcessorException(exception);
+      }
+    }
+  }
+
+  /**
+   * Checks if skipped duplicates should be flagged SEEN.
+   *
+   * @return true, if duplicates should be flagged SEEN
+   */
+  public boolean isMarkSeen() {
+    return markSeen;
+  }
+
+  /**
+   * Gets the count of duplicates skipped.
+   *
+   * @return the skipped count
+   */
+  public long getSkipped() {
+    return skipped.get();
+  }
+
+  /**
+   * Gets the count of messages checked.
+   *
+   * @return the checked count
+   */
+  public long getChecked() {
+    return checked.get();
+  }
+
+  /**
+   * Log the de-duplication counts and flush the store.
+   *
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public synchronized void report() throws EmailRuleProcessorException {
+    LOGGER.info("de-duplication: {} checked, {} duplicates skipped, {} without Message-ID",
+        checked.get(), skipped.get(), missingId.get());
+
+    try {
+      store.flush();
+    } catch (IOException exception) {
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
+  /**
+   * Close the store.
+   *
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public synchronized void close() throws EmailRuleProcessorException {
+    try {
+      store.close();
+    } catch (IOException exception) {
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
+  /**
+   * The normalized Message-ID of the message.
+   *
+   * @param message the message
+   * @return the message id, or null
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  private static String messageId(final Message message) throws EmailRuleProcessorException {
+    try {
+      final String messageId = message instanceof MimeMessage
+          ? ((MimeMessage) message).getMessageID() : null;
+
+      return messageId == null || messageId.trim().isEmpty() ? null : messageId.trim();
+    } catch (MessagingException exception) {
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
+  /**
+   * 64-bit FNV-1a hash of the Message-ID.
+   *
+   * @param messageId the message id
+   * @return the hash
+   */
+  static long hash(final String messageId) {
+    long hash = 0xcbf29ce484222325L;
+
+    for (int c = 0; c < messageId.length(); c++) {
+      hash ^= messageId.charAt(c);
+      hash *= 0x100000001b3L;
+    }
+
+    return hash;
+  }
+}
@@ -0,0 +1,313 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.dedup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A persistent set of 64-bit Message-ID hashes, each stamped with the minute it was first seen.
+ * In memory the set is a pair of open-addressing primitive arrays; on disk it is an append-only
+ * file of 12-byte (hash, minute) records that is compacted, dropping expired hashes, whenever the
+ * store is opened.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class MessageIdStore {
+
+  /** The empty slot marker; a real hash of zero is stored as one. */
+  private static final long EMPTY = 0L;
+
+  /** The maximum load factor before the table is grown. */
+  private static final double LOAD_FACTOR = 0.6;
+
+  /** The backing file. */
+  private final File file;
+
+  /** The time-to-live of a hash, in minutes. */
+  private final int ttlMinutes;
+
+  /** The hash slots. */
+  private long[] hashes;
+
+  /** The minute each hash was first seen, parallel to the hash slots. */
+  private int[] minutes;
+
+  /** The number of hashes held. */
+  private int size;
+
+  /** The append stream for newly seen hashes. */
+  private DataOutputStream journal;
+
+  /**
+   * Instantiates a new message id store, loading any unexpired hashes from the file.
+   *
+   * @param file the file
+   * @param ttl the time-to-live
+   * @param unit the time-to-live unit
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public MessageIdStore(final File file, final long ttl, final TimeUnit unit) throws IOException {
+    this.file = file;
+    this.ttlMinutes = (int) Math.min(Integer.MAX_VALUE, unit.toMinutes(ttl));
+    this.hashes = new long[1024];
+    this.minutes = new int[1024];
+    load();
+  }
+
+  /**
+   * Checks if the hash has been seen within the time-to-live.
+   *
+   * @param hash the hash
+   * @return true, if the hash has been seen
+   */
+  public boolean contains(final long hash) {
+    final int slot = slotOf(key(hash));
+
+    return hashes[slot] != EMPTY && !isExpired(minutes[slot], currentMinute());
+  }
+
+  /**
+   * Record the hash as seen now.
+   *
+   * @param hash the hash
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public void add(final long hash) throws IOException {
+    final int minute = currentMinute();
+
+    if (insert(key(hash), minute)) {
+      journal.writeLong(key(hash));
+      journal.writeInt(minute);
+    }
+  }
+
+  /**
+   * Gets the number of hashes held.
+   *
+   * @return the size
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Visit every held hash.
+   *
+   * @param visitor the visitor
+   */
+  public void forEach(final HashVisitor visitor) {
+    for (int slot = 0; slot < hashes.length; slot++) {
+      if (hashes[slot] != EMPTY) {
+        visitor.visit(hashes[slot]);
+      }
+    }
+  }
+
+  /**
+   * Flush newly seen hashes to disk.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public void flush() throws IOException {
+    journal.flush();
+  }
+
+  /**
+   * Flush and close the store.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public void close() throws IOException {
+    journal.close();
+  }
+
+  /**
+   * Load the unexpired hashes and compact the file to just those.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void load() throws IOException {
+    final int now = currentMinute();
+    int expired = 0;
+
+    if (file.exists()) {
+      try (final DataInputStream in = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(file)))) {
+        while (true) {
+          final long hash = in.readLong();
+          final int minute = in.readInt();
+
+          if (isExpired(minute, now)) {
+            expired++;
+          } else {
+            insert(hash, minute);
+          }
+        }
+      } catch (EOFException exception) {
+        // end of file, or a torn final record; either way everything complete was read
+      }
+    } else if (file.getParentFile() != null) {
+      file.getParentFile().mkdirs();
+    }
+
+    if (expired > 0) {
+      compact();
+    }
+
+    journal = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(file, true), 64 * 1024));
+  }
+
+  /**
+   * Rewrite the file with only the hashes currently held.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void compact() throws IOException {
+    final File compacted = new File(file.getPath() + ".tmp");
+
+    try (final DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(compacted), 64 * 1024))) {
+      for (int slot = 0; slot < hashes.length; slot++) {
+        if (hashes[slot] != EMPTY) {
+          out.writeLong(hashes[slot]);
+          out.writeInt(minutes[slot]);
+        }
+      }
+    }
+
+    Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Insert or refresh a hash.
+   *
+   * @param hash the hash, never EMPTY
+   * @param minute the minute
+   * @return true, if the hash was not already held unexpired
+   */
+  private boolean insert(final long hash, final int minute) {
+    if (size + 1 > hashes.length * LOAD_FACTOR) {
+      grow();
+    }
+
+    final int slot = slotOf(hash);
+
+    if (hashes[slot] == EMPTY) {
+      hashes[slot] = hash;
+      minutes[slot] = minute;
+      size++;
+      return true;
+    }
+
+    final boolean refreshed = isExpired(minutes[slot], minute);
+    minutes[slot] = Math.max(minutes[slot], minute);
+
+    return refreshed;
+  }
+
+  /**
+   * Find the slot holding the hash, or the empty slot where it belongs.
+   *
+   * @param hash the hash
+   * @return the slot
+   */
+  private int slotOf(final long hash) {
+    final int mask = hashes.length - 1;
+    int slot = (int) BloomFilter.mix(hash) & mask;
+
+    while (hashes[slot] != EMPTY && hashes[slot] != hash) {
+      slot = (slot + 1) & mask;
+    }
+
+    return slot;
+  }
+
+  /**
+   * Double the table.
+   */
+  private void grow() {
+    final long[] oldHashes = hashes;
+    final int[] oldMinutes = minutes;
+    hashes = new long[oldHashes.length * 2];
+    minutes = new int[oldMinutes.length * 2];
+
+    for (int slot = 0; slot < oldHashes.length; slot++) {
+      if (oldHashes[slot] != EMPTY) {
+        final int target = slotOf(oldHashes[slot]);
+        hashes[target] = oldHashes[slot];
+        minutes[target] = oldMinutes[slot];
+      }
+    }
+  }
+
+  /**
+   * Checks if a hash first seen at the given minute has expired.
+   *
+   * @param minute the minute
+   * @param now the current minute
+   * @return true, if expired
+   */
+  private boolean isExpired(final int minute, final int now) {
+    return now - minute > ttlMinutes;
+  }
+
+  /**
+   * The stored key for a hash.
+   *
+   * @param hash the hash
+   * @return the key
+   */
+  private static long key(final long hash) {
+    return hash == EMPTY ? 1L : hash;
+  }
+
+  /**
+   * The current minute since the epoch.
+   *
+   * @return the minute
+   */
+  private static int currentMinute() {
+    return (int) TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis());
+  }
+
+  /**
+   * Visitor over held hashes.
+   */
+  public interface HashVisitor {
+
+    /**
+     * Visit a hash.
+     *
+     * @param hash the hash
+     */
+    void visit(long hash);
+  }
+}
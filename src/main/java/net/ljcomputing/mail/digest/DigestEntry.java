@@ -0,0 +1,80 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.digest;
+
+/**
+ * A counted item reported by a digest, with the most its count may be overstated by.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class DigestEntry {
+
+  /** The item. */
+  private final String name;
+
+  /** The estimated count. */
+  private final long count;
+
+  /** The most the count may be overstated by. */
+  private final long error;
+
+  /**
+   * Instantiates a new digest entry.
+   *
+   * @param name the name
+   * @param count the count
+   * @param error the error
+   */
+  public DigestEntry(final String name, final long count, final long error) {
+    this.name = name;
+    this.count = count;
+    this.error = error;
+  }
+
+  /**
+   * Gets the item.
+   *
+   * @return the name
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Gets the estimated count.
+   *
+   * @return the count
+   */
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * Gets the most the count may be overstated by.
+   *
+   * @return the error
+   */
+  public long getError() {
+    return error;
+  }
+
+  @Override
+  public String toString() {
+    return name + "=" + count;
+  }
+}
@@ -0,0 +1,90 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.digest;
+
+/**
+ * A noteworthy message kept by a digest: a large attachment or a flagged subject.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class DigestItem {
+
+  /** The sender, or null. */
+  private final String from;
+
+  /** The subject, or null. */
+  private final String subject;
+
+  /** The detail (e.g. attachment filename), or null. */
+  private final String detail;
+
+  /** The size in bytes, or zero. */
+  private final long size;
+
+  /**
+   * Instantiates a new digest item.
+   *
+   * @param from the from
+   * @param subject the subject
+   * @param detail the detail
+   * @param size the size
+   */
+  public DigestItem(final String from, final String subject, final String detail,
+      final long size) {
+    this.from = from;
+    this.subject = subject;
+    this.detail = detail;
+    this.size = size;
+  }
+
+  /**
+   * Gets the sender.
+   *
+   * @return the from, or null
+   */
+  public String getFrom() {
+    return from;
+  }
+
+  /**
+   * Gets the subject.
+   *
+   * @return the subject, or null
+   */
+  public String getSubject() {
+    return subject;
+  }
+
+  /**
+   * Gets the detail.
+   *
+   * @return the detail, or null
+   */
+  public String getDetail() {
+    return detail;
+  }
+
+  /**
+   * Gets the size in bytes.
+   *
+   * @return the size
+   */
+  public long getSize() {
+    return size;
+  }
+}
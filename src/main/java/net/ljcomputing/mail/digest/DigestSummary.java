@@ -0,0 +1,236 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.digest;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Bounded-memory summary of a processing run. Messages are folded into counters, top-K sketches
+ * and fixed-size heaps as they are seen; nothing about a message is retained beyond the few
+ * items that make the report, so memory is the same for a hundred messages or ten million.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class DigestSummary {
+
+  /** Orders items by size, smallest first. */
+  private static final Comparator<DigestItem> BY_SIZE = new Comparator<DigestItem>() {
+    @Override
+    public int compare(final DigestItem left, final DigestItem right) {
+      return Long.compare(left.getSize(), right.getSize());
+    }
+  };
+
+  /** The number of entries reported per list. */
+  private final int reportSize;
+
+  /** The start of the run. */
+  private final Date started = new Date();
+
+  /** The top senders. */
+  private final SpaceSaving senders;
+
+  /** The top sender domains. */
+  private final SpaceSaving domains;
+
+  /** The largest attachments, smallest of them at the head. */
+  private final PriorityQueue<DigestItem> largestAttachments;
+
+  /** The most recent flagged messages. */
+  private final Deque<DigestItem> flagged;
+
+  /** The number of messages. */
+  private long messages;
+
+  /** The total size of the messages. */
+  private long bytes;
+
+  /** The number of attachments. */
+  private long attachments;
+
+  /** The total size of the attachments. */
+  private long attachmentBytes;
+
+  /** The number of flagged messages. */
+  private long flaggedCount;
+
+  /**
+   * Instantiates a new digest summary.
+   *
+   * @param reportSize the number of entries reported per list
+   */
+  public DigestSummary(final int reportSize) {
+    this.reportSize = reportSize;
+    this.senders = new SpaceSaving(reportSize * 10);
+    this.domains = new SpaceSaving(reportSize * 10);
+    this.largestAttachments = new PriorityQueue<DigestItem>(reportSize + 1, BY_SIZE);
+    this.flagged = new ArrayDeque<DigestItem>(reportSize);
+  }
+
+  /**
+   * Count a message.
+   *
+   * @param from the sender address
+   * @param domain the sender domain
+   * @param size the message size
+   */
+  public synchronized void addMessage(final String from, final String domain, final long size) {
+    messages++;
+    bytes += Math.max(0, size);
+
+    if (from != null) {
+      senders.offer(from);
+    }
+
+    if (domain != null) {
+      domains.offer(domain);
+    }
+  }
+
+  /**
+   * Count an attachment, keeping it if it is among the largest.
+   *
+   * @param attachment the attachment
+   */
+  public synchronized void addAttachment(final DigestItem attachment) {
+    attachments++;
+    attachmentBytes += Math.max(0, attachment.getSize());
+
+    if (largestAttachments.size() < reportSize) {
+      largestAttachments.add(attachment);
+    } else if (attachment.getSize() > largestAttachments.peek().getSize()) {
+      largestAttachments.poll();
+      largestAttachments.add(attachment);
+    }
+  }
+
+  /**
+   * Count a flagged message, keeping it if it is among the most recent.
+   *
+   * @param message the message
+   */
+  public synchronized void addFlagged(final DigestItem message) {
+    flaggedCount++;
+
+    if (flagged.size() == reportSize) {
+      flagged.removeFirst();
+    }
+
+    flagged.addLast(message);
+  }
+
+  /**
+   * Gets the start of the run.
+   *
+   * @return the started
+   */
+  public Date getStarted() {
+    return new Date(started.getTime());
+  }
+
+  /**
+   * Gets the number of messages.
+   *
+   * @return the messages
+   */
+  public synchronized long getMessages() {
+    return messages;
+  }
+
+  /**
+   * Gets the total size of the messages.
+   *
+   * @return the bytes
+   */
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * Gets the number of attachments.
+   *
+   * @return the attachments
+   */
+  public synchronized long getAttachments() {
+    return attachments;
+  }
+
+  /**
+   * Gets the total size of the attachments.
+   *
+   * @return the attachment bytes
+   */
+  public synchronized long getAttachmentBytes() {
+    return attachmentBytes;
+  }
+
+  /**
+   * Gets the number of flagged messages.
+   *
+   * @return the flagged count
+   */
+  public synchronized long getFlaggedCount() {
+    return flaggedCount;
+  }
+
+  /**
+   * Gets the top senders, most frequent first.
+   *
+   * @return the top senders
+   */
+  public synchronized List<DigestEntry> getTopSenders() {
+    return senders.top(reportSize);
+  }
+
+  /**
+   * Gets the top sender domains, most frequent first.
+   *
+   * @return the top domains
+   */
+  public synchronized List<DigestEntry> getTopDomains() {
+    return domains.top(reportSize);
+  }
+
+  /**
+   * Gets the largest attachments, largest first.
+   *
+   * @return the largest attachments
+   */
+  public synchronized List<DigestItem> getLargestAttachments() {
+    final List<DigestItem> largest = new ArrayList<DigestItem>(largestAttachments);
+    Collections.sort(largest, Collections.reverseOrder(BY_SIZE));
+
+    return largest;
+  }
+
+  /**
+   * Gets the most recent flagged messages, oldest first.
+   *
+   * @return the flagged messages
+   */
+  public synchronized List<DigestItem> getFlagged() {
+    return new ArrayList<DigestItem>(flagged);
+  }
+}
@@ -0,0 +1,120 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.digest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Space-Saving top-K sketch (Metwally et al.). Tracks at most {@code capacity} items no matter
+ * how many distinct items are offered; an untracked item evicts the current minimum and inherits
+ * its count as the item's error bound. Any item occurring more than N / capacity times is
+ * guaranteed to be tracked.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class SpaceSaving {
+
+  /** The most items tracked. */
+  private final int capacity;
+
+  /** The tracked items. */
+  private final Map<String, long[]> counters;
+
+  /** The number of offers. */
+  private long total;
+
+  /**
+   * Instantiates a new Space-Saving sketch.
+   *
+   * @param capacity the most items tracked
+   */
+  public SpaceSaving(final int capacity) {
+    this.capacity = capacity;
+    this.counters = new HashMap<String, long[]>(capacity * 2);
+  }
+
+  /**
+   * Count one occurrence of the item.
+   *
+   * @param item the item
+   */
+  public void offer(final String item) {
+    total++;
+    final long[] counter = counters.get(item);
+
+    if (counter != null) {
+      counter[0]++;
+      return;
+    }
+
+    if (counters.size() < capacity) {
+      counters.put(item, new long[] { 1, 0 });
+      return;
+    }
+
+    String minimum = null;
+    long[] minimumCounter = null;
+
+    for (final Map.Entry<String, long[]> entry : counters.entrySet()) {
+      if (minimumCounter == null || entry.getValue()[0] < minimumCounter[0]) {
+        minimum = entry.getKey();
+        minimumCounter = entry.getValue();
+      }
+    }
+
+    counters.remove(minimum);
+    counters.put(item, new long[] { minimumCounter[0] + 1, minimumCounter[0] });
+  }
+
+  /**
+   * The top items, most frequent first.
+   *
+   * @param k the number of items
+   * @return the entries
+   */
+  public List<DigestEntry> top(final int k) {
+    final List<DigestEntry> entries = new ArrayList<DigestEntry>(counters.size());
+
+    for (final Map.Entry<String, long[]> entry : counters.entrySet()) {
+      entries.add(new DigestEntry(entry.getKey(), entry.getValue()[0], entry.getValue()[1]));
+    }
+
+    Collections.sort(entries, new Comparator<DigestEntry>() {
+      @Override
+      public int compare(final DigestEntry left, final DigestEntry right) {
+        return Long.compare(right.getCount(), left.getCount());
+      }
+    });
+
+    return entries.subList(0, Math.min(k, entries.size()));
+  }
+
+  /**
+   * Gets the number of offers.
+   *
+   * @return the total
+   */
+  public long getTotal() {
+    return total;
+  }
+}
@@ -0,0 +1,144 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.domain;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.mail.Address;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Bounded intern pool for email addresses and domains. The same few senders and domains account
+ * for most mail, so sharing their instances removes most per-message address garbage. When a
+ * pool fills it is cleared and refills with whatever is frequent now. The rules processor sets
+ * the capacity from the {@link #CAPACITY} property.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public enum AddressPool {
+  INSTANCE;
+
+  /** The capacity (entries) property of each pool. */
+  public static final String CAPACITY = "email.address.pool.capacity";
+
+  /** The default capacity of each pool. */
+  public static final int DEFAULT_CAPACITY = 65536;
+
+  /** The capacity of each pool. */
+  private volatile int capacity = DEFAULT_CAPACITY;
+
+  /** The pooled addresses, keyed by address. */
+  private final ConcurrentMap<String, EmailAddress> addresses =
+      new ConcurrentHashMap<String, EmailAddress>();
+
+  /** The pooled domains. */
+  private final ConcurrentMap<String, String> domains = new ConcurrentHashMap<String, String>();
+
+  /**
+   * The pooled email address for a JavaMail address.
+   *
+   * @param address the address
+   * @return the email address
+   */
+  public EmailAddress intern(final Address address) {
+    if (!(address instanceof InternetAddress)) {
+      return new EmailAddress(address.toString(), null, null);
+    }
+
+    final InternetAddress internetAddress = (InternetAddress) address;
+    final String value = internetAddress.getAddress() == null ? ""
+        : internetAddress.getAddress();
+    final String personal = internetAddress.getPersonal();
+    final EmailAddress pooled = addresses.get(value);
+
+    if (pooled != null && equal(pooled.getPersonal(), personal)) {
+      return pooled;
+    }
+
+    final EmailAddress created = new EmailAddress(value, personal,
+        internDomain(EmailAddress.domainOf(value)));
+
+    if (pooled == null) {
+      if (addresses.size() >= capacity) {
+        addresses.clear();
+      }
+
+      final EmailAddress raced = addresses.putIfAbsent(value, created);
+
+      return raced != null && equal(raced.getPersonal(), personal) ? raced : created;
+    }
+
+    return created;
+  }
+
+  /**
+   * The pooled instance of a domain.
+   *
+   * @param domain the domain
+   * @return the pooled domain, or null
+   */
+  public String internDomain(final String domain) {
+    if (domain == null) {
+      return null;
+    }
+
+    final String pooled = domains.get(domain);
+
+    if (pooled != null) {
+      return pooled;
+    }
+
+    if (domains.size() >= capacity) {
+      domains.clear();
+    }
+
+    final String raced = domains.putIfAbsent(domain, domain);
+
+    return raced == null ? domain : raced;
+  }
+
+  /**
+   * Sets the capacity of each pool.
+   *
+   * @param capacity the capacity
+   */
+  public void setCapacity(final int capacity) {
+    this.capacity = Math.max(capacity, 1);
+  }
+
+  /**
+   * Gets the number of pooled addresses.
+   *
+   * @return the size
+   */
+  public int size() {
+    return addresses.size();
+  }
+
+  /**
+   * Null-safe equality.
+   *
+   * @param left the left
+   * @param right the right
+   * @return true, if equal
+   */
+  private static boolean equal(final String left, final String right) {
+    return left == null ? right == null : left.equals(right);
+  }
+}
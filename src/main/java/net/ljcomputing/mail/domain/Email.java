@@ -16,156 +16,164 @@
 
 package net.ljcomputing.mail.domain;
 
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import javax.mail.Address;
 import javax.mail.Message;
 import javax.mail.Message.RecipientType;
 import javax.mail.MessagingException;
-import javax.mail.internet.AddressException;
-import javax.mail.internet.InternetAddress;
 
 /**
- * Email domain.
+ * Email domain. Immutable, and built lazily: each field is read from the message, and its
+ * addresses interned, only when it is first asked for, so a rule that needs only the subject
+ * never touches the recipients.
  * 
  * @author James G. Willmore
  *
  */
-public class Email {
-  
+public final class Email {
+
+  /** No addresses. */
+  private static final List<EmailAddress> NONE = Collections.emptyList();
+
+  /** The message the email is read from. */
+  private final Message message;
+
   /** The FROM addresses. */
-  private final List<InternetAddress> from = new LinkedList<InternetAddress>();
-  
+  private volatile List<EmailAddress> from;
+
   /** The TO addresses. */
-  private final List<InternetAddress> to = new LinkedList<InternetAddress>();
-  
+  private volatile List<EmailAddress> to;
+
   /** The CC addresses. */
-  private final List<InternetAddress> cc = new LinkedList<InternetAddress>();
-  
+  private volatile List<EmailAddress> cc;
+
   /** The BCC addresses. */
-  private final List<InternetAddress> bcc = new LinkedList<InternetAddress>();
-  
+  private volatile List<EmailAddress> bcc;
+
   /** The subject line of the email. */
-  private String subject;
-  
+  private volatile String subject;
+
+  /** Whether the subject has been read. */
+  private volatile boolean subjectRead;
+
   /**
    * Instantiates a new email.
    *
    * @param message the message
-   * @throws MessagingException the messaging exception
    */
-  public Email(final Message message) throws MessagingException {
-    addFrom(message.getFrom());
-    addTo(message.getRecipients(RecipientType.TO));
-    addCc(message.getRecipients(RecipientType.CC));
-    addBcc(message.getRecipients(RecipientType.BCC));
-    this.subject = message.getSubject();
+  public Email(final Message message) {
+    this.message = message;
   }
-  
+
   /**
-   * Adds the address to list.
+   * The interned, array-backed address list for the addresses.
    *
-   * @param list the list
    * @param addresses the addresses
-   * @throws AddressException the address exception
+   * @return the list
    */
-  private void addAddressToList(final List<InternetAddress> list, final Address ... addresses) throws AddressException {
-    if (addresses != null) {
-      for (int a = 0; a < addresses.length; a++) {
-        list.add((InternetAddress) addresses[a]);
-      }
+  private static List<EmailAddress> addressList(final Address... addresses) {
+    if (addresses == null || addresses.length == 0) {
+      return NONE;
     }
+
+    final EmailAddress[] interned = new EmailAddress[addresses.length];
+
+    for (int a = 0; a < addresses.length; a++) {
+      interned[a] = AddressPool.INSTANCE.intern(addresses[a]);
+    }
+
+    return Collections.unmodifiableList(Arrays.asList(interned));
   }
-  
-  /**
-   * Adds the FROM addresses.
-   *
-   * @param addresses the addresses
-   * @throws AddressException the address exception
-   */
-  public void addFrom(final Address ... addresses) throws AddressException {
-    addAddressToList(from, addresses);
-  }
-  
+
   /**
    * Gets the FROM addresses.
    *
    * @return the from
+   * @throws MessagingException the messaging exception
    */
-  public List<InternetAddress> getFrom() {
-    return from;
-  }
-  
-  /**
-   * Adds the TO addresses.
-   *
-   * @param addresses the addresses
-   * @throws AddressException the address exception
-   */
-  public void addTo(final Address ... addresses) throws AddressException {
-    addAddressToList(to, addresses);
+  public List<EmailAddress> getFrom() throws MessagingException {
+    List<EmailAddress> addresses = from;
+
+    if (addresses == null) {
+      from = addresses = addressList(message.getFrom());
+    }
+
+    return addresses;
   }
-  
+
   /**
    * Gets the TO addresses.
    *
    * @return the to
+   * @throws MessagingException the messaging exception
    */
-  public List<InternetAddress> getTo() {
-    return to;
-  }
+  public List<EmailAddress> getTo() throws MessagingException {
+    List<EmailAddress> addresses = to;
 
-  /**
-   * Adds the CC addresses.
-   *
-   * @param addresses the addresses
-   * @throws AddressException the address exception
-   */
-  public void addCc(final Address ... addresses) throws AddressException {
-    addAddressToList(cc, addresses);
+    if (addresses == null) {
+      to = addresses = addressList(message.getRecipients(RecipientType.TO));
+    }
+
+    return addresses;
   }
-  
+
   /**
    * Gets the CC addresses.
    *
    * @return the cc
+   * @throws MessagingException the messaging exception
    */
-  public List<InternetAddress> getCc() {
-    return cc;
-  }
-  
-  /**
-   * Adds the BCC addresses.
-   *
-   * @param addresses the addresses
-   * @throws AddressException the address exception
-   */
-  public void addBcc(final Address ... addresses) throws AddressException {
-    addAddressToList(bcc, addresses);
+  public List<EmailAddress> getCc() throws MessagingException {
+    List<EmailAddress> addresses = cc;
+
+    if (addresses == null) {
+      cc = addresses = addressList(message.getRecipients(RecipientType.CC));
+    }
+
+    return addresses;
   }
-  
+
   /**
    * Gets the BCC addresses.
    *
    * @return the bcc
+   * @throws MessagingException the messaging exception
    */
-  public List<InternetAddress> getBcc() {
-    return bcc;
+  public List<EmailAddress> getBcc() throws MessagingException {
+    List<EmailAddress> addresses = bcc;
+
+    if (addresses == null) {
+      bcc = addresses = addressList(message.getRecipients(RecipientType.BCC));
+    }
+
+    return addresses;
   }
-  
+
   /**
    * Gets subject line of the email.
    *
    * @return the subject
+   * @throws MessagingException the messaging exception
    */
-  public String getSubject() {
+  public String getSubject() throws MessagingException {
+    if (!subjectRead) {
+      subject = message.getSubject();
+      subjectRead = true;
+    }
+
     return subject;
   }
 
   @Override
   public String toString() {
-    return "Email [from=" + from + ", to=" + to + ", cc=" + cc + ", bcc=" + bcc + ", subject="
-        + subject + "]";
+    try {
+      return "Email [from=" + getFrom() + ", to=" + getTo() + ", cc=" + getCc() + ", bcc="
+          + getBcc() + ", subject=" + getSubject() + "]";
+    } catch (MessagingException exception) {
+      return "Email [" + exception.getMessage() + "]";
+    }
   }
 }
@@ -0,0 +1,117 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.domain;
+
+import java.util.Locale;
+
+/**
+ * An immutable email address with its pre-decoded personal name and interned domain. Instances
+ * for frequent senders and recipients are shared through the {@link AddressPool}.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public final class EmailAddress {
+
+  /** The address (e.g. jim@example.com). */
+  private final String address;
+
+  /** The decoded personal name, or null. */
+  private final String personal;
+
+  /** The domain, lower case, or null. */
+  private final String domain;
+
+  /**
+   * Instantiates a new email address.
+   *
+   * @param address the address
+   * @param personal the decoded personal name
+   * @param domain the domain
+   */
+  EmailAddress(final String address, final String personal, final String domain) {
+    this.address = address;
+    this.personal = personal;
+    this.domain = domain;
+  }
+
+  /**
+   * The lower case domain of an address, or null when it has none.
+   *
+   * @param address the address
+   * @return the domain
+   */
+  static String domainOf(final String address) {
+    final int at = address == null ? -1 : address.lastIndexOf('@');
+
+    return at < 0 || at == address.length() - 1 ? null
+        : address.substring(at + 1).toLowerCase(Locale.ENGLISH);
+  }
+
+  /**
+   * Gets the address.
+   *
+   * @return the address
+   */
+  public String getAddress() {
+    return address;
+  }
+
+  /**
+   * Gets the decoded personal name.
+   *
+   * @return the personal name, or null
+   */
+  public String getPersonal() {
+    return personal;
+  }
+
+  /**
+   * Gets the lower case domain.
+   *
+   * @return the domain, or null
+   */
+  public String getDomain() {
+    return domain;
+  }
+
+  @Override
+  public boolean equals(final Object other) {
+    if (this == other) {
+      return true;
+    }
+
+    if (!(other instanceof EmailAddress)) {
+      return false;
+    }
+
+    final EmailAddress that = (EmailAddress) other;
+
+    return address.equalsIgnoreCase(that.address)
+        && (personal == null ? that.personal == null : personal.equals(that.personal));
+  }
+
+  @Override
+  public int hashCode() {
+    return address.toLowerCase(Locale.ENGLISH).hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return personal == null ? address : personal + " <" + address + ">";
+  }
+}
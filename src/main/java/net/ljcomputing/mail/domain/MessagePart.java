@@ -0,0 +1,160 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.domain;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+import javax.mail.MessagingException;
+import javax.mail.Part;
+
+/**
+ * A leaf MIME part of a message, described from the message structure (for IMAP, the
+ * BODYSTRUCTURE) without downloading it. The part's content is fetched only when its text is
+ * read or its stream is opened; text is fetched once and kept.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class MessagePart {
+
+  /** The part. */
+  private final Part part;
+
+  /** The IMAP section (e.g. "1.2"). */
+  private final String section;
+
+  /** The base MIME type, lower case. */
+  private final String mimeType;
+
+  /** The decoded text, once fetched. */
+  private String text;
+
+  /**
+   * Instantiates a new message part.
+   *
+   * @param part the part
+   * @param section the section
+   * @throws MessagingException the messaging exception
+   */
+  public MessagePart(final Part part, final String section) throws MessagingException {
+    this.part = part;
+    this.section = section;
+
+    final String contentType = part.getContentType();
+    final int parameters = contentType == null ? -1 : contentType.indexOf(';');
+    this.mimeType = contentType == null ? "application/octet-stream"
+        : (parameters < 0 ? contentType : contentType.substring(0, parameters)).trim()
+            .toLowerCase(Locale.ENGLISH);
+  }
+
+  /**
+   * Gets the IMAP section.
+   *
+   * @return the section
+   */
+  public String getSection() {
+    return section;
+  }
+
+  /**
+   * Gets the base MIME type, in lower case.
+   *
+   * @return the mime type
+   */
+  public String getMimeType() {
+    return mimeType;
+  }
+
+  /**
+   * Gets the encoded size of the part, as reported by the structure.
+   *
+   * @return the size, or -1 if unknown
+   * @throws MessagingException the messaging exception
+   */
+  public int getSize() throws MessagingException {
+    return part.getSize();
+  }
+
+  /**
+   * Gets the filename.
+   *
+   * @return the filename, or null
+   * @throws MessagingException the messaging exception
+   */
+  public String getFilename() throws MessagingException {
+    return part.getFileName();
+  }
+
+  /**
+   * Checks if the part is plain or HTML body text.
+   *
+   * @return true, if text
+   * @throws MessagingException the messaging exception
+   */
+  public boolean isText() throws MessagingException {
+    return !isAttachment() && ("text/plain".equals(mimeType) || "text/html".equals(mimeType));
+  }
+
+  /**
+   * Checks if the part is an attachment: explicitly disposed as one, or anything that isn't
+   * body text.
+   *
+   * @return true, if attachment
+   * @throws MessagingException the messaging exception
+   */
+  public boolean isAttachment() throws MessagingException {
+    if (Part.ATTACHMENT.equalsIgnoreCase(part.getDisposition())) {
+      return true;
+    }
+
+    return !"text/plain".equals(mimeType) && !"text/html".equals(mimeType);
+  }
+
+  /**
+   * Gets the decoded text of a text part, fetching it on first use.
+   *
+   * @return the text
+   * @throws MessagingException the messaging exception
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public synchronized String getText() throws MessagingException, IOException {
+    if (text == null) {
+      final Object content = part.getContent();
+      text = content instanceof String ? (String) content : "";
+    }
+
+    return text;
+  }
+
+  /**
+   * Open the decoded content of the part, fetching it from the server now.
+   *
+   * @return the input stream
+   * @throws MessagingException the messaging exception
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public InputStream openStream() throws MessagingException, IOException {
+    return part.getInputStream();
+  }
+
+  @Override
+  public String toString() {
+    return "MessagePart [section=" + section + ", mimeType=" + mimeType + "]";
+  }
+}
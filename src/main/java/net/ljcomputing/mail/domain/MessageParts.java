@@ -0,0 +1,168 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.domain;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+
+import org.jsoup.Jsoup;
+
+/**
+ * The leaf parts of a message, walked from its structure. For an IMAP message whose
+ * BODYSTRUCTURE has been prefetched, walking costs no round trips; each part is then downloaded
+ * on its own (a part-level BODY[section] fetch) only when a rule reads it.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class MessageParts {
+
+  /** The leaf parts, in message order. */
+  private final List<MessagePart> parts;
+
+  /** The readable text, once extracted. */
+  private String text;
+
+  /**
+   * Instantiates new message parts.
+   *
+   * @param parts the parts
+   */
+  private MessageParts(final List<MessagePart> parts) {
+    this.parts = Collections.unmodifiableList(parts);
+  }
+
+  /**
+   * Walk the structure of the part (usually the message itself).
+   *
+   * @param part the part
+   * @return the message parts
+   * @throws MessagingException the messaging exception
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public static MessageParts of(final Part part) throws MessagingException, IOException {
+    final List<MessagePart> parts = new ArrayList<MessagePart>();
+    walk(part, "", parts);
+
+    return new MessageParts(parts);
+  }
+
+  /**
+   * Walk a part, adding its leaves.
+   *
+   * @param part the part
+   * @param section the part's section, empty for the message itself
+   * @param parts the parts
+   * @throws MessagingException the messaging exception
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void walk(final Part part, final String section, final List<MessagePart> parts)
+      throws MessagingException, IOException {
+    if (part.isMimeType("multipart/*")) {
+      final Multipart multipart = (Multipart) part.getContent();
+
+      for (int p = 0; p < multipart.getCount(); p++) {
+        final String child = section.isEmpty() ? Integer.toString(p + 1) : section + "." + (p + 1);
+        walk(multipart.getBodyPart(p), child, parts);
+      }
+    } else {
+      parts.add(new MessagePart(part, section.isEmpty() ? "1" : section));
+    }
+  }
+
+  /**
+   * Gets every leaf part.
+   *
+   * @return the parts
+   */
+  public List<MessagePart> getParts() {
+    return parts;
+  }
+
+  /**
+   * Gets the body text parts.
+   *
+   * @return the text parts
+   * @throws MessagingException the messaging exception
+   */
+  public List<MessagePart> getTextParts() throws MessagingException {
+    final List<MessagePart> textParts = new ArrayList<MessagePart>();
+
+    for (final MessagePart part : parts) {
+      if (part.isText()) {
+        textParts.add(part);
+      }
+    }
+
+    return textParts;
+  }
+
+  /**
+   * Gets the attachments. Nothing is downloaded until an attachment's stream is opened.
+   *
+   * @return the attachments
+   * @throws MessagingException the messaging exception
+   */
+  public List<MessagePart> getAttachments() throws MessagingException {
+    final List<MessagePart> attachments = new ArrayList<MessagePart>();
+
+    for (final MessagePart part : parts) {
+      if (part.isAttachment()) {
+        attachments.add(part);
+      }
+    }
+
+    return attachments;
+  }
+
+  /**
+   * Gets the readable text of the message: the text/plain parts where there are any, otherwise
+   * the text of the text/html parts. Only the parts used are fetched.
+   *
+   * @return the text
+   * @throws MessagingException the messaging exception
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public synchronized String getText() throws MessagingException, IOException {
+    if (text == null) {
+      final StringBuilder plain = new StringBuilder();
+      final StringBuilder html = new StringBuilder();
+
+      for (final MessagePart part : getTextParts()) {
+        if ("text/plain".equals(part.getMimeType())) {
+          plain.append(part.getText()).append('\n');
+        }
+      }
+
+      if (plain.length() == 0) {
+        for (final MessagePart part : getTextParts()) {
+          html.append(part.getText()).append('\n');
+        }
+      }
+
+      text = plain.length() > 0 ? plain.toString() : Jsoup.parse(html.toString()).text();
+    }
+
+    return text;
+  }
+}
@@ -0,0 +1,496 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.export;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.service.MailProperties;
+
+/**
+ * Exports events to an HTTP endpoint asynchronously. Events are queued in a bounded buffer, and
+ * producers wait while it is full. A single sender thread collects them into batches, closing a
+ * batch once it is full or has been open for the flush interval. Each batch is POSTed as
+ * gzip-compressed NDJSON and retried with exponential backoff. A batch that still fails is spilled
+ * to disk, and so is every batch after it until the endpoint answers again. The spilled batches
+ * are then delivered oldest first, ahead of new ones.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class HttpEventExporter {
+
+  /** The Constant logger. */
+  private final static Logger LOGGER = LoggerFactory.getLogger(HttpEventExporter.class);
+
+  /** The endpoint URL property. */
+  public static final String URL = "email.export.url";
+
+  /** The most events per batch property. */
+  public static final String BATCH_SIZE = "email.export.batch.size";
+
+  /** The longest a batch is held open (ms) property. */
+  public static final String FLUSH_INTERVAL = "email.export.flush.interval";
+
+  /** The buffer capacity property, in events. */
+  public static final String QUEUE_CAPACITY = "email.export.queue.capacity";
+
+  /** How long (ms) a submit waits on a full buffer property. */
+  public static final String SUBMIT_TIMEOUT = "email.export.queue.timeout";
+
+  /** The retries of a failed POST property. */
+  public static final String RETRIES = "email.export.retries";
+
+  /** The first retry backoff (ms) property, doubled on every further retry. */
+  public static final String BACKOFF = "email.export.backoff";
+
+  /** The connect and read timeout (ms) property. */
+  public static final String TIMEOUT = "email.export.timeout";
+
+  /** How long (ms) to wait before trying a down endpoint again property. */
+  public static final String PROBE_INTERVAL = "email.export.probe.interval";
+
+  /** The spill directory property. */
+  public static final String SPILL_DIRECTORY = "email.export.spill.dir";
+
+  /** The most bytes spilled property. */
+  public static final String SPILL_MAX_BYTES = "email.export.spill.max.bytes";
+
+  /** The endpoint. */
+  private final URL endpoint;
+
+  /** The most events per batch. */
+  private final int batchSize;
+
+  /** The longest a batch is held open. */
+  private final long flushInterval;
+
+  /** How long a submit waits on a full buffer. */
+  private final long submitTimeout;
+
+  /** The retries of a failed POST. */
+  private final int retries;
+
+  /** The first retry backoff. */
+  private final long backoff;
+
+  /** The connect and read timeout. */
+  private final int timeout;
+
+  /** How long to wait before trying a down endpoint again. */
+  private final long probeInterval;
+
+  /** The spilled batches. */
+  private final SpillDirectory spill;
+
+  /** The buffer. */
+  private final BlockingQueue<Entry> queue;
+
+  /** The sender thread. */
+  private final Thread sender;
+
+  /** Whether the exporter accepts new events. */
+  private volatile boolean running = true;
+
+  /** The earliest time the spilled batches are tried again. */
+  private long retryAt;
+
+  /** The count of events delivered. */
+  private long delivered;
+
+  /** The count of batches spilled. */
+  private long spilled;
+
+  /** The count of events dropped, rejected by the endpoint or with the spill full. */
+  private long dropped;
+
+  /**
+   * Instantiates a new HTTP event exporter.
+   *
+   * @param properties the properties
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public HttpEventExporter(final MailProperties properties) throws EmailRuleProcessorException {
+    final String url = properties.valueOf(URL);
+
+    if (url == null) {
+      throw new EmailRuleProcessorException(URL + " has not been configured.");
+    }
+
+    try {
+      this.endpoint = new URL(url);
+    } catch (IOException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+
+    this.batchSize = Math.max(1, properties.intValueOf(BATCH_SIZE, 500));
+    this.flushInterval = properties.longValueOf(FLUSH_INTERVAL, 1000L);
+    this.submitTimeout = properties.longValueOf(SUBMIT_TIMEOUT, 10000L);
+    this.retries = properties.intValueOf(RETRIES, 3);
+    this.backoff = properties.longValueOf(BACKOFF, 500L);
+    this.timeout = properties.intValueOf(TIMEOUT, 10000);
+    this.probeInterval = properties.longValueOf(PROBE_INTERVAL, 30000L);
+    this.queue = new ArrayBlockingQueue<Entry>(properties.intValueOf(QUEUE_CAPACITY, 10000));
+    this.spill = new SpillDirectory(new File(properties.valueOf(SPILL_DIRECTORY,
+        new File(properties.dataDirectory(), "export-spill").getPath())),
+        properties.longValueOf(SPILL_MAX_BYTES, 1024L * 1024 * 1024));
+
+    if (!spill.isEmpty()) {
+      LOGGER.info("{} event batches spilled before a restart are waiting for {}", spill.size(),
+          endpoint);
+    }
+
+    this.sender = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        drain();
+      }
+    }, "event-exporter");
+    sender.setDaemon(true);
+    sender.start();
+  }
+
+  /**
+   * Queue an event, waiting up to the submit timeout while the buffer is full.
+   *
+   * @param event the event, a single line of JSON
+   * @throws EmailRuleProcessorException when the buffer stays full or the exporter is closed
+   */
+  public void submit(final String event) throws EmailRuleProcessorException {
+    put(new Entry(event, null));
+  }
+
+  /**
+   * Deliver, or spill, every event queued so far.
+   *
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public void flush() throws EmailRuleProcessorException {
+    final CountDownLatch done = new CountDownLatch(1);
+    put(new Entry(null, done));
+
+    try {
+      done.await();
+    } catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
+  /**
+   * Flush the exporter and stop the sender thread. Batches still spilled are delivered after the
+   * next start.
+   *
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public void close() throws EmailRuleProcessorException {
+    if (!running) {
+      return;
+    }
+
+    flush();
+    running = false;
+    queue.offer(new Entry(null, new CountDownLatch(1)));
+
+    try {
+      sender.join(TimeUnit.MINUTES.toMillis(1));
+    } catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+    }
+
+    LOGGER.info("event exporter closed: {} events delivered, {} batches spilled, {} dropped, "
+        + "{} batches waiting", delivered, spilled, dropped, spill.size());
+  }
+
+  /**
+   * Queue an entry for the sender thread.
+   *
+   * @param entry the entry
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  private void put(final Entry entry) throws EmailRuleProcessorException {
+    if (!running) {
+      throw new EmailRuleProcessorException("event exporter has been closed.");
+    }
+
+    try {
+      if (!queue.offer(entry, submitTimeout, TimeUnit.MILLISECONDS)) {
+        throw new EmailRuleProcessorException("event exporter buffer is full.");
+      }
+    } catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
+  /**
+   * The sender thread: collect events into batches closed by size or age, deliver them, and
+   * retry the spilled batches whenever the endpoint may be back, until the exporter is closed.
+   */
+  private void drain() {
+    final List<String> batch = new ArrayList<String>(batchSize);
+    long openedAt = 0;
+
+    while (running) {
+      try {
+        final long wait = batch.isEmpty() ? flushInterval
+            : Math.max(0L, openedAt + flushInterval - System.currentTimeMillis());
+        final Entry entry = queue.poll(wait, TimeUnit.MILLISECONDS);
+
+        if (entry != null && entry.event != null) {
+          if (batch.isEmpty()) {
+            openedAt = System.currentTimeMillis();
+          }
+
+          batch.add(entry.event);
+        }
+
+        if (batch.size() >= batchSize || entry == null || entry.done != null
+            || System.currentTimeMillis() - openedAt >= flushInterval) {
+          deliver(batch);
+          batch.clear();
+          deliverSpilled();
+        }
+
+        if (entry != null && entry.done != null) {
+          entry.done.countDown();
+        }
+      } catch (InterruptedException exception) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Deliver a batch, retrying it, or spill it when the endpoint is down or batches are already
+   * waiting ahead of it.
+   *
+   * @param batch the events
+   * @throws InterruptedException when interrupted between retries
+   */
+  private void deliver(final List<String> batch) throws InterruptedException {
+    if (batch.isEmpty()) {
+      return;
+    }
+
+    final byte[] payload;
+
+    try {
+      payload = compress(batch);
+    } catch (IOException exception) {
+      LOGGER.error("failed to compress {} events: {}", batch.size(), exception.getMessage());
+      dropped += batch.size();
+      return;
+    }
+
+    if (spill.isEmpty()) {
+      for (int attempt = 0; attempt <= retries; attempt++) {
+        if (attempt > 0) {
+          Thread.sleep(backoff << (attempt - 1));
+        }
+
+        final int status = post(payload);
+
+        if (isSuccess(status)) {
+          delivered += batch.size();
+          return;
+        }
+
+        if (isRejected(status)) {
+          LOGGER.error("{} rejected {} events with status {}; dropping them", endpoint,
+              batch.size(), status);
+          dropped += batch.size();
+          return;
+        }
+      }
+
+      LOGGER.warn("{} is unavailable; spilling events to disk", endpoint);
+      retryAt = System.currentTimeMillis() + probeInterval;
+    }
+
+    try {
+      if (spill.add(payload)) {
+        spilled++;
+      } else {
+        LOGGER.error("event spill is full; dropping {} events", batch.size());
+        dropped += batch.size();
+      }
+    } catch (IOException exception) {
+      LOGGER.error("failed to spill {} events: {}", batch.size(), exception.getMessage());
+      dropped += batch.size();
+    }
+  }
+
+  /**
+   * Deliver the spilled batches, oldest first, once the endpoint may be back.
+   */
+  private void deliverSpilled() {
+    while (!spill.isEmpty() && System.currentTimeMillis() >= retryAt) {
+      try {
+        final int status = post(spill.oldest());
+
+        if (isSuccess(status) || isRejected(status)) {
+          if (isRejected(status)) {
+            LOGGER.error("{} rejected a spilled batch with status {}; dropping it", endpoint,
+                status);
+          }
+
+          spill.removeOldest();
+
+          if (spill.isEmpty()) {
+            LOGGER.info("{} is available again; every spilled batch delivered", endpoint);
+          }
+        } else {
+          retryAt = System.currentTimeMillis() + probeInterval;
+        }
+      } catch (IOException exception) {
+        LOGGER.error("failed to read spilled batch: {}", exception.getMessage());
+        spill.removeOldest();
+      }
+    }
+  }
+
+  /**
+   * POST a compressed batch.
+   *
+   * @param payload the compressed batch
+   * @return the response status, or -1 when the endpoint could not be reached
+   */
+  private int post(final byte[] payload) {
+    try {
+      final HttpURLConnection connection = (HttpURLConnection) endpoint.openConnection();
+      connection.setRequestMethod("POST");
+      connection.setDoOutput(true);
+      connection.setConnectTimeout(timeout);
+      connection.setReadTimeout(timeout);
+      connection.setFixedLengthStreamingMode(payload.length);
+      connection.setRequestProperty("Content-Type", "application/x-ndjson");
+      connection.setRequestProperty("Content-Encoding", "gzip");
+
+      try (final OutputStream out = connection.getOutputStream()) {
+        out.write(payload);
+      }
+
+      final int status = connection.getResponseCode();
+      discard(status < 400 ? connection.getInputStream() : connection.getErrorStream());
+
+      return status;
+    } catch (IOException exception) {
+      LOGGER.debug("POST to {} failed: {}", endpoint, exception.getMessage());
+      return -1;
+    }
+  }
+
+  /**
+   * Checks if a response status means the batch was accepted.
+   *
+   * @param status the status
+   * @return true, if accepted
+   */
+  private static boolean isSuccess(final int status) {
+    return status >= 200 && status < 300;
+  }
+
+  /**
+   * Checks if a response status means the batch will never be accepted, so retrying is futile.
+   *
+   * @param status the status
+   * @return true, if rejected
+   */
+  private static boolean isRejected(final int status) {
+    return status >= 400 && status < 500 && status != 408 && status != 429;
+  }
+
+  /**
+   * Read a response body to the end, so the connection can be kept alive.
+   *
+   * @param in the response body, or null
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void discard(final InputStream in) throws IOException {
+    if (in != null) {
+      try (final InputStream body = in) {
+        final byte[] buffer = new byte[1024];
+
+        while (body.read(buffer) >= 0) {
+          // drained
+        }
+      }
+    }
+  }
+
+  /**
+   * Compress a batch into gzip-compressed NDJSON.
+   *
+   * @param batch the events
+   * @return the compressed batch
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static byte[] compress(final List<String> batch) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(batch.size() * 64);
+
+    try (final GZIPOutputStream gzip = new GZIPOutputStream(bytes, 8192)) {
+      for (final String event : batch) {
+        gzip.write(event.getBytes(StandardCharsets.UTF_8));
+        gzip.write('\n');
+      }
+    }
+
+    return bytes.toByteArray();
+  }
+
+  /**
+   * An event queued for the sender thread, or a flush marker.
+   */
+  private static class Entry {
+
+    /** The event, or null for a flush marker. */
+    private final String event;
+
+    /** The latch counted down once a flush marker has been handled, or null. */
+    private final CountDownLatch done;
+
+    /**
+     * Instantiates a new entry.
+     *
+     * @param event the event
+     * @param done the latch
+     */
+    private Entry(final String event, final CountDownLatch done) {
+      this.event = event;
+      this.done = done;
+    }
+  }
+}
@@ -0,0 +1,106 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.export;
+
+/**
+ * Builds a single-line JSON object, one NDJSON record. Fields with no value are left out.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class JsonLine {
+
+  /** The line. */
+  private final StringBuilder line = new StringBuilder(256).append('{');
+
+  /**
+   * Add a string field.
+   *
+   * @param name the name
+   * @param value the value, or null to leave the field out
+   * @return the json line
+   */
+  public JsonLine field(final String name, final String value) {
+    if (value != null) {
+      name(name);
+      quote(value);
+    }
+
+    return this;
+  }
+
+  /**
+   * Add a number field.
+   *
+   * @param name the name
+   * @param value the value, or a negative value to leave the field out
+   * @return the json line
+   */
+  public JsonLine field(final String name, final long value) {
+    if (value >= 0) {
+      name(name);
+      line.append(value);
+    }
+
+    return this;
+  }
+
+  /**
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return line.toString() + '}';
+  }
+
+  /**
+   * Append a field name.
+   *
+   * @param name the name
+   */
+  private void name(final String name) {
+    if (line.length() > 1) {
+      line.append(',');
+    }
+
+    quote(name);
+    line.append(':');
+  }
+
+  /**
+   * Append a quoted, escaped JSON string.
+   *
+   * @param value the value
+   */
+  private void quote(final String value) {
+    line.append('"');
+
+    for (int c = 0; c < value.length(); c++) {
+      final char character = value.charAt(c);
+
+      if (character == '"' || character == '\\') {
+        line.append('\\').append(character);
+      } else if (character < 0x20) {
+        line.append(String.format("\\u%04x", (int) character));
+      } else {
+        line.append(character);
+      }
+    }
+
+    line.append('"');
+  }
+}
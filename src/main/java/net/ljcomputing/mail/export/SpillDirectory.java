@@ -0,0 +1,142 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.export;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.TreeMap;
+
+/**
+ * A directory of compressed batches that could not be delivered, kept in the order they were
+ * spilled until they can be. Each batch is written under a temporary name and renamed into place,
+ * so a crash never leaves a partial batch behind.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class SpillDirectory {
+
+  /** The batch file suffix. */
+  private static final String SUFFIX = ".ndjson.gz";
+
+  /** The directory. */
+  private final File directory;
+
+  /** The most bytes the directory may hold. */
+  private final long maxBytes;
+
+  /** The spilled batches, by sequence. */
+  private final TreeMap<Long, File> batches = new TreeMap<Long, File>();
+
+  /** The bytes held. */
+  private long bytes;
+
+  /**
+   * Open the spill directory, picking up any batches spilled before a restart.
+   *
+   * @param directory the directory
+   * @param maxBytes the most bytes the directory may hold
+   */
+  public SpillDirectory(final File directory, final long maxBytes) {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+    directory.mkdirs();
+
+    final File[] files = directory.listFiles();
+
+    for (final File file : files == null ? new File[0] : files) {
+      final String name = file.getName();
+
+      if (name.endsWith(SUFFIX) && name.matches("\\d+\\Q" + SUFFIX + "\\E")) {
+        batches.put(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())), file);
+        bytes += file.length();
+      } else if (name.endsWith(".tmp")) {
+        file.delete();
+      }
+    }
+  }
+
+  /**
+   * Checks if no batches are held.
+   *
+   * @return true, if empty
+   */
+  public boolean isEmpty() {
+    return batches.isEmpty();
+  }
+
+  /**
+   * Gets the count of batches held.
+   *
+   * @return the count
+   */
+  public int size() {
+    return batches.size();
+  }
+
+  /**
+   * Spill a batch.
+   *
+   * @param payload the compressed batch
+   * @return true, if spilled; false if the directory is full
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public boolean add(final byte[] payload) throws IOException {
+    if (bytes + payload.length > maxBytes) {
+      return false;
+    }
+
+    final long sequence = batches.isEmpty() ? 1L : batches.lastKey() + 1;
+    final File file = new File(directory, String.format("%016d", sequence) + SUFFIX);
+    final File temporary = new File(directory, file.getName() + ".tmp");
+
+    try (final FileOutputStream out = new FileOutputStream(temporary)) {
+      out.write(payload);
+      out.getFD().sync();
+    }
+
+    Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    batches.put(sequence, file);
+    bytes += payload.length;
+
+    return true;
+  }
+
+  /**
+   * Read the oldest batch.
+   *
+   * @return the compressed batch, or null if empty
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public byte[] oldest() throws IOException {
+    return batches.isEmpty() ? null : Files.readAllBytes(batches.firstEntry().getValue().toPath());
+  }
+
+  /**
+   * Remove the oldest batch, once it has been delivered.
+   */
+  public void removeOldest() {
+    if (!batches.isEmpty()) {
+      final File file = batches.pollFirstEntry().getValue();
+      bytes -= file.length();
+      file.delete();
+    }
+  }
+}
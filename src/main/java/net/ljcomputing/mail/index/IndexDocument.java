@@ -0,0 +1,126 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.index;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.mail.MessagingException;
+
+import net.ljcomputing.mail.domain.Email;
+
+/**
+ * A message as the index sees it: the stored fields returned with hits, plus its terms.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class IndexDocument {
+
+  /** The most body terms indexed per message. */
+  private static final int MAX_BODY_TERMS = 4096;
+
+  /** The Message-ID. */
+  private final String messageId;
+
+  /** The subject. */
+  private final String subject;
+
+  /** The date, in epoch milliseconds. */
+  private final long date;
+
+  /** The terms. */
+  private final Set<String> terms;
+
+  /**
+   * Instantiates a new index document.
+   *
+   * @param messageId the message id
+   * @param subject the subject
+   * @param date the date
+   * @param terms the terms
+   */
+  public IndexDocument(final String messageId, final String subject, final long date,
+      final Set<String> terms) {
+    this.messageId = messageId == null ? "" : messageId;
+    this.subject = subject == null ? "" : subject;
+    this.date = date;
+    this.terms = Collections.unmodifiableSet(terms);
+  }
+
+  /**
+   * Build the document for an email.
+   *
+   * @param email the email
+   * @param messageId the message id
+   * @param date the date
+   * @param body the extracted body text
+   * @return the index document
+   * @throws MessagingException the messaging exception
+   */
+  public static IndexDocument of(final Email email, final String messageId, final Date date,
+      final String body) throws MessagingException {
+    final Set<String> terms = new HashSet<String>();
+    IndexTokenizer.addresses(IndexTokenizer.FROM, email.getFrom(), terms);
+    IndexTokenizer.addresses(IndexTokenizer.TO, email.getTo(), terms);
+    IndexTokenizer.addresses(IndexTokenizer.TO, email.getCc(), terms);
+    IndexTokenizer.addresses(IndexTokenizer.TO, email.getBcc(), terms);
+    IndexTokenizer.words(IndexTokenizer.SUBJECT, email.getSubject(), terms, Integer.MAX_VALUE);
+    IndexTokenizer.words(IndexTokenizer.BODY, body, terms, terms.size() + MAX_BODY_TERMS);
+
+    return new IndexDocument(messageId, email.getSubject(), date == null ? 0L : date.getTime(),
+        terms);
+  }
+
+  /**
+   * Gets the Message-ID.
+   *
+   * @return the message id
+   */
+  public String getMessageId() {
+    return messageId;
+  }
+
+  /**
+   * Gets the subject.
+   *
+   * @return the subject
+   */
+  public String getSubject() {
+    return subject;
+  }
+
+  /**
+   * Gets the date, in epoch milliseconds.
+   *
+   * @return the date
+   */
+  public long getDate() {
+    return date;
+  }
+
+  /**
+   * Gets the terms.
+   *
+   * @return the terms
+   */
+  public Set<String> getTerms() {
+    return terms;
+  }
+}
@@ -0,0 +1,98 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.index;
+
+import java.util.Date;
+
+/**
+ * A message matching an index query.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class IndexHit {
+
+  /** The document id. */
+  private final int docId;
+
+  /** The Message-ID. */
+  private final String messageId;
+
+  /** The subject. */
+  private final String subject;
+
+  /** The date, in epoch milliseconds. */
+  private final long date;
+
+  /**
+   * Instantiates a new index hit.
+   *
+   * @param docId the doc id
+   * @param messageId the message id
+   * @param subject the subject
+   * @param date the date
+   */
+  public IndexHit(final int docId, final String messageId, final String subject,
+      final long date) {
+    this.docId = docId;
+    this.messageId = messageId;
+    this.subject = subject;
+    this.date = date;
+  }
+
+  /**
+   * Gets the document id.
+   *
+   * @return the doc id
+   */
+  public int getDocId() {
+    return docId;
+  }
+
+  /**
+   * Gets the Message-ID.
+   *
+   * @return the message id
+   */
+  public String getMessageId() {
+    return messageId;
+  }
+
+  /**
+   * Gets the subject.
+   *
+   * @return the subject
+   */
+  public String getSubject() {
+    return subject;
+  }
+
+  /**
+   * Gets the date.
+   *
+   * @return the date
+   */
+  public Date getDate() {
+    return new Date(date);
+  }
+
+  @Override
+  public String toString() {
+    return "IndexHit [docId=" + docId + ", messageId=" + messageId + ", subject=" + subject
+        + ", date=" + getDate() + "]";
+  }
+}
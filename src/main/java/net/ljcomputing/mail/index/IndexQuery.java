@@ -0,0 +1,146 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.index;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A fielded index query. Every term added is required; the date range and limit are optional.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class IndexQuery {
+
+  /** The required terms. */
+  private final Set<String> terms = new LinkedHashSet<String>();
+
+  /** The earliest date, inclusive, in epoch milliseconds. */
+  private long start = Long.MIN_VALUE;
+
+  /** The latest date, inclusive, in epoch milliseconds. */
+  private long end = Long.MAX_VALUE;
+
+  /** The most hits returned. */
+  private int limit = 100;
+
+  /**
+   * Require a sender address or domain.
+   *
+   * @param address the address or domain
+   * @return the index query
+   */
+  public IndexQuery from(final String address) {
+    terms.add(IndexTokenizer.FROM + IndexTokenizer.normalizeAddress(address));
+    return this;
+  }
+
+  /**
+   * Require a recipient (TO, CC or BCC) address or domain.
+   *
+   * @param address the address or domain
+   * @return the index query
+   */
+  public IndexQuery to(final String address) {
+    terms.add(IndexTokenizer.TO + IndexTokenizer.normalizeAddress(address));
+    return this;
+  }
+
+  /**
+   * Require every word in the subject.
+   *
+   * @param words the words
+   * @return the index query
+   */
+  public IndexQuery subject(final String words) {
+    IndexTokenizer.words(IndexTokenizer.SUBJECT, words, terms, Integer.MAX_VALUE);
+    return this;
+  }
+
+  /**
+   * Require every word in the body.
+   *
+   * @param words the words
+   * @return the index query
+   */
+  public IndexQuery body(final String words) {
+    IndexTokenizer.words(IndexTokenizer.BODY, words, terms, Integer.MAX_VALUE);
+    return this;
+  }
+
+  /**
+   * Restrict hits to messages dated within the range; either end may be null.
+   *
+   * @param start the earliest date, inclusive
+   * @param end the latest date, inclusive
+   * @return the index query
+   */
+  public IndexQuery dated(final Date start, final Date end) {
+    this.start = start == null ? Long.MIN_VALUE : start.getTime();
+    this.end = end == null ? Long.MAX_VALUE : end.getTime();
+    return this;
+  }
+
+  /**
+   * Limit the number of hits, newest first.
+   *
+   * @param limit the limit
+   * @return the index query
+   */
+  public IndexQuery limit(final int limit) {
+    this.limit = limit;
+    return this;
+  }
+
+  /**
+   * Gets the required terms.
+   *
+   * @return the terms
+   */
+  List<String> terms() {
+    return new ArrayList<String>(terms);
+  }
+
+  /**
+   * Checks if the date is within the range.
+   *
+   * @param date the date
+   * @return true, if within range
+   */
+  boolean inRange(final long date) {
+    return date >= start && date <= end;
+  }
+
+  /**
+   * Gets the limit.
+   *
+   * @return the limit
+   */
+  int limit() {
+    return limit;
+  }
+
+  @Override
+  public String toString() {
+    return "IndexQuery [terms=" + terms + ", start=" + start + ", end=" + end + ", limit="
+        + limit + "]";
+  }
+}
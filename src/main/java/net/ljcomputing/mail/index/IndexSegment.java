@@ -0,0 +1,81 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.index;
+
+/**
+ * A set of indexed messages with contiguous document ids starting at the base, searchable by
+ * term. Implemented by the immutable on-disk segments and by the in-memory buffer that collects
+ * new messages until it is flushed to a segment.
+ * 
+ * @author James G. Willmore
+ *
+ */
+interface IndexSegment {
+
+  /**
+   * The first document id.
+   *
+   * @return the base
+   */
+  int base();
+
+  /**
+   * The number of documents.
+   *
+   * @return the doc count
+   */
+  int docCount();
+
+  /**
+   * The date of the document.
+   *
+   * @param local the document's position in the segment
+   * @return the date, in epoch milliseconds
+   */
+  long date(int local);
+
+  /**
+   * The Message-ID of the document.
+   *
+   * @param local the document's position in the segment
+   * @return the message id
+   */
+  String messageId(int local);
+
+  /**
+   * The subject of the document.
+   *
+   * @param local the document's position in the segment
+   * @return the subject
+   */
+  String subject(int local);
+
+  /**
+   * Every term in the segment, in ascending order.
+   *
+   * @return the terms
+   */
+  String[] sortedTerms();
+
+  /**
+   * The ascending document ids containing the term.
+   *
+   * @param term the term
+   * @return the postings, empty when the term is absent
+   */
+  int[] postings(String term);
+}
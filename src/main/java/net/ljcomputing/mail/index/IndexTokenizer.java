@@ -0,0 +1,122 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.index;
+
+import java.util.Collection;
+import java.util.Set;
+
+import net.ljcomputing.mail.domain.EmailAddress;
+
+/**
+ * Turns envelope fields and text into fielded index terms of the form {@code field:token}.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public final class IndexTokenizer {
+
+  /** The FROM field. */
+  public static final String FROM = "from:";
+
+  /** The TO field, covering TO, CC and BCC. */
+  public static final String TO = "to:";
+
+  /** The subject field. */
+  public static final String SUBJECT = "subject:";
+
+  /** The body field. */
+  public static final String BODY = "body:";
+
+  /** The shortest indexed word. */
+  private static final int MIN_WORD = 2;
+
+  /** The longest indexed word. */
+  private static final int MAX_WORD = 40;
+
+  /**
+   * Instantiates a new index tokenizer.
+   */
+  private IndexTokenizer() {
+  }
+
+  /**
+   * Add a term for every word in the text.
+   *
+   * @param field the field
+   * @param text the text
+   * @param terms the terms
+   * @param limit the most terms the set may hold
+   */
+  public static void words(final String field, final CharSequence text, final Set<String> terms,
+      final int limit) {
+    if (text == null) {
+      return;
+    }
+
+    final StringBuilder word = new StringBuilder(MAX_WORD);
+    final int length = text.length();
+
+    for (int c = 0; c <= length && terms.size() < limit; c++) {
+      final char ch = c < length ? text.charAt(c) : ' ';
+
+      if (Character.isLetterOrDigit(ch)) {
+        if (word.length() < MAX_WORD) {
+          word.append(Character.toLowerCase(ch));
+        }
+      } else if (word.length() > 0) {
+        if (word.length() >= MIN_WORD) {
+          terms.add(field + word);
+        }
+
+        word.setLength(0);
+      }
+    }
+  }
+
+  /**
+   * Add terms for every address: the full address, its domain and the words of the personal
+   * name.
+   *
+   * @param field the field
+   * @param addresses the addresses
+   * @param terms the terms
+   */
+  public static void addresses(final String field, final Collection<EmailAddress> addresses,
+      final Set<String> terms) {
+    for (final EmailAddress address : addresses) {
+      if (!address.getAddress().isEmpty()) {
+        terms.add(field + normalizeAddress(address.getAddress()));
+      }
+
+      if (address.getDomain() != null) {
+        terms.add(field + address.getDomain());
+      }
+
+      words(field, address.getPersonal(), terms, Integer.MAX_VALUE);
+    }
+  }
+
+  /**
+   * Normalize an address or domain for use as a term.
+   *
+   * @param address the address
+   * @return the normalized address
+   */
+  public static String normalizeAddress(final String address) {
+    return address.trim().toLowerCase();
+  }
+}
@@ -0,0 +1,93 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.index;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of primitive ints, used for postings lists.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public final class IntList {
+
+  /** The values. */
+  private int[] values;
+
+  /** The size. */
+  private int size;
+
+  /**
+   * Instantiates a new int list.
+   *
+   * @param capacity the initial capacity
+   */
+  public IntList(final int capacity) {
+    this.values = new int[Math.max(1, capacity)];
+  }
+
+  /**
+   * Append a value.
+   *
+   * @param value the value
+   */
+  public void add(final int value) {
+    if (size == values.length) {
+      values = Arrays.copyOf(values, size + (size >> 1) + 1);
+    }
+
+    values[size++] = value;
+  }
+
+  /**
+   * Gets the value at the index.
+   *
+   * @param index the index
+   * @return the value
+   */
+  public int get(final int index) {
+    return values[index];
+  }
+
+  /**
+   * Gets the size.
+   *
+   * @return the size
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Gets the last value, or -1 when empty.
+   *
+   * @return the last value
+   */
+  public int last() {
+    return size == 0 ? -1 : values[size - 1];
+  }
+
+  /**
+   * Copy the values to an array.
+   *
+   * @return the array
+   */
+  public int[] toArray() {
+    return Arrays.copyOf(values, size);
+  }
+}
@@ -0,0 +1,523 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.service.MailProperties;
+
+/**
+ * Incremental on-disk inverted index of processed mail. New messages collect in an in-memory
+ * buffer that is flushed to an immutable segment once it holds enough documents; a background
+ * thread merges runs of small adjacent segments so the segment count stays bounded. The live
+ * segment list is recorded in a manifest that is replaced atomically on every change. A merged
+ * segment's file is deleted only once no search is still reading it.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class MailIndex {
+
+  /** The Constant logger. */
+  private final static Logger LOGGER = LoggerFactory.getLogger(MailIndex.class);
+
+  /** The index directory property. */
+  public static final String DIRECTORY = "email.index.dir";
+
+  /** The documents buffered before a flush property. */
+  public static final String FLUSH_DOCS = "email.index.flush.docs";
+
+  /** The segments merged at once property. */
+  public static final String MERGE_FACTOR = "email.index.merge.factor";
+
+  /** The merge check interval (seconds) property. */
+  public static final String MERGE_INTERVAL = "email.index.merge.interval";
+
+  /** The largest segment a merge may produce (bytes) property. */
+  public static final String MAX_SEGMENT_BYTES = "email.index.segment.max.bytes";
+
+  /** The manifest file name. */
+  private static final String MANIFEST = "segments.manifest";
+
+  /** The index directory. */
+  private final File directory;
+
+  /** The documents buffered before a flush. */
+  private final int flushDocs;
+
+  /** The segments merged at once. */
+  private final int mergeFactor;
+
+  /** The largest segment a merge may produce. */
+  private final long maxSegmentBytes;
+
+  /** The background merger. */
+  private final ScheduledExecutorService merger;
+
+  /** The live segments, in document id order; replaced, never mutated. */
+  private volatile List<Segment> segments;
+
+  /** The buffer of documents not yet flushed. */
+  private SegmentBuffer buffer;
+
+  /** The next segment file number. */
+  private long nextSegment;
+
+  /**
+   * Open the index, creating it if it does not exist.
+   *
+   * @param properties the properties
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public MailIndex(final MailProperties properties) throws EmailRuleProcessorException {
+    this.directory = new File(properties.valueOf(DIRECTORY,
+        new File(properties.dataDirectory(), "index").getPath()));
+    this.flushDocs = properties.intValueOf(FLUSH_DOCS, 10000);
+    this.mergeFactor = Math.max(2, properties.intValueOf(MERGE_FACTOR, 10));
+    this.maxSegmentBytes = properties.longValueOf(MAX_SEGMENT_BYTES, 1024L * 1024 * 1024);
+    directory.mkdirs();
+
+    try {
+      this.segments = loadSegments();
+    } catch (IOException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+
+    this.buffer = new SegmentBuffer(nextDocId(segments));
+    this.merger = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable runnable) {
+        final Thread thread = new Thread(runnable, "mail-index-merger");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    final long interval = properties.longValueOf(MERGE_INTERVAL, 30L);
+    merger.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        mergeQuietly();
+      }
+    }, interval, interval, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Add a document to the index.
+   *
+   * @param document the document
+   * @return the document id
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public synchronized int add(final IndexDocument document) throws EmailRuleProcessorException {
+    final int docId = buffer.add(document);
+
+    if (buffer.docCount() >= flushDocs) {
+      flush();
+    }
+
+    return docId;
+  }
+
+  /**
+   * Flush the buffered documents to a new segment.
+   *
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public synchronized void flush() throws EmailRuleProcessorException {
+    if (buffer.docCount() == 0) {
+      return;
+    }
+
+    try {
+      final File file = new File(directory, segmentName());
+      SegmentWriter.write(file, Collections.singletonList(buffer));
+
+      final List<Segment> updated = new ArrayList<Segment>(segments);
+      updated.add(new Segment(file));
+      publish(updated);
+      buffer = new SegmentBuffer(nextDocId(updated));
+    } catch (IOException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
+  /**
+   * Search the index, newest documents first.
+   *
+   * @param query the query
+   * @return the hits
+   */
+  public List<IndexHit> search(final IndexQuery query) {
+    final List<IndexHit> hits = new ArrayList<IndexHit>();
+    final List<Segment> snapshot;
+
+    synchronized (this) {
+      // the buffer holds the newest documents and is only safe to read under the lock
+      snapshot = segments;
+      search(buffer, query, hits);
+
+      for (final Segment segment : snapshot) {
+        segment.acquire();
+      }
+    }
+
+    try {
+      for (int s = snapshot.size() - 1; s >= 0 && hits.size() < query.limit(); s--) {
+        search(snapshot.get(s), query, hits);
+      }
+    } finally {
+      for (final Segment segment : snapshot) {
+        if (segment.release()) {
+          delete(segment);
+        }
+      }
+    }
+
+    return hits;
+  }
+
+  /**
+   * Gets the number of documents in the index.
+   *
+   * @return the doc count
+   */
+  public synchronized int docCount() {
+    int docCount = buffer.docCount();
+
+    for (final Segment segment : segments) {
+      docCount += segment.docCount();
+    }
+
+    return docCount;
+  }
+
+  /**
+   * Flush, stop the merger and close the index.
+   *
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public void close() throws EmailRuleProcessorException {
+    merger.shutdown();
+
+    try {
+      merger.awaitTermination(5, TimeUnit.MINUTES);
+    } catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+    }
+
+    flush();
+    LOGGER.info("mail index closed: {} documents in {} segments", docCount(), segments.size());
+  }
+
+  /**
+   * Search one segment, adding hits newest first.
+   *
+   * @param segment the segment
+   * @param query the query
+   * @param hits the hits
+   */
+  private static void search(final IndexSegment segment, final IndexQuery query,
+      final List<IndexHit> hits) {
+    final List<String> terms = query.terms();
+    final int base = segment.base();
+
+    if (terms.isEmpty()) {
+      for (int local = segment.docCount() - 1; local >= 0 && hits.size() < query.limit();
+          local--) {
+        addIfInRange(segment, base + local, query, hits);
+      }
+
+      return;
+    }
+
+    final int[][] postings = new int[terms.size()][];
+
+    for (int t = 0; t < terms.size(); t++) {
+      postings[t] = segment.postings(terms.get(t));
+
+      if (postings[t].length == 0) {
+        return;
+      }
+    }
+
+    Arrays.sort(postings, new Comparator<int[]>() {
+      @Override
+      public int compare(final int[] left, final int[] right) {
+        return Integer.compare(left.length, right.length);
+      }
+    });
+
+    final int[] matches = intersect(postings);
+
+    for (int m = matches.length - 1; m >= 0 && hits.size() < query.limit(); m--) {
+      addIfInRange(segment, matches[m], query, hits);
+    }
+  }
+
+  /**
+   * Intersect postings lists, shortest first, galloping through the longer lists.
+   *
+   * @param postings the postings, sorted by length
+   * @return the document ids in every list
+   */
+  static int[] intersect(final int[][] postings) {
+    int[] result = postings[0];
+
+    for (int p = 1; p < postings.length && result.length > 0; p++) {
+      final int[] other = postings[p];
+      final IntList matched = new IntList(result.length);
+      int from = 0;
+
+      for (final int docId : result) {
+        final int found = Arrays.binarySearch(other, from, other.length, docId);
+
+        if (found >= 0) {
+          matched.add(docId);
+          from = found + 1;
+        } else {
+          from = -found - 1;
+        }
+
+        if (from >= other.length) {
+          break;
+        }
+      }
+
+      result = matched.toArray();
+    }
+
+    return result;
+  }
+
+  /**
+   * Add a hit for the document if it is within the query's date range.
+   *
+   * @param segment the segment
+   * @param docId the doc id
+   * @param query the query
+   * @param hits the hits
+   */
+  private static void addIfInRange(final IndexSegment segment, final int docId,
+      final IndexQuery query, final List<IndexHit> hits) {
+    final int local = docId - segment.base();
+    final long date = segment.date(local);
+
+    if (query.inRange(date)) {
+      hits.add(new IndexHit(docId, segment.messageId(local), segment.subject(local), date));
+    }
+  }
+
+  /**
+   * Merge, logging rather than propagating failures.
+   */
+  private void mergeQuietly() {
+    try {
+      merge();
+    } catch (IOException | RuntimeException exception) {
+      LOGGER.error("index merge failed: ", exception);
+    }
+  }
+
+  /**
+   * Merge the run of adjacent segments with the fewest documents once there are more segments
+   * than the merge factor.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  void merge() throws IOException {
+    final List<Segment> current = segments;
+
+    if (current.size() <= mergeFactor) {
+      return;
+    }
+
+    int start = -1;
+    long smallest = Long.MAX_VALUE;
+
+    for (int s = 0; s + mergeFactor <= current.size(); s++) {
+      long bytes = 0;
+
+      for (int r = s; r < s + mergeFactor; r++) {
+        bytes += current.get(r).sizeInBytes();
+      }
+
+      if (bytes < smallest && bytes <= maxSegmentBytes) {
+        smallest = bytes;
+        start = s;
+      }
+    }
+
+    if (start < 0) {
+      return;
+    }
+
+    final List<Segment> run = new ArrayList<Segment>(current.subList(start, start + mergeFactor));
+    final File file;
+
+    synchronized (this) {
+      file = new File(directory, segmentName());
+    }
+
+    SegmentWriter.write(file, run);
+    final Segment merged = new Segment(file);
+
+    synchronized (this) {
+      // only the merger removes segments, so the run is still where it was
+      final List<Segment> updated = new ArrayList<Segment>(segments);
+      updated.subList(start, start + mergeFactor).clear();
+      updated.add(start, merged);
+      publish(updated);
+    }
+
+    for (final Segment segment : run) {
+      if (segment.retire()) {
+        delete(segment);
+      }
+    }
+
+    LOGGER.debug("merged {} segments into {}", run.size(), file.getName());
+  }
+
+  /**
+   * Delete the file of a segment merged away, once nothing reads it.
+   *
+   * @param segment the segment
+   */
+  private void delete(final Segment segment) {
+    try {
+      Files.deleteIfExists(segment.file().toPath());
+    } catch (IOException exception) {
+      LOGGER.warn("failed to delete merged segment {}: {}", segment.file().getName(),
+          exception.getMessage());
+    }
+  }
+
+  /**
+   * Make the segment list live and record it in the manifest.
+   *
+   * @param updated the updated segments
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void publish(final List<Segment> updated) throws IOException {
+    final StringBuilder manifest = new StringBuilder();
+
+    for (final Segment segment : updated) {
+      manifest.append(segment.file().getName()).append('\n');
+    }
+
+    final File temporary = new File(directory, MANIFEST + ".tmp");
+    Files.write(temporary.toPath(), manifest.toString().getBytes(StandardCharsets.UTF_8));
+    Files.move(temporary.toPath(), new File(directory, MANIFEST).toPath(),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    segments = Collections.unmodifiableList(updated);
+  }
+
+  /**
+   * Load the segments named in the manifest.
+   *
+   * @return the segments
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private List<Segment> loadSegments() throws IOException {
+    final List<Segment> loaded = new ArrayList<Segment>();
+    final File manifest = new File(directory, MANIFEST);
+
+    final Set<String> live = new HashSet<String>();
+
+    if (manifest.exists()) {
+      for (final String name : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+        if (!name.trim().isEmpty()) {
+          loaded.add(new Segment(new File(directory, name.trim())));
+          live.add(name.trim());
+          nextSegment = Math.max(nextSegment, segmentNumber(name.trim()) + 1);
+        }
+      }
+    }
+
+    final File[] files = directory.listFiles();
+
+    for (final File file : files == null ? new File[0] : files) {
+      // segments merged away whose files could not be deleted before the last close
+      if (file.getName().startsWith("segment-") && file.getName().endsWith(".seg")
+          && !live.contains(file.getName())) {
+        nextSegment = Math.max(nextSegment, segmentNumber(file.getName()) + 1);
+        Files.deleteIfExists(file.toPath());
+      }
+    }
+
+    LOGGER.info("opened mail index in {} with {} segments", directory, loaded.size());
+
+    return Collections.unmodifiableList(loaded);
+  }
+
+  /**
+   * The next segment file name.
+   *
+   * @return the name
+   */
+  private String segmentName() {
+    return String.format("segment-%012d.seg", nextSegment++);
+  }
+
+  /**
+   * The number of a segment file name.
+   *
+   * @param name the name
+   * @return the number
+   */
+  private static long segmentNumber(final String name) {
+    return Long.parseLong(name.substring("segment-".length(), name.indexOf('.')));
+  }
+
+  /**
+   * The document id following the last segment.
+   *
+   * @param list the segments
+   * @return the next doc id
+   */
+  private static int nextDocId(final List<Segment> list) {
+    if (list.isEmpty()) {
+      return 0;
+    }
+
+    final Segment last = list.get(list.size() - 1);
+
+    return last.base() + last.docCount();
+  }
+}
@@ -0,0 +1,416 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.index;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * An immutable, memory-mapped index segment. Only the per-document dates and offsets and a sparse
+ * sample of the term dictionary are held on the heap; postings, stored fields and the rest of
+ * the dictionary are read from the mapping on demand.
+ * 
+ * <p>
+ * Layout: delta/varint postings, then the document table (base, count, dates, stored field
+ * offsets, stored fields), then the term dictionary ({@code term, count, postings offset}), then
+ * a footer holding the offsets of the two tables.
+ * </p>
+ * 
+ * @author James G. Willmore
+ *
+ */
+final class Segment implements IndexSegment {
+
+  /** The segment file magic number. */
+  static final int MAGIC = 0x4d494458;
+
+  /** The footer length. */
+  static final int FOOTER = 8 + 8 + 4;
+
+  /** Every how many dictionary entries a term is sampled into memory. */
+  static final int DICTIONARY_SAMPLE = 32;
+
+  /** The empty postings. */
+  private static final int[] NONE = new int[0];
+
+  /** The segment file. */
+  private final File file;
+
+  /** The mapping of the whole file. */
+  private final MappedByteBuffer buffer;
+
+  /** The first document id. */
+  private final int base;
+
+  /** The dates. */
+  private final long[] dates;
+
+  /** The stored field offsets. */
+  private final int[] storedOffsets;
+
+  /** The number of terms. */
+  private final int termCount;
+
+  /** The sampled terms. */
+  private final String[] sampledTerms;
+
+  /** The dictionary offsets of the sampled terms. */
+  private final int[] sampledOffsets;
+
+  /** The count of searches reading the segment. */
+  private int readers;
+
+  /** Whether the segment has been merged away and is no longer live. */
+  private boolean retired;
+
+  /**
+   * Open a segment file.
+   *
+   * @param file the file
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  Segment(final File file) throws IOException {
+    this.file = file;
+
+    try (final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        final FileChannel channel = raf.getChannel()) {
+      this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+
+    final int limit = buffer.limit();
+
+    if (limit < FOOTER || buffer.getInt(limit - 4) != MAGIC) {
+      throw new IOException(file + " is not an index segment.");
+    }
+
+    final int docsOffset = (int) buffer.getLong(limit - FOOTER);
+    final int dictionaryOffset = (int) buffer.getLong(limit - FOOTER + 8);
+
+    final ByteBuffer docs = slice(docsOffset);
+    this.base = docs.getInt();
+    final int docCount = docs.getInt();
+    this.dates = new long[docCount];
+    this.storedOffsets = new int[docCount];
+    docs.asLongBuffer().get(dates);
+    docs.position(docs.position() + docCount * 8);
+    docs.asIntBuffer().get(storedOffsets);
+
+    final ByteBuffer dictionary = slice(dictionaryOffset);
+    this.termCount = dictionary.getInt();
+    final int samples = (termCount + DICTIONARY_SAMPLE - 1) / DICTIONARY_SAMPLE;
+    this.sampledTerms = new String[samples];
+    this.sampledOffsets = new int[samples];
+
+    final DataInputStream in = new DataInputStream(new ByteBufferInputStream(dictionary));
+
+    for (int t = 0; t < termCount; t++) {
+      if (t % DICTIONARY_SAMPLE == 0) {
+        sampledOffsets[t / DICTIONARY_SAMPLE] = dictionary.position();
+        sampledTerms[t / DICTIONARY_SAMPLE] = in.readUTF();
+      } else {
+        in.skipBytes(in.readUnsignedShort());
+      }
+
+      in.readInt();
+      in.readInt();
+    }
+  }
+
+  /**
+   * Register a search reading the segment.
+   */
+  synchronized void acquire() {
+    readers++;
+  }
+
+  /**
+   * Unregister a search reading the segment.
+   *
+   * @return true, if the segment is retired and no longer read, so its file can be deleted
+   */
+  synchronized boolean release() {
+    readers--;
+
+    return retired && readers == 0;
+  }
+
+  /**
+   * Retire the segment once it has been merged away.
+   *
+   * @return true, if no search is reading the segment, so its file can be deleted
+   */
+  synchronized boolean retire() {
+    retired = true;
+
+    return readers == 0;
+  }
+
+  /**
+   * Gets the segment file.
+   *
+   * @return the file
+   */
+  File file() {
+    return file;
+  }
+
+  /**
+   * Gets the size of the segment file.
+   *
+   * @return the size in bytes
+   */
+  long sizeInBytes() {
+    return buffer.limit();
+  }
+
+  /**
+   * @see net.ljcomputing.mail.index.IndexSegment#base()
+   */
+  @Override
+  public int base() {
+    return base;
+  }
+
+  /**
+   * @see net.ljcomputing.mail.index.IndexSegment#docCount()
+   */
+  @Override
+  public int docCount() {
+    return dates.length;
+  }
+
+  /**
+   * @see net.ljcomputing.mail.index.IndexSegment#date(int)
+   */
+  @Override
+  public long date(final int local) {
+    return dates[local];
+  }
+
+  /**
+   * @see net.ljcomputing.mail.index.IndexSegment#messageId(int)
+   */
+  @Override
+  public String messageId(final int local) {
+    return storedField(local, 0);
+  }
+
+  /**
+   * @see net.ljcomputing.mail.index.IndexSegment#subject(int)
+   */
+  @Override
+  public String subject(final int local) {
+    return storedField(local, 1);
+  }
+
+  /**
+   * @see net.ljcomputing.mail.index.IndexSegment#sortedTerms()
+   */
+  @Override
+  public String[] sortedTerms() {
+    final String[] terms = new String[termCount];
+
+    if (termCount == 0) {
+      return terms;
+    }
+
+    try {
+      final ByteBuffer dictionary = slice(sampledOffsets[0]);
+      final DataInputStream in = new DataInputStream(new ByteBufferInputStream(dictionary));
+
+      for (int t = 0; t < termCount; t++) {
+        terms[t] = in.readUTF();
+        in.readInt();
+        in.readInt();
+      }
+    } catch (IOException exception) {
+      throw new IllegalStateException(file + " is corrupt.", exception);
+    }
+
+    return terms;
+  }
+
+  /**
+   * @see net.ljcomputing.mail.index.IndexSegment#postings(java.lang.String)
+   */
+  @Override
+  public int[] postings(final String term) {
+    int sample = Arrays.binarySearch(sampledTerms, term);
+
+    if (sample == -1) {
+      return NONE;
+    }
+
+    sample = sample >= 0 ? sample : -sample - 2;
+
+    try {
+      final ByteBuffer dictionary = slice(sampledOffsets[sample]);
+      final DataInputStream in = new DataInputStream(new ByteBufferInputStream(dictionary));
+      final int entries = Math.min(DICTIONARY_SAMPLE, termCount - sample * DICTIONARY_SAMPLE);
+
+      for (int e = 0; e < entries; e++) {
+        final int compared = in.readUTF().compareTo(term);
+        final int count = in.readInt();
+        final int offset = in.readInt();
+
+        if (compared == 0) {
+          return decode(offset, count);
+        } else if (compared > 0) {
+          return NONE;
+        }
+      }
+    } catch (IOException exception) {
+      throw new IllegalStateException(file + " is corrupt.", exception);
+    }
+
+    return NONE;
+  }
+
+  /**
+   * Decode a delta/varint postings list.
+   *
+   * @param offset the offset
+   * @param count the count
+   * @return the postings
+   */
+  private int[] decode(final int offset, final int count) {
+    final ByteBuffer postings = slice(offset);
+    final int[] docIds = new int[count];
+    int docId = base - 1;
+
+    for (int p = 0; p < count; p++) {
+      docId += readVarint(postings);
+      docIds[p] = docId;
+    }
+
+    return docIds;
+  }
+
+  /**
+   * Read a stored field.
+   *
+   * @param local the document's position in the segment
+   * @param field the field ordinal
+   * @return the value
+   */
+  private String storedField(final int local, final int field) {
+    try {
+      final DataInputStream in = new DataInputStream(
+          new ByteBufferInputStream(slice(storedOffsets[local])));
+
+      for (int f = 0; f < field; f++) {
+        in.skipBytes(in.readUnsignedShort());
+      }
+
+      return in.readUTF();
+    } catch (IOException exception) {
+      throw new IllegalStateException(file + " is corrupt.", exception);
+    }
+  }
+
+  /**
+   * An independent view of the mapping starting at the offset.
+   *
+   * @param offset the offset
+   * @return the byte buffer
+   */
+  private ByteBuffer slice(final int offset) {
+    final ByteBuffer view = buffer.duplicate();
+    view.position(offset);
+
+    return view;
+  }
+
+  /**
+   * Read an unsigned varint.
+   *
+   * @param in the buffer
+   * @return the value
+   */
+  static int readVarint(final ByteBuffer in) {
+    int value = 0;
+    int shift = 0;
+    byte b;
+
+    do {
+      b = in.get();
+      value |= (b & 0x7f) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+
+    return value;
+  }
+
+  /**
+   * An input stream over a byte buffer.
+   */
+  private static class ByteBufferInputStream extends InputStream {
+
+    /** The buffer. */
+    private final ByteBuffer buffer;
+
+    /**
+     * Instantiates a new byte buffer input stream.
+     *
+     * @param buffer the buffer
+     */
+    private ByteBufferInputStream(final ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    /**
+     * @see java.io.InputStream#read()
+     */
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    /**
+     * @see java.io.InputStream#read(byte[], int, int)
+     */
+    @Override
+    public int read(final byte[] bytes, final int offset, final int length) {
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+
+      final int read = Math.min(length, buffer.remaining());
+      buffer.get(bytes, offset, read);
+
+      return read;
+    }
+
+    /**
+     * @see java.io.InputStream#skip(long)
+     */
+    @Override
+    public long skip(final long count) {
+      final int skipped = (int) Math.min(count, buffer.remaining());
+      buffer.position(buffer.position() + skipped);
+
+      return skipped;
+    }
+  }
+}
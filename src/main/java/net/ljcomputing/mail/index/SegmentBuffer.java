@@ -0,0 +1,155 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.index;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The in-memory buffer of newly indexed messages, searchable until it is flushed to an
+ * immutable segment. Access is guarded by the owning index.
+ * 
+ * @author James G. Willmore
+ *
+ */
+class SegmentBuffer implements IndexSegment {
+
+  /** The empty postings. */
+  private static final int[] NONE = new int[0];
+
+  /** The first document id. */
+  private final int base;
+
+  /** The postings, by term. */
+  private final Map<String, IntList> postings = new HashMap<String, IntList>();
+
+  /** The dates. */
+  private long[] dates = new long[256];
+
+  /** The Message-IDs. */
+  private String[] messageIds = new String[256];
+
+  /** The subjects. */
+  private String[] subjects = new String[256];
+
+  /** The number of documents. */
+  private int docCount;
+
+  /**
+   * Instantiates a new segment buffer.
+   *
+   * @param base the first document id
+   */
+  SegmentBuffer(final int base) {
+    this.base = base;
+  }
+
+  /**
+   * Add a document, assigning it the next document id.
+   *
+   * @param document the document
+   * @return the document id
+   */
+  int add(final IndexDocument document) {
+    if (docCount == dates.length) {
+      dates = Arrays.copyOf(dates, docCount * 2);
+      messageIds = Arrays.copyOf(messageIds, docCount * 2);
+      subjects = Arrays.copyOf(subjects, docCount * 2);
+    }
+
+    final int docId = base + docCount;
+    dates[docCount] = document.getDate();
+    messageIds[docCount] = document.getMessageId();
+    subjects[docCount] = document.getSubject();
+    docCount++;
+
+    for (final String term : document.getTerms()) {
+      IntList list = postings.get(term);
+
+      if (list == null) {
+        list = new IntList(4);
+        postings.put(term, list);
+      }
+
+      list.add(docId);
+    }
+
+    return docId;
+  }
+
+  /**
+   * @see net.ljcomputing.mail.index.IndexSegment#base()
+   */
+  @Override
+  public int base() {
+    return base;
+  }
+
+  /**
+   * @see net.ljcomputing.mail.index.IndexSegment#docCount()
+   */
+  @Override
+  public int docCount() {
+    return docCount;
+  }
+
+  /**
+   * @see net.ljcomputing.mail.index.IndexSegment#date(int)
+   */
+  @Override
+  public long date(final int local) {
+    return dates[local];
+  }
+
+  /**
+   * @see net.ljcomputing.mail.index.IndexSegment#messageId(int)
+   */
+  @Override
+  public String messageId(final int local) {
+    return messageIds[local];
+  }
+
+  /**
+   * @see net.ljcomputing.mail.index.IndexSegment#subject(int)
+   */
+  @Override
+  public String subject(final int local) {
+    return subjects[local];
+  }
+
+  /**
+   * @see net.ljcomputing.mail.index.IndexSegment#sortedTerms()
+   */
+  @Override
+  public String[] sortedTerms() {
+    final String[] terms = postings.keySet().toArray(new String[postings.size()]);
+    Arrays.sort(terms);
+
+    return terms;
+  }
+
+  /**
+   * @see net.ljcomputing.mail.index.IndexSegment#postings(java.lang.String)
+   */
+  @Override
+  public int[] postings(final String term) {
+    final IntList list = postings.get(term);
+
+    return list == null ? NONE : list.toArray();
+  }
+}
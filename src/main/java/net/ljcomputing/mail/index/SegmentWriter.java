@@ -0,0 +1,234 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.index;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes immutable segment files, either from the in-memory buffer or by merging adjacent
+ * segments. Sources must be given in document id order; their terms are merged in a single
+ * sorted pass and each term's postings are concatenated, so the output stays sorted without a
+ * global sort.
+ * 
+ * @author James G. Willmore
+ *
+ */
+final class SegmentWriter {
+
+  /**
+   * Instantiates a new segment writer.
+   */
+  private SegmentWriter() {
+  }
+
+  /**
+   * Write the sources, in document id order, to a new segment file.
+   *
+   * @param file the file
+   * @param sources the sources
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  static void write(final File file, final List<? extends IndexSegment> sources)
+      throws IOException {
+    final File temporary = new File(file.getPath() + ".tmp");
+    final List<String> terms = new ArrayList<String>();
+    final IntList counts = new IntList(1024);
+    final IntList offsets = new IntList(1024);
+    final int base = sources.get(0).base();
+
+    try (final DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(temporary), 64 * 1024))) {
+      writePostings(out, sources, base, terms, counts, offsets);
+
+      final long docsOffset = out.size();
+      writeDocuments(out, sources, base);
+
+      final long dictionaryOffset = out.size();
+      out.writeInt(terms.size());
+
+      for (int t = 0; t < terms.size(); t++) {
+        out.writeUTF(terms.get(t));
+        out.writeInt(counts.get(t));
+        out.writeInt(offsets.get(t));
+      }
+
+      out.writeLong(docsOffset);
+      out.writeLong(dictionaryOffset);
+      out.writeInt(Segment.MAGIC);
+
+      if (out.size() == Integer.MAX_VALUE) {
+        throw new IOException(file + " would exceed the 2GB segment limit.");
+      }
+    }
+
+    Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Write the postings of every term, merging the sources' sorted term lists.
+   *
+   * @param out the out
+   * @param sources the sources
+   * @param base the first document id
+   * @param terms the terms written
+   * @param counts the postings count of each term written
+   * @param offsets the postings offset of each term written
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void writePostings(final DataOutputStream out,
+      final List<? extends IndexSegment> sources, final int base, final List<String> terms,
+      final IntList counts, final IntList offsets) throws IOException {
+    final String[][] sourceTerms = new String[sources.size()][];
+    final int[] cursors = new int[sources.size()];
+
+    for (int s = 0; s < sources.size(); s++) {
+      sourceTerms[s] = sources.get(s).sortedTerms();
+    }
+
+    while (true) {
+      String term = null;
+
+      for (int s = 0; s < sourceTerms.length; s++) {
+        if (cursors[s] < sourceTerms[s].length
+            && (term == null || sourceTerms[s][cursors[s]].compareTo(term) < 0)) {
+          term = sourceTerms[s][cursors[s]];
+        }
+      }
+
+      if (term == null) {
+        return;
+      }
+
+      final int offset = out.size();
+      int previous = base - 1;
+      int count = 0;
+
+      for (int s = 0; s < sourceTerms.length; s++) {
+        if (cursors[s] < sourceTerms[s].length && sourceTerms[s][cursors[s]].equals(term)) {
+          for (final int docId : sources.get(s).postings(term)) {
+            writeVarint(out, docId - previous);
+            previous = docId;
+            count++;
+          }
+
+          cursors[s]++;
+        }
+      }
+
+      terms.add(term);
+      counts.add(count);
+      offsets.add(offset);
+    }
+  }
+
+  /**
+   * Write the document table.
+   *
+   * @param out the out
+   * @param sources the sources
+   * @param base the first document id
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void writeDocuments(final DataOutputStream out,
+      final List<? extends IndexSegment> sources, final int base) throws IOException {
+    int docCount = 0;
+
+    for (final IndexSegment source : sources) {
+      docCount += source.docCount();
+    }
+
+    out.writeInt(base);
+    out.writeInt(docCount);
+
+    for (final IndexSegment source : sources) {
+      for (int d = 0; d < source.docCount(); d++) {
+        out.writeLong(source.date(d));
+      }
+    }
+
+    int storedOffset = out.size() + docCount * 4;
+
+    for (final IndexSegment source : sources) {
+      for (int d = 0; d < source.docCount(); d++) {
+        out.writeInt(storedOffset);
+        storedOffset += utfLength(source.messageId(d)) + utfLength(source.subject(d));
+      }
+    }
+
+    for (final IndexSegment source : sources) {
+      for (int d = 0; d < source.docCount(); d++) {
+        out.writeUTF(truncate(source.messageId(d)));
+        out.writeUTF(truncate(source.subject(d)));
+      }
+    }
+  }
+
+  /**
+   * The encoded length of a stored string, including its length prefix.
+   *
+   * @param value the value
+   * @return the length
+   */
+  private static int utfLength(final String value) {
+    final String truncated = truncate(value);
+    int length = 2;
+
+    for (int c = 0; c < truncated.length(); c++) {
+      final char ch = truncated.charAt(c);
+      length += ch >= 0x0001 && ch <= 0x007f ? 1 : ch > 0x07ff ? 3 : 2;
+    }
+
+    return length;
+  }
+
+  /**
+   * Truncate a stored string so its modified UTF-8 encoding fits in 64KB.
+   *
+   * @param value the value
+   * @return the truncated value
+   */
+  private static String truncate(final String value) {
+    return value.length() > 16384 ? value.substring(0, 16384) : value;
+  }
+
+  /**
+   * Write an unsigned varint.
+   *
+   * @param out the out
+   * @param value the value
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void writeVarint(final DataOutputStream out, final int value)
+      throws IOException {
+    int remaining = value;
+
+    while ((remaining & ~0x7f) != 0) {
+      out.write((remaining & 0x7f) | 0x80);
+      remaining >>>= 7;
+    }
+
+    out.write(remaining);
+  }
+}
@@ -0,0 +1,347 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.journal;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only journal file with group commit. Records are written to the file as they are
+ * appended, but forced to disk by a background thread only once a number of records are pending
+ * or the oldest pending record has waited the sync interval, so many records share one fsync.
+ * Each record is framed with its length and a CRC32, so a torn final record is detected and
+ * ignored when the journal is read back.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class JournalWriter {
+
+  /** The Constant logger. */
+  private final static Logger LOGGER = LoggerFactory.getLogger(JournalWriter.class);
+
+  /** The record header size: length and CRC32. */
+  static final int HEADER_BYTES = 8;
+
+  /** The largest record accepted. */
+  private static final int MAX_RECORD_BYTES = 1024 * 1024;
+
+  /** The journal file channel. */
+  private final FileChannel channel;
+
+  /** The number of pending records that triggers a sync. */
+  private final int syncEntries;
+
+  /** The longest a record waits for a sync, in milliseconds. */
+  private final long syncInterval;
+
+  /** The lock guarding the counters below. */
+  private final Object lock = new Object();
+
+  /** The sync thread. */
+  private final Thread syncer;
+
+  /** The number of records appended. */
+  private long appended;
+
+  /** The number of records forced to disk. */
+  private long synced;
+
+  /** The time the oldest unsynced record was appended. */
+  private long firstPendingAt;
+
+  /** Whether a caller is waiting on a sync. */
+  private boolean syncRequested;
+
+  /** Whether the writer is open. */
+  private boolean running = true;
+
+  /** The failure of the last sync, if it failed. */
+  private IOException failure;
+
+  /**
+   * Instantiates a new journal writer, appending to the file.
+   *
+   * @param file the file
+   * @param syncEntries the number of pending records that triggers a sync
+   * @param syncInterval the longest a record waits for a sync, in milliseconds
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public JournalWriter(final File file, final int syncEntries, final long syncInterval)
+      throws IOException {
+    this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    this.syncEntries = Math.max(1, syncEntries);
+    this.syncInterval = Math.max(1L, syncInterval);
+    this.syncer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        syncLoop();
+      }
+    }, "journal-sync");
+    syncer.setDaemon(true);
+    syncer.start();
+  }
+
+  /**
+   * Append a record. The record is durable once the next group commit completes.
+   *
+   * @param payload the payload
+   * @throws IOException when the record cannot be written or an earlier sync failed
+   */
+  public void append(final byte[] payload) throws IOException {
+    final ByteBuffer record = frame(payload);
+
+    synchronized (lock) {
+      if (!running) {
+        throw new IOException("journal has been closed.");
+      }
+
+      if (failure != null) {
+        throw failure;
+      }
+
+      while (record.hasRemaining()) {
+        channel.write(record);
+      }
+
+      if (appended == synced) {
+        firstPendingAt = System.currentTimeMillis();
+      }
+
+      appended++;
+
+      if (appended - synced >= syncEntries) {
+        lock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Wait until every record appended so far is on disk.
+   *
+   * @throws IOException when the sync failed
+   */
+  public void sync() throws IOException {
+    synchronized (lock) {
+      final long target = appended;
+      syncRequested = true;
+      lock.notifyAll();
+
+      while (synced < target && failure == null) {
+        try {
+          lock.wait();
+        } catch (InterruptedException exception) {
+          Thread.currentThread().interrupt();
+          throw new IOException(exception);
+        }
+      }
+
+      if (failure != null) {
+        throw failure;
+      }
+    }
+  }
+
+  /**
+   * Sync everything appended and close the journal.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public void close() throws IOException {
+    synchronized (lock) {
+      running = false;
+      lock.notifyAll();
+    }
+
+    try {
+      syncer.join();
+    } catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+    }
+
+    channel.close();
+
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Read every intact record of a journal file, stopping at the first torn or corrupt record.
+   *
+   * @param file the file
+   * @param visitor the visitor
+   * @return the number of records read
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public static long read(final File file, final RecordVisitor visitor) throws IOException {
+    long records = 0;
+
+    if (!file.exists()) {
+      return records;
+    }
+
+    try (final DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+      final CRC32 crc = new CRC32();
+
+      while (true) {
+        final int length = in.readInt();
+        final int checksum = in.readInt();
+
+        if (length < 0 || length > MAX_RECORD_BYTES) {
+          LOGGER.warn("corrupt journal record after {} records in {}", records, file);
+          break;
+        }
+
+        final byte[] payload = new byte[length];
+        in.readFully(payload);
+        crc.reset();
+        crc.update(payload, 0, length);
+
+        if ((int) crc.getValue() != checksum) {
+          LOGGER.warn("corrupt journal record after {} records in {}", records, file);
+          break;
+        }
+
+        visitor.visit(payload);
+        records++;
+      }
+    } catch (EOFException exception) {
+      // end of file, or a torn final record; either way everything complete was read
+    }
+
+    return records;
+  }
+
+  /**
+   * Frame a payload with its length and CRC32.
+   *
+   * @param payload the payload
+   * @return the record
+   * @throws IOException when the payload is too large
+   */
+  static ByteBuffer frame(final byte[] payload) throws IOException {
+    if (payload.length > MAX_RECORD_BYTES) {
+      throw new IOException("journal record too large: " + payload.length);
+    }
+
+    final CRC32 crc = new CRC32();
+    crc.update(payload, 0, payload.length);
+
+    final ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+    record.putInt(payload.length);
+    record.putInt((int) crc.getValue());
+    record.put(payload);
+    record.flip();
+
+    return record;
+  }
+
+  /**
+   * Force pending records to disk whenever enough are pending, the oldest has waited long enough
+   * or a caller asks, until the writer is closed and nothing is pending.
+   */
+  private void syncLoop() {
+    while (true) {
+      final long target;
+
+      synchronized (lock) {
+        while (true) {
+          final long pending = appended - synced;
+          final long now = System.currentTimeMillis();
+
+          if (pending == 0) {
+            syncRequested = false;
+
+            if (!running) {
+              return;
+            }
+
+            waitQuietly(syncInterval);
+          } else if (pending >= syncEntries || syncRequested || !running
+              || now - firstPendingAt >= syncInterval) {
+            break;
+          } else {
+            waitQuietly(syncInterval - (now - firstPendingAt));
+          }
+        }
+
+        target = appended;
+        syncRequested = false;
+      }
+
+      try {
+        channel.force(false);
+      } catch (IOException exception) {
+        LOGGER.error("FATAL: ", exception);
+
+        synchronized (lock) {
+          failure = exception;
+          synced = appended;
+          lock.notifyAll();
+        }
+
+        return;
+      }
+
+      synchronized (lock) {
+        synced = target;
+        lock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Wait on the lock, which must be held, ignoring interrupts.
+   *
+   * @param millis the milliseconds
+   */
+  private void waitQuietly(final long millis) {
+    try {
+      lock.wait(Math.max(1L, millis));
+    } catch (InterruptedException exception) {
+      // keep syncing; the writer is stopped by close()
+    }
+  }
+
+  /**
+   * Visitor over journal records.
+   */
+  public interface RecordVisitor {
+
+    /**
+     * Visit a record.
+     *
+     * @param payload the payload
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    void visit(byte[] payload) throws IOException;
+  }
+}
@@ -0,0 +1,496 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.journal;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.UIDFolder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.nio.NioMessage;
+import net.ljcomputing.mail.service.MailProperties;
+
+/**
+ * Write-ahead journal of message processing. The rules processor records when it starts a
+ * message, when each rule completes, any flags it commits and when the message is done. After a
+ * crash the journal is replayed on open: messages that were started but never finished are
+ * remembered with the rules that had already completed, so those rules are skipped when the
+ * message is processed again. Finished messages are dropped when the journal is compacted: on
+ * open, at the end of every run and whenever it outgrows the compaction size, so the journal
+ * only ever holds unfinished work.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class ProcessingJournal {
+
+  /** The Constant logger. */
+  private final static Logger LOGGER = LoggerFactory.getLogger(ProcessingJournal.class);
+
+  /** The enabled property. */
+  public static final String ENABLED = "email.journal.enabled";
+
+  /** The number of pending entries that triggers a group commit property. */
+  public static final String SYNC_ENTRIES = "email.journal.sync.entries";
+
+  /** The longest an entry waits for a group commit (ms) property. */
+  public static final String SYNC_INTERVAL = "email.journal.sync.interval";
+
+  /** The time-to-live (minutes) of an unfinished message property. */
+  public static final String TTL_MINUTES = "email.journal.ttl.minutes";
+
+  /** The journal size (bytes) property, beyond which it is compacted while running. */
+  public static final String COMPACT_BYTES = "email.journal.compact.bytes";
+
+  /** The journal file. */
+  private final File file;
+
+  /** The time-to-live of an unfinished message, in milliseconds. */
+  private final long ttl;
+
+  /** The number of pending entries that triggers a group commit. */
+  private final int syncEntries;
+
+  /** The longest an entry waits for a group commit, in milliseconds. */
+  private final long syncInterval;
+
+  /** The journal size beyond which it is compacted while running. */
+  private final long compactBytes;
+
+  /** The size of the journal file. */
+  private long size;
+
+  /** The unfinished messages, recovered or in flight, by message key. */
+  private final Map<String, Unfinished> unfinished = new LinkedHashMap<String, Unfinished>();
+
+  /** The journal writer, replaced on every compaction. */
+  private volatile JournalWriter writer;
+
+  /** The number of messages recovered from the journal. */
+  private int recovered;
+
+  /** The number of rules skipped because they completed before a restart. */
+  private long skipped;
+
+  /**
+   * Instantiates a new processing journal, replaying and compacting any existing journal.
+   *
+   * @param properties the properties
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public ProcessingJournal(final MailProperties properties) throws EmailRuleProcessorException {
+    this.file = new File(properties.dataDirectory(), "journal.log");
+    this.ttl = TimeUnit.MINUTES.toMillis(
+        properties.longValueOf(TTL_MINUTES, TimeUnit.DAYS.toMinutes(7)));
+    this.syncEntries = properties.intValueOf(SYNC_ENTRIES, 64);
+    this.syncInterval = properties.longValueOf(SYNC_INTERVAL, 50L);
+    this.compactBytes = properties.longValueOf(COMPACT_BYTES, 64L * 1024 * 1024);
+
+    try {
+      if (file.getParentFile() != null) {
+        file.getParentFile().mkdirs();
+      }
+
+      replay();
+      rewrite();
+      this.writer = new JournalWriter(file, syncEntries, syncInterval);
+    } catch (IOException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+
+    recovered = unfinished.size();
+    LOGGER.info("recovered {} unfinished messages from {}", recovered, file);
+  }
+
+  /**
+   * The journal key of a message: its folder, UIDVALIDITY and UID, so that copies of one message
+   * in several folders are journaled apart. Without UIDs, the folder and message number.
+   *
+   * @param message the message
+   * @return the key
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public static String keyOf(final Message message) throws EmailRuleProcessorException {
+    try {
+      if (message instanceof NioMessage) {
+        final NioMessage nioMessage = (NioMessage) message;
+        return nioMessage.getMailbox().getFullName() + ";"
+            + nioMessage.getMailbox().getUidValidity() + ";" + nioMessage.getUid();
+      }
+
+      final Folder folder = message.getFolder();
+
+      if (folder instanceof UIDFolder) {
+        final UIDFolder uidFolder = (UIDFolder) folder;
+        return folder.getFullName() + ";" + uidFolder.getUIDValidity() + ";"
+            + uidFolder.getUID(message);
+      }
+
+      return (folder == null ? "" : folder.getFullName()) + "#" + message.getMessageNumber();
+    } catch (MessagingException exception) {
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
+  /**
+   * Record that processing of a message has started.
+   *
+   * @param key the message key
+   * @return the rules already completed for the message before a restart
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public synchronized Set<String> started(final String key) throws EmailRuleProcessorException {
+    final Unfinished message = unfinished(key);
+    append(EntryType.STARTED, key, "");
+
+    return message.rules.isEmpty() ? Collections.<String>emptySet()
+        : new HashSet<String>(message.rules);
+  }
+
+  /**
+   * Record that a rule completed for a message.
+   *
+   * @param key the message key
+   * @param rule the rule name
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public synchronized void ruleCompleted(final String key, final String rule)
+      throws EmailRuleProcessorException {
+    unfinished(key).rules.add(rule);
+    append(EntryType.RULE_COMPLETED, key, rule);
+  }
+
+  /**
+   * Record that a flag was committed to the server for a message.
+   *
+   * @param key the message key
+   * @param flag the flag name
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public synchronized void flagCommitted(final String key, final String flag)
+      throws EmailRuleProcessorException {
+    unfinished(key).flags.add(flag);
+    append(EntryType.FLAG_COMMITTED, key, flag);
+  }
+
+  /**
+   * Checks if a flag has already been committed for an unfinished message.
+   *
+   * @param key the message key
+   * @param flag the flag name
+   * @return true, if the flag has been committed
+   */
+  public synchronized boolean isFlagCommitted(final String key, final String flag) {
+    final Unfinished message = unfinished.get(key);
+
+    return message != null && message.flags.contains(flag);
+  }
+
+  /**
+   * Record that processing of a message is done.
+   *
+   * @param key the message key
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public synchronized void completed(final String key) throws EmailRuleProcessorException {
+    unfinished.remove(key);
+    append(EntryType.COMPLETED, key, "");
+  }
+
+  /**
+   * Count a rule skipped because it completed before a restart.
+   */
+  public synchronized void skipped() {
+    skipped++;
+  }
+
+  /**
+   * Sync the journal and rewrite it with only the unfinished messages.
+   *
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public synchronized void compact() throws EmailRuleProcessorException {
+    try {
+      writer.close();
+      rewrite();
+      writer = new JournalWriter(file, syncEntries, syncInterval);
+    } catch (IOException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+
+    LOGGER.debug("processing journal compacted to {} unfinished messages, {} bytes",
+        unfinished.size(), size);
+  }
+
+  /**
+   * Wait until every entry recorded so far is on disk.
+   *
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public void sync() throws EmailRuleProcessorException {
+    try {
+      writer.sync();
+    } catch (IOException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
+  /**
+   * Sync and close the journal.
+   *
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public void close() throws EmailRuleProcessorException {
+    try {
+      writer.close();
+    } catch (IOException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+
+    LOGGER.info("processing journal closed: {} recovered messages, {} rules skipped, {} unfinished",
+        recovered, skipped, unfinished.size());
+  }
+
+  /**
+   * The unfinished message for a key, started now if the journal has no record of it.
+   *
+   * @param key the key
+   * @return the unfinished message
+   */
+  private Unfinished unfinished(final String key) {
+    Unfinished message = unfinished.get(key);
+
+    if (message == null) {
+      message = new Unfinished(System.currentTimeMillis());
+      unfinished.put(key, message);
+    }
+
+    return message;
+  }
+
+  /**
+   * Append an entry to the journal.
+   *
+   * @param type the type
+   * @param key the key
+   * @param name the rule or flag name
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  private void append(final EntryType type, final String key, final String name)
+      throws EmailRuleProcessorException {
+    try {
+      final byte[] payload = encode(type, System.currentTimeMillis(), key, name);
+      writer.append(payload);
+      size += JournalWriter.HEADER_BYTES + payload.length;
+    } catch (IOException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+
+    if (size > compactBytes) {
+      compact();
+    }
+  }
+
+  /**
+   * Replay the journal into the unfinished messages, dropping those that have expired.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void replay() throws IOException {
+    JournalWriter.read(file, new JournalWriter.RecordVisitor() {
+      @Override
+      public void visit(final byte[] payload) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        final int ordinal = in.readByte();
+
+        if (ordinal < 0 || ordinal >= EntryType.values().length) {
+          return;
+        }
+
+        final EntryType type = EntryType.values()[ordinal];
+        final long time = in.readLong();
+        final String key = in.readUTF();
+        final String name = in.readUTF();
+
+        switch (type) {
+          case STARTED:
+            if (!unfinished.containsKey(key)) {
+              unfinished.put(key, new Unfinished(time));
+            }
+            break;
+          case RULE_COMPLETED:
+            unfinished(key).rules.add(name);
+            break;
+          case FLAG_COMMITTED:
+            unfinished(key).flags.add(name);
+            break;
+          case COMPLETED:
+            unfinished.remove(key);
+            break;
+          default:
+            break;
+        }
+      }
+    });
+
+    final long oldest = System.currentTimeMillis() - ttl;
+
+    for (final Iterator<Unfinished> it = unfinished.values().iterator(); it.hasNext();) {
+      if (it.next().started < oldest) {
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Rewrite the journal with only the unfinished messages, while no writer has it open.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void rewrite() throws IOException {
+    final File compacted = new File(file.getPath() + ".tmp");
+
+    try (final FileOutputStream fos = new FileOutputStream(compacted);
+        final DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(fos, 64 * 1024))) {
+      for (final Map.Entry<String, Unfinished> entry : unfinished.entrySet()) {
+        final String key = entry.getKey();
+        final Unfinished message = entry.getValue();
+
+        writeRecord(out, encode(EntryType.STARTED, message.started, key, ""));
+
+        for (final String rule : message.rules) {
+          writeRecord(out, encode(EntryType.RULE_COMPLETED, message.started, key, rule));
+        }
+
+        for (final String flag : message.flags) {
+          writeRecord(out, encode(EntryType.FLAG_COMMITTED, message.started, key, flag));
+        }
+      }
+
+      out.flush();
+      fos.getFD().sync();
+      size = compacted.length();
+    }
+
+    Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Write a framed record.
+   *
+   * @param out the out
+   * @param payload the payload
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void writeRecord(final DataOutputStream out, final byte[] payload)
+      throws IOException {
+    out.write(JournalWriter.frame(payload).array());
+  }
+
+  /**
+   * Encode an entry.
+   *
+   * @param type the type
+   * @param time the time
+   * @param key the key
+   * @param name the rule or flag name
+   * @return the payload
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static byte[] encode(final EntryType type, final long time, final String key,
+      final String name) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + key.length());
+    final DataOutputStream out = new DataOutputStream(bytes);
+    out.writeByte(type.ordinal());
+    out.writeLong(time);
+    out.writeUTF(key);
+    out.writeUTF(name);
+
+    return bytes.toByteArray();
+  }
+
+  /**
+   * The journal entry types. New types are only ever appended, as entries store the ordinal.
+   */
+  private enum EntryType {
+
+    /** Processing of a message started. */
+    STARTED,
+
+    /** A rule completed for a message. */
+    RULE_COMPLETED,
+
+    /** A flag was committed for a message. */
+    FLAG_COMMITTED,
+
+    /** Processing of a message is done. */
+    COMPLETED
+  }
+
+  /**
+   * A message whose processing has not been recorded as done.
+   */
+  private static class Unfinished {
+
+    /** The time processing of the message first started. */
+    private final long started;
+
+    /** The rules completed for the message. */
+    private final Set<String> rules = new HashSet<String>();
+
+    /** The flags committed for the message. */
+    private final Set<String> flags = new HashSet<String>();
+
+    /**
+     * Instantiates a new unfinished message.
+     *
+     * @param started the started
+     */
+    private Unfinished(final long started) {
+      this.started = started;
+    }
+  }
+}
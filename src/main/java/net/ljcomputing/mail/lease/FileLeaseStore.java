@@ -0,0 +1,282 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.lease;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+
+/**
+ * Lease store kept in a single file guarded by an exclusive file lock, for processor instances
+ * sharing a mailbox from one host. Every operation locks the file, reads the leases, applies the
+ * change, writes them back and forces them to disk before unlocking. Expired leases are pruned as
+ * the file is rewritten.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class FileLeaseStore implements LeaseStore {
+
+  /** The Constant logger. */
+  private final static Logger LOGGER = LoggerFactory.getLogger(FileLeaseStore.class);
+
+  /** The file format version. */
+  private static final int VERSION = 1;
+
+  /** The lease file channel. */
+  private final FileChannel channel;
+
+  /**
+   * Instantiates a new file lease store.
+   *
+   * @param file the lease file
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public FileLeaseStore(final File file) throws EmailRuleProcessorException {
+    try {
+      if (file.getParentFile() != null) {
+        file.getParentFile().mkdirs();
+      }
+
+      this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+          StandardOpenOption.READ, StandardOpenOption.WRITE);
+    } catch (IOException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
+  /**
+   * @see net.ljcomputing.mail.lease.LeaseStore#acquire(java.lang.String, long, long,
+   *      java.lang.String, long)
+   */
+  @Override
+  public Lease acquire(final String folder, final long start, final long end, final String owner,
+      final long ttl) throws EmailRuleProcessorException {
+    return update(new Update() {
+      @Override
+      public Lease apply(final Map<String, Lease> leases, final long now) {
+        final Lease wanted = new Lease(folder, start, end, owner, now + ttl);
+        final Lease current = leases.get(wanted.id());
+
+        if (current != null && !current.isExpired(now) && !owner.equals(current.getOwner())) {
+          return null;
+        }
+
+        if (current != null && !owner.equals(current.getOwner())) {
+          LOGGER.info("taking over expired lease {}", current);
+        }
+
+        leases.put(wanted.id(), wanted);
+
+        return wanted;
+      }
+    });
+  }
+
+  /**
+   * @see net.ljcomputing.mail.lease.LeaseStore#renew(net.ljcomputing.mail.lease.Lease, long)
+   */
+  @Override
+  public Lease renew(final Lease lease, final long ttl) throws EmailRuleProcessorException {
+    return update(new Update() {
+      @Override
+      public Lease apply(final Map<String, Lease> leases, final long now) {
+        final Lease current = leases.get(lease.id());
+
+        if (current == null || !lease.getOwner().equals(current.getOwner())) {
+          return null;
+        }
+
+        final Lease renewed = new Lease(lease.getFolder(), lease.getStart(), lease.getEnd(),
+            lease.getOwner(), now + ttl);
+        leases.put(renewed.id(), renewed);
+
+        return renewed;
+      }
+    });
+  }
+
+  /**
+   * @see net.ljcomputing.mail.lease.LeaseStore#release(net.ljcomputing.mail.lease.Lease)
+   */
+  @Override
+  public void release(final Lease lease) throws EmailRuleProcessorException {
+    update(new Update() {
+      @Override
+      public Lease apply(final Map<String, Lease> leases, final long now) {
+        final Lease current = leases.get(lease.id());
+
+        if (current != null && lease.getOwner().equals(current.getOwner())) {
+          leases.remove(lease.id());
+        }
+
+        return null;
+      }
+    });
+  }
+
+  /**
+   * @see net.ljcomputing.mail.lease.LeaseStore#close()
+   */
+  @Override
+  public synchronized void close() throws EmailRuleProcessorException {
+    try {
+      channel.close();
+    } catch (IOException exception) {
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
+  /**
+   * Apply an update to the leases under the file lock. The lock is held by the whole JVM, so
+   * threads of one instance are serialized here as well.
+   *
+   * @param update the update
+   * @return the lease returned by the update
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  private synchronized Lease update(final Update update) throws EmailRuleProcessorException {
+    try {
+      final FileLock lock = channel.lock();
+
+      try {
+        final long now = System.currentTimeMillis();
+        final Map<String, Lease> leases = read();
+        final Lease result = update.apply(leases, now);
+
+        for (final Iterator<Lease> it = leases.values().iterator(); it.hasNext();) {
+          final Lease lease = it.next();
+
+          if (lease.isExpired(now) && lease != result) {
+            it.remove();
+          }
+        }
+
+        write(leases);
+
+        return result;
+      } finally {
+        lock.release();
+      }
+    } catch (IOException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
+  /**
+   * Read the leases from the file.
+   *
+   * @return the leases, by id
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private Map<String, Lease> read() throws IOException {
+    final Map<String, Lease> leases = new LinkedHashMap<String, Lease>();
+    final long size = channel.size();
+
+    if (size == 0) {
+      return leases;
+    }
+
+    final ByteBuffer buffer = ByteBuffer.allocate((int) size);
+
+    while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0) {
+      // read the whole file
+    }
+
+    final DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer.array()));
+
+    if (in.readInt() != VERSION) {
+      throw new IOException("unsupported lease file version.");
+    }
+
+    try {
+      for (int count = in.readInt(); count > 0; count--) {
+        final Lease lease = new Lease(in.readUTF(), in.readLong(), in.readLong(), in.readUTF(),
+            in.readLong());
+        leases.put(lease.id(), lease);
+      }
+    } catch (EOFException exception) {
+      // a torn write; the leases lost will be taken again, as though they had expired
+      LOGGER.warn("lease file truncated; kept {} leases", leases.size());
+    }
+
+    return leases;
+  }
+
+  /**
+   * Write the leases to the file and force them to disk.
+   *
+   * @param leases the leases
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void write(final Map<String, Lease> leases) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(VERSION);
+    out.writeInt(leases.size());
+
+    for (final Lease lease : leases.values()) {
+      out.writeUTF(lease.getFolder());
+      out.writeLong(lease.getStart());
+      out.writeLong(lease.getEnd());
+      out.writeUTF(lease.getOwner());
+      out.writeLong(lease.getExpiresAt());
+    }
+
+    final ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+    channel.truncate(0);
+
+    while (buffer.hasRemaining()) {
+      channel.write(buffer, buffer.position());
+    }
+
+    channel.force(false);
+  }
+
+  /**
+   * An update applied to the leases under the file lock.
+   */
+  private interface Update {
+
+    /**
+     * Apply the update.
+     *
+     * @param leases the leases, by id
+     * @param now the current time
+     * @return the resulting lease, or null
+     */
+    Lease apply(Map<String, Lease> leases, long now);
+  }
+}
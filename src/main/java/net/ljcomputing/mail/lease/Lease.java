@@ -0,0 +1,141 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.lease;
+
+/**
+ * A time-bounded claim by one processor instance on a range of UIDs in a folder.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public final class Lease {
+
+  /** The folder key. */
+  private final String folder;
+
+  /** The first UID of the range. */
+  private final long start;
+
+  /** The last UID of the range. */
+  private final long end;
+
+  /** The owning instance. */
+  private final String owner;
+
+  /** The time the lease expires, in milliseconds since the epoch. */
+  private final long expiresAt;
+
+  /**
+   * Instantiates a new lease.
+   *
+   * @param folder the folder key
+   * @param start the first UID
+   * @param end the last UID
+   * @param owner the owner
+   * @param expiresAt the expiry time
+   */
+  public Lease(final String folder, final long start, final long end, final String owner,
+      final long expiresAt) {
+    this.folder = folder;
+    this.start = start;
+    this.end = end;
+    this.owner = owner;
+    this.expiresAt = expiresAt;
+  }
+
+  /**
+   * The identity of the leased range, shared by every lease ever taken on it.
+   *
+   * @return the id
+   */
+  public String id() {
+    return folder + "@" + start;
+  }
+
+  /**
+   * Gets the folder key.
+   *
+   * @return the folder
+   */
+  public String getFolder() {
+    return folder;
+  }
+
+  /**
+   * Gets the first UID of the range.
+   *
+   * @return the start
+   */
+  public long getStart() {
+    return start;
+  }
+
+  /**
+   * Gets the last UID of the range.
+   *
+   * @return the end
+   */
+  public long getEnd() {
+    return end;
+  }
+
+  /**
+   * Gets the owning instance.
+   *
+   * @return the owner
+   */
+  public String getOwner() {
+    return owner;
+  }
+
+  /**
+   * Gets the expiry time.
+   *
+   * @return the expires at
+   */
+  public long getExpiresAt() {
+    return expiresAt;
+  }
+
+  /**
+   * Checks if the lease has expired.
+   *
+   * @param now the current time
+   * @return true, if expired
+   */
+  public boolean isExpired(final long now) {
+    return now >= expiresAt;
+  }
+
+  /**
+   * Checks if the range contains the UID.
+   *
+   * @param uid the uid
+   * @return true, if contained
+   */
+  public boolean contains(final long uid) {
+    return uid >= start && uid <= end;
+  }
+
+  /**
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return folder + " [" + start + ".." + end + "] owned by " + owner;
+  }
+}
@@ -0,0 +1,214 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.lease;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.service.MailProperties;
+
+/**
+ * Coordinates one processor instance's UID-range leases. A folder's UIDs are split into fixed-size
+ * ranges; the instance processes only the ranges it holds a lease on, and a background thread
+ * renews every held lease well before it expires. An instance that dies stops renewing, so its
+ * leases expire and are taken over by the others.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class LeaseCoordinator {
+
+  /** The Constant logger. */
+  private final static Logger LOGGER = LoggerFactory.getLogger(LeaseCoordinator.class);
+
+  /** The enabled property. */
+  public static final String ENABLED = "email.lease.enabled";
+
+  /** The lease directory property; instances sharing a mailbox must share the directory. */
+  public static final String DIRECTORY = "email.lease.dir";
+
+  /** The instance name property; defaults to the JVM's pid@host. */
+  public static final String OWNER = "email.lease.owner";
+
+  /** The lease duration (ms) property. */
+  public static final String TTL = "email.lease.ttl";
+
+  /** The number of UIDs per leased range property. */
+  public static final String RANGE_SIZE = "email.lease.range.size";
+
+  /** The lease store. */
+  private final LeaseStore store;
+
+  /** The name of this instance. */
+  private final String owner;
+
+  /** The lease duration, in milliseconds. */
+  private final long ttl;
+
+  /** The number of UIDs per range. */
+  private final long rangeSize;
+
+  /** The held leases, by id. */
+  private final Map<String, Lease> held = new ConcurrentHashMap<String, Lease>();
+
+  /** The lease renewer. */
+  private final ScheduledExecutorService renewer;
+
+  /**
+   * Instantiates a new lease coordinator over a file lease store.
+   *
+   * @param properties the properties
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public LeaseCoordinator(final MailProperties properties) throws EmailRuleProcessorException {
+    this(new FileLeaseStore(new File(properties.valueOf(DIRECTORY,
+        new File(properties.dataDirectory(), "leases").getPath()), "leases.dat")), properties);
+  }
+
+  /**
+   * Instantiates a new lease coordinator.
+   *
+   * @param store the lease store
+   * @param properties the properties
+   */
+  public LeaseCoordinator(final LeaseStore store, final MailProperties properties) {
+    this.store = store;
+    this.owner = properties.valueOf(OWNER, ManagementFactory.getRuntimeMXBean().getName());
+    this.ttl = Math.max(1000L, properties.longValueOf(TTL, 60000L));
+    this.rangeSize = Math.max(1L, properties.longValueOf(RANGE_SIZE, 500L));
+    this.renewer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable runnable) {
+        final Thread thread = new Thread(runnable, "lease-renewer");
+        thread.setDaemon(true);
+
+        return thread;
+      }
+    });
+
+    final long period = ttl / 3;
+    renewer.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        renewAll();
+      }
+    }, period, period, TimeUnit.MILLISECONDS);
+
+    LOGGER.info("leasing UID ranges of {} as {} for {} ms", rangeSize, owner, ttl);
+  }
+
+  /**
+   * The first UID of the range containing a UID.
+   *
+   * @param uid the uid
+   * @return the range start
+   */
+  public long rangeStart(final long uid) {
+    return ((uid - 1) / rangeSize) * rangeSize + 1;
+  }
+
+  /**
+   * Acquire the lease on the range starting at the given UID.
+   *
+   * @param folder the folder key
+   * @param start the range start
+   * @return the lease, or null when another instance holds the range
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public Lease acquire(final String folder, final long start)
+      throws EmailRuleProcessorException {
+    final Lease lease = store.acquire(folder, start, start + rangeSize - 1, owner, ttl);
+
+    if (lease != null) {
+      held.put(lease.id(), lease);
+      LOGGER.debug("acquired lease {}", lease);
+    }
+
+    return lease;
+  }
+
+  /**
+   * Checks if a lease is still held, with enough time left to process another message.
+   *
+   * @param lease the lease
+   * @return true, if held
+   */
+  public boolean isHeld(final Lease lease) {
+    final Lease current = held.get(lease.id());
+
+    return current != null && !current.isExpired(System.currentTimeMillis() + ttl / 3);
+  }
+
+  /**
+   * Release a lease.
+   *
+   * @param lease the lease
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public void release(final Lease lease) throws EmailRuleProcessorException {
+    if (held.remove(lease.id()) != null) {
+      store.release(lease);
+      LOGGER.debug("released lease {}", lease);
+    }
+  }
+
+  /**
+   * Stop renewing, release every held lease and close the store.
+   *
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public void close() throws EmailRuleProcessorException {
+    renewer.shutdownNow();
+
+    for (final Lease lease : held.values()) {
+      release(lease);
+    }
+
+    store.close();
+  }
+
+  /**
+   * Renew every held lease, forgetting those lost to another instance.
+   */
+  private void renewAll() {
+    for (final Lease lease : held.values()) {
+      try {
+        final Lease renewed = store.renew(lease, ttl);
+
+        if (renewed == null) {
+          if (held.remove(lease.id(), lease)) {
+            LOGGER.warn("lost lease {}", lease);
+          }
+        } else {
+          held.replace(lease.id(), lease, renewed);
+        }
+      } catch (EmailRuleProcessorException exception) {
+        LOGGER.warn("failed to renew lease {}: {}", lease, exception.getMessage());
+      }
+    }
+  }
+}
@@ -0,0 +1,69 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.lease;
+
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+
+/**
+ * Shared store of UID-range leases. Every operation is atomic across all the processor instances
+ * sharing the store.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public interface LeaseStore {
+
+  /**
+   * Acquire a lease on a UID range, if no other instance holds an unexpired lease on it. An
+   * expired lease, left by an instance that stopped renewing it, is taken over.
+   *
+   * @param folder the folder key
+   * @param start the first UID
+   * @param end the last UID
+   * @param owner the acquiring instance
+   * @param ttl the lease duration, in milliseconds
+   * @return the lease, or null when another instance holds the range
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  Lease acquire(String folder, long start, long end, String owner, long ttl)
+      throws EmailRuleProcessorException;
+
+  /**
+   * Extend a held lease.
+   *
+   * @param lease the lease
+   * @param ttl the lease duration from now, in milliseconds
+   * @return the renewed lease, or null when the lease has been lost to another instance
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  Lease renew(Lease lease, long ttl) throws EmailRuleProcessorException;
+
+  /**
+   * Release a lease, if it is still held.
+   *
+   * @param lease the lease
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  void release(Lease lease) throws EmailRuleProcessorException;
+
+  /**
+   * Close the store.
+   *
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  void close() throws EmailRuleProcessorException;
+}
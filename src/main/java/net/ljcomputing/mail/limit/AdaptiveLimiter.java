@@ -0,0 +1,373 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.limit;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.FolderClosedException;
+import javax.mail.MessagingException;
+import javax.mail.StoreClosedException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.mail.iap.ConnectionException;
+
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+
+/**
+ * Adaptive concurrency limit for the IMAP operations issued against one host. The limit follows a
+ * latency gradient: while the smoothed latency stays within the tolerance of the best latency
+ * seen, and the limit is actually being used, it grows additively by about one slot per window of
+ * operations; as latency degrades it shrinks in proportion to how far past the tolerance it is.
+ * A server pushing back (BYE, a closed connection, or a NO carrying a throttling response code)
+ * halves the limit outright. Callers over the limit queue until a slot frees or the acquire
+ * timeout passes, and are then rejected.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class AdaptiveLimiter {
+
+  /** The Constant logger. */
+  private final static Logger LOGGER = LoggerFactory.getLogger(AdaptiveLimiter.class);
+
+  /** The weight of a new sample in the smoothed latency. */
+  private static final double SMOOTHING = 0.2;
+
+  /** How often the best latency is forgotten and probed again, in nanoseconds. */
+  private static final long MIN_LATENCY_WINDOW = TimeUnit.SECONDS.toNanos(60);
+
+  /** IMAP response codes servers use to push back. */
+  private static final String[] THROTTLE_CODES = { "[THROTTLED]", "[LIMIT]", "[UNAVAILABLE]",
+      "[INUSE]", "[OVERQUOTA]" };
+
+  /** The host name. */
+  private final String host;
+
+  /** The smallest limit. */
+  private final int minLimit;
+
+  /** The largest limit. */
+  private final int maxLimit;
+
+  /** How far the smoothed latency may rise over the best latency before the limit shrinks. */
+  private final double tolerance;
+
+  /** The longest a caller queues for a slot, in milliseconds. */
+  private final long acquireTimeout;
+
+  /** The current limit. */
+  private double limit;
+
+  /** The operations in flight. */
+  private int inFlight;
+
+  /** The callers queued for a slot. */
+  private int waiting;
+
+  /** The most callers ever queued at once. */
+  private int maxWaiting;
+
+  /** The best latency seen in the current window, in nanoseconds. */
+  private long minLatency = Long.MAX_VALUE;
+
+  /** The start of the current best-latency window. */
+  private long minLatencySince = System.nanoTime();
+
+  /** The smoothed latency, in nanoseconds. */
+  private double smoothedLatency;
+
+  /** The count of completed operations. */
+  private long completed;
+
+  /** The count of operations the server pushed back on. */
+  private long throttled;
+
+  /** The count of callers that had to queue. */
+  private long queued;
+
+  /** The count of callers rejected after queuing for the acquire timeout. */
+  private long rejected;
+
+  /**
+   * Instantiates a new adaptive limiter.
+   *
+   * @param host the host name
+   * @param initialLimit the initial limit
+   * @param minLimit the smallest limit
+   * @param maxLimit the largest limit
+   * @param tolerance the latency tolerance, e.g. 2.0 for twice the best latency
+   * @param acquireTimeout the acquire timeout, in milliseconds
+   */
+  public AdaptiveLimiter(final String host, final int initialLimit, final int minLimit,
+      final int maxLimit, final double tolerance, final long acquireTimeout) {
+    this.host = host;
+    this.minLimit = Math.max(1, minLimit);
+    this.maxLimit = Math.max(this.minLimit, maxLimit);
+    this.tolerance = Math.max(1.0, tolerance);
+    this.acquireTimeout = acquireTimeout;
+    this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+  }
+
+  /**
+   * Run an operation under the limit.
+   *
+   * @param <T> the result type
+   * @param operation the operation
+   * @return the result
+   * @throws MessagingException the messaging exception
+   * @throws EmailRuleProcessorException when no slot frees up within the acquire timeout
+   */
+  public <T> T call(final LimitedOperation<T> operation)
+      throws MessagingException, EmailRuleProcessorException {
+    acquire();
+    final long start = System.nanoTime();
+
+    try {
+      final T result = operation.call();
+      onSuccess(System.nanoTime() - start);
+
+      return result;
+    } catch (MessagingException exception) {
+      if (isThrottled(exception)) {
+        onThrottled();
+      } else {
+        onIgnored();
+      }
+
+      throw exception;
+    } catch (RuntimeException exception) {
+      onIgnored();
+      throw exception;
+    }
+  }
+
+  /**
+   * Gets the host name.
+   *
+   * @return the host
+   */
+  public String getHost() {
+    return host;
+  }
+
+  /**
+   * Gets the current limit.
+   *
+   * @return the limit
+   */
+  public synchronized int getLimit() {
+    return (int) limit;
+  }
+
+  /**
+   * Gets the operations in flight.
+   *
+   * @return the in flight
+   */
+  public synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  /**
+   * Gets the callers queued for a slot.
+   *
+   * @return the waiting
+   */
+  public synchronized int getWaiting() {
+    return waiting;
+  }
+
+  /**
+   * Gets the count of callers that had to queue.
+   *
+   * @return the queued
+   */
+  public synchronized long getQueued() {
+    return queued;
+  }
+
+  /**
+   * Gets the count of callers rejected after queuing for the acquire timeout.
+   *
+   * @return the rejected
+   */
+  public synchronized long getRejected() {
+    return rejected;
+  }
+
+  /**
+   * Gets the count of operations the server pushed back on.
+   *
+   * @return the throttled
+   */
+  public synchronized long getThrottled() {
+    return throttled;
+  }
+
+  /**
+   * Log the limiter's state and counts.
+   */
+  public synchronized void report() {
+    LOGGER.info("IMAP limiter for {}: limit {}, {} in flight, {} completed, {} throttled, "
+        + "{} queued (at most {} at once), {} rejected, smoothed latency {} ms",
+        host, (int) limit, inFlight, completed, throttled, queued, maxWaiting, rejected,
+        TimeUnit.NANOSECONDS.toMillis((long) smoothedLatency));
+  }
+
+  /**
+   * Take a slot, queuing while the limit is reached.
+   *
+   * @throws EmailRuleProcessorException when no slot frees up within the acquire timeout
+   */
+  private synchronized void acquire() throws EmailRuleProcessorException {
+    if (inFlight < (int) limit) {
+      inFlight++;
+      return;
+    }
+
+    queued++;
+    waiting++;
+    maxWaiting = Math.max(maxWaiting, waiting);
+
+    try {
+      final long deadline = System.currentTimeMillis() + acquireTimeout;
+
+      while (inFlight >= (int) limit) {
+        final long remaining = deadline - System.currentTimeMillis();
+
+        if (remaining <= 0) {
+          rejected++;
+          throw new EmailRuleProcessorException(
+              "IMAP concurrency limit of " + (int) limit + " reached for " + host);
+        }
+
+        wait(remaining);
+      }
+
+      inFlight++;
+    } catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+      throw new EmailRuleProcessorException(exception);
+    } finally {
+      waiting--;
+    }
+  }
+
+  /**
+   * Release a slot after a successful operation and adjust the limit to its latency.
+   *
+   * @param latency the latency, in nanoseconds
+   */
+  private synchronized void onSuccess(final long latency) {
+    final boolean saturated = inFlight >= limit / 2;
+    inFlight--;
+    completed++;
+
+    final long now = System.nanoTime();
+
+    if (now - minLatencySince > MIN_LATENCY_WINDOW) {
+      minLatency = Long.MAX_VALUE;
+      minLatencySince = now;
+    }
+
+    minLatency = Math.min(minLatency, Math.max(1L, latency));
+    smoothedLatency = smoothedLatency == 0 ? latency
+        : smoothedLatency * (1 - SMOOTHING) + latency * SMOOTHING;
+
+    final double gradient = Math.max(0.5,
+        Math.min(1.0, tolerance * minLatency / smoothedLatency));
+
+    // each sample moves the limit by 1/limit of the step, so a full window of samples moves it
+    // by one slot up, or by the gradient's share of the limit down
+    if (gradient < 1.0) {
+      setLimit(limit - (1.0 - gradient));
+    } else if (saturated) {
+      setLimit(limit + 1.0 / limit);
+    }
+
+    notifyAll();
+  }
+
+  /**
+   * Release a slot after the server pushed back, halving the limit.
+   */
+  private synchronized void onThrottled() {
+    inFlight--;
+    throttled++;
+    setLimit(limit / 2);
+    LOGGER.warn("IMAP server {} pushed back; limit now {}", host, (int) limit);
+    notifyAll();
+  }
+
+  /**
+   * Release a slot after an operation whose outcome says nothing about the server's load.
+   */
+  private synchronized void onIgnored() {
+    inFlight--;
+    notifyAll();
+  }
+
+  /**
+   * Set the limit within its bounds.
+   *
+   * @param newLimit the new limit
+   */
+  private void setLimit(final double newLimit) {
+    final int before = (int) limit;
+    limit = Math.min(maxLimit, Math.max(minLimit, newLimit));
+
+    if ((int) limit != before) {
+      LOGGER.debug("IMAP limit for {} now {}", host, (int) limit);
+    }
+  }
+
+  /**
+   * Checks if a failure is the server pushing back: a dropped connection, or a response carrying
+   * a throttling code.
+   *
+   * @param exception the exception
+   * @return true, if throttled
+   */
+  static boolean isThrottled(final MessagingException exception) {
+    Throwable cause = exception;
+
+    while (cause != null) {
+      if (cause instanceof StoreClosedException || cause instanceof FolderClosedException
+          || cause instanceof ConnectionException) {
+        return true;
+      }
+
+      final String message = cause.getMessage();
+
+      if (message != null) {
+        final String upper = message.toUpperCase();
+
+        for (final String code : THROTTLE_CODES) {
+          if (upper.contains(code)) {
+            return true;
+          }
+        }
+      }
+
+      cause = cause.getCause() == cause ? null : cause.getCause();
+    }
+
+    return false;
+  }
+}
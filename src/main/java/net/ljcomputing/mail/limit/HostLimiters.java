@@ -0,0 +1,95 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.limit;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.ljcomputing.mail.service.MailProperties;
+
+/**
+ * The adaptive IMAP concurrency limiters, one per host.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class HostLimiters {
+
+  /** The initial limit property. */
+  public static final String INITIAL = "email.imap.limit.initial";
+
+  /** The smallest limit property. */
+  public static final String MIN = "email.imap.limit.min";
+
+  /** The largest limit property. */
+  public static final String MAX = "email.imap.limit.max";
+
+  /** The latency tolerance property, a multiple of the best latency seen. */
+  public static final String TOLERANCE = "email.imap.limit.tolerance";
+
+  /** The acquire timeout (ms) property. */
+  public static final String TIMEOUT = "email.imap.limit.timeout";
+
+  /** The limiters, by host. */
+  private final Map<String, AdaptiveLimiter> limiters =
+      new ConcurrentHashMap<String, AdaptiveLimiter>();
+
+  /** The properties. */
+  private final MailProperties properties;
+
+  /**
+   * Instantiates new host limiters.
+   *
+   * @param properties the properties
+   */
+  public HostLimiters(final MailProperties properties) {
+    this.properties = properties;
+  }
+
+  /**
+   * The limiter for a host, created on first use.
+   *
+   * @param host the host
+   * @return the limiter
+   */
+  public AdaptiveLimiter forHost(final String host) {
+    final String key = host == null ? "" : host.toLowerCase();
+    AdaptiveLimiter limiter = limiters.get(key);
+
+    if (limiter == null) {
+      limiter = new AdaptiveLimiter(key, properties.intValueOf(INITIAL, 4),
+          properties.intValueOf(MIN, 1), properties.intValueOf(MAX, 32),
+          properties.doubleValueOf(TOLERANCE, 2.0), properties.longValueOf(TIMEOUT, 30000L));
+      final AdaptiveLimiter existing = limiters.putIfAbsent(key, limiter);
+
+      if (existing != null) {
+        limiter = existing;
+      }
+    }
+
+    return limiter;
+  }
+
+  /**
+   * Log every limiter's state and counts.
+   */
+  public void report() {
+    for (final AdaptiveLimiter limiter : limiters.values()) {
+      limiter.report();
+    }
+  }
+}
@@ -0,0 +1,37 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.limit;
+
+import javax.mail.MessagingException;
+
+/**
+ * A Store or Folder operation run under a concurrency limit.
+ * 
+ * @author James G. Willmore
+ *
+ * @param <T> the result type
+ */
+public interface LimitedOperation<T> {
+
+  /**
+   * Run the operation.
+   *
+   * @return the result
+   * @throws MessagingException the messaging exception
+   */
+  T call() throws MessagingException;
+}
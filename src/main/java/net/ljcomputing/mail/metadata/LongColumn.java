@@ -0,0 +1,81 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.metadata;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A delta-encoded numeric column. Each row is written as the zigzag varint of its difference from
+ * the previous row, so UIDs, dates and counts that change little from message to message take a
+ * byte or two each. A null is written as -1.
+ * 
+ * @author James G. Willmore
+ *
+ */
+final class LongColumn extends MetadataColumn {
+
+  /** The encoded deltas. */
+  private final ByteArrayOutputStream deltas = new ByteArrayOutputStream(1024);
+
+  /** The value of the previous row. */
+  private long previous;
+
+  /**
+   * @see net.ljcomputing.mail.metadata.MetadataColumn#type()
+   */
+  @Override
+  byte type() {
+    return MetadataFile.LONG;
+  }
+
+  /**
+   * Append a value.
+   *
+   * @param value the value
+   */
+  void append(final long value) {
+    MetadataFile.writeVarlong(deltas, MetadataFile.zigzag(value - previous));
+    previous = value;
+    appended();
+  }
+
+  /**
+   * @see net.ljcomputing.mail.metadata.MetadataColumn#appendNull()
+   */
+  @Override
+  void appendNull() {
+    append(-1L);
+  }
+
+  /**
+   * @see net.ljcomputing.mail.metadata.MetadataColumn#length()
+   */
+  @Override
+  int length() {
+    return deltas.size();
+  }
+
+  /**
+   * @see net.ljcomputing.mail.metadata.MetadataColumn#writeTo(java.io.OutputStream)
+   */
+  @Override
+  void writeTo(final OutputStream out) throws IOException {
+    deltas.writeTo(out);
+  }
+}
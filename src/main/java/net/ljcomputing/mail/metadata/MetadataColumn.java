@@ -0,0 +1,75 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.metadata;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * One column of the row group being written.
+ * 
+ * @author James G. Willmore
+ *
+ */
+abstract class MetadataColumn {
+
+  /** The count of rows in the column. */
+  private int rows;
+
+  /**
+   * The column type.
+   *
+   * @return the type
+   */
+  abstract byte type();
+
+  /**
+   * Append a null to the column, for a row that had no value for it.
+   */
+  abstract void appendNull();
+
+  /**
+   * The length of the encoded chunk.
+   *
+   * @return the length in bytes
+   */
+  abstract int length();
+
+  /**
+   * Write the encoded chunk.
+   *
+   * @param out the out
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  abstract void writeTo(OutputStream out) throws IOException;
+
+  /**
+   * Count a row appended to the column.
+   */
+  final void appended() {
+    rows++;
+  }
+
+  /**
+   * Gets the count of rows in the column.
+   *
+   * @return the count
+   */
+  final int rows() {
+    return rows;
+  }
+}
@@ -0,0 +1,120 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.metadata;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The columnar metadata file format. A file is a magic number and version followed by row
+ * groups, each written whole once its encoded columns reach the row group size.
+ * 
+ * <p>
+ * Row group layout: header length, then the header (row count, column count and, per column,
+ * its name, type and chunk length), then the column chunks in header order. A reader finds any
+ * one chunk from the header and skips the others unread. A long chunk is one zigzag varint
+ * delta from the previous row per row. A string chunk is a dictionary (entry count, then each
+ * entry as a varint length and UTF-8 bytes) followed by one varint per row: 0 for null, or the
+ * dictionary index plus one.
+ * </p>
+ * 
+ * @author James G. Willmore
+ *
+ */
+final class MetadataFile {
+
+  /** The file magic number. */
+  static final int MAGIC = 0x4d434f4c;
+
+  /** The format version. */
+  static final int VERSION = 1;
+
+  /** The length of the magic number and version. */
+  static final int PREAMBLE = 8;
+
+  /** The file extension. */
+  static final String EXTENSION = ".mcol";
+
+  /** The long column type. */
+  static final byte LONG = 'L';
+
+  /** The string column type. */
+  static final byte STRING = 'S';
+
+  /**
+   * Instantiates the format; it is never instantiated.
+   */
+  private MetadataFile() {
+  }
+
+  /**
+   * Write an unsigned varint.
+   *
+   * @param out the out
+   * @param value the value
+   */
+  static void writeVarlong(final ByteArrayOutputStream out, final long value) {
+    long remaining = value;
+
+    while ((remaining & ~0x7fL) != 0) {
+      out.write((int) ((remaining & 0x7f) | 0x80));
+      remaining >>>= 7;
+    }
+
+    out.write((int) remaining);
+  }
+
+  /**
+   * Read an unsigned varint.
+   *
+   * @param in the in
+   * @return the value
+   */
+  static long readVarlong(final ByteBuffer in) {
+    long value = 0;
+    int shift = 0;
+    byte b;
+
+    do {
+      b = in.get();
+      value |= (long) (b & 0x7f) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+
+    return value;
+  }
+
+  /**
+   * Zigzag encode a signed value, so that small negative deltas stay short.
+   *
+   * @param value the value
+   * @return the encoded value
+   */
+  static long zigzag(final long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  /**
+   * Decode a zigzag encoded value.
+   *
+   * @param value the encoded value
+   * @return the value
+   */
+  static long unzigzag(final long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+}
@@ -0,0 +1,406 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.metadata;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+
+/**
+ * Reader of a columnar metadata file. A scan reads every row group header but only the chunk of
+ * the column scanned, so one column can be scanned across millions of rows without reading or
+ * decoding the others. Row groups without the column yield a null (-1 for a long column) per
+ * row, so scans of different columns stay aligned row for row. A row group cut short by a crash
+ * ends the file.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class MetadataReader {
+
+  /** The Constant logger. */
+  private final static Logger LOGGER = LoggerFactory.getLogger(MetadataReader.class);
+
+  /** The metadata file. */
+  private final File file;
+
+  /**
+   * Instantiates a new metadata reader.
+   *
+   * @param file the metadata file
+   */
+  public MetadataReader(final File file) {
+    this.file = file;
+  }
+
+  /**
+   * The metadata files of a directory, in the order they were written.
+   *
+   * @param directory the metadata directory
+   * @return the files
+   */
+  public static List<File> files(final File directory) {
+    final File[] files = directory.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(final File file) {
+        return file.isFile() && file.getName().endsWith(MetadataFile.EXTENSION);
+      }
+    });
+
+    if (files == null) {
+      return new ArrayList<File>();
+    }
+
+    Arrays.sort(files);
+
+    return new ArrayList<File>(Arrays.asList(files));
+  }
+
+  /**
+   * The count of rows in the file, from the row group headers alone.
+   *
+   * @return the count
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public long rows() throws EmailRuleProcessorException {
+    long rows = 0;
+
+    for (final RowGroup group : rowGroups()) {
+      rows += group.rows;
+    }
+
+    return rows;
+  }
+
+  /**
+   * The columns of the file, in the order they first appear.
+   *
+   * @return the column names
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public Set<String> columns() throws EmailRuleProcessorException {
+    final Set<String> columns = new LinkedHashSet<String>();
+
+    for (final RowGroup group : rowGroups()) {
+      columns.addAll(Arrays.asList(group.names));
+    }
+
+    return columns;
+  }
+
+  /**
+   * Scan a long column.
+   *
+   * @param column the column
+   * @param consumer the consumer of each row's value, -1 for null
+   * @throws EmailRuleProcessorException when the file cannot be read or the column is not a long
+   *         column
+   */
+  public void scanLongs(final String column, final LongConsumer consumer)
+      throws EmailRuleProcessorException {
+    scan(column, MetadataFile.LONG, new ChunkDecoder() {
+      @Override
+      public void decode(final int rows, final ByteBuffer chunk) {
+        long value = 0;
+
+        for (int r = 0; r < rows; r++) {
+          if (chunk == null) {
+            consumer.accept(-1L);
+          } else {
+            value += MetadataFile.unzigzag(MetadataFile.readVarlong(chunk));
+            consumer.accept(value);
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Scan a string column.
+   *
+   * @param column the column
+   * @param consumer the consumer of each row's value, which may be null
+   * @throws EmailRuleProcessorException when the file cannot be read or the column is not a
+   *         string column
+   */
+  public void scanStrings(final String column, final Consumer<String> consumer)
+      throws EmailRuleProcessorException {
+    scan(column, MetadataFile.STRING, new ChunkDecoder() {
+      @Override
+      public void decode(final int rows, final ByteBuffer chunk) {
+        final String[] dictionary = chunk == null ? new String[0]
+            : new String[(int) MetadataFile.readVarlong(chunk)];
+
+        for (int d = 0; d < dictionary.length; d++) {
+          final byte[] bytes = new byte[(int) MetadataFile.readVarlong(chunk)];
+          chunk.get(bytes);
+          dictionary[d] = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        for (int r = 0; r < rows; r++) {
+          final int index = chunk == null ? 0 : (int) MetadataFile.readVarlong(chunk);
+          consumer.accept(index == 0 ? null : dictionary[index - 1]);
+        }
+      }
+    });
+  }
+
+  /**
+   * Scan a column, reading only its chunk of each row group.
+   *
+   * @param column the column
+   * @param type the column type expected
+   * @param decoder the decoder of each chunk
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  private void scan(final String column, final byte type, final ChunkDecoder decoder)
+      throws EmailRuleProcessorException {
+    try (final FileChannel channel = open()) {
+      for (final RowGroup group : rowGroups(channel)) {
+        final int c = group.indexOf(column);
+
+        if (c < 0) {
+          decoder.decode(group.rows, null);
+          continue;
+        }
+
+        if (group.types[c] != type) {
+          throw new EmailRuleProcessorException("metadata column " + column
+              + " is not of type " + (char) type + ".");
+        }
+
+        decoder.decode(group.rows, read(channel, group.offsetOf(c), group.lengths[c]));
+      }
+    } catch (IOException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
+  /**
+   * Read the row group headers of the file.
+   *
+   * @return the row groups
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  private List<RowGroup> rowGroups() throws EmailRuleProcessorException {
+    try (final FileChannel channel = open()) {
+      return rowGroups(channel);
+    } catch (IOException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
+  /**
+   * Read the row group headers of the file, skipping over the chunks.
+   *
+   * @param channel the channel
+   * @return the row groups
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private List<RowGroup> rowGroups(final FileChannel channel) throws IOException {
+    final List<RowGroup> groups = new ArrayList<RowGroup>();
+    final long size = channel.size();
+    long position = MetadataFile.PREAMBLE;
+
+    while (position + 4 <= size) {
+      final int headerLength = read(channel, position, 4).getInt();
+
+      if (headerLength <= 0 || position + 4 + headerLength > size) {
+        break;
+      }
+
+      final RowGroup group = new RowGroup(position + 4 + headerLength,
+          read(channel, position + 4, headerLength));
+
+      if (group.end() > size) {
+        break;
+      }
+
+      groups.add(group);
+      position = group.end();
+    }
+
+    if (position != size) {
+      LOGGER.warn("metadata file {} ends in a partial row group at {}", file, position);
+    }
+
+    return groups;
+  }
+
+  /**
+   * Open the file and check its magic number and version.
+   *
+   * @return the channel
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private FileChannel open() throws IOException {
+    final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    final ByteBuffer preamble = read(channel, 0, MetadataFile.PREAMBLE);
+
+    if (preamble.getInt() != MetadataFile.MAGIC || preamble.getInt() != MetadataFile.VERSION) {
+      channel.close();
+      throw new IOException(file + " is not a metadata file.");
+    }
+
+    return channel;
+  }
+
+  /**
+   * Read bytes from the file.
+   *
+   * @param channel the channel
+   * @param position the position
+   * @param length the length
+   * @return the bytes
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static ByteBuffer read(final FileChannel channel, final long position,
+      final int length) throws IOException {
+    final ByteBuffer buffer = ByteBuffer.allocate(length);
+
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("unexpected end of metadata file");
+      }
+    }
+
+    buffer.flip();
+
+    return buffer;
+  }
+
+  /**
+   * The decoder of one column chunk.
+   */
+  private interface ChunkDecoder {
+
+    /**
+     * Decode a chunk.
+     *
+     * @param rows the count of rows in the row group
+     * @param chunk the chunk, or null when the row group does not have the column
+     */
+    void decode(int rows, ByteBuffer chunk);
+  }
+
+  /**
+   * A row group header.
+   */
+  private static class RowGroup {
+
+    /** The position of the first chunk. */
+    private final long chunks;
+
+    /** The count of rows. */
+    private final int rows;
+
+    /** The column names. */
+    private final String[] names;
+
+    /** The column types. */
+    private final byte[] types;
+
+    /** The chunk lengths. */
+    private final int[] lengths;
+
+    /**
+     * Parse a row group header.
+     *
+     * @param chunks the position of the first chunk
+     * @param header the header
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private RowGroup(final long chunks, final ByteBuffer header) throws IOException {
+      final DataInputStream in = new DataInputStream(
+          new ByteArrayInputStream(header.array(), 0, header.limit()));
+      this.chunks = chunks;
+      this.rows = in.readInt();
+
+      final int columns = in.readInt();
+      this.names = new String[columns];
+      this.types = new byte[columns];
+      this.lengths = new int[columns];
+
+      for (int c = 0; c < columns; c++) {
+        names[c] = in.readUTF();
+        types[c] = in.readByte();
+        lengths[c] = in.readInt();
+      }
+    }
+
+    /**
+     * The index of a column.
+     *
+     * @param name the column name
+     * @return the index, or -1
+     */
+    private int indexOf(final String name) {
+      for (int c = 0; c < names.length; c++) {
+        if (names[c].equals(name)) {
+          return c;
+        }
+      }
+
+      return -1;
+    }
+
+    /**
+     * The position of a column's chunk.
+     *
+     * @param column the column index
+     * @return the position
+     */
+    private long offsetOf(final int column) {
+      long offset = chunks;
+
+      for (int c = 0; c < column; c++) {
+        offset += lengths[c];
+      }
+
+      return offset;
+    }
+
+    /**
+     * The position just past the row group.
+     *
+     * @return the position
+     */
+    private long end() {
+      return offsetOf(lengths.length);
+    }
+  }
+}
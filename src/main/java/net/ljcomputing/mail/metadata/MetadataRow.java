@@ -0,0 +1,81 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.metadata;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * One row of message metadata: named long and string values. A row need not set every column;
+ * the columns it leaves out are written as nulls.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class MetadataRow {
+
+  /** The long values, by column. */
+  private final Map<String, Long> longs = new LinkedHashMap<String, Long>();
+
+  /** The string values, by column. */
+  private final Map<String, String> strings = new LinkedHashMap<String, String>();
+
+  /**
+   * Set a long value.
+   *
+   * @param column the column
+   * @param value the value
+   * @return the row
+   */
+  public MetadataRow set(final String column, final long value) {
+    longs.put(column, value);
+
+    return this;
+  }
+
+  /**
+   * Set a string value.
+   *
+   * @param column the column
+   * @param value the value, or null
+   * @return the row
+   */
+  public MetadataRow set(final String column, final String value) {
+    strings.put(column, value);
+
+    return this;
+  }
+
+  /**
+   * Gets the long values.
+   *
+   * @return the long values, by column
+   */
+  Map<String, Long> getLongs() {
+    return Collections.unmodifiableMap(longs);
+  }
+
+  /**
+   * Gets the string values.
+   *
+   * @return the string values, by column
+   */
+  Map<String, String> getStrings() {
+    return Collections.unmodifiableMap(strings);
+  }
+}
@@ -0,0 +1,286 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.metadata;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.service.MailProperties;
+
+/**
+ * Writer of a columnar metadata file. Rows are encoded column by column into the row group in
+ * memory, which is written out whole once its encoded columns reach the row group size, and on
+ * every flush. Each writer starts a new file in the metadata directory, named for the time it
+ * was opened, so files sort in the order they were written.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class MetadataWriter {
+
+  /** The Constant logger. */
+  private final static Logger LOGGER = LoggerFactory.getLogger(MetadataWriter.class);
+
+  /** The metadata directory property. */
+  public static final String DIRECTORY = "email.metadata.dir";
+
+  /** The row group size (bytes) property. */
+  public static final String ROW_GROUP_SIZE = "email.metadata.row.group.size";
+
+  /** The metadata directory. */
+  private final File directory;
+
+  /** The row group size. */
+  private final int rowGroupSize;
+
+  /** The columns of the row group being written, in the order they first appeared. */
+  private final Map<String, MetadataColumn> columns = new LinkedHashMap<String, MetadataColumn>();
+
+  /** The count of rows in the row group being written. */
+  private int rows;
+
+  /** The metadata file, once the first row group has been written. */
+  private File file;
+
+  /** The channel to the metadata file. */
+  private FileChannel channel;
+
+  /** The count of rows written out. */
+  private long rowsWritten;
+
+  /** The count of row groups written out. */
+  private int rowGroups;
+
+  /** Whether the writer has been closed. */
+  private boolean closed;
+
+  /**
+   * Instantiates a new metadata writer.
+   *
+   * @param properties the properties
+   */
+  public MetadataWriter(final MailProperties properties) {
+    this.directory = new File(properties.valueOf(DIRECTORY,
+        new File(properties.dataDirectory(), "metadata").getPath()));
+    this.rowGroupSize = properties.intValueOf(ROW_GROUP_SIZE, 1024 * 1024);
+    directory.mkdirs();
+  }
+
+  /**
+   * Gets the metadata directory.
+   *
+   * @return the directory
+   */
+  public File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Append a row, writing out the row group once it reaches the row group size.
+   *
+   * @param row the row
+   * @throws EmailRuleProcessorException when the writer is closed, a column changes type or the
+   *         row group cannot be written
+   */
+  public synchronized void append(final MetadataRow row) throws EmailRuleProcessorException {
+    if (closed) {
+      throw new EmailRuleProcessorException("metadata writer has been closed.");
+    }
+
+    for (final Map.Entry<String, Long> value : row.getLongs().entrySet()) {
+      final MetadataColumn column = column(value.getKey(), MetadataFile.LONG);
+      ((LongColumn) column).append(value.getValue());
+    }
+
+    for (final Map.Entry<String, String> value : row.getStrings().entrySet()) {
+      final MetadataColumn column = column(value.getKey(), MetadataFile.STRING);
+      ((StringColumn) column).append(value.getValue());
+    }
+
+    int length = 0;
+
+    for (final MetadataColumn column : columns.values()) {
+      if (column.rows() == rows) {
+        column.appendNull();
+      }
+
+      length += column.length();
+    }
+
+    rows++;
+
+    if (length >= rowGroupSize) {
+      writeRowGroup(false);
+    }
+  }
+
+  /**
+   * Write out the partial row group and force it to disk.
+   *
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public synchronized void flush() throws EmailRuleProcessorException {
+    if (rows > 0) {
+      writeRowGroup(true);
+    }
+  }
+
+  /**
+   * Flush and close the metadata file.
+   *
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public synchronized void close() throws EmailRuleProcessorException {
+    if (closed) {
+      return;
+    }
+
+    flush();
+    closed = true;
+
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException exception) {
+        LOGGER.error("FATAL: ", exception);
+        throw new EmailRuleProcessorException(exception);
+      }
+
+      LOGGER.info("metadata file {} closed: {} rows in {} row groups", file, rowsWritten,
+          rowGroups);
+    }
+  }
+
+  /**
+   * Gets a column of the row group being written, adding it (with a null for every earlier row)
+   * on first use.
+   *
+   * @param name the column name
+   * @param type the column type
+   * @return the column
+   * @throws EmailRuleProcessorException when the column exists with another type
+   */
+  private MetadataColumn column(final String name, final byte type)
+      throws EmailRuleProcessorException {
+    MetadataColumn column = columns.get(name);
+
+    if (column == null) {
+      column = type == MetadataFile.LONG ? new LongColumn() : new StringColumn();
+
+      for (int r = 0; r < rows; r++) {
+        column.appendNull();
+      }
+
+      columns.put(name, column);
+    } else if (column.type() != type) {
+      throw new EmailRuleProcessorException("metadata column " + name + " changed type.");
+    }
+
+    return column;
+  }
+
+  /**
+   * Write out the row group and start the next.
+   *
+   * @param force whether to force the file to disk
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  private void writeRowGroup(final boolean force) throws EmailRuleProcessorException {
+    try {
+      final ByteArrayOutputStream header = new ByteArrayOutputStream(256);
+      final DataOutputStream headerOut = new DataOutputStream(header);
+      int length = 0;
+
+      headerOut.writeInt(rows);
+      headerOut.writeInt(columns.size());
+
+      for (final Map.Entry<String, MetadataColumn> column : columns.entrySet()) {
+        headerOut.writeUTF(column.getKey());
+        headerOut.writeByte(column.getValue().type());
+        headerOut.writeInt(column.getValue().length());
+        length += column.getValue().length();
+      }
+
+      headerOut.flush();
+
+      final ByteArrayOutputStream group = new ByteArrayOutputStream(4 + header.size() + length);
+      new DataOutputStream(group).writeInt(header.size());
+      header.writeTo(group);
+
+      for (final MetadataColumn column : columns.values()) {
+        column.writeTo(group);
+      }
+
+      final ByteBuffer buffer = ByteBuffer.wrap(group.toByteArray());
+
+      while (buffer.hasRemaining()) {
+        channel().write(buffer);
+      }
+
+      if (force) {
+        channel.force(false);
+      }
+
+      LOGGER.debug("metadata row group written: {} rows, {} columns, {} bytes", rows,
+          columns.size(), group.size());
+      rowsWritten += rows;
+      rowGroups++;
+      rows = 0;
+      columns.clear();
+    } catch (IOException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
+  /**
+   * Gets the channel to the metadata file, creating the file on first use.
+   *
+   * @return the channel
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private FileChannel channel() throws IOException {
+    if (channel == null) {
+      file = new File(directory, "metadata-" + System.currentTimeMillis()
+          + MetadataFile.EXTENSION);
+      channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+          StandardOpenOption.WRITE);
+
+      final ByteBuffer preamble = ByteBuffer.allocate(MetadataFile.PREAMBLE);
+      preamble.putInt(MetadataFile.MAGIC).putInt(MetadataFile.VERSION).flip();
+
+      while (preamble.hasRemaining()) {
+        channel.write(preamble);
+      }
+
+      LOGGER.info("writing message metadata to {}", file);
+    }
+
+    return channel;
+  }
+}
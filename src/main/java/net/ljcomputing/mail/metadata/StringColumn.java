@@ -0,0 +1,123 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.metadata;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A dictionary-encoded string column. Each distinct value is stored once per row group and each
+ * row as a varint index into the dictionary, so a sender domain or folder repeated across
+ * thousands of messages costs a byte or two per row.
+ * 
+ * @author James G. Willmore
+ *
+ */
+final class StringColumn extends MetadataColumn {
+
+  /** The dictionary index of each distinct value. */
+  private final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+
+  /** The encoded dictionary entries. */
+  private final ByteArrayOutputStream entries = new ByteArrayOutputStream(1024);
+
+  /** The encoded row indices. */
+  private final ByteArrayOutputStream indices = new ByteArrayOutputStream(1024);
+
+  /**
+   * @see net.ljcomputing.mail.metadata.MetadataColumn#type()
+   */
+  @Override
+  byte type() {
+    return MetadataFile.STRING;
+  }
+
+  /**
+   * Append a value.
+   *
+   * @param value the value, or null
+   */
+  void append(final String value) {
+    if (value == null) {
+      MetadataFile.writeVarlong(indices, 0L);
+    } else {
+      Integer index = dictionary.get(value);
+
+      if (index == null) {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        index = dictionary.size();
+        dictionary.put(value, index);
+        MetadataFile.writeVarlong(entries, bytes.length);
+        entries.write(bytes, 0, bytes.length);
+      }
+
+      MetadataFile.writeVarlong(indices, index + 1L);
+    }
+
+    appended();
+  }
+
+  /**
+   * @see net.ljcomputing.mail.metadata.MetadataColumn#appendNull()
+   */
+  @Override
+  void appendNull() {
+    append(null);
+  }
+
+  /**
+   * @see net.ljcomputing.mail.metadata.MetadataColumn#length()
+   */
+  @Override
+  int length() {
+    return varlongLength(dictionary.size()) + entries.size() + indices.size();
+  }
+
+  /**
+   * @see net.ljcomputing.mail.metadata.MetadataColumn#writeTo(java.io.OutputStream)
+   */
+  @Override
+  void writeTo(final OutputStream out) throws IOException {
+    final ByteArrayOutputStream count = new ByteArrayOutputStream(5);
+    MetadataFile.writeVarlong(count, dictionary.size());
+    count.writeTo(out);
+    entries.writeTo(out);
+    indices.writeTo(out);
+  }
+
+  /**
+   * The encoded length of an unsigned varint.
+   *
+   * @param value the value
+   * @return the length in bytes
+   */
+  private static int varlongLength(final long value) {
+    int length = 1;
+    long remaining = value >>> 7;
+
+    while (remaining != 0) {
+      length++;
+      remaining >>>= 7;
+    }
+
+    return length;
+  }
+}
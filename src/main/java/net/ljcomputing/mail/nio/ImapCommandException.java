@@ -0,0 +1,56 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.nio;
+
+import javax.mail.MessagingException;
+
+/**
+ * Exception for an IMAP command the server answered NO or BAD, or that was lost with its
+ * connection. The server's response text, including any response code such as
+ * <code>[THROTTLED]</code>, is the message.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class ImapCommandException extends MessagingException {
+
+  /** The Constant serialVersionUID. */
+  private static final long serialVersionUID = 2409348675307766201L;
+
+  /** The response status: NO, BAD, BYE, or null when the connection was lost. */
+  private final String status;
+
+  /**
+   * Instantiates a new imap command exception.
+   *
+   * @param status the status
+   * @param text the response text
+   */
+  public ImapCommandException(final String status, final String text) {
+    super(status == null ? text : status + " " + text);
+    this.status = status;
+  }
+
+  /**
+   * Gets the response status.
+   *
+   * @return the status, or null when the connection was lost
+   */
+  public String getStatus() {
+    return status;
+  }
+}
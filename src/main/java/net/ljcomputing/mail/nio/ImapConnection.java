@@ -0,0 +1,613 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A non-blocking IMAP connection served by an event loop. Commands may be issued from any thread
+ * and are pipelined: each is tagged and written straight away, without waiting for the ones
+ * before it to complete, and its future completes when the server's tagged response arrives.
+ * Untagged responses are collected by the oldest outstanding command, or handed to the idle
+ * listener while the connection is idling.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class ImapConnection {
+
+  /** The Constant logger. */
+  private final static Logger LOGGER = LoggerFactory.getLogger(ImapConnection.class);
+
+  /** The event loop. */
+  private final ImapEventLoop loop;
+
+  /** The host. */
+  private final String host;
+
+  /** The channel. */
+  private final SocketChannel channel;
+
+  /** The selection key, once registered. */
+  private SelectionKey key;
+
+  /** The response parser. */
+  private final ImapResponseParser parser = new ImapResponseParser();
+
+  /** The lines completed by the current read. */
+  private final List<ImapLine> lines = new ArrayList<ImapLine>();
+
+  /** The bytes waiting to be written. */
+  private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<ByteBuffer>();
+
+  /** The commands waiting for their tagged response, oldest first. */
+  private final Deque<Command> pending = new ConcurrentLinkedDeque<Command>();
+
+  /** Whether a flush has been handed to the event loop. */
+  private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+  /** Completed once the server greeting has been received. */
+  private final CompletableFuture<ImapConnection> greeting =
+      new CompletableFuture<ImapConnection>();
+
+  /** The flush task. */
+  private final Runnable flushTask = new Runnable() {
+    @Override
+    public void run() {
+      flushScheduled.set(false);
+
+      try {
+        flush();
+      } catch (IOException exception) {
+        closed(exception);
+      }
+    }
+  };
+
+  /** The IDLE command in progress, or null. */
+  private volatile Command idle;
+
+  /** The idle listener, or null. */
+  private volatile IdleListener idleListener;
+
+  /** The last tag number issued. */
+  private int sequence;
+
+  /** Whether the connection has been closed. */
+  private volatile boolean closed;
+
+  /**
+   * Open a connection; it is registered with the event loop and completes its greeting future
+   * once the server has greeted it.
+   *
+   * @param loop the loop
+   * @param host the host
+   * @param port the port
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  ImapConnection(final ImapEventLoop loop, final String host, final int port)
+      throws IOException {
+    this.loop = loop;
+    this.host = host;
+    this.channel = SocketChannel.open();
+    channel.configureBlocking(false);
+
+    final boolean connected = channel.connect(new InetSocketAddress(host, port));
+
+    loop.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          key = channel.register(loop.selector(),
+              connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, ImapConnection.this);
+        } catch (IOException exception) {
+          closed(exception);
+        }
+      }
+    });
+  }
+
+  /**
+   * Gets the future completed once the server has greeted the connection.
+   *
+   * @return the greeting future
+   */
+  CompletableFuture<ImapConnection> greeting() {
+    return greeting;
+  }
+
+  /**
+   * Gets the host.
+   *
+   * @return the host
+   */
+  public String getHost() {
+    return host;
+  }
+
+  /**
+   * Checks if the connection is open.
+   *
+   * @return true, if open
+   */
+  public boolean isOpen() {
+    return !closed;
+  }
+
+  /**
+   * LOGIN.
+   *
+   * @param username the username
+   * @param password the password
+   * @return the response
+   */
+  public CompletableFuture<ImapResponse> login(final String username, final String password) {
+    return send("LOGIN " + quote(username) + " " + quote(password));
+  }
+
+  /**
+   * CAPABILITY.
+   *
+   * @return the response, holding the CAPABILITY list
+   */
+  public CompletableFuture<ImapResponse> capability() {
+    return send("CAPABILITY");
+  }
+
+  /**
+   * SELECT a mailbox.
+   *
+   * @param mailbox the mailbox
+   * @return the response, holding EXISTS and the UIDVALIDITY code
+   */
+  public CompletableFuture<ImapResponse> select(final String mailbox) {
+    return send("SELECT " + quote(mailbox));
+  }
+
+  /**
+   * SELECT a mailbox with select parameters, such as "(CONDSTORE)".
+   *
+   * @param mailbox the mailbox
+   * @param parameters the select parameters
+   * @return the response, holding EXISTS and the UIDVALIDITY and HIGHESTMODSEQ codes
+   */
+  public CompletableFuture<ImapResponse> select(final String mailbox, final String parameters) {
+    return send("SELECT " + quote(mailbox) + " " + parameters);
+  }
+
+  /**
+   * UID SEARCH.
+   *
+   * @param criteria the search criteria
+   * @return the response, holding the SEARCH results
+   */
+  public CompletableFuture<ImapResponse> uidSearch(final String criteria) {
+    return send("UID SEARCH " + criteria);
+  }
+
+  /**
+   * UID FETCH.
+   *
+   * @param uids the UID set
+   * @param items the fetch items
+   * @return the response, holding one FETCH per message
+   */
+  public CompletableFuture<ImapResponse> uidFetch(final String uids, final String items) {
+    return send("UID FETCH " + uids + " " + items);
+  }
+
+  /**
+   * UID STORE.
+   *
+   * @param uids the UID set
+   * @param action the store action, such as "+FLAGS.SILENT (\Seen)"
+   * @return the response
+   */
+  public CompletableFuture<ImapResponse> uidStore(final String uids, final String action) {
+    return send("UID STORE " + uids + " " + action);
+  }
+
+  /**
+   * Start idling, once the commands issued before have completed. Until {@link #done()},
+   * untagged responses go to the listener on the event loop thread.
+   *
+   * @param listener the listener
+   * @return completed once the server has accepted the IDLE
+   */
+  public CompletableFuture<Void> idle(final IdleListener listener) {
+    idleListener = listener;
+    final Command command = enqueue("IDLE", true);
+
+    if (command == null) {
+      final CompletableFuture<Void> failed = new CompletableFuture<Void>();
+      failed.completeExceptionally(closedException());
+      return failed;
+    }
+
+    return command.continuation;
+  }
+
+  /**
+   * End idling.
+   *
+   * @return the IDLE command's completion
+   */
+  public CompletableFuture<ImapResponse> done() {
+    final Command command = idle;
+
+    if (command == null) {
+      return CompletableFuture.completedFuture(new ImapResponse("OK", "not idling", null));
+    }
+
+    write("DONE\r\n");
+
+    return command.future;
+  }
+
+  /**
+   * LOGOUT.
+   *
+   * @return the response
+   */
+  public CompletableFuture<ImapResponse> logout() {
+    return send("LOGOUT");
+  }
+
+  /**
+   * Close the connection, failing any command still outstanding.
+   */
+  public void close() {
+    loop.execute(new Runnable() {
+      @Override
+      public void run() {
+        closed(null);
+      }
+    });
+  }
+
+  /**
+   * Tag, queue and write a command.
+   *
+   * @param command the command
+   * @return the response
+   */
+  private CompletableFuture<ImapResponse> send(final String command) {
+    final Command queued = enqueue(command, false);
+
+    if (queued == null) {
+      final CompletableFuture<ImapResponse> failed = new CompletableFuture<ImapResponse>();
+      failed.completeExceptionally(closedException());
+      return failed;
+    }
+
+    return queued.future;
+  }
+
+  /**
+   * Tag, queue and write a command.
+   *
+   * @param command the command
+   * @param idling whether the command is an IDLE
+   * @return the queued command, or null when the connection is closed
+   */
+  private Command enqueue(final String command, final boolean idling) {
+    final Command queued;
+
+    synchronized (this) {
+      if (closed) {
+        return null;
+      }
+
+      queued = new Command("A" + (++sequence));
+
+      if (idling) {
+        idle = queued;
+      }
+
+      pending.addLast(queued);
+      outbound.add(ByteBuffer.wrap(
+          (queued.tag + " " + command + "\r\n").getBytes(StandardCharsets.UTF_8)));
+    }
+
+    scheduleFlush();
+
+    return queued;
+  }
+
+  /**
+   * The exception for a command issued on a closed connection.
+   *
+   * @return the exception
+   */
+  private ImapCommandException closedException() {
+    return new ImapCommandException(null, "connection to " + host + " is closed");
+  }
+
+  /**
+   * Queue and write untagged bytes, such as the DONE ending an IDLE.
+   *
+   * @param text the text
+   */
+  private void write(final String text) {
+    outbound.add(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+    scheduleFlush();
+  }
+
+  /**
+   * Have the event loop flush the queued bytes, unless it already has been asked to.
+   */
+  private void scheduleFlush() {
+    if (flushScheduled.compareAndSet(false, true)) {
+      loop.execute(flushTask);
+    }
+  }
+
+  /**
+   * Complete the non-blocking connect; on the event loop thread.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  void finishConnect() throws IOException {
+    if (channel.finishConnect()) {
+      key.interestOps(SelectionKey.OP_READ);
+      flush();
+    }
+  }
+
+  /**
+   * Write the queued bytes until the socket would block, then wait for it to become writable;
+   * on the event loop thread.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  void flush() throws IOException {
+    if (key == null || closed || !channel.isConnected()) {
+      return;
+    }
+
+    ByteBuffer buffer;
+
+    while ((buffer = outbound.peek()) != null) {
+      channel.write(buffer);
+
+      if (buffer.hasRemaining()) {
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        return;
+      }
+
+      outbound.poll();
+    }
+
+    key.interestOps(SelectionKey.OP_READ);
+  }
+
+  /**
+   * Read what has arrived and dispatch every completed line; on the event loop thread.
+   *
+   * @param buffer the loop's read buffer
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  void read(final ByteBuffer buffer) throws IOException {
+    buffer.clear();
+
+    if (channel.read(buffer) < 0) {
+      closed(null);
+      return;
+    }
+
+    buffer.flip();
+    parser.feed(buffer, lines);
+
+    for (final ImapLine line : lines) {
+      dispatch(line);
+    }
+
+    lines.clear();
+  }
+
+  /**
+   * Dispatch a line: the greeting, an untagged response, a continuation or a completion.
+   *
+   * @param line the line
+   */
+  private void dispatch(final ImapLine line) {
+    if (!greeting.isDone()) {
+      if (line.getText().startsWith("* OK") || line.getText().startsWith("* PREAUTH")) {
+        greeting.complete(this);
+      } else {
+        greeting.completeExceptionally(new ImapCommandException("BYE", line.getText()));
+        closed(null);
+      }
+    } else if (line.isUntagged()) {
+      untagged(line);
+    } else if (line.isContinuation()) {
+      final Command command = idle;
+
+      if (command != null) {
+        command.continuation.complete(null);
+      }
+    } else {
+      completed(line);
+    }
+  }
+
+  /**
+   * Hand an untagged response to the idle listener or the oldest outstanding command.
+   *
+   * @param line the line
+   */
+  private void untagged(final ImapLine line) {
+    final IdleListener listener = idleListener;
+
+    if (idle != null && listener != null) {
+      try {
+        listener.untagged(line);
+      } catch (RuntimeException exception) {
+        LOGGER.error("idle listener failed: ", exception);
+      }
+
+      return;
+    }
+
+    final Command command = pending.peekFirst();
+
+    if (command != null) {
+      command.untagged.add(line);
+    } else {
+      LOGGER.debug("unsolicited response from {}: {}", host, line);
+    }
+  }
+
+  /**
+   * Complete the command a tagged response answers.
+   *
+   * @param line the line
+   */
+  private void completed(final ImapLine line) {
+    final String tag = line.getTag();
+    final Iterator<Command> commands = pending.iterator();
+
+    while (commands.hasNext()) {
+      final Command command = commands.next();
+
+      if (!command.tag.equals(tag)) {
+        continue;
+      }
+
+      commands.remove();
+
+      if (command == idle) {
+        idle = null;
+        idleListener = null;
+      }
+
+      final String rest = line.getText().substring(Math.min(tag.length() + 1,
+          line.getText().length()));
+      final int space = rest.indexOf(' ');
+      final String status = (space < 0 ? rest : rest.substring(0, space)).toUpperCase();
+      final String text = space < 0 ? "" : rest.substring(space + 1);
+
+      if ("OK".equals(status)) {
+        command.future.complete(new ImapResponse(status, text, command.untagged));
+      } else {
+        command.continuation.completeExceptionally(new ImapCommandException(status, text));
+        command.future.completeExceptionally(new ImapCommandException(status, text));
+      }
+
+      return;
+    }
+
+    LOGGER.warn("response from {} for unknown tag: {}", host, line);
+  }
+
+  /**
+   * Close the channel and fail everything outstanding; on the event loop thread.
+   *
+   * @param cause the cause, or null
+   */
+  void closed(final IOException cause) {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+
+      closed = true;
+    }
+
+    if (cause != null) {
+      LOGGER.warn("IMAP connection to {} failed: {}", host, cause.getMessage());
+    }
+
+    if (key != null) {
+      key.cancel();
+    }
+
+    try {
+      channel.close();
+    } catch (IOException exception) {
+      LOGGER.debug("failed to close channel: {}", exception.getMessage());
+    }
+
+    final String reason = "connection to " + host + " closed"
+        + (cause == null ? "" : ": " + cause.getMessage());
+    greeting.completeExceptionally(new ImapCommandException(null, reason));
+    Command command;
+
+    while ((command = pending.pollFirst()) != null) {
+      command.continuation.completeExceptionally(new ImapCommandException(null, reason));
+      command.future.completeExceptionally(new ImapCommandException(null, reason));
+    }
+  }
+
+  /**
+   * Quote a string argument.
+   *
+   * @param value the value
+   * @return the quoted value
+   */
+  static String quote(final String value) {
+    if (value.indexOf('\r') >= 0 || value.indexOf('\n') >= 0) {
+      throw new IllegalArgumentException("IMAP quoted strings cannot hold CR or LF");
+    }
+
+    return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+  }
+
+  /**
+   * A command waiting for its tagged response.
+   */
+  private static class Command {
+
+    /** The tag. */
+    private final String tag;
+
+    /** The untagged responses received while it ran. */
+    private final List<ImapLine> untagged = new ArrayList<ImapLine>();
+
+    /** The completion. */
+    private final CompletableFuture<ImapResponse> future = new CompletableFuture<ImapResponse>();
+
+    /** Completed when the server asks for a continuation. */
+    private final CompletableFuture<Void> continuation = new CompletableFuture<Void>();
+
+    /**
+     * Instantiates a new command.
+     *
+     * @param tag the tag
+     */
+    private Command(final String tag) {
+      this.tag = tag;
+    }
+  }
+}
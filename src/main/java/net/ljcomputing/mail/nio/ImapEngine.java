@@ -0,0 +1,99 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.nio;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+
+/**
+ * Non-blocking IMAP engine: a handful of selector threads serving any number of connections.
+ * Connections are spread over the event loops round robin and are never bound to a thread of
+ * their own, so thousands of mailboxes can be watched or processed at once.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class ImapEngine {
+
+  /** The Constant logger. */
+  private final static Logger LOGGER = LoggerFactory.getLogger(ImapEngine.class);
+
+  /** The event loop thread count property. */
+  public static final String THREADS = "email.imap.nio.threads";
+
+  /** The event loops. */
+  private final ImapEventLoop[] loops;
+
+  /** The next loop to hand a connection to. */
+  private final AtomicInteger next = new AtomicInteger();
+
+  /**
+   * Instantiates a new imap engine.
+   *
+   * @param threads the event loop thread count
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public ImapEngine(final int threads) throws EmailRuleProcessorException {
+    this.loops = new ImapEventLoop[Math.max(1, threads)];
+
+    try {
+      for (int l = 0; l < loops.length; l++) {
+        loops[l] = new ImapEventLoop("imap-nio-" + (l + 1));
+      }
+    } catch (IOException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+
+    LOGGER.info("IMAP engine started with {} event loops", loops.length);
+  }
+
+  /**
+   * Open a connection.
+   *
+   * @param host the host
+   * @param port the port
+   * @return completed with the connection once the server has greeted it
+   */
+  public CompletableFuture<ImapConnection> connect(final String host, final int port) {
+    final ImapEventLoop loop = loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+
+    try {
+      return new ImapConnection(loop, host, port).greeting();
+    } catch (IOException exception) {
+      final CompletableFuture<ImapConnection> failed = new CompletableFuture<ImapConnection>();
+      failed.completeExceptionally(
+          new ImapCommandException(null, "cannot connect to " + host + ": " + exception));
+      return failed;
+    }
+  }
+
+  /**
+   * Stop the event loops, closing every connection.
+   */
+  public void close() {
+    for (final ImapEventLoop loop : loops) {
+      loop.shutdown();
+    }
+  }
+}
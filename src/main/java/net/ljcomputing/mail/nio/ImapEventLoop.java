@@ -0,0 +1,196 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One selector thread serving any number of IMAP connections. Work for a connection from other
+ * threads (registering it, flushing queued commands) is handed over as tasks, so every channel is
+ * only ever touched by its loop's thread.
+ * 
+ * @author James G. Willmore
+ *
+ */
+class ImapEventLoop implements Runnable {
+
+  /** The Constant logger. */
+  private final static Logger LOGGER = LoggerFactory.getLogger(ImapEventLoop.class);
+
+  /** The selector. */
+  private final Selector selector;
+
+  /** The tasks waiting to run on the loop thread. */
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+  /** The read buffer, shared by the loop's connections. */
+  private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+
+  /** The loop thread. */
+  private final Thread thread;
+
+  /** Whether the loop is running. */
+  private volatile boolean running = true;
+
+  /**
+   * Instantiates a new imap event loop and starts its thread.
+   *
+   * @param name the thread name
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  ImapEventLoop(final String name) throws IOException {
+    this.selector = Selector.open();
+    this.thread = new Thread(this, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Gets the selector.
+   *
+   * @return the selector
+   */
+  Selector selector() {
+    return selector;
+  }
+
+  /**
+   * Checks if the caller is on the loop thread.
+   *
+   * @return true, if on the loop thread
+   */
+  boolean inLoop() {
+    return Thread.currentThread() == thread;
+  }
+
+  /**
+   * Run a task on the loop thread.
+   *
+   * @param task the task
+   */
+  void execute(final Runnable task) {
+    tasks.add(task);
+
+    if (!inLoop()) {
+      selector.wakeup();
+    }
+  }
+
+  /**
+   * Stop the loop, closing every connection it serves.
+   */
+  void shutdown() {
+    running = false;
+    selector.wakeup();
+
+    try {
+      thread.join(5000L);
+    } catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * @see java.lang.Runnable#run()
+   */
+  @Override
+  public void run() {
+    try {
+      while (running) {
+        selector.select();
+        runTasks();
+
+        final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+        while (keys.hasNext()) {
+          final SelectionKey key = keys.next();
+          keys.remove();
+          handle(key);
+        }
+      }
+    } catch (IOException | ClosedSelectorException exception) {
+      LOGGER.error("FATAL: ", exception);
+    } finally {
+      for (final SelectionKey key : selector.keys()) {
+        ((ImapConnection) key.attachment()).closed(null);
+      }
+
+      try {
+        selector.close();
+      } catch (IOException exception) {
+        LOGGER.debug("failed to close selector: {}", exception.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Run the queued tasks.
+   */
+  private void runTasks() {
+    Runnable task;
+
+    while ((task = tasks.poll()) != null) {
+      try {
+        task.run();
+      } catch (RuntimeException exception) {
+        LOGGER.error("IMAP event loop task failed: ", exception);
+      }
+    }
+  }
+
+  /**
+   * Handle a ready key. A failure closes only that key's connection, never the loop.
+   *
+   * @param key the key
+   */
+  private void handle(final SelectionKey key) {
+    final ImapConnection connection = (ImapConnection) key.attachment();
+
+    try {
+      if (!key.isValid()) {
+        return;
+      }
+
+      if (key.isConnectable()) {
+        connection.finishConnect();
+      }
+
+      if (key.isValid() && key.isReadable()) {
+        connection.read(readBuffer);
+      }
+
+      if (key.isValid() && key.isWritable()) {
+        connection.flush();
+      }
+    } catch (IOException exception) {
+      connection.closed(exception);
+    } catch (RuntimeException exception) {
+      LOGGER.error("IMAP connection failed: ", exception);
+      connection.closed(new IOException(exception));
+    }
+  }
+}
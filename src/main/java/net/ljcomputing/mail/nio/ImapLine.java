@@ -0,0 +1,102 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.nio;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One complete IMAP response line as received from the server, with any literals it carried.
+ * Literals stay in the text as their <code>{n}</code> markers and are held, in order, as bytes.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class ImapLine {
+
+  /** The text of the line, without the trailing CRLF. */
+  private final String text;
+
+  /** The literals, in order. */
+  private final List<byte[]> literals;
+
+  /**
+   * Instantiates a new imap line.
+   *
+   * @param text the text
+   * @param literals the literals
+   */
+  ImapLine(final String text, final List<byte[]> literals) {
+    this.text = text;
+    this.literals = literals == null ? Collections.<byte[]>emptyList() : literals;
+  }
+
+  /**
+   * Gets the text of the line.
+   *
+   * @return the text
+   */
+  public String getText() {
+    return text;
+  }
+
+  /**
+   * Gets the literals.
+   *
+   * @return the literals
+   */
+  public List<byte[]> getLiterals() {
+    return literals;
+  }
+
+  /**
+   * Checks if the line is an untagged response.
+   *
+   * @return true, if untagged
+   */
+  public boolean isUntagged() {
+    return text.startsWith("* ");
+  }
+
+  /**
+   * Checks if the line is a continuation request.
+   *
+   * @return true, if a continuation
+   */
+  public boolean isContinuation() {
+    return text.startsWith("+");
+  }
+
+  /**
+   * Gets the tag, or "*" or "+".
+   *
+   * @return the tag
+   */
+  public String getTag() {
+    final int space = text.indexOf(' ');
+
+    return space < 0 ? text : text.substring(0, space);
+  }
+
+  /**
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return text;
+  }
+}
@@ -0,0 +1,201 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.nio;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The tagged completion of an IMAP command and the untagged responses received while it ran.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class ImapResponse {
+
+  /** The status: OK, NO or BAD. */
+  private final String status;
+
+  /** The text after the status. */
+  private final String text;
+
+  /** The untagged responses. */
+  private final List<ImapLine> untagged;
+
+  /**
+   * Instantiates a new imap response.
+   *
+   * @param status the status
+   * @param text the text
+   * @param untagged the untagged responses
+   */
+  ImapResponse(final String status, final String text, final List<ImapLine> untagged) {
+    this.status = status;
+    this.text = text;
+    this.untagged = untagged == null ? Collections.<ImapLine>emptyList() : untagged;
+  }
+
+  /**
+   * Gets the status.
+   *
+   * @return the status
+   */
+  public String getStatus() {
+    return status;
+  }
+
+  /**
+   * Gets the text after the status.
+   *
+   * @return the text
+   */
+  public String getText() {
+    return text;
+  }
+
+  /**
+   * Gets the untagged responses.
+   *
+   * @return the untagged responses
+   */
+  public List<ImapLine> getUntagged() {
+    return untagged;
+  }
+
+  /**
+   * The number of the last untagged "* n KEYWORD" response, such as EXISTS.
+   *
+   * @param keyword the keyword
+   * @return the number, or -1
+   */
+  public long number(final String keyword) {
+    long number = -1L;
+
+    for (final ImapLine line : untagged) {
+      final String[] tokens = line.getText().split(" ");
+
+      if (tokens.length == 3 && tokens[2].equalsIgnoreCase(keyword)) {
+        number = Long.parseLong(tokens[1]);
+      }
+    }
+
+    return number;
+  }
+
+  /**
+   * The numeric value of a response code, such as [UIDVALIDITY n], from the untagged responses
+   * or the completion.
+   *
+   * @param code the response code
+   * @return the value, or -1
+   */
+  public long code(final String code) {
+    final String marker = "[" + code + " ";
+    final List<String> texts = new ArrayList<String>();
+
+    for (final ImapLine line : untagged) {
+      texts.add(line.getText());
+    }
+
+    texts.add(text);
+
+    for (final String candidate : texts) {
+      final int start = candidate.indexOf(marker);
+
+      if (start >= 0) {
+        final int end = candidate.indexOf(']', start);
+        return Long.parseLong(candidate.substring(start + marker.length(), end).trim());
+      }
+    }
+
+    return -1L;
+  }
+
+  /**
+   * Checks if an untagged CAPABILITY response, or a CAPABILITY response code, lists the
+   * capability.
+   *
+   * @param capability the capability
+   * @return true, if listed
+   */
+  public boolean hasCapability(final String capability) {
+    for (final ImapLine line : untagged) {
+      final String lineText = line.getText();
+      final int start = lineText.toUpperCase().indexOf("CAPABILITY ");
+
+      if (start < 0) {
+        continue;
+      }
+
+      for (final String listed : lineText.substring(start).replace("]", " ").split(" ")) {
+        if (listed.equalsIgnoreCase(capability)) {
+          return true;
+        }
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * The numbers of the untagged SEARCH responses.
+   *
+   * @return the numbers
+   */
+  public long[] searchResults() {
+    long[] results = new long[64];
+    int count = 0;
+
+    for (final ImapLine line : untagged) {
+      final String lineText = line.getText();
+
+      if (!lineText.regionMatches(true, 0, "* SEARCH", 0, 8)) {
+        continue;
+      }
+
+      int at = 8;
+
+      while (at < lineText.length()) {
+        while (at < lineText.length() && lineText.charAt(at) == ' ') {
+          at++;
+        }
+
+        long value = 0;
+        boolean digits = false;
+
+        while (at < lineText.length() && Character.isDigit(lineText.charAt(at))) {
+          value = value * 10 + lineText.charAt(at++) - '0';
+          digits = true;
+        }
+
+        if (!digits) {
+          break;
+        }
+
+        if (count == results.length) {
+          results = Arrays.copyOf(results, count * 2);
+        }
+
+        results[count++] = value;
+      }
+    }
+
+    return Arrays.copyOf(results, count);
+  }
+}
@@ -0,0 +1,183 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Incremental IMAP response parser. Bytes are fed as they arrive, in chunks of any size; a line
+ * is handed out only once it and every literal it announced have been received, so a response
+ * split across reads (or a read holding many pipelined responses) needs no special handling.
+ * Literal bytes are copied straight into a buffer of the announced size.
+ * 
+ * @author James G. Willmore
+ *
+ */
+class ImapResponseParser {
+
+  /** The longest line accepted, excluding literals. */
+  private static final int MAX_LINE = 16 * 1024 * 1024;
+
+  /** The largest literal accepted. */
+  static final int MAX_LITERAL = 256 * 1024 * 1024;
+
+  /** The bytes of the line segment being received. */
+  private byte[] line = new byte[256];
+
+  /** The length of the line segment being received. */
+  private int lineLength;
+
+  /** The text of the line so far, across literals. */
+  private final StringBuilder text = new StringBuilder();
+
+  /** The literals of the line so far, or null. */
+  private List<byte[]> literals;
+
+  /** The literal being received, or null. */
+  private byte[] literal;
+
+  /** The bytes of the literal received so far. */
+  private int literalFilled;
+
+  /**
+   * Parse the readable bytes of the buffer, adding each completed line to the list.
+   *
+   * @param buffer the buffer
+   * @param lines the completed lines
+   * @throws IOException when a line or literal exceeds the largest accepted
+   */
+  void feed(final ByteBuffer buffer, final List<ImapLine> lines) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (literal != null) {
+        final int count = Math.min(buffer.remaining(), literal.length - literalFilled);
+        buffer.get(literal, literalFilled, count);
+        literalFilled += count;
+
+        if (literalFilled == literal.length) {
+          literals.add(literal);
+          literal = null;
+        }
+
+        continue;
+      }
+
+      final byte next = buffer.get();
+
+      if (lineLength == line.length) {
+        if (line.length >= MAX_LINE) {
+          throw new IOException("IMAP response line exceeds " + MAX_LINE + " bytes");
+        }
+
+        line = Arrays.copyOf(line, line.length * 2);
+      }
+
+      line[lineLength++] = next;
+
+      if (next == '\n' && lineLength >= 2 && line[lineLength - 2] == '\r') {
+        endSegment(lines);
+      }
+    }
+  }
+
+  /**
+   * End the line segment just received: start a literal when it announces one, otherwise
+   * complete the line.
+   *
+   * @param lines the completed lines
+   * @throws IOException when the literal exceeds the largest accepted
+   */
+  private void endSegment(final List<ImapLine> lines) throws IOException {
+    final String segment = new String(line, 0, lineLength - 2, StandardCharsets.UTF_8);
+    lineLength = 0;
+    text.append(segment);
+
+    final int size = literalSize(segment);
+
+    if (size >= 0) {
+      if (literals == null) {
+        literals = new ArrayList<byte[]>(1);
+      }
+
+      if (size == 0) {
+        literals.add(new byte[0]);
+      } else {
+        literal = new byte[size];
+        literalFilled = 0;
+      }
+
+      return;
+    }
+
+    lines.add(new ImapLine(text.toString(), literals));
+    text.setLength(0);
+    literals = null;
+
+    if (line.length > 64 * 1024) {
+      line = new byte[256];
+    }
+  }
+
+  /**
+   * The size of the literal a segment ends by announcing, as "{n}" or "{n+}".
+   *
+   * @param segment the segment
+   * @return the size, or -1 when the segment announces no literal
+   * @throws IOException when the literal exceeds the largest accepted
+   */
+  static int literalSize(final String segment) throws IOException {
+    final int end = segment.length() - 1;
+
+    if (end < 2 || segment.charAt(end) != '}') {
+      return -1;
+    }
+
+    final int open = segment.lastIndexOf('{', end);
+
+    if (open < 0) {
+      return -1;
+    }
+
+    final int digitsEnd = segment.charAt(end - 1) == '+' ? end - 1 : end;
+
+    if (digitsEnd == open + 1) {
+      return -1;
+    }
+
+    int size = 0;
+
+    for (int c = open + 1; c < digitsEnd; c++) {
+      final char digit = segment.charAt(c);
+
+      if (digit < '0' || digit > '9') {
+        return -1;
+      }
+
+      if (size > (MAX_LITERAL - (digit - '0')) / 10) {
+        throw new IOException("IMAP literal exceeds " + MAX_LITERAL + " bytes");
+      }
+
+      size = size * 10 + digit - '0';
+    }
+
+    return size;
+  }
+}
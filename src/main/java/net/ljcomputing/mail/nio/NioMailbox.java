@@ -0,0 +1,404 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.nio;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.mail.Flags;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.ljcomputing.mail.service.MailProperties;
+import net.ljcomputing.mail.service.MailProps;
+
+/**
+ * A mailbox opened on the non-blocking IMAP engine, in place of a JavaMail Store and Folder.
+ * Messages are fetched in pipelined UID FETCH commands, a chunk of messages each, all written
+ * before the first response is awaited.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class NioMailbox {
+
+  /** The Constant logger. */
+  private final static Logger LOGGER = LoggerFactory.getLogger(NioMailbox.class);
+
+  /** The IMAP port property. */
+  public static final String PORT = "email.imap.nio.port";
+
+  /** The command timeout (ms) property. */
+  public static final String TIMEOUT = "email.imap.nio.timeout";
+
+  /** The messages per pipelined UID FETCH property. */
+  public static final String FETCH_CHUNK = "email.imap.nio.fetch.chunk";
+
+  /** The UID of a FETCH response. */
+  private static final Pattern UID = Pattern.compile("[( ]UID (\\d+)");
+
+  /** The flags of a FETCH response. */
+  private static final Pattern FLAGS = Pattern.compile("FLAGS \\(([^)]*)\\)");
+
+  /** The size of a FETCH response. */
+  private static final Pattern SIZE = Pattern.compile("RFC822\\.SIZE (\\d+)");
+
+  /** The engine. */
+  private final ImapEngine engine;
+
+  /** The session the messages are bound to. */
+  private final Session session;
+
+  /** The host. */
+  private final String host;
+
+  /** The port. */
+  private final int port;
+
+  /** The username. */
+  private final String username;
+
+  /** The password. */
+  private final String password;
+
+  /** The command timeout in milliseconds. */
+  private final long timeout;
+
+  /** The messages per pipelined UID FETCH. */
+  private final int chunk;
+
+  /** The body fetch item: the whole message, or only its header. */
+  private final String bodyItem;
+
+  /** The connection, once open. */
+  private ImapConnection connection;
+
+  /** The selected mailbox name. */
+  private String name;
+
+  /** The UIDVALIDITY of the selected mailbox. */
+  private long uidValidity = -1L;
+
+  /** The HIGHESTMODSEQ of the selected mailbox, or -1 without CONDSTORE. */
+  private long highestModSeq = -1L;
+
+  /**
+   * Instantiates a new nio mailbox.
+   *
+   * @param engine the engine
+   * @param session the session
+   * @param properties the properties
+   * @param wholeMessage whether to fetch whole messages rather than their headers
+   */
+  public NioMailbox(final ImapEngine engine, final Session session,
+      final MailProperties properties, final boolean wholeMessage) {
+    this.engine = engine;
+    this.session = session;
+    this.host = properties.valueOf(MailProps.HOST);
+    this.port = properties.intValueOf(PORT, 143);
+    this.username = properties.valueOf(MailProps.USERNAME);
+    this.password = properties.valueOf(MailProps.PASSWORD, "");
+    this.timeout = properties.longValueOf(TIMEOUT, 60000L);
+    this.chunk = Math.max(1, properties.intValueOf(FETCH_CHUNK, 50));
+    this.bodyItem = wholeMessage ? "BODY.PEEK[]" : "BODY.PEEK[HEADER]";
+  }
+
+  /**
+   * Connect, log in and select the mailbox.
+   *
+   * @param mailbox the mailbox name
+   * @throws MessagingException the messaging exception
+   */
+  public void open(final String mailbox) throws MessagingException {
+    connection = await(engine.connect(host, port));
+    await(connection.login(username, password));
+
+    final boolean condstore = await(connection.capability()).hasCapability("CONDSTORE");
+    final ImapResponse selected = await(condstore ? connection.select(mailbox, "(CONDSTORE)")
+        : connection.select(mailbox));
+    name = mailbox;
+    uidValidity = selected.code("UIDVALIDITY");
+    highestModSeq = condstore ? selected.code("HIGHESTMODSEQ") : -1L;
+    LOGGER.info("selected {} on {}: {} messages, UIDVALIDITY {}, HIGHESTMODSEQ {}", mailbox,
+        host, selected.number("EXISTS"), uidValidity, highestModSeq);
+  }
+
+  /**
+   * Gets the HIGHESTMODSEQ of the selected mailbox as of when it was selected.
+   *
+   * @return the highest mod seq, or -1 when the server does not support CONDSTORE
+   */
+  public long getHighestModSeq() {
+    return highestModSeq;
+  }
+
+  /**
+   * Gets the selected mailbox name.
+   *
+   * @return the full name
+   */
+  public String getFullName() {
+    return name;
+  }
+
+  /**
+   * Gets the UIDVALIDITY of the selected mailbox.
+   *
+   * @return the uid validity
+   */
+  public long getUidValidity() {
+    return uidValidity;
+  }
+
+  /**
+   * UID SEARCH the selected mailbox.
+   *
+   * @param criteria the criteria
+   * @return the UIDs, ascending
+   * @throws MessagingException the messaging exception
+   */
+  public long[] search(final String criteria) throws MessagingException {
+    final long[] uids = await(connection.uidSearch(criteria)).searchResults();
+    Arrays.sort(uids);
+
+    return uids;
+  }
+
+  /**
+   * Fetch messages, pipelining one UID FETCH per chunk.
+   *
+   * @param uids the UIDs
+   * @param from the first index into the UIDs, inclusive
+   * @param to the last index into the UIDs, exclusive
+   * @return the messages
+   * @throws MessagingException the messaging exception
+   */
+  public Message[] fetch(final long[] uids, final int from, final int to)
+      throws MessagingException {
+    final List<CompletableFuture<ImapResponse>> fetches =
+        new ArrayList<CompletableFuture<ImapResponse>>();
+
+    for (int start = from; start < to; start += chunk) {
+      fetches.add(connection.uidFetch(uidSet(uids, start, Math.min(to, start + chunk)),
+          "(UID FLAGS RFC822.SIZE " + bodyItem + ")"));
+    }
+
+    final List<Message> messages = new ArrayList<Message>(to - from);
+
+    for (final CompletableFuture<ImapResponse> fetch : fetches) {
+      for (final ImapLine line : await(fetch).getUntagged()) {
+        final NioMessage message = messageOf(line);
+
+        if (message != null) {
+          messages.add(message);
+        }
+      }
+    }
+
+    return messages.toArray(new Message[messages.size()]);
+  }
+
+  /**
+   * Set or clear flags on a message.
+   *
+   * @param uid the uid
+   * @param flags the flags
+   * @param set whether to set or clear them
+   * @throws MessagingException the messaging exception
+   */
+  public void store(final long uid, final Flags flags, final boolean set)
+      throws MessagingException {
+    await(connection.uidStore(Long.toString(uid),
+        (set ? "+" : "-") + "FLAGS.SILENT (" + flagList(flags) + ")"));
+  }
+
+  /**
+   * Log out and close the connection.
+   */
+  public void close() {
+    if (connection == null || !connection.isOpen()) {
+      return;
+    }
+
+    try {
+      await(connection.logout());
+    } catch (MessagingException exception) {
+      LOGGER.debug("logout from {} failed: {}", host, exception.getMessage());
+    }
+
+    connection.close();
+  }
+
+  /**
+   * Wait for a command, up to the command timeout.
+   *
+   * @param <T> the result type
+   * @param future the future
+   * @return the result
+   * @throws MessagingException when the command failed or timed out
+   */
+  private <T> T await(final CompletableFuture<T> future) throws MessagingException {
+    try {
+      return future.get(timeout, TimeUnit.MILLISECONDS);
+    } catch (ExecutionException exception) {
+      if (exception.getCause() instanceof MessagingException) {
+        throw (MessagingException) exception.getCause();
+      }
+
+      throw new MessagingException(exception.getMessage(), exception);
+    } catch (TimeoutException exception) {
+      throw new ImapCommandException(null, "timed out waiting for " + host);
+    } catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+      throw new MessagingException("interrupted", exception);
+    }
+  }
+
+  /**
+   * The message of an untagged FETCH response.
+   *
+   * @param line the line
+   * @return the message, or null when the line is not a FETCH response
+   * @throws MessagingException the messaging exception
+   */
+  private NioMessage messageOf(final ImapLine line) throws MessagingException {
+    final String text = line.getText();
+    final String[] tokens = text.split(" ", 4);
+
+    if (tokens.length < 4 || !"FETCH".equalsIgnoreCase(tokens[2])) {
+      return null;
+    }
+
+    final Matcher uid = UID.matcher(text);
+    final Matcher flags = FLAGS.matcher(text);
+    final Matcher size = SIZE.matcher(text);
+
+    if (!uid.find()) {
+      return null;
+    }
+
+    final byte[] raw = line.getLiterals().isEmpty() ? new byte[0] : line.getLiterals().get(0);
+
+    return new NioMessage(session, this, Integer.parseInt(tokens[1]),
+        Long.parseLong(uid.group(1)), flags.find() ? flagsOf(flags.group(1)) : new Flags(),
+        size.find() ? Integer.parseInt(size.group(1)) : raw.length, raw);
+  }
+
+  /**
+   * Parse a FETCH flag list.
+   *
+   * @param list the list
+   * @return the flags
+   */
+  static Flags flagsOf(final String list) {
+    final Flags flags = new Flags();
+
+    for (final String flag : list.trim().split("\\s+")) {
+      if (flag.isEmpty()) {
+        continue;
+      }
+
+      if (!flag.startsWith("\\")) {
+        flags.add(flag);
+      } else if ("\\Seen".equalsIgnoreCase(flag)) {
+        flags.add(Flags.Flag.SEEN);
+      } else if ("\\Answered".equalsIgnoreCase(flag)) {
+        flags.add(Flags.Flag.ANSWERED);
+      } else if ("\\Deleted".equalsIgnoreCase(flag)) {
+        flags.add(Flags.Flag.DELETED);
+      } else if ("\\Draft".equalsIgnoreCase(flag)) {
+        flags.add(Flags.Flag.DRAFT);
+      } else if ("\\Flagged".equalsIgnoreCase(flag)) {
+        flags.add(Flags.Flag.FLAGGED);
+      } else if ("\\Recent".equalsIgnoreCase(flag)) {
+        flags.add(Flags.Flag.RECENT);
+      }
+    }
+
+    return flags;
+  }
+
+  /**
+   * Format flags as a STORE flag list.
+   *
+   * @param flags the flags
+   * @return the list
+   */
+  static String flagList(final Flags flags) {
+    final StringBuilder list = new StringBuilder();
+
+    for (final Flags.Flag flag : flags.getSystemFlags()) {
+      final String systemName = flag == Flags.Flag.SEEN ? "\\Seen"
+          : flag == Flags.Flag.ANSWERED ? "\\Answered"
+              : flag == Flags.Flag.DELETED ? "\\Deleted"
+                  : flag == Flags.Flag.DRAFT ? "\\Draft"
+                      : flag == Flags.Flag.FLAGGED ? "\\Flagged" : null;
+
+      if (systemName != null) {
+        list.append(list.length() == 0 ? "" : " ").append(systemName);
+      }
+    }
+
+    for (final String flag : flags.getUserFlags()) {
+      list.append(list.length() == 0 ? "" : " ").append(flag);
+    }
+
+    return list.toString();
+  }
+
+  /**
+   * Format UIDs as a UID set, collapsing consecutive runs into ranges.
+   *
+   * @param uids the UIDs, ascending
+   * @param from the first index, inclusive
+   * @param to the last index, exclusive
+   * @return the UID set
+   */
+  static String uidSet(final long[] uids, final int from, final int to) {
+    final StringBuilder set = new StringBuilder();
+    int start = from;
+
+    while (start < to) {
+      int end = start;
+
+      while (end + 1 < to && uids[end + 1] == uids[end] + 1) {
+        end++;
+      }
+
+      set.append(set.length() == 0 ? "" : ",").append(uids[start]);
+
+      if (end > start) {
+        set.append(':').append(uids[end]);
+      }
+
+      start = end + 1;
+    }
+
+    return set.toString();
+  }
+}
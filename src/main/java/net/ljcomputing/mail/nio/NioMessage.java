@@ -0,0 +1,102 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.nio;
+
+import java.io.ByteArrayInputStream;
+
+import javax.mail.Flags;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * A message fetched whole (or as its header) by the non-blocking IMAP engine. It is parsed from
+ * the fetched bytes, so reading it never goes back to the server; setting a flag issues a UID
+ * STORE on the mailbox's connection.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class NioMessage extends MimeMessage {
+
+  /** The mailbox. */
+  private final NioMailbox mailbox;
+
+  /** The uid. */
+  private final long uid;
+
+  /** The size reported by the server. */
+  private final int size;
+
+  /**
+   * Instantiates a new nio message.
+   *
+   * @param session the session
+   * @param mailbox the mailbox
+   * @param number the message sequence number
+   * @param uid the uid
+   * @param flags the flags
+   * @param size the size reported by the server
+   * @param raw the fetched bytes
+   * @throws MessagingException the messaging exception
+   */
+  NioMessage(final Session session, final NioMailbox mailbox, final int number, final long uid,
+      final Flags flags, final int size, final byte[] raw) throws MessagingException {
+    super(session, new ByteArrayInputStream(raw));
+    this.mailbox = mailbox;
+    this.uid = uid;
+    this.size = size;
+    this.flags = flags;
+    setMessageNumber(number);
+  }
+
+  /**
+   * Gets the mailbox.
+   *
+   * @return the mailbox
+   */
+  public NioMailbox getMailbox() {
+    return mailbox;
+  }
+
+  /**
+   * Gets the uid.
+   *
+   * @return the uid
+   */
+  public long getUid() {
+    return uid;
+  }
+
+  /**
+   * @see javax.mail.internet.MimeMessage#getSize()
+   */
+  @Override
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * @see javax.mail.internet.MimeMessage#setFlags(javax.mail.Flags, boolean)
+   */
+  @Override
+  public synchronized void setFlags(final Flags flag, final boolean set)
+      throws MessagingException {
+    mailbox.store(uid, flag, set);
+    super.setFlags(flag, set);
+  }
+}
@@ -0,0 +1,154 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.priority;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A log-linear histogram of latencies in milliseconds: exact below 16, then 16 buckets per power
+ * of two, so any percentile is reported within about 6% in fixed, allocation-free space.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class LatencyHistogram {
+
+  /** The sub-bucket bits per power of two. */
+  private static final int SUB_BITS = 4;
+
+  /** The sub-buckets per power of two. */
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+  /** The bucket counts. */
+  private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS) * SUB_BUCKETS);
+
+  /** The count of latencies recorded. */
+  private final AtomicLong count = new AtomicLong();
+
+  /** The largest latency recorded. */
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Record a latency.
+   *
+   * @param millis the latency in milliseconds
+   */
+  public void record(final long millis) {
+    final long value = Math.max(0L, millis);
+    counts.incrementAndGet(bucketOf(value));
+    count.incrementAndGet();
+
+    long previous;
+
+    while (value > (previous = max.get()) && !max.compareAndSet(previous, value)) {
+      // retry until the largest value sticks
+    }
+  }
+
+  /**
+   * Gets the count of latencies recorded.
+   *
+   * @return the count
+   */
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * Gets the largest latency recorded.
+   *
+   * @return the max
+   */
+  public long getMax() {
+    return max.get();
+  }
+
+  /**
+   * The latency at or below which the given fraction of the recorded latencies fall.
+   *
+   * @param fraction the fraction, e.g. 0.99
+   * @return the latency in milliseconds, reported as the upper bound of its bucket
+   */
+  public long percentile(final double fraction) {
+    final long total = count.get();
+
+    if (total == 0) {
+      return 0L;
+    }
+
+    final long rank = Math.max(1L, (long) Math.ceil(total * fraction));
+    long seen = 0;
+
+    for (int bucket = 0; bucket < counts.length(); bucket++) {
+      seen += counts.get(bucket);
+
+      if (seen >= rank) {
+        return Math.min(upperBoundOf(bucket), max.get());
+      }
+    }
+
+    return max.get();
+  }
+
+  /**
+   * Clear the histogram.
+   */
+  public void reset() {
+    for (int bucket = 0; bucket < counts.length(); bucket++) {
+      counts.set(bucket, 0L);
+    }
+
+    count.set(0L);
+    max.set(0L);
+  }
+
+  /**
+   * The bucket of a value.
+   *
+   * @param value the value, not negative
+   * @return the bucket
+   */
+  private static int bucketOf(final long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+
+    final int exponent = 63 - Long.numberOfLeadingZeros(value);
+    final int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+
+    return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  /**
+   * The largest value falling in a bucket.
+   *
+   * @param bucket the bucket
+   * @return the upper bound
+   */
+  private static long upperBoundOf(final int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+
+    final int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+    final long sub = bucket % SUB_BUCKETS;
+    final long width = 1L << (exponent - SUB_BITS);
+
+    return (1L << exponent) + (sub + 1) * width - 1;
+  }
+}
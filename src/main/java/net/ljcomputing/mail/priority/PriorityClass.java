@@ -0,0 +1,92 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.priority;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import net.ljcomputing.mail.service.MailProperties;
+
+/**
+ * The priority classes messages are scheduled in. Each class has a slack, how long a message of
+ * the class may wait before it is due, and a latency objective for its time-to-process.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public enum PriorityClass {
+
+  /** Important messages from allowlisted senders. */
+  URGENT(0L, TimeUnit.MINUTES.toMillis(1)),
+
+  /** Messages from allowlisted senders, or marked important. */
+  HIGH(TimeUnit.MINUTES.toMillis(1), TimeUnit.MINUTES.toMillis(5)),
+
+  /** Everything else. */
+  NORMAL(TimeUnit.MINUTES.toMillis(15), TimeUnit.HOURS.toMillis(1)),
+
+  /** Mailing lists, bulk mail, large messages and messages marked unimportant. */
+  BULK(TimeUnit.HOURS.toMillis(1), 0L);
+
+  /** The default slack in milliseconds. */
+  private final long defaultSlack;
+
+  /** The default latency objective in milliseconds. */
+  private final long defaultObjective;
+
+  /**
+   * Instantiates a new priority class.
+   *
+   * @param defaultSlack the default slack
+   * @param defaultObjective the default latency objective, zero for none
+   */
+  PriorityClass(final long defaultSlack, final long defaultObjective) {
+    this.defaultSlack = defaultSlack;
+    this.defaultObjective = defaultObjective;
+  }
+
+  /**
+   * The slack (ms) of the class: a message is due its arrival time plus the slack, so a message
+   * that has waited longer than the difference in slack goes ahead of a newer message of a higher
+   * class.
+   *
+   * @param properties the properties
+   * @return the slack
+   */
+  public long slack(final MailProperties properties) {
+    return properties.longValueOf("email.priority." + key() + ".slack", defaultSlack);
+  }
+
+  /**
+   * The latency objective (ms) for the 99th percentile time-to-process of the class.
+   *
+   * @param properties the properties
+   * @return the objective, zero for none
+   */
+  public long objective(final MailProperties properties) {
+    return properties.longValueOf("email.priority." + key() + ".slo", defaultObjective);
+  }
+
+  /**
+   * The property key of the class.
+   *
+   * @return the key
+   */
+  public String key() {
+    return name().toLowerCase(Locale.ROOT);
+  }
+}
@@ -0,0 +1,271 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.priority;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.ljcomputing.mail.service.MailProperties;
+
+/**
+ * Orders the messages handed to the rules by priority. Each message is scored into a priority
+ * class and falls due at its arrival time plus the slack of its class; messages are dispatched
+ * from a priority queue earliest due first. A long-waiting message of a low class thereby ages
+ * ahead of newer messages of higher classes, so nothing starves. The time-to-process of every
+ * message, from its arrival in the mailbox, is recorded by class and reported with the 99th
+ * percentile against the class's latency objective.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class PriorityScheduler {
+
+  /** The Constant logger. */
+  private final static Logger LOGGER = LoggerFactory.getLogger(PriorityScheduler.class);
+
+  /** The property enabling priority scheduling. */
+  public static final String ENABLED = "email.priority.enabled";
+
+  /** The scorer. */
+  private final PriorityScorer scorer;
+
+  /** The slack of each class. */
+  private final Map<PriorityClass, Long> slack =
+      new EnumMap<PriorityClass, Long>(PriorityClass.class);
+
+  /** The latency objective of each class. */
+  private final Map<PriorityClass, Long> objectives =
+      new EnumMap<PriorityClass, Long>(PriorityClass.class);
+
+  /** The time-to-process histogram of each class. */
+  private final Map<PriorityClass, LatencyHistogram> latencies =
+      new EnumMap<PriorityClass, LatencyHistogram>(PriorityClass.class);
+
+  /** The messages ordered but not yet processed, until the next report. */
+  private final Map<Message, Scheduled> pending = new IdentityHashMap<Message, Scheduled>();
+
+  /**
+   * Instantiates a new priority scheduler.
+   *
+   * @param properties the properties
+   */
+  public PriorityScheduler(final MailProperties properties) {
+    this.scorer = new PriorityScorer(properties);
+
+    for (final PriorityClass priority : PriorityClass.values()) {
+      slack.put(priority, priority.slack(properties));
+      objectives.put(priority, priority.objective(properties));
+      latencies.put(priority, new LatencyHistogram());
+    }
+  }
+
+  /**
+   * Order a batch of messages for processing.
+   *
+   * @param messages the messages
+   * @return the messages, earliest due first
+   */
+  public synchronized Message[] order(final Message[] messages) {
+    final long now = System.currentTimeMillis();
+    final PriorityQueue<Scheduled> queue = new PriorityQueue<Scheduled>(
+        Math.max(1, messages.length));
+
+    for (int m = 0; m < messages.length; m++) {
+      final Scheduled scheduled = schedule(messages[m], m, now);
+      pending.put(messages[m], scheduled);
+      queue.add(scheduled);
+    }
+
+    final Message[] ordered = new Message[messages.length];
+
+    for (int m = 0; m < ordered.length; m++) {
+      ordered[m] = queue.poll().message;
+    }
+
+    return ordered;
+  }
+
+  /**
+   * The IMAP SEARCH keys matching the messages that may be scored above normal priority, one
+   * search each, for picking them out of a backlog before it is split into windows.
+   *
+   * @return the search keys
+   */
+  public List<String> searchCriteria() {
+    return scorer.searchCriteria();
+  }
+
+  /**
+   * Reorder UIDs so that those of the messages that may be scored above normal come first, each
+   * part keeping its order. The windows of a large backlog then start with every priority message
+   * rather than only those that happen to share a window with them.
+   *
+   * @param uids the UIDs
+   * @param priority the UIDs of the priority messages, in any order, repeats allowed
+   * @return the UIDs, priority first
+   */
+  public static long[] priorityFirst(final long[] uids, final long[] priority) {
+    final long[] sorted = priority.clone();
+    Arrays.sort(sorted);
+
+    final long[] ordered = new long[uids.length];
+    int first = 0;
+    int rest = 0;
+
+    for (final long uid : uids) {
+      if (Arrays.binarySearch(sorted, uid) >= 0) {
+        ordered[first++] = uid;
+      }
+    }
+
+    for (final long uid : uids) {
+      if (Arrays.binarySearch(sorted, uid) < 0) {
+        ordered[first + rest++] = uid;
+      }
+    }
+
+    return ordered;
+  }
+
+  /**
+   * Record that a message of the current batch has been through the rules.
+   *
+   * @param message the message
+   */
+  public synchronized void processed(final Message message) {
+    final Scheduled scheduled = pending.remove(message);
+
+    if (scheduled != null) {
+      latencies.get(scheduled.priority).record(System.currentTimeMillis() - scheduled.arrival);
+    }
+  }
+
+  /**
+   * Log the time-to-process of each class since the last report, and start over.
+   */
+  public synchronized void report() {
+    for (final PriorityClass priority : PriorityClass.values()) {
+      final LatencyHistogram latency = latencies.get(priority);
+
+      if (latency.getCount() == 0) {
+        continue;
+      }
+
+      final long p99 = latency.percentile(0.99);
+      final long objective = objectives.get(priority);
+      LOGGER.info("{} priority: {} messages, time-to-process p50 {} ms, p99 {} ms, max {} ms",
+          priority.key(), latency.getCount(), latency.percentile(0.5), p99, latency.getMax());
+
+      if (objective > 0 && p99 > objective) {
+        LOGGER.warn("{} priority p99 time-to-process of {} ms exceeds its objective of {} ms",
+            priority.key(), p99, objective);
+      }
+
+      latency.reset();
+    }
+
+    pending.clear();
+  }
+
+  /**
+   * Score a message and work out when it falls due.
+   *
+   * @param message the message
+   * @param position the position of the message in its batch
+   * @param now the current time
+   * @return the scheduled message
+   */
+  private Scheduled schedule(final Message message, final int position, final long now) {
+    PriorityClass priority = PriorityClass.NORMAL;
+    long arrival = now;
+
+    try {
+      priority = scorer.classify(message);
+
+      final Date received = message.getReceivedDate() != null ? message.getReceivedDate()
+          : message.getSentDate();
+
+      if (received != null) {
+        arrival = Math.min(now, received.getTime());
+      }
+    } catch (MessagingException exception) {
+      LOGGER.debug("scoring at normal priority: {}", exception.getMessage());
+    }
+
+    return new Scheduled(message, priority, arrival, arrival + slack.get(priority), position);
+  }
+
+  /**
+   * A message in the priority queue.
+   */
+  private static class Scheduled implements Comparable<Scheduled> {
+
+    /** The message. */
+    private final Message message;
+
+    /** The priority class. */
+    private final PriorityClass priority;
+
+    /** The arrival time. */
+    private final long arrival;
+
+    /** The time the message falls due. */
+    private final long due;
+
+    /** The position of the message in its batch, breaking ties in mailbox order. */
+    private final int position;
+
+    /**
+     * Instantiates a new scheduled message.
+     *
+     * @param message the message
+     * @param priority the priority class
+     * @param arrival the arrival time
+     * @param due the due time
+     * @param position the position
+     */
+    private Scheduled(final Message message, final PriorityClass priority, final long arrival,
+        final long due, final int position) {
+      this.message = message;
+      this.priority = priority;
+      this.arrival = arrival;
+      this.due = due;
+      this.position = position;
+    }
+
+    /**
+     * @see java.lang.Comparable#compareTo(java.lang.Object)
+     */
+    @Override
+    public int compareTo(final Scheduled other) {
+      final int byDue = Long.compare(due, other.due);
+
+      return byDue != 0 ? byDue : Integer.compare(position, other.position);
+    }
+  }
+}
@@ -0,0 +1,218 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.priority;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+
+import net.ljcomputing.mail.service.MailProperties;
+
+/**
+ * Scores messages into priority classes from data already fetched with the envelope: the sender,
+ * the size and a handful of headers. Nothing is downloaded to score a message.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class PriorityScorer {
+
+  /** The allowlisted senders property: addresses, or domains written as @domain. */
+  public static final String SENDERS = "email.priority.senders";
+
+  /** The size (bytes) above which a message is bulk property. */
+  public static final String BULK_SIZE = "email.priority.bulk.size";
+
+  /** The headers read to score a message, fetched along with the envelope. */
+  public static final String[] HEADERS = { "Importance", "Priority", "X-Priority", "Precedence",
+      "List-Id" };
+
+  /** The allowlisted addresses and @domains, in lower case. */
+  private final Set<String> senders = new HashSet<String>();
+
+  /** The size above which a message is bulk. */
+  private final long bulkSize;
+
+  /**
+   * Instantiates a new priority scorer.
+   *
+   * @param properties the properties
+   */
+  public PriorityScorer(final MailProperties properties) {
+    final String allowlist = properties.valueOf(SENDERS, "");
+
+    for (final String sender : allowlist.split(",")) {
+      if (!sender.trim().isEmpty()) {
+        senders.add(sender.trim().toLowerCase(Locale.ROOT));
+      }
+    }
+
+    this.bulkSize = properties.longValueOf(BULK_SIZE, 1024L * 1024);
+  }
+
+  /**
+   * Score a message.
+   *
+   * @param message the message
+   * @return the priority class
+   * @throws MessagingException the messaging exception
+   */
+  public PriorityClass classify(final Message message) throws MessagingException {
+    final int importance = importance(message);
+
+    if (isAllowlisted(message.getFrom())) {
+      return importance > 0 ? PriorityClass.URGENT : PriorityClass.HIGH;
+    }
+
+    if (importance < 0 || isBulk(message)) {
+      return PriorityClass.BULK;
+    }
+
+    return importance > 0 ? PriorityClass.HIGH : PriorityClass.NORMAL;
+  }
+
+  /**
+   * The IMAP SEARCH keys matching the messages this scorer may rank above normal: those with an
+   * allowlisted sender in their From header and those marked important. Each key is searched on
+   * its own rather than joined by OR, which not every server supports. HEADER matches substrings,
+   * so the server may return a few more; {@link #classify(Message)} still decides the class.
+   *
+   * @return the search keys
+   */
+  public List<String> searchCriteria() {
+    final List<String> keys = new ArrayList<String>();
+
+    for (final String sender : senders) {
+      keys.add("HEADER From " + quote(sender));
+    }
+
+    keys.add("HEADER Importance \"high\"");
+    keys.add("HEADER Priority \"urgent\"");
+    keys.add("HEADER X-Priority \"1\"");
+    keys.add("HEADER X-Priority \"2\"");
+
+    return keys;
+  }
+
+  /**
+   * An IMAP quoted string.
+   *
+   * @param value the value
+   * @return the quoted value
+   */
+  private static String quote(final String value) {
+    return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+  }
+
+  /**
+   * Checks if any sender is allowlisted, by address or by domain.
+   *
+   * @param from the senders
+   * @return true, if allowlisted
+   */
+  private boolean isAllowlisted(final Address[] from) {
+    if (from == null || senders.isEmpty()) {
+      return false;
+    }
+
+    for (final Address address : from) {
+      if (address instanceof InternetAddress) {
+        final String sender = ((InternetAddress) address).getAddress();
+
+        if (sender != null) {
+          final String lower = sender.toLowerCase(Locale.ROOT);
+          final int at = lower.lastIndexOf('@');
+
+          if (senders.contains(lower) || (at >= 0 && senders.contains(lower.substring(at)))) {
+            return true;
+          }
+        }
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Checks if the message is mailing list or bulk mail, or too large to hold up others.
+   *
+   * @param message the message
+   * @return true, if bulk
+   * @throws MessagingException the messaging exception
+   */
+  private boolean isBulk(final Message message) throws MessagingException {
+    final String precedence = header(message, "Precedence");
+
+    return message.getSize() > bulkSize || header(message, "List-Id") != null
+        || "bulk".equals(precedence) || "list".equals(precedence) || "junk".equals(precedence);
+  }
+
+  /**
+   * The importance the sender marked the message with: Importance, Priority, or X-Priority
+   * (1 and 2 are high, 4 and 5 low).
+   *
+   * @param message the message
+   * @return 1 for high, -1 for low, 0 for unmarked
+   * @throws MessagingException the messaging exception
+   */
+  private static int importance(final Message message) throws MessagingException {
+    final String importance = header(message, "Importance");
+
+    if (importance != null) {
+      return "high".equals(importance) ? 1 : "low".equals(importance) ? -1 : 0;
+    }
+
+    final String priority = header(message, "Priority");
+
+    if (priority != null) {
+      return "urgent".equals(priority) ? 1 : "non-urgent".equals(priority) ? -1 : 0;
+    }
+
+    final String xPriority = header(message, "X-Priority");
+
+    if (xPriority != null && !xPriority.isEmpty()) {
+      final char level = xPriority.charAt(0);
+
+      return level == '1' || level == '2' ? 1 : level == '4' || level == '5' ? -1 : 0;
+    }
+
+    return 0;
+  }
+
+  /**
+   * The first value of a header, trimmed and in lower case.
+   *
+   * @param message the message
+   * @param name the header name
+   * @return the value, or null if the message lacks the header
+   * @throws MessagingException the messaging exception
+   */
+  private static String header(final Message message, final String name)
+      throws MessagingException {
+    final String[] values = message.getHeader(name);
+
+    return values == null || values.length == 0 ? null
+        : values[0].trim().toLowerCase(Locale.ROOT);
+  }
+}
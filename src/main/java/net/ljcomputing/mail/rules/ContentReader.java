@@ -0,0 +1,39 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.rules;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the content of a message part while it streams from the server.
+ * 
+ * @author James G. Willmore
+ *
+ * @param <T> the result type
+ */
+public interface ContentReader<T> {
+
+  /**
+   * Read the content, without closing the stream.
+   *
+   * @param content the content
+   * @return the result
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  T read(InputStream content) throws IOException;
+}
@@ -0,0 +1,54 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.rules;
+
+/**
+ * The message data a processing rule reads. The rules processor fetches the union of what the
+ * active rules declare, and the message context refuses to download anything beyond it.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public enum DataRequirement {
+
+  /** The UID and flags. */
+  UID_FLAGS,
+
+  /** The envelope: sender, recipients, subject, date, Message-ID and size. */
+  ENVELOPE,
+
+  /** Every header. */
+  HEADERS,
+
+  /** The MIME structure: part types, sizes and filenames, without their content. */
+  STRUCTURE,
+
+  /** The text of the body. */
+  TEXT,
+
+  /** The content of the attachments. */
+  ATTACHMENTS;
+
+  /**
+   * Checks if reading this data requires the MIME structure.
+   *
+   * @return true, if the structure is required
+   */
+  public boolean needsStructure() {
+    return this == STRUCTURE || this == TEXT || this == ATTACHMENTS;
+  }
+}
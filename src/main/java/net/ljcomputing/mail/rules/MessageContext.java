@@ -0,0 +1,380 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.rules;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.mail.Flags;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+import net.ljcomputing.mail.domain.Email;
+import net.ljcomputing.mail.domain.MessagePart;
+import net.ljcomputing.mail.domain.MessageParts;
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.limit.AdaptiveLimiter;
+import net.ljcomputing.mail.limit.LimitedOperation;
+import net.ljcomputing.mail.trace.Phase;
+import net.ljcomputing.mail.trace.Span;
+import net.ljcomputing.mail.trace.Trace;
+
+/**
+ * Per-message state shared by every rule run against one message, so the message structure and
+ * the email domain are built once no matter how many rules use them. The context only downloads
+ * the data the active rules have declared they need. A shadow context, for a rule set evaluated
+ * alongside the active one, shares what the active rules already read but never writes flags.
+ * Everything an active context reads from or writes to the server runs under the processor's IMAP
+ * concurrency limit; shadow contexts hold none of its slots, so they never shrink it.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class MessageContext {
+
+  /** The message. */
+  private final Message message;
+
+  /** The data the active rules declared, which is all the context will download. */
+  private final Set<DataRequirement> available;
+
+  /** The IMAP concurrency limit server reads and writes run under, or null for none. */
+  private final AdaptiveLimiter limiter;
+
+  /** The message parts, once walked. */
+  private MessageParts parts;
+
+  /** The email, once built. */
+  private Email email;
+
+  /** The attributes earlier rules have set for later ones. */
+  private final Map<String, Object> attributes = new HashMap<String, Object>();
+
+  /** The time each rule run so far took, in nanoseconds, by rule name. */
+  private final Map<String, Long> ruleTimes = new LinkedHashMap<String, Long>();
+
+  /** Whether this is a shadow context, whose flag writes are suppressed. */
+  private final boolean shadow;
+
+  /** The count of flag writes suppressed. */
+  private int suppressedFlags;
+
+  /**
+   * Instantiates a new message context for a single rule, with every kind of data available.
+   *
+   * @param message the message
+   */
+  public MessageContext(final Message message) {
+    this(message, EnumSet.allOf(DataRequirement.class));
+  }
+
+  /**
+   * Instantiates a new message context.
+   *
+   * @param message the message
+   * @param available the data the active rules declared
+   */
+  public MessageContext(final Message message, final Set<DataRequirement> available) {
+    this(message, available, null);
+  }
+
+  /**
+   * Instantiates a new message context whose server reads and writes run under a limit.
+   *
+   * @param message the message
+   * @param available the data the active rules declared
+   * @param limiter the IMAP concurrency limiter, or null
+   */
+  public MessageContext(final Message message, final Set<DataRequirement> available,
+      final AdaptiveLimiter limiter) {
+    this.message = message;
+    this.available = available;
+    this.limiter = limiter;
+    this.shadow = false;
+  }
+
+  /**
+   * Instantiates a shadow of a context the active rules are done with, sharing the message parts
+   * and email already built but none of the attributes.
+   *
+   * @param context the context of the active rules
+   * @param available the data the shadow rules declared, along with the active ones
+   */
+  public MessageContext(final MessageContext context, final Set<DataRequirement> available) {
+    this.message = context.message;
+
+    synchronized (context) {
+      this.parts = context.parts;
+      this.email = context.email;
+    }
+
+    this.available = available;
+    this.limiter = null;
+    this.shadow = true;
+  }
+
+  /**
+   * Instantiates a shadow context over a copy of a message read on another connection.
+   *
+   * @param copy the copy of the message
+   * @param available the data the shadow rules declared, along with the active ones
+   * @param shadow whether this is a shadow context, whose flag writes are suppressed
+   */
+  public MessageContext(final Message copy, final Set<DataRequirement> available,
+      final boolean shadow) {
+    this.message = copy;
+    this.available = available;
+    this.limiter = null;
+    this.shadow = shadow;
+  }
+
+  /**
+   * Check that data was declared by the active rules before reading it.
+   *
+   * @param requirement the data
+   * @throws EmailRuleProcessorException when no active rule declared the data
+   */
+  public void require(final DataRequirement requirement) throws EmailRuleProcessorException {
+    if (!available.contains(requirement)) {
+      throw new EmailRuleProcessorException(
+          requirement + " data was not declared by any active rule.");
+    }
+  }
+
+  /**
+   * Gets the message.
+   *
+   * @return the message
+   */
+  public Message getMessage() {
+    return message;
+  }
+
+  /**
+   * Checks if this is a shadow context.
+   *
+   * @return true, if flag writes are suppressed
+   */
+  public boolean isShadow() {
+    return shadow;
+  }
+
+  /**
+   * Set or clear flags on the message. Rules write flags through the context so that a shadow
+   * context can suppress them.
+   *
+   * @param flags the flags
+   * @param set whether to set or clear the flags
+   * @throws MessagingException the messaging exception
+   * @throws EmailRuleProcessorException when no slot frees up within the acquire timeout
+   */
+  public void setFlags(final Flags flags, final boolean set)
+      throws MessagingException, EmailRuleProcessorException {
+    if (shadow) {
+      synchronized (this) {
+        suppressedFlags++;
+      }
+
+      return;
+    }
+
+    call(() -> {
+      message.setFlags(flags, set);
+      return null;
+    });
+  }
+
+  /**
+   * Gets the count of flag writes a shadow context suppressed.
+   *
+   * @return the count
+   */
+  public synchronized int getSuppressedFlags() {
+    return suppressedFlags;
+  }
+
+  /**
+   * Gets the message parts, walking the message structure on first use.
+   *
+   * @return the parts
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  @SuppressWarnings("try")
+  public synchronized MessageParts getParts() throws EmailRuleProcessorException {
+    require(DataRequirement.STRUCTURE);
+
+    if (parts == null) {
+      try (final Span span = Trace.begin(Phase.PARSE)) {
+        parts = call(() -> {
+          try {
+            return MessageParts.of(message);
+          } catch (IOException exception) {
+            throw new MessagingException("message structure not read", exception);
+          }
+        });
+      } catch (MessagingException exception) {
+        throw new EmailRuleProcessorException(exception);
+      }
+    }
+
+    return parts;
+  }
+
+  /**
+   * Gets the text of the body, downloading only the text parts.
+   *
+   * @return the text
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public String getText() throws EmailRuleProcessorException {
+    require(DataRequirement.TEXT);
+    final MessageParts messageParts = getParts();
+
+    try {
+      return call(() -> {
+        try {
+          return messageParts.getText();
+        } catch (IOException exception) {
+          throw new MessagingException("message text not read", exception);
+        }
+      });
+    } catch (MessagingException exception) {
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
+  /**
+   * Gets the decoded text of one text part, fetching it on first use.
+   *
+   * @param part the part
+   * @return the text
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public String getText(final MessagePart part) throws EmailRuleProcessorException {
+    require(DataRequirement.TEXT);
+
+    try {
+      return call(() -> {
+        try {
+          return part.getText();
+        } catch (IOException exception) {
+          throw new MessagingException("part " + part.getSection() + " not read", exception);
+        }
+      });
+    } catch (MessagingException exception) {
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
+  /**
+   * Stream the decoded content of a part from the server to a reader.
+   *
+   * @param <T> the result type
+   * @param part the part
+   * @param reader the reader
+   * @return the result of the reader
+   * @throws EmailRuleProcessorException the email rule processor exception, or when no active
+   *           rule declared the attachments
+   */
+  public <T> T read(final MessagePart part, final ContentReader<T> reader)
+      throws EmailRuleProcessorException {
+    require(DataRequirement.ATTACHMENTS);
+
+    try {
+      return call(() -> {
+        try (final InputStream content = part.openStream()) {
+          return reader.read(content);
+        } catch (IOException exception) {
+          throw new MessagingException("part " + part.getSection() + " not read", exception);
+        }
+      });
+    } catch (MessagingException exception) {
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
+  /**
+   * Run a read or write against the server under the IMAP concurrency limit, if there is one.
+   *
+   * @param <T> the result type
+   * @param operation the operation
+   * @return the result
+   * @throws MessagingException the messaging exception
+   * @throws EmailRuleProcessorException when no slot frees up within the acquire timeout
+   */
+  public <T> T call(final LimitedOperation<T> operation)
+      throws MessagingException, EmailRuleProcessorException {
+    return limiter == null ? operation.call() : limiter.call(operation);
+  }
+
+  /**
+   * Gets the email domain, creating it on first use; its fields are read lazily.
+   *
+   * @return the email
+   */
+  public synchronized Email getEmail() {
+    if (email == null) {
+      email = new Email(message);
+    }
+
+    return email;
+  }
+
+  /**
+   * Set an attribute for later rules, e.g. the category a classifier assigned.
+   *
+   * @param name the name
+   * @param value the value
+   */
+  public synchronized void setAttribute(final String name, final Object value) {
+    attributes.put(name, value);
+  }
+
+  /**
+   * Gets an attribute set by an earlier rule.
+   *
+   * @param name the name
+   * @return the value, or null
+   */
+  public synchronized Object getAttribute(final String name) {
+    return attributes.get(name);
+  }
+
+  /**
+   * Record the time a rule took over the message.
+   *
+   * @param ruleName the rule name
+   * @param nanos the time in nanoseconds
+   */
+  public synchronized void ruleTimed(final String ruleName, final long nanos) {
+    ruleTimes.put(ruleName, nanos);
+  }
+
+  /**
+   * Gets the time each rule run so far took over the message, in the order they ran.
+   *
+   * @return the times in nanoseconds, by rule name
+   */
+  public synchronized Map<String, Long> getRuleTimes() {
+    return new LinkedHashMap<String, Long>(ruleTimes);
+  }
+}
@@ -16,6 +16,9 @@
 
 package net.ljcomputing.mail.rules;
 
+import java.util.EnumSet;
+import java.util.Set;
+
 import javax.mail.Message;
 
 import net.ljcomputing.mail.exception.EmailRuleProcessorException;
@@ -35,6 +38,16 @@ public interface ProcessingRule {
    */
   String ruleName();
   
+  /**
+   * The message data the rule reads. The rules processor fetches no more than the active rules
+   * declare; rules that do not declare anything are assumed to read everything.
+   *
+   * @return the data requirements
+   */
+  default Set<DataRequirement> dataRequirements() {
+    return EnumSet.allOf(DataRequirement.class);
+  }
+
   /**
    * Process message rule.
    *
@@ -42,4 +55,42 @@ public interface ProcessingRule {
    * @throws EmailRuleProcessorException the email rule processor exception
    */
   void processMessageRule(Message message) throws EmailRuleProcessorException;
+
+  /**
+   * Process message rule with the per-message context the rules processor shares between rules.
+   * Rules that use the message parts or the email domain override this.
+   *
+   * @param context the message context
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  default void processMessageRule(final MessageContext context)
+      throws EmailRuleProcessorException {
+    processMessageRule(context.getMessage());
+  }
+
+  /**
+   * Initialize the rule once it has been loaded by the rules processor.
+   *
+   * @param context the rule context
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  default void initialize(final RuleContext context) throws EmailRuleProcessorException {
+  }
+
+  /**
+   * Called once every message of a processing run has been through the rules, for rules that
+   * report or flush per run rather than per message.
+   *
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  default void runCompleted() throws EmailRuleProcessorException {
+  }
+
+  /**
+   * Release any resources held by the rule when the rules processor is closed.
+   *
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  default void close() throws EmailRuleProcessorException {
+  }
 }
@@ -0,0 +1,136 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.rules;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.service.MailProperties;
+
+/**
+ * Context handed to every processing rule when the rules processor is initialized. Holds the
+ * application properties and the shared services (mail sender, stores, indexes, ...) rules may
+ * use while processing messages. A shadow context belongs to a rule set evaluated alongside the
+ * active one; rules given a shadow context must not send, store or export anything.
+ *
+ * @author James G. Willmore
+ *
+ */
+public class RuleContext {
+
+  /** The application properties. */
+  private final MailProperties properties;
+
+  /** The shared services, keyed by type. */
+  private final Map<Class<?>, Object> services = new ConcurrentHashMap<Class<?>, Object>();
+
+  /** Whether this is the context of a shadow rule set. */
+  private final boolean shadow;
+
+  /**
+   * Instantiates a new rule context.
+   *
+   * @param properties the properties
+   */
+  public RuleContext(final MailProperties properties) {
+    this(properties, false);
+  }
+
+  /**
+   * Instantiates a new rule context.
+   *
+   * @param properties the properties
+   * @param shadow whether the context is for a shadow rule set
+   */
+  public RuleContext(final MailProperties properties, final boolean shadow) {
+    this.properties = properties;
+    this.shadow = shadow;
+  }
+
+  /**
+   * A context for a shadow rule set, over its own properties, sharing the services registered so
+   * far. Services registered later, by the active rules, are not shared.
+   *
+   * @param shadowProperties the properties of the shadow rule set
+   * @return the shadow context
+   */
+  public RuleContext shadow(final MailProperties shadowProperties) {
+    final RuleContext shadow = new RuleContext(shadowProperties, true);
+    shadow.services.putAll(services);
+
+    return shadow;
+  }
+
+  /**
+   * Checks if this is the context of a shadow rule set, whose side effects are suppressed.
+   *
+   * @return true, if the rules must not send, store or export anything
+   */
+  public boolean isShadow() {
+    return shadow;
+  }
+
+  /**
+   * Gets the application properties.
+   *
+   * @return the properties
+   */
+  public MailProperties getProperties() {
+    return properties;
+  }
+
+  /**
+   * Register a shared service.
+   *
+   * @param <T> the service type
+   * @param type the service type
+   * @param service the service
+   */
+  public <T> void register(final Class<T> type, final T service) {
+    services.put(type, service);
+  }
+
+  /**
+   * Retrieve a shared service.
+   *
+   * @param <T> the service type
+   * @param type the service type
+   * @return the service
+   * @throws EmailRuleProcessorException when the service has not been configured
+   */
+  public <T> T service(final Class<T> type) throws EmailRuleProcessorException {
+    final T service = optionalService(type);
+
+    if (service == null) {
+      throw new EmailRuleProcessorException(type.getSimpleName() + " has not been configured.");
+    }
+
+    return service;
+  }
+
+  /**
+   * Retrieve a shared service, if one has been registered.
+   *
+   * @param <T> the service type
+   * @param type the service type
+   * @return the service, or null
+   */
+  public <T> T optionalService(final Class<T> type) {
+    return type.cast(services.get(type));
+  }
+}
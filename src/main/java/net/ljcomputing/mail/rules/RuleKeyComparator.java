@@ -0,0 +1,59 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.rules;
+
+import java.util.Comparator;
+
+/**
+ * Orders rule property keys ({@code email.rules.N}) by the number that ends them, so that
+ * {@code email.rules.2} runs before {@code email.rules.10}. Keys not ending in a number sort
+ * after the numbered ones, by name.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class RuleKeyComparator implements Comparator<String> {
+
+  /**
+   * @see java.util.Comparator#compare(java.lang.Object, java.lang.Object)
+   */
+  @Override
+  public int compare(final String key, final String other) {
+    final long number = numberOf(key);
+    final long otherNumber = numberOf(other);
+
+    if (number != otherNumber) {
+      return Long.compare(number, otherNumber);
+    }
+
+    return key.compareTo(other);
+  }
+
+  /**
+   * The number ending a key.
+   *
+   * @param key the key
+   * @return the number, or Long.MAX_VALUE when the key does not end in one
+   */
+  private static long numberOf(final String key) {
+    try {
+      return Long.parseLong(key.substring(key.lastIndexOf('.') + 1));
+    } catch (NumberFormatException exception) {
+      return Long.MAX_VALUE;
+    }
+  }
+}
@@ -0,0 +1,136 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.rules.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Set;
+
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.UIDFolder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.ljcomputing.mail.archive.MessageArchive;
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.nio.NioMessage;
+import net.ljcomputing.mail.rules.DataRequirement;
+import net.ljcomputing.mail.rules.ProcessingRule;
+import net.ljcomputing.mail.rules.RuleContext;
+
+/**
+ * Email processing rule to append the raw email message to the compressed message archive, keyed
+ * by folder, UIDVALIDITY and UID. The archive is shared with other rules through the rule
+ * context.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class ArchiveMessage implements ProcessingRule {
+
+  /** The Constant logger. */
+  private final static Logger LOGGER = LoggerFactory.getLogger(ArchiveMessage.class);
+
+  /** The message archive. */
+  private MessageArchive archive;
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#ruleName()
+   */
+  @Override
+  public String ruleName() {
+    return "Archive Message";
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#dataRequirements()
+   */
+  @Override
+  public Set<DataRequirement> dataRequirements() {
+    return EnumSet.of(DataRequirement.UID_FLAGS, DataRequirement.HEADERS, DataRequirement.TEXT,
+        DataRequirement.ATTACHMENTS);
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#initialize(net.ljcomputing.mail.rules.RuleContext)
+   */
+  @Override
+  public void initialize(final RuleContext context) throws EmailRuleProcessorException {
+    archive = new MessageArchive(context.getProperties());
+    context.register(MessageArchive.class, archive);
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(javax.mail.Message)
+   */
+  @Override
+  public void processMessageRule(final Message message) throws EmailRuleProcessorException {
+    final Folder folder = message.getFolder();
+
+    if (!(folder instanceof UIDFolder) && !(message instanceof NioMessage)) {
+      LOGGER.warn("--message not archived; folder {} has no UIDs",
+          folder == null ? null : folder.getFullName());
+      return;
+    }
+
+    try {
+      final ByteArrayOutputStream raw = new ByteArrayOutputStream(
+          Math.max(message.getSize(), 0) + 1024);
+      message.writeTo(raw);
+
+      final long uid;
+      final String volume;
+
+      if (message instanceof NioMessage) {
+        final NioMessage nioMessage = (NioMessage) message;
+        uid = nioMessage.getUid();
+        volume = MessageArchive.volumeOf(nioMessage.getMailbox().getFullName(),
+            nioMessage.getMailbox().getUidValidity());
+      } else {
+        final UIDFolder uidFolder = (UIDFolder) folder;
+        uid = uidFolder.getUID(message);
+        volume = MessageArchive.volumeOf(folder.getFullName(), uidFolder.getUIDValidity());
+      }
+
+      archive.append(volume, uid, raw.toByteArray());
+      LOGGER.debug("--message {} archived, {} bytes", uid, raw.size());
+    } catch (MessagingException | IOException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#runCompleted()
+   */
+  @Override
+  public void runCompleted() throws EmailRuleProcessorException {
+    archive.flush();
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#close()
+   */
+  @Override
+  public void close() throws EmailRuleProcessorException {
+    archive.close();
+  }
+}
@@ -0,0 +1,164 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.rules.impl;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.rules.DataRequirement;
+import net.ljcomputing.mail.rules.ProcessingRule;
+import net.ljcomputing.mail.rules.RuleContext;
+import net.ljcomputing.mail.service.MailProperties;
+import net.ljcomputing.mail.service.MailSender;
+
+/**
+ * Email processing rule to send an automatic acknowledgement to the sender of the email message.
+ * Messages that are themselves automated (per RFC 3834 and the common bulk-mail headers) are not
+ * answered, so two auto-responders can't reply to each other forever.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class AutoReplyMessage implements ProcessingRule {
+
+  /** The Constant logger. */
+  private final static Logger LOGGER = LoggerFactory.getLogger(AutoReplyMessage.class);
+
+  /** The reply FROM address property. */
+  public static final String REPLY_FROM = "email.reply.from";
+
+  /** The reply text property. */
+  public static final String REPLY_TEXT = "email.reply.text";
+
+  /** The mail sender. */
+  private MailSender sender;
+
+  /** Whether replys are built but not sent, the rule being in a shadow rule set. */
+  private boolean shadow;
+
+  /** The reply FROM address. */
+  private InternetAddress from;
+
+  /** The reply text. */
+  private String text;
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#ruleName()
+   */
+  @Override
+  public String ruleName() {
+    return "Auto Reply To Message";
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#dataRequirements()
+   */
+  @Override
+  public Set<DataRequirement> dataRequirements() {
+    return EnumSet.of(DataRequirement.ENVELOPE, DataRequirement.HEADERS);
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#initialize(net.ljcomputing.mail.rules.RuleContext)
+   */
+  @Override
+  public void initialize(final RuleContext context) throws EmailRuleProcessorException {
+    final MailProperties properties = context.getProperties();
+    sender = context.service(MailSender.class);
+    shadow = context.isShadow();
+    text = properties.valueOf(REPLY_TEXT, "Your message has been received.");
+
+    try {
+      from = new InternetAddress(properties.valueOf(REPLY_FROM), true);
+    } catch (AddressException | NullPointerException exception) {
+      throw new EmailRuleProcessorException(REPLY_FROM + " is not a valid address.", exception);
+    }
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(javax.mail.Message)
+   */
+  @Override
+  public void processMessageRule(final Message message) throws EmailRuleProcessorException {
+    try {
+      if (isAutomated(message)) {
+        LOGGER.debug("--automated message, no reply sent");
+        return;
+      }
+
+      final Message reply = message.reply(false);
+      final Address[] recipients = reply.getAllRecipients();
+
+      if (recipients == null || recipients.length == 0) {
+        LOGGER.debug("--no one to reply to");
+        return;
+      }
+
+      reply.setFrom(from);
+      reply.setHeader("Auto-Submitted", "auto-replied");
+      reply.setText(text);
+
+      if (shadow) {
+        LOGGER.debug("--shadow rule set, reply to {} not sent", recipients[0]);
+        return;
+      }
+
+      sender.submit(reply);
+      LOGGER.debug("--reply queued for {}", recipients[0]);
+    } catch (MessagingException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
+  /**
+   * Checks if the message was sent by an automated process.
+   *
+   * @param message the message
+   * @return true, if is automated
+   * @throws MessagingException the messaging exception
+   */
+  static boolean isAutomated(final Message message) throws MessagingException {
+    final String[] autoSubmitted = message.getHeader("Auto-Submitted");
+
+    if (autoSubmitted != null && !"no".equalsIgnoreCase(autoSubmitted[0].trim())) {
+      return true;
+    }
+
+    final String[] precedence = message.getHeader("Precedence");
+
+    if (precedence != null) {
+      final String value = precedence[0].trim().toLowerCase();
+
+      if ("bulk".equals(value) || "junk".equals(value) || "list".equals(value)) {
+        return true;
+      }
+    }
+
+    return message.getHeader("List-Id") != null;
+  }
+}
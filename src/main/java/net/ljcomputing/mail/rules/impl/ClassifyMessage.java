@@ -0,0 +1,189 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.rules.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.mail.Flags;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.ljcomputing.mail.classify.NaiveBayesClassifier;
+import net.ljcomputing.mail.classify.NaiveBayesModel;
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.rules.DataRequirement;
+import net.ljcomputing.mail.rules.MessageContext;
+import net.ljcomputing.mail.rules.ProcessingRule;
+import net.ljcomputing.mail.rules.RuleContext;
+import net.ljcomputing.mail.service.MailProperties;
+import net.ljcomputing.mail.trace.Phase;
+import net.ljcomputing.mail.trace.Span;
+import net.ljcomputing.mail.trace.Trace;
+
+/**
+ * Email processing rule to classify the email message into a category (spam, invoices, alerts,
+ * ...) with a Naive Bayes model trained offline by {@link net.ljcomputing.mail.classify.TrainModel}.
+ * The category is set as the "category" attribute of the message context for later rules and,
+ * when so configured, as an IMAP keyword on the message.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class ClassifyMessage implements ProcessingRule {
+
+  /** The Constant logger. */
+  private final static Logger LOGGER = LoggerFactory.getLogger(ClassifyMessage.class);
+
+  /** The message context attribute holding the category. */
+  public static final String CATEGORY = "category";
+
+  /** The model file property. */
+  public static final String MODEL = "email.classify.model";
+
+  /** The most characters of a message body scanned property. */
+  public static final String MAX_CHARS = "email.classify.max.chars";
+
+  /** The least confidence for a category to be assigned property. */
+  public static final String MIN_CONFIDENCE = "email.classify.min.confidence";
+
+  /** The property controlling whether the category is set as an IMAP keyword. */
+  public static final String KEYWORD = "email.classify.keyword";
+
+  /** The model. */
+  private NaiveBayesModel model;
+
+  /** The classifier of each processing thread. */
+  private ThreadLocal<NaiveBayesClassifier> classifiers;
+
+  /** The least confidence for a category to be assigned. */
+  private double minConfidence;
+
+  /** Whether the category is set as an IMAP keyword. */
+  private boolean keyword;
+
+  /** The count of messages assigned each category. */
+  private AtomicLongArray assigned;
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#ruleName()
+   */
+  @Override
+  public String ruleName() {
+    return "Classify Message";
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#dataRequirements()
+   */
+  @Override
+  public Set<DataRequirement> dataRequirements() {
+    return EnumSet.of(DataRequirement.ENVELOPE, DataRequirement.TEXT);
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#initialize(net.ljcomputing.mail.rules.RuleContext)
+   */
+  @Override
+  public void initialize(final RuleContext context) throws EmailRuleProcessorException {
+    final MailProperties properties = context.getProperties();
+    final String modelFile = properties.valueOf(MODEL);
+
+    if (modelFile == null) {
+      throw new EmailRuleProcessorException(MODEL + " has not been configured.");
+    }
+
+    try {
+      model = new NaiveBayesModel(new File(modelFile));
+    } catch (IOException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+
+    final int maxChars = properties.intValueOf(MAX_CHARS, 65536);
+    classifiers = new ThreadLocal<NaiveBayesClassifier>() {
+      @Override
+      protected NaiveBayesClassifier initialValue() {
+        return new NaiveBayesClassifier(model, maxChars);
+      }
+    };
+    minConfidence = properties.doubleValueOf(MIN_CONFIDENCE, 0.0);
+    keyword = properties.booleanValueOf(KEYWORD, false);
+    assigned = new AtomicLongArray(model.categories());
+
+    LOGGER.info("loaded classification model {} with {} categories", modelFile,
+        model.categories());
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(javax.mail.Message)
+   */
+  @Override
+  public void processMessageRule(final Message message) throws EmailRuleProcessorException {
+    processMessageRule(new MessageContext(message));
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(net.ljcomputing.mail.rules.MessageContext)
+   */
+  @Override
+  @SuppressWarnings("try")
+  public void processMessageRule(final MessageContext context)
+      throws EmailRuleProcessorException {
+    try {
+      final NaiveBayesClassifier classifier = classifiers.get();
+      final int category = classifier.classify(context.getEmail().getSubject(),
+          context.getText());
+      final double confidence = classifier.confidence();
+
+      if (confidence < minConfidence) {
+        LOGGER.debug("--message not classified; best was {} at {}", classifier.category(),
+            confidence);
+        return;
+      }
+
+      assigned.incrementAndGet(category);
+      context.setAttribute(CATEGORY, classifier.category());
+      LOGGER.debug("--message classified as {} at {}", classifier.category(), confidence);
+
+      if (keyword) {
+        try (final Span span = Trace.begin(Phase.FLAG, classifier.category())) {
+          context.setFlags(new Flags(classifier.category()), true);
+        }
+      }
+    } catch (MessagingException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#runCompleted()
+   */
+  @Override
+  public void runCompleted() throws EmailRuleProcessorException {
+    for (int c = 0; c < assigned.length(); c++) {
+      LOGGER.info("classified {} messages as {}", assigned.getAndSet(c, 0), model.category(c));
+    }
+  }
+}
@@ -0,0 +1,275 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.rules.impl;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.mail.Flags;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import freemarker.template.Template;
+import freemarker.template.TemplateException;
+import net.ljcomputing.mail.digest.DigestItem;
+import net.ljcomputing.mail.digest.DigestSummary;
+import net.ljcomputing.mail.domain.Email;
+import net.ljcomputing.mail.domain.EmailAddress;
+import net.ljcomputing.mail.domain.MessagePart;
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.rules.DataRequirement;
+import net.ljcomputing.mail.rules.MessageContext;
+import net.ljcomputing.mail.rules.ProcessingRule;
+import net.ljcomputing.mail.rules.RuleContext;
+import net.ljcomputing.mail.service.MailProperties;
+import net.ljcomputing.mail.template.FreemarkerConfiguration;
+
+/**
+ * Email processing rule to build a digest of the processing run: totals, top senders and sender
+ * domains, the largest attachments and the flagged messages. Messages are folded into a
+ * bounded-memory summary as they are processed, and the digest is rendered once, through a
+ * plain-text Freemarker template, when the run completes. Attachment sizes come from the message
+ * structure, so no attachment is downloaded.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class DigestReport implements ProcessingRule {
+
+  /** The Constant logger. */
+  private final static Logger LOGGER = LoggerFactory.getLogger(DigestReport.class);
+
+  /** The number of entries per digest list property. */
+  public static final String SIZE = "email.digest.size";
+
+  /** The subject pattern for flagged messages property. */
+  public static final String FLAG_PATTERN = "email.digest.flag.pattern";
+
+  /** The digest template property. */
+  public static final String TEMPLATE = "email.digest.template";
+
+  /**
+   * The digest output directory property; the digest is written to standard out when unset, or
+   * under the shadow directory in a shadow rule set.
+   */
+  public static final String DIRECTORY = "email.digest.dir";
+
+  /** The number of entries per digest list. */
+  private int size = 10;
+
+  /** The subject pattern for flagged messages. */
+  private Pattern flagPattern = Pattern.compile("(?i)\\b(urgent|asap|important)\\b");
+
+  /** The digest template name. */
+  private String templateName = "digest.ftl";
+
+  /** The digest output directory. */
+  private File directory;
+
+  /** The summary of the current run. */
+  private DigestSummary summary = new DigestSummary(size);
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#ruleName()
+   */
+  @Override
+  public String ruleName() {
+    return "Digest Report";
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#dataRequirements()
+   */
+  @Override
+  public Set<DataRequirement> dataRequirements() {
+    return EnumSet.of(DataRequirement.UID_FLAGS, DataRequirement.ENVELOPE,
+        DataRequirement.STRUCTURE);
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#initialize(net.ljcomputing.mail.rules.RuleContext)
+   */
+  @Override
+  public void initialize(final RuleContext context) throws EmailRuleProcessorException {
+    final MailProperties properties = context.getProperties();
+    final String pattern = properties.valueOf(FLAG_PATTERN);
+    final String dir = properties.valueOf(DIRECTORY,
+        context.isShadow() ? new File(properties.dataDirectory(), "digest").getPath() : null);
+
+    size = properties.intValueOf(SIZE, size);
+    templateName = properties.valueOf(TEMPLATE, templateName);
+    summary = new DigestSummary(size);
+
+    if (pattern != null) {
+      flagPattern = Pattern.compile(pattern);
+    }
+
+    if (dir != null) {
+      directory = new File(dir);
+
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+        throw new EmailRuleProcessorException("cannot create digest directory " + directory);
+      }
+    }
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(javax.mail.Message)
+   */
+  @Override
+  public void processMessageRule(final Message message) throws EmailRuleProcessorException {
+    processMessageRule(new MessageContext(message));
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(net.ljcomputing.mail.rules.MessageContext)
+   */
+  @Override
+  public void processMessageRule(final MessageContext context)
+      throws EmailRuleProcessorException {
+    try {
+      final Message message = context.getMessage();
+      final Email email = context.getEmail();
+      final List<EmailAddress> from = email.getFrom();
+      final EmailAddress sender = from.isEmpty() ? null : from.get(0);
+      final String address = sender == null ? null : sender.getAddress();
+      final String subject = email.getSubject();
+
+      summary.addMessage(address, sender == null ? null : sender.getDomain(), message.getSize());
+
+      for (final MessagePart attachment : context.getParts().getAttachments()) {
+        summary.addAttachment(
+            new DigestItem(address, subject, attachment.getFilename(), attachment.getSize()));
+      }
+
+      if (message.isSet(Flags.Flag.FLAGGED)
+          || (subject != null && flagPattern.matcher(subject).find())) {
+        summary.addFlagged(new DigestItem(address, subject, null, message.getSize()));
+      }
+    } catch (MessagingException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#runCompleted()
+   */
+  @Override
+  public void runCompleted() throws EmailRuleProcessorException {
+    final DigestSummary completed = summary;
+    summary = new DigestSummary(size);
+
+    if (completed.getMessages() == 0) {
+      LOGGER.info("no messages processed; no digest written");
+      return;
+    }
+
+    final Map<String, Object> root = new HashMap<String, Object>();
+    root.put("summary", completed);
+
+    try (final Writer writer = openWriter()) {
+      final Template template = FreemarkerConfiguration.INSTANCE.configuration()
+          .getTemplate(templateName);
+      template.process(root, writer);
+      writer.flush();
+    } catch (IOException | TemplateException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
+  /**
+   * Open the digest writer: a new timestamped file in the digest directory, or standard out. Closing
+   * the standard out writer leaves standard out open.
+   *
+   * @return the writer
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private Writer openWriter() throws IOException {
+    if (directory == null) {
+      return new BufferedWriter(new OutputStreamWriter(new UncloseableOutputStream(System.out),
+          StandardCharsets.UTF_8));
+    }
+
+    final String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+    final File file = new File(directory, "digest-" + stamp + ".txt");
+    LOGGER.info("writing digest to {}", file);
+
+    return new BufferedWriter(
+        new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Output stream that flushes, but never closes, the stream it wraps.
+   */
+  private static class UncloseableOutputStream extends OutputStream {
+
+    /** The wrapped stream. */
+    private final OutputStream out;
+
+    /**
+     * Instantiates a new uncloseable output stream.
+     *
+     * @param out the out
+     */
+    private UncloseableOutputStream(final OutputStream out) {
+      this.out = out;
+    }
+
+    /**
+     * @see java.io.OutputStream#write(int)
+     */
+    @Override
+    public void write(final int b) throws IOException {
+      out.write(b);
+    }
+
+    /**
+     * @see java.io.OutputStream#write(byte[], int, int)
+     */
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+      out.write(b, off, len);
+    }
+
+    /**
+     * @see java.io.OutputStream#close()
+     */
+    @Override
+    public void close() throws IOException {
+      out.flush();
+    }
+  }
+}
@@ -0,0 +1,203 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.rules.impl;
+
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.Set;
+
+import javax.mail.Address;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.UIDFolder;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.export.HttpEventExporter;
+import net.ljcomputing.mail.export.JsonLine;
+import net.ljcomputing.mail.nio.NioMessage;
+import net.ljcomputing.mail.rules.DataRequirement;
+import net.ljcomputing.mail.rules.MessageContext;
+import net.ljcomputing.mail.rules.ProcessingRule;
+import net.ljcomputing.mail.rules.RuleContext;
+import net.ljcomputing.mail.threading.MailThread;
+
+/**
+ * Email processing rule to export a compact event for the email message (folder, UID, Message-ID,
+ * sender, subject, date, size and, when earlier rules set them, category and thread) to an HTTP
+ * endpoint. Events are batched and sent asynchronously, so the rule never waits on the remote
+ * endpoint unless the export buffer is full.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class ExportMessage implements ProcessingRule {
+
+  /** The Constant logger. */
+  private final static Logger LOGGER = LoggerFactory.getLogger(ExportMessage.class);
+
+  /** The longest subject exported. */
+  private static final int MAX_SUBJECT = 256;
+
+  /** The event exporter, or null in a shadow rule set. */
+  private HttpEventExporter exporter;
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#ruleName()
+   */
+  @Override
+  public String ruleName() {
+    return "Export Message";
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#dataRequirements()
+   */
+  @Override
+  public Set<DataRequirement> dataRequirements() {
+    return EnumSet.of(DataRequirement.UID_FLAGS, DataRequirement.ENVELOPE);
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#initialize(net.ljcomputing.mail.rules.RuleContext)
+   */
+  @Override
+  public void initialize(final RuleContext context) throws EmailRuleProcessorException {
+    if (context.isShadow()) {
+      // a shadow rule set builds the events but never exports them
+      return;
+    }
+
+    exporter = new HttpEventExporter(context.getProperties());
+    context.register(HttpEventExporter.class, exporter);
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(javax.mail.Message)
+   */
+  @Override
+  public void processMessageRule(final Message message) throws EmailRuleProcessorException {
+    processMessageRule(new MessageContext(message));
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(net.ljcomputing.mail.rules.MessageContext)
+   */
+  @Override
+  public void processMessageRule(final MessageContext context)
+      throws EmailRuleProcessorException {
+    try {
+      final Message message = context.getMessage();
+      final Folder folder = message.getFolder();
+      final JsonLine event = new JsonLine();
+
+      if (message instanceof NioMessage) {
+        final NioMessage nioMessage = (NioMessage) message;
+        event.field("folder", nioMessage.getMailbox().getFullName())
+            .field("uid", nioMessage.getUid());
+      } else if (folder instanceof UIDFolder) {
+        event.field("folder", folder.getFullName())
+            .field("uid", ((UIDFolder) folder).getUID(message));
+      }
+
+      final Object thread = context.getAttribute(ThreadMessage.THREAD);
+      event.field("messageId", message instanceof MimeMessage
+          ? ((MimeMessage) message).getMessageID() : null)
+          .field("from", sender(message.getFrom()))
+          .field("subject", truncate(message.getSubject()))
+          .field("sent", time(message.getSentDate()))
+          .field("received", time(message.getReceivedDate()))
+          .field("size", message.getSize())
+          .field("category", (String) context.getAttribute(ClassifyMessage.CATEGORY))
+          .field("thread", thread instanceof MailThread
+              ? ((MailThread) thread).getThreadId() : null)
+          .field("processed", System.currentTimeMillis());
+
+      if (exporter == null) {
+        LOGGER.debug("--shadow rule set, message event not exported");
+        return;
+      }
+
+      exporter.submit(event.toString());
+      LOGGER.debug("--message event queued for export");
+    } catch (MessagingException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#runCompleted()
+   */
+  @Override
+  public void runCompleted() throws EmailRuleProcessorException {
+    if (exporter != null) {
+      exporter.flush();
+    }
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#close()
+   */
+  @Override
+  public void close() throws EmailRuleProcessorException {
+    if (exporter != null) {
+      exporter.close();
+    }
+  }
+
+  /**
+   * The address of the first sender.
+   *
+   * @param from the senders
+   * @return the address, or null
+   */
+  private static String sender(final Address[] from) {
+    if (from == null || from.length == 0) {
+      return null;
+    }
+
+    return from[0] instanceof InternetAddress ? ((InternetAddress) from[0]).getAddress()
+        : from[0].toString();
+  }
+
+  /**
+   * The subject, cut to the longest exported.
+   *
+   * @param subject the subject
+   * @return the subject, or null
+   */
+  private static String truncate(final String subject) {
+    return subject == null || subject.length() <= MAX_SUBJECT ? subject
+        : subject.substring(0, MAX_SUBJECT);
+  }
+
+  /**
+   * The time of a date.
+   *
+   * @param date the date
+   * @return the time in milliseconds since the epoch, or -1
+   */
+  private static long time(final Date date) {
+    return date == null ? -1L : date.getTime();
+  }
+}
@@ -0,0 +1,140 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.rules.impl;
+
+import javax.mail.Message;
+import javax.mail.Message.RecipientType;
+import javax.mail.MessagingException;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.rules.ProcessingRule;
+import net.ljcomputing.mail.rules.RuleContext;
+import net.ljcomputing.mail.service.MailProperties;
+import net.ljcomputing.mail.service.MailSender;
+
+/**
+ * Email processing rule to forward the email message, as an attached message/rfc822 part, to the
+ * configured recipients (e.g. to escalate it).
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class ForwardMessage implements ProcessingRule {
+
+  /** The Constant logger. */
+  private final static Logger LOGGER = LoggerFactory.getLogger(ForwardMessage.class);
+
+  /** The forward TO addresses property (comma separated). */
+  public static final String FORWARD_TO = "email.forward.to";
+
+  /** The forward FROM address property. */
+  public static final String FORWARD_FROM = "email.forward.from";
+
+  /** The forward note property. */
+  public static final String FORWARD_TEXT = "email.forward.text";
+
+  /** The mail sender. */
+  private MailSender sender;
+
+  /** Whether forwards are built but not sent, the rule being in a shadow rule set. */
+  private boolean shadow;
+
+  /** The forward FROM address. */
+  private InternetAddress from;
+
+  /** The forward TO addresses. */
+  private InternetAddress[] to;
+
+  /** The note placed ahead of the forwarded message. */
+  private String text;
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#ruleName()
+   */
+  @Override
+  public String ruleName() {
+    return "Forward Message";
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#initialize(net.ljcomputing.mail.rules.RuleContext)
+   */
+  @Override
+  public void initialize(final RuleContext context) throws EmailRuleProcessorException {
+    final MailProperties properties = context.getProperties();
+    sender = context.service(MailSender.class);
+    shadow = context.isShadow();
+    text = properties.valueOf(FORWARD_TEXT, "Forwarded message attached.");
+
+    try {
+      from = new InternetAddress(properties.valueOf(FORWARD_FROM), true);
+      to = InternetAddress.parse(properties.valueOf(FORWARD_TO), true);
+    } catch (AddressException | NullPointerException exception) {
+      throw new EmailRuleProcessorException(
+          FORWARD_FROM + " and " + FORWARD_TO + " must be valid addresses.", exception);
+    }
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(javax.mail.Message)
+   */
+  @Override
+  public void processMessageRule(final Message message) throws EmailRuleProcessorException {
+    if (!(message instanceof MimeMessage)) {
+      throw new EmailRuleProcessorException("only MIME messages can be forwarded.");
+    }
+
+    try {
+      final String subject = message.getSubject();
+      final MimeMessage forward = sender.createMessage();
+      forward.setFrom(from);
+      forward.setRecipients(RecipientType.TO, to);
+      forward.setSubject("Fwd: " + (subject == null ? "" : subject), "UTF-8");
+
+      final MimeBodyPart note = new MimeBodyPart();
+      note.setText(text, "UTF-8");
+
+      // copy the original now; the sender writes it after the folder may have been closed
+      final MimeBodyPart original = new MimeBodyPart();
+      original.setContent(new MimeMessage((MimeMessage) message), "message/rfc822");
+
+      final MimeMultipart multipart = new MimeMultipart();
+      multipart.addBodyPart(note);
+      multipart.addBodyPart(original);
+      forward.setContent(multipart);
+
+      if (shadow) {
+        LOGGER.debug("--shadow rule set, message not forwarded");
+        return;
+      }
+
+      sender.submit(forward);
+      LOGGER.debug("--message forwarded to {} recipients", to.length);
+    } catch (MessagingException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+}
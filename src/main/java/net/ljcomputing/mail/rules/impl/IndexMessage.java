@@ -0,0 +1,121 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.rules.impl;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.ljcomputing.mail.domain.Email;
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.index.IndexDocument;
+import net.ljcomputing.mail.index.MailIndex;
+import net.ljcomputing.mail.rules.DataRequirement;
+import net.ljcomputing.mail.rules.MessageContext;
+import net.ljcomputing.mail.rules.ProcessingRule;
+import net.ljcomputing.mail.rules.RuleContext;
+
+/**
+ * Email processing rule to add the email message's envelope fields and body text to the local
+ * mail index. The index is shared with other rules through the rule context.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class IndexMessage implements ProcessingRule {
+
+  /** The Constant logger. */
+  private final static Logger LOGGER = LoggerFactory.getLogger(IndexMessage.class);
+
+  /** The mail index. */
+  private MailIndex index;
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#ruleName()
+   */
+  @Override
+  public String ruleName() {
+    return "Index Message";
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#dataRequirements()
+   */
+  @Override
+  public Set<DataRequirement> dataRequirements() {
+    return EnumSet.of(DataRequirement.ENVELOPE, DataRequirement.TEXT);
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#initialize(net.ljcomputing.mail.rules.RuleContext)
+   */
+  @Override
+  public void initialize(final RuleContext context) throws EmailRuleProcessorException {
+    index = new MailIndex(context.getProperties());
+    context.register(MailIndex.class, index);
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(javax.mail.Message)
+   */
+  @Override
+  public void processMessageRule(final Message message) throws EmailRuleProcessorException {
+    processMessageRule(new MessageContext(message));
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(net.ljcomputing.mail.rules.MessageContext)
+   */
+  @Override
+  public void processMessageRule(final MessageContext context)
+      throws EmailRuleProcessorException {
+    try {
+      final Message message = context.getMessage();
+      final Email email = context.getEmail();
+      final String messageId = message instanceof MimeMessage
+          ? ((MimeMessage) message).getMessageID() : null;
+      final int docId = index.add(IndexDocument.of(email, messageId, message.getSentDate(),
+          context.getText()));
+      LOGGER.debug("--message indexed as document {}", docId);
+    } catch (MessagingException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#runCompleted()
+   */
+  @Override
+  public void runCompleted() throws EmailRuleProcessorException {
+    index.flush();
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#close()
+   */
+  @Override
+  public void close() throws EmailRuleProcessorException {
+    index.close();
+  }
+}
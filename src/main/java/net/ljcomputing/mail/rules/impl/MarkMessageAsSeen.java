@@ -16,6 +16,10 @@
 
 package net.ljcomputing.mail.rules.impl;
 
+import java.util.EnumSet;
+import java.util.Set;
+
+import javax.mail.Flags;
 import javax.mail.Flags.Flag;
 import javax.mail.Message;
 import javax.mail.MessagingException;
@@ -24,7 +28,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.rules.DataRequirement;
+import net.ljcomputing.mail.rules.MessageContext;
 import net.ljcomputing.mail.rules.ProcessingRule;
+import net.ljcomputing.mail.trace.Phase;
+import net.ljcomputing.mail.trace.Span;
+import net.ljcomputing.mail.trace.Trace;
 
 /**
  * Email processing rule to mark the email message as seen.
@@ -45,13 +54,31 @@ public class MarkMessageAsSeen implements ProcessingRule {
     return "Mark Message As Seen";
   }
 
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#dataRequirements()
+   */
+  @Override
+  public Set<DataRequirement> dataRequirements() {
+    return EnumSet.of(DataRequirement.UID_FLAGS);
+  }
+
   /**
    * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(javax.mail.Message)
    */
   @Override
   public void processMessageRule(final Message message) throws EmailRuleProcessorException {
-    try {
-      message.setFlag(Flag.SEEN, true);
+    processMessageRule(new MessageContext(message));
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(net.ljcomputing.mail.rules.MessageContext)
+   */
+  @Override
+  @SuppressWarnings("try")
+  public void processMessageRule(final MessageContext context)
+      throws EmailRuleProcessorException {
+    try (final Span span = Trace.begin(Phase.FLAG, "\\Seen")) {
+      context.setFlags(new Flags(Flag.SEEN), true);
       LOGGER.debug("--message marked as seen");
     } catch (MessagingException exception) {
       LOGGER.error("FATAL: ", exception);
@@ -16,29 +16,25 @@
 
 package net.ljcomputing.mail.rules.impl;
 
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-
-import javax.mail.BodyPart;
+import java.util.EnumSet;
+import java.util.Set;
+
 import javax.mail.Message;
 import javax.mail.MessagingException;
-import javax.mail.Multipart;
-import javax.mail.internet.MimeMessage;
-import javax.mail.internet.MimeMultipart;
 
 import org.jsoup.Jsoup;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import net.ljcomputing.mail.domain.MessagePart;
 import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.rules.DataRequirement;
+import net.ljcomputing.mail.rules.MessageContext;
 import net.ljcomputing.mail.rules.ProcessingRule;
 
 /**
- * Email processing rule to print the content of an email message.
+ * Email processing rule to print the content of an email message. Only the body text parts are
+ * fetched; attachments are left on the server.
  * 
  * @author James G. Willmore
  *
@@ -57,160 +53,71 @@ public class PrintMessageContent implements ProcessingRule {
   }
 
   /**
-   * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(javax.mail.Message)
+   * @see net.ljcomputing.mail.rules.ProcessingRule#dataRequirements()
    */
   @Override
-  public void processMessageRule(final Message message) throws EmailRuleProcessorException {
-    try {
-      final Object content = message.getContent();
-
-      if (content instanceof Multipart) {
-        processMultiPart(message, (Multipart) content);
-      } else {
-        print(content);
-      }
-    } catch (EmailRuleProcessorException | IOException | MessagingException exception) {
-      throw new EmailRuleProcessorException(exception);
-    }
+  public Set<DataRequirement> dataRequirements() {
+    return EnumSet.of(DataRequirement.STRUCTURE, DataRequirement.TEXT);
   }
 
   /**
-   * Prints the message content.
-   *
-   * @param content the content
+   * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(javax.mail.Message)
    */
-  private static void print(final Object content) throws EmailRuleProcessorException {
-    LOGGER.debug("--message content: {}", content);
+  @Override
+  public void processMessageRule(final Message message) throws EmailRuleProcessorException {
+    processMessageRule(new MessageContext(message));
   }
 
   /**
-   * Process multi part.
-   *
-   * @param multiPart the multi part
-   * @throws EmailRuleProcessorException the email rule processor exception
+   * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(net.ljcomputing.mail.rules.MessageContext)
    */
-  private void processMultiPart(final Message message, final Multipart multiPart)
+  @Override
+  public void processMessageRule(final MessageContext context)
       throws EmailRuleProcessorException {
-    try {
-      final String messageId = ((MimeMessage) message).getMessageID();
-
-      for (int mp = 0; mp < multiPart.getCount(); mp++) {
-        final BodyPart bodyPart = multiPart.getBodyPart(mp);
+    context.require(DataRequirement.TEXT);
 
-        LOGGER.debug("------>>>>> MIME type: {}", bodyPart.getContentType());
-
-        if (bodyPart.isMimeType("multipart/*")) {
-          processMultiPart(message, (MimeMultipart) bodyPart.getContent());
-        } else if (bodyPart.isMimeType("text/plain")) {
-          processText(bodyPart);
-        } else if (bodyPart.isMimeType("text/html")) {
-          processHtml(bodyPart);
+    try {
+      for (final MessagePart part : context.getParts().getParts()) {
+        LOGGER.debug("------>>>>> MIME type: {} (section {})", part.getMimeType(),
+            part.getSection());
+
+        if (!part.isText()) {
+          continue;
+        } else if ("text/html".equals(part.getMimeType())) {
+          processHtml(context.getText(part));
         } else {
-          processAttachment(messageId, bodyPart);
+          processText(context.getText(part));
         }
       }
-    } catch (IOException | MessagingException exception) {
-      throw new EmailRuleProcessorException(exception);
-    }
-  }
-
-  /**
-   * Process text.
-   *
-   * @param bodyPart the body part
-   * @throws EmailRuleProcessorException the email rule processor exception
-   */
-  private void processText(final BodyPart bodyPart) throws EmailRuleProcessorException {
-    try {
-      print(bodyPart.getContent());
-    } catch (IOException | MessagingException exception) {
+    } catch (MessagingException exception) {
       throw new EmailRuleProcessorException(exception);
     }
   }
 
   /**
-   * Process html.
-   *
-   * @param bodyPart the body part
-   * @throws EmailRuleProcessorException the email rule processor exception
-   */
-  private void processHtml(final BodyPart bodyPart) throws EmailRuleProcessorException {
-    try {
-      print(Jsoup.parse((String) bodyPart.getContent()).text());
-    } catch (IOException | MessagingException exception) {
-      throw new EmailRuleProcessorException(exception);
-    }
-  }
-
-  /**
-   * Process attachment.
+   * Prints the message content.
    *
-   * @param bodyPart the body part
-   * @throws EmailRuleProcessorException the email rule processor exception
+   * @param content the content
    */
-  private void processAttachment(final String messageId, final BodyPart bodyPart)
-      throws EmailRuleProcessorException {
-    try {
-      final String messageIdDirectory = messageIdDirectory(messageId);
-      final String filename = bodyPart.getFileName();
-
-      final InputStream is = bodyPart.getInputStream();
-      final OutputStream os = new BufferedOutputStream(
-          new FileOutputStream(attachmentFile(messageIdDirectory, filename)));
-
-      byte[] buf = new byte[1024];
-      int bytesRead;
-
-      while ((bytesRead = is.read(buf)) > 0) {
-        os.write(buf, 0, bytesRead);
-      }
-
-      is.close();
-      os.close();
-    } catch (IOException | MessagingException exception) {
-      throw new EmailRuleProcessorException(exception);
-    }
+  private static void print(final Object content) {
+    LOGGER.debug("--message content: {}", content);
   }
 
   /**
-   * Message id directory.
+   * Process text.
    *
-   * @param messageId the message id
-   * @return the string
+   * @param text the text of the part
    */
-  private String messageIdDirectory(final String messageId) {
-    final String raw = messageId.replaceAll("<", "").replaceAll(">", "");
-    final String newMessageId = raw.substring(0, raw.indexOf("@"));
-
-    final StringBuilder builder = new StringBuilder()
-        .append(System.getProperty("java.io.tmpdir")).append(System.getProperty("file.separator"))
-        .append(newMessageId);
-
-    final String directory = builder.toString();
-    final File directoryFile = new File(builder.toString());
-    directoryFile.mkdir();
-
-    return directory;
+  private void processText(final String text) {
+    print(text);
   }
 
   /**
-   * Attachment file.
+   * Process html.
    *
-   * @param messageIdDirectory the message id directory
-   * @param filename the filename
-   * @return the file
-   * @throws IOException Signals that an I/O exception has occurred.
+   * @param html the html of the part
    */
-  private File attachmentFile(final String messageIdDirectory, final String filename)
-      throws IOException {
-    final StringBuilder builder = new StringBuilder(messageIdDirectory)
-        .append(System.getProperty("file.separator")).append(filename);
-    final File file = new File(builder.toString());
-    
-    if (!file.exists()) {
-      file.createNewFile();
-    }
-
-    return file;
+  private void processHtml(final String html) {
+    print(Jsoup.parse(html).text());
   }
 }
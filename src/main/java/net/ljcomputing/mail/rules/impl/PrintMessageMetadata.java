@@ -16,7 +16,9 @@
 
 package net.ljcomputing.mail.rules.impl;
 
+import java.util.EnumSet;
 import java.util.Enumeration;
+import java.util.Set;
 
 import javax.mail.Address;
 import javax.mail.Header;
@@ -27,6 +29,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.rules.DataRequirement;
 import net.ljcomputing.mail.rules.ProcessingRule;
 
 /**
@@ -48,6 +51,14 @@ public class PrintMessageMetadata implements ProcessingRule {
     return "Print Message Metadata";
   }
 
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#dataRequirements()
+   */
+  @Override
+  public Set<DataRequirement> dataRequirements() {
+    return EnumSet.of(DataRequirement.ENVELOPE, DataRequirement.HEADERS);
+  }
+
   /**
    * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(javax.mail.Message)
    */
@@ -17,14 +17,18 @@
 package net.ljcomputing.mail.rules.impl;
 
 import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 
 import javax.mail.Message;
-import javax.mail.MessagingException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,11 +38,15 @@ import freemarker.template.Template;
 import freemarker.template.TemplateException;
 import net.ljcomputing.mail.domain.Email;
 import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.rules.DataRequirement;
+import net.ljcomputing.mail.rules.MessageContext;
 import net.ljcomputing.mail.rules.ProcessingRule;
+import net.ljcomputing.mail.rules.RuleContext;
 import net.ljcomputing.mail.template.FreemarkerConfiguration;
 
 /**
- * Email processing rule to print the email message using a Freemarker template.
+ * Email processing rule to print the email message using a Freemarker template. In a shadow rule
+ * set the messages are appended to printed-messages.txt under the shadow directory instead.
  * 
  * @author James G. Willmore
  *
@@ -50,6 +58,9 @@ public class PrintMessageUsingTemplate implements ProcessingRule {
   
   private static final Configuration FREEMARKER_CFG = FreemarkerConfiguration.INSTANCE.configuration();
 
+  /** The output of a shadow rule set, which never prints to standard out, or null. */
+  private Writer shadowOutput;
+
   /**
    * @see net.ljcomputing.mail.rules.ProcessingRule#ruleName()
    */
@@ -58,24 +69,80 @@ public class PrintMessageUsingTemplate implements ProcessingRule {
     return "Print Message Using Template";
   }
 
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#dataRequirements()
+   */
+  @Override
+  public Set<DataRequirement> dataRequirements() {
+    return EnumSet.of(DataRequirement.ENVELOPE);
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#initialize(net.ljcomputing.mail.rules.RuleContext)
+   */
+  @Override
+  public void initialize(final RuleContext context) throws EmailRuleProcessorException {
+    if (!context.isShadow()) {
+      return;
+    }
+
+    final File file = new File(context.getProperties().dataDirectory(), "printed-messages.txt");
+
+    try {
+      shadowOutput = new BufferedWriter(
+          new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+    } catch (IOException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
   /**
    * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(javax.mail.Message)
    */
-  @SuppressWarnings({ "unchecked", "rawtypes" })
   @Override
   public void processMessageRule(final Message message) throws EmailRuleProcessorException {
+    processMessageRule(new MessageContext(message));
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(net.ljcomputing.mail.rules.MessageContext)
+   */
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  @Override
+  public void processMessageRule(final MessageContext context)
+      throws EmailRuleProcessorException {
     try {
-      Email email = new Email(message);
+      final Email email = context.getEmail();
       LOGGER.debug("--==>> Email: {}", email);
       
       final Map root = new HashMap();
       root.put("email", email);
       
       Template template = FREEMARKER_CFG.getTemplate("sample_email.ftlh");
-      final Writer writer = new BufferedWriter(new OutputStreamWriter(System.out));
+      final Writer writer = shadowOutput != null ? shadowOutput
+          : new BufferedWriter(new OutputStreamWriter(System.out));
       template.process(root, writer);
+      writer.flush();
       
-    } catch (MessagingException | IOException | TemplateException exception) {
+    } catch (IOException | TemplateException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#close()
+   */
+  @Override
+  public void close() throws EmailRuleProcessorException {
+    if (shadowOutput == null) {
+      return;
+    }
+
+    try {
+      shadowOutput.close();
+    } catch (IOException exception) {
       LOGGER.error("FATAL: ", exception);
       throw new EmailRuleProcessorException(exception);
     }
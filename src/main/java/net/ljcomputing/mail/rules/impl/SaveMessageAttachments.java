@@ -0,0 +1,187 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.rules.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.EnumSet;
+import java.util.Set;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.ljcomputing.mail.attachment.AttachmentReference;
+import net.ljcomputing.mail.attachment.AttachmentStore;
+import net.ljcomputing.mail.domain.MessagePart;
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.rules.DataRequirement;
+import net.ljcomputing.mail.rules.MessageContext;
+import net.ljcomputing.mail.rules.ProcessingRule;
+import net.ljcomputing.mail.rules.RuleContext;
+
+/**
+ * Email processing rule to save the email message's attachments to the attachment store, which
+ * the rule opens and shares with other rules through the rule context. Each attachment is
+ * downloaded on its own, only as it is stored.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class SaveMessageAttachments implements ProcessingRule {
+
+  /** The Constant logger. */
+  private final static Logger LOGGER = LoggerFactory.getLogger(SaveMessageAttachments.class);
+
+  /** The attachment store, or null in a shadow rule set, which stores nothing. */
+  private AttachmentStore attachmentStore;
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#ruleName()
+   */
+  @Override
+  public String ruleName() {
+    return "Save Message Attachments";
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#dataRequirements()
+   */
+  @Override
+  public Set<DataRequirement> dataRequirements() {
+    return EnumSet.of(DataRequirement.ENVELOPE, DataRequirement.STRUCTURE,
+        DataRequirement.ATTACHMENTS);
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#initialize(net.ljcomputing.mail.rules.RuleContext)
+   */
+  @Override
+  public void initialize(final RuleContext context) throws EmailRuleProcessorException {
+    if (!context.isShadow()) {
+      attachmentStore = new AttachmentStore(context.getProperties());
+      context.register(AttachmentStore.class, attachmentStore);
+    }
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(javax.mail.Message)
+   */
+  @Override
+  public void processMessageRule(final Message message) throws EmailRuleProcessorException {
+    processMessageRule(new MessageContext(message));
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(net.ljcomputing.mail.rules.MessageContext)
+   */
+  @Override
+  public void processMessageRule(final MessageContext context)
+      throws EmailRuleProcessorException {
+    try {
+      final Message message = context.getMessage();
+      final String messageId = message instanceof MimeMessage
+          ? ((MimeMessage) message).getMessageID() : null;
+
+      for (final MessagePart attachment : context.getParts().getAttachments()) {
+        processAttachment(context, messageId, attachment);
+      }
+    } catch (MessagingException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#runCompleted()
+   */
+  @Override
+  public void runCompleted() throws EmailRuleProcessorException {
+    if (attachmentStore == null) {
+      return;
+    }
+
+    try {
+      attachmentStore.flush();
+    } catch (IOException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#close()
+   */
+  @Override
+  public void close() throws EmailRuleProcessorException {
+    if (attachmentStore == null) {
+      return;
+    }
+
+    try {
+      attachmentStore.close();
+    } catch (IOException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
+  /**
+   * Process attachment, streaming it from the server under the context's limit.
+   *
+   * @param context the message context
+   * @param messageId the message id
+   * @param attachment the attachment
+   * @throws EmailRuleProcessorException the email rule processor exception
+   * @throws MessagingException the messaging exception
+   */
+  private void processAttachment(final MessageContext context, final String messageId,
+      final MessagePart attachment) throws EmailRuleProcessorException, MessagingException {
+    if (attachmentStore == null) {
+      LOGGER.debug("--shadow rule set, attachment of {} bytes not stored",
+          context.read(attachment, SaveMessageAttachments::discard));
+      return;
+    }
+
+    final String filename = attachment.getFilename();
+    final AttachmentReference reference = context.read(attachment,
+        is -> attachmentStore.store(messageId, filename, is));
+    LOGGER.debug("------>>>>> attachment: {}", reference);
+  }
+
+  /**
+   * Read an attachment through to the end without keeping it.
+   *
+   * @param is the attachment stream
+   * @return the count of bytes read
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static long discard(final InputStream is) throws IOException {
+    final byte[] buffer = new byte[8192];
+    long bytes = 0;
+    int read;
+
+    while ((read = is.read(buffer)) != -1) {
+      bytes += read;
+    }
+
+    return bytes;
+  }
+}
@@ -0,0 +1,163 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.rules.impl;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.rules.DataRequirement;
+import net.ljcomputing.mail.rules.MessageContext;
+import net.ljcomputing.mail.rules.ProcessingRule;
+import net.ljcomputing.mail.rules.RuleContext;
+import net.ljcomputing.mail.threading.MailThread;
+import net.ljcomputing.mail.threading.ThreadIndex;
+
+/**
+ * Email processing rule to attach the email message to its conversation in the thread index. The
+ * thread is set as the "thread" attribute of the message context for later rules, which may also
+ * query the index itself through the rule context. Messages of a thread that has grown beyond the
+ * configured number of replies are marked with the "escalate" attribute.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class ThreadMessage implements ProcessingRule {
+
+  /** The Constant logger. */
+  private final static Logger LOGGER = LoggerFactory.getLogger(ThreadMessage.class);
+
+  /** The message context attribute holding the thread. */
+  public static final String THREAD = "thread";
+
+  /** The message context attribute set when the thread has too many replies. */
+  public static final String ESCALATE = "escalate";
+
+  /** The most replies before a thread is escalated property; zero never escalates. */
+  public static final String ESCALATE_REPLIES = "email.thread.escalate.replies";
+
+  /** The thread index. */
+  private ThreadIndex index;
+
+  /** The most replies before a thread is escalated. */
+  private int escalateReplies;
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#ruleName()
+   */
+  @Override
+  public String ruleName() {
+    return "Thread Message";
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#dataRequirements()
+   */
+  @Override
+  public Set<DataRequirement> dataRequirements() {
+    return EnumSet.of(DataRequirement.ENVELOPE, DataRequirement.HEADERS);
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#initialize(net.ljcomputing.mail.rules.RuleContext)
+   */
+  @Override
+  public void initialize(final RuleContext context) throws EmailRuleProcessorException {
+    index = new ThreadIndex(context.getProperties());
+    escalateReplies = context.getProperties().intValueOf(ESCALATE_REPLIES, 0);
+    context.register(ThreadIndex.class, index);
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(javax.mail.Message)
+   */
+  @Override
+  public void processMessageRule(final Message message) throws EmailRuleProcessorException {
+    processMessageRule(new MessageContext(message));
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(net.ljcomputing.mail.rules.MessageContext)
+   */
+  @Override
+  public void processMessageRule(final MessageContext context)
+      throws EmailRuleProcessorException {
+    try {
+      final Message message = context.getMessage();
+      final String messageId = ThreadIndex.messageId(header(message, "Message-ID"));
+
+      if (messageId == null) {
+        LOGGER.debug("--message has no Message-ID to thread");
+        return;
+      }
+
+      final MailThread thread = index.add(messageId, ThreadIndex.references(
+          header(message, "References"), header(message, "In-Reply-To")), message.getSubject());
+      context.setAttribute(THREAD, thread);
+      LOGGER.debug("--message threaded into {}", thread);
+
+      if (escalateReplies > 0 && thread.getReplyCount() > escalateReplies) {
+        context.setAttribute(ESCALATE, Boolean.TRUE);
+
+        if (thread.getReplyCount() == escalateReplies + 1) {
+          LOGGER.warn("thread {} has grown beyond {} replies", thread.getThreadId(),
+              escalateReplies);
+        }
+      }
+    } catch (MessagingException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#runCompleted()
+   */
+  @Override
+  public void runCompleted() throws EmailRuleProcessorException {
+    index.flush();
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#close()
+   */
+  @Override
+  public void close() throws EmailRuleProcessorException {
+    index.close();
+  }
+
+  /**
+   * The first value of a header, unfolded into a single line.
+   *
+   * @param message the message
+   * @param name the header name
+   * @return the value, or null if the message lacks the header
+   * @throws MessagingException the messaging exception
+   */
+  private static String header(final Message message, final String name)
+      throws MessagingException {
+    final String[] values = message.getHeader(name);
+
+    return values == null || values.length == 0 ? null : values[0];
+  }
+}
@@ -0,0 +1,202 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.rules.impl;
+
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.UIDFolder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.ljcomputing.mail.domain.Email;
+import net.ljcomputing.mail.domain.EmailAddress;
+import net.ljcomputing.mail.domain.MessagePart;
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.metadata.MetadataRow;
+import net.ljcomputing.mail.metadata.MetadataWriter;
+import net.ljcomputing.mail.nio.NioMessage;
+import net.ljcomputing.mail.rules.DataRequirement;
+import net.ljcomputing.mail.rules.MessageContext;
+import net.ljcomputing.mail.rules.ProcessingRule;
+import net.ljcomputing.mail.rules.RuleContext;
+
+/**
+ * Email processing rule to write the email message's metadata (folder, UID, dates, size, sender
+ * domain, recipient count, attachment count and bytes, and the microseconds each earlier rule
+ * took over it) as one row of a columnar metadata file, for analysis with
+ * {@link net.ljcomputing.mail.metadata.MetadataReader}. Only the rules run before this one are
+ * timed, so it is best configured last.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class WriteMessageMetadata implements ProcessingRule {
+
+  /** The Constant logger. */
+  private final static Logger LOGGER = LoggerFactory.getLogger(WriteMessageMetadata.class);
+
+  /** The folder column. */
+  public static final String FOLDER = "folder";
+
+  /** The UID column. */
+  public static final String UID = "uid";
+
+  /** The received date (milliseconds since the epoch) column. */
+  public static final String RECEIVED = "received";
+
+  /** The sent date (milliseconds since the epoch) column. */
+  public static final String SENT = "sent";
+
+  /** The size (bytes) column. */
+  public static final String SIZE = "size";
+
+  /** The sender domain column. */
+  public static final String SENDER_DOMAIN = "senderDomain";
+
+  /** The recipient count column. */
+  public static final String RECIPIENTS = "recipients";
+
+  /** The attachment count column. */
+  public static final String ATTACHMENTS = "attachments";
+
+  /** The attachment size (bytes) column. */
+  public static final String ATTACHMENT_BYTES = "attachmentBytes";
+
+  /** The prefix of the rule time (microseconds) columns, followed by the rule name. */
+  public static final String RULE_PREFIX = "rule.";
+
+  /** The metadata writer. */
+  private MetadataWriter writer;
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#ruleName()
+   */
+  @Override
+  public String ruleName() {
+    return "Write Message Metadata";
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#dataRequirements()
+   */
+  @Override
+  public Set<DataRequirement> dataRequirements() {
+    return EnumSet.of(DataRequirement.UID_FLAGS, DataRequirement.ENVELOPE,
+        DataRequirement.STRUCTURE);
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#initialize(net.ljcomputing.mail.rules.RuleContext)
+   */
+  @Override
+  public void initialize(final RuleContext context) throws EmailRuleProcessorException {
+    writer = new MetadataWriter(context.getProperties());
+    context.register(MetadataWriter.class, writer);
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(javax.mail.Message)
+   */
+  @Override
+  public void processMessageRule(final Message message) throws EmailRuleProcessorException {
+    processMessageRule(new MessageContext(message));
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(net.ljcomputing.mail.rules.MessageContext)
+   */
+  @Override
+  public void processMessageRule(final MessageContext context)
+      throws EmailRuleProcessorException {
+    try {
+      final Message message = context.getMessage();
+      final Folder folder = message.getFolder();
+      final Email email = context.getEmail();
+      final MetadataRow row = new MetadataRow();
+
+      if (message instanceof NioMessage) {
+        final NioMessage nioMessage = (NioMessage) message;
+        row.set(FOLDER, nioMessage.getMailbox().getFullName()).set(UID, nioMessage.getUid());
+      } else if (folder instanceof UIDFolder) {
+        row.set(FOLDER, folder.getFullName()).set(UID, ((UIDFolder) folder).getUID(message));
+      }
+
+      final List<EmailAddress> from = email.getFrom();
+      row.set(RECEIVED, time(message.getReceivedDate()))
+          .set(SENT, time(message.getSentDate()))
+          .set(SIZE, message.getSize())
+          .set(SENDER_DOMAIN, from.isEmpty() ? null : from.get(0).getDomain())
+          .set(RECIPIENTS, email.getTo().size() + email.getCc().size() + email.getBcc().size());
+
+      int attachments = 0;
+      long attachmentBytes = 0;
+
+      for (final MessagePart part : context.getParts().getAttachments()) {
+        attachments++;
+        attachmentBytes += Math.max(part.getSize(), 0);
+      }
+
+      row.set(ATTACHMENTS, attachments).set(ATTACHMENT_BYTES, attachmentBytes);
+
+      for (final Map.Entry<String, Long> ruleTime : context.getRuleTimes().entrySet()) {
+        row.set(RULE_PREFIX + ruleTime.getKey(),
+            TimeUnit.NANOSECONDS.toMicros(ruleTime.getValue()));
+      }
+
+      writer.append(row);
+      LOGGER.debug("--message metadata written");
+    } catch (MessagingException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#runCompleted()
+   */
+  @Override
+  public void runCompleted() throws EmailRuleProcessorException {
+    writer.flush();
+  }
+
+  /**
+   * @see net.ljcomputing.mail.rules.ProcessingRule#close()
+   */
+  @Override
+  public void close() throws EmailRuleProcessorException {
+    writer.close();
+  }
+
+  /**
+   * The time of a date.
+   *
+   * @param date the date
+   * @return the time in milliseconds since the epoch, or -1
+   */
+  private static long time(final Date date) {
+    return date == null ? -1L : date.getTime();
+  }
+}
@@ -16,26 +16,76 @@
 
 package net.ljcomputing.mail.service;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.LongStream;
 
+import javax.mail.FetchProfile;
 import javax.mail.Flags;
 import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.Store;
+import javax.mail.UIDFolder;
+import javax.mail.event.MailEvent;
+import javax.mail.event.MessageChangedEvent;
 import javax.mail.search.FlagTerm;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.MessageVanishedEvent;
+import com.sun.mail.imap.ResyncData;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.IMAPResponse;
+
+import net.ljcomputing.mail.bulkhead.RuleBulkheads;
+import net.ljcomputing.mail.dedup.MessageDeduplicator;
+import net.ljcomputing.mail.domain.AddressPool;
 import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.journal.ProcessingJournal;
+import net.ljcomputing.mail.lease.Lease;
+import net.ljcomputing.mail.lease.LeaseCoordinator;
+import net.ljcomputing.mail.limit.AdaptiveLimiter;
+import net.ljcomputing.mail.limit.HostLimiters;
+import net.ljcomputing.mail.nio.ImapEngine;
+import net.ljcomputing.mail.nio.NioMailbox;
+import net.ljcomputing.mail.nio.NioMessage;
+import net.ljcomputing.mail.priority.PriorityScheduler;
+import net.ljcomputing.mail.priority.PriorityScorer;
+import net.ljcomputing.mail.rules.DataRequirement;
+import net.ljcomputing.mail.rules.MessageContext;
 import net.ljcomputing.mail.rules.ProcessingRule;
+import net.ljcomputing.mail.rules.RuleContext;
+import net.ljcomputing.mail.rules.RuleKeyComparator;
+import net.ljcomputing.mail.shadow.RuleProfile;
+import net.ljcomputing.mail.shadow.ShadowRuleSet;
+import net.ljcomputing.mail.stats.SenderStatsStore;
+import net.ljcomputing.mail.sync.FolderScanner;
+import net.ljcomputing.mail.sync.FolderState;
+import net.ljcomputing.mail.sync.FolderStateStore;
+import net.ljcomputing.mail.trace.ChromeTraceWriter;
+import net.ljcomputing.mail.trace.Phase;
+import net.ljcomputing.mail.trace.Span;
+import net.ljcomputing.mail.trace.Trace;
 
 /**
  * An email rules processor.
@@ -43,19 +93,79 @@ import net.ljcomputing.mail.rules.ProcessingRule;
  * @author James G. Willmore
  *
  */
-public class EmailRulesProcessor {
+public class EmailRulesProcessor implements AutoCloseable {
 
   /** The Constant logger. */
   private final static Logger LOGGER = LoggerFactory.getLogger(EmailRulesProcessor.class);
 
+  /** The journal name of the SEEN flag. */
+  private static final String SEEN = "\\Seen";
+
+  /** The number of messages per processing window property. */
+  public static final String WINDOW_SIZE = "email.window.size";
+
+  /** The IMAP engine property: javamail (the default) or nio. */
+  public static final String ENGINE = "email.imap.engine";
+
+  /** The search for unseen messages. */
+  private static final FlagTerm UNSEEN = new FlagTerm(new Flags(Flags.Flag.SEEN), false);
+
   /** The JavaMail properties "helper". */
   private final MailProperties props;
 
   /** The email session. */
   private final Session session;
 
-  /** The email processing rules. */
-  private final Set<ProcessingRule> processingRules = new HashSet<ProcessingRule>();
+  /** The email processing rules, in the order they are configured. */
+  private final List<ProcessingRule> processingRules = new ArrayList<ProcessingRule>();
+
+  /** The number of messages per processing window. */
+  private final int windowSize;
+
+  /** The message data the rules and services read. */
+  private final Set<DataRequirement> requirements = EnumSet.noneOf(DataRequirement.class);
+
+  /** The context shared with the processing rules. */
+  private final RuleContext ruleContext;
+
+  /** The SMTP mail sender, if SMTP has been configured. */
+  private MailSender mailSender;
+
+  /** The Message-ID de-duplicator, if de-duplication has been enabled. */
+  private MessageDeduplicator deduplicator;
+
+  /** The write-ahead processing journal, if journaling has been enabled. */
+  private ProcessingJournal journal;
+
+  /** The folder states of the last completed runs, if resynchronization has been enabled. */
+  private FolderStateStore folderStates;
+
+  /** The changed-folder scanner, if folder-wide processing has been enabled. */
+  private FolderScanner folders;
+
+  /** The UID-range lease coordinator, if leasing has been enabled. */
+  private LeaseCoordinator leases;
+
+  /** The sender statistics, if they have been enabled. */
+  private SenderStatsStore senderStats;
+
+  /** The per-rule bulkheads, if they have been enabled. */
+  private RuleBulkheads bulkheads;
+
+  /** The shadow rule set, if one has been configured. */
+  private ShadowRuleSet shadow;
+
+  /** The priority scheduler, if priority scheduling has been enabled. */
+  private PriorityScheduler scheduler;
+
+  /** The non-blocking IMAP engine, if it has been selected. */
+  private ImapEngine nioEngine;
+
+  /** The adaptive IMAP concurrency limiters, by host. */
+  private final HostLimiters limiters;
+
+  /** The IMAP concurrency limiter for the mailbox host. */
+  private final AdaptiveLimiter imap;
 
   /**
    * Instantiates a new mail processor.
@@ -64,18 +174,49 @@ public class EmailRulesProcessor {
    * @throws EmailRuleProcessorException the mail processor exception
    */
   public EmailRulesProcessor(final Properties properties) throws EmailRuleProcessorException {
-    this.props = new MailProperties(properties);
-    this.session = Session.getDefaultInstance(properties, null);
-    loadProcessingRules();
+    final Properties applicationProperties = loadProperties();
+    applicationProperties.putAll(properties);
+
+    this.props = new MailProperties(applicationProperties);
+    this.session = Session.getInstance(properties, null);
+    this.ruleContext = new RuleContext(props);
+    this.limiters = new HostLimiters(props);
+    this.imap = limiters.forHost(props.valueOf(MailProps.HOST));
+    this.windowSize = Math.max(1, props.intValueOf(WINDOW_SIZE, 1000));
+    initializeServices();
+    loadProcessingRules(applicationProperties);
+
+    for (final DataRequirement requirement : EnumSet.copyOf(requirements)) {
+      if (requirement.needsStructure()) {
+        requirements.add(DataRequirement.STRUCTURE);
+      }
+    }
+
+    LOGGER.info("rules read {}", requirements);
+
+    if (shadow != null) {
+      shadow.start(requirements, session);
+    }
   }
 
   /**
-   * Process inbox.
+   * Process inbox, or every folder changed since it was last processed when folder-wide
+   * processing has been enabled.
    *
    * @throws MessagingException the messaging exception
    * @throws IOException Signals that an I/O exception has occurred.
    */
   public void processInbox() throws EmailRuleProcessorException {
+    if (nioEngine != null) {
+      processNioInbox();
+      return;
+    }
+
+    if (folders != null) {
+      processFolders();
+      return;
+    }
+
     try {
       final Store store = connect();
       final Folder inbox = store.getFolder("INBOX");
@@ -84,26 +225,753 @@ public class EmailRulesProcessor {
         throw new EmailRuleProcessorException("no inbox found.");
       }
 
-      inbox.open(Folder.READ_WRITE);
+      final Map<String, FolderState> opened = new HashMap<String, FolderState>();
+      processFolder(store, inbox, opened);
+      completeRun();
+      saveFolderStates(opened);
 
-      final Message[] messages = inbox.search(new FlagTerm(new Flags(Flags.Flag.SEEN), false));
-      LOGGER.info("inbox contains {} unseen messages", messages.length);
+      imap.call(() -> {
+        store.close();
+        return null;
+      });
+      limiters.report();
+    } catch (MessagingException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
 
-      for (int i = 0; i < messages.length; i++) {
-        LOGGER.info("............ PROCESSING MESSAGE: {}", i);
+  /**
+   * Process every folder changed since its last checkpoint, a number of folders at a time, and
+   * checkpoint the folders processed once the run has completed. A failing folder does not stop
+   * the others; it is not checkpointed, so it is processed again by the next run.
+   *
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  private void processFolders() throws EmailRuleProcessorException {
+    try {
+      final Store store = connect();
+      final Map<String, FolderState> opened = new ConcurrentHashMap<String, FolderState>();
+      EmailRuleProcessorException failure = null;
+
+      try {
+        folders.process(folders.changed(store), folder -> processFolder(store, folder, opened));
+      } catch (EmailRuleProcessorException exception) {
+        failure = exception;
+      }
+
+      completeRun();
+      saveFolderStates(opened);
+      folders.checkpoint();
+
+      imap.call(() -> {
+        store.close();
+        return null;
+      });
+      limiters.report();
+
+      if (failure != null) {
+        throw failure;
+      }
+    } catch (MessagingException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
+  /**
+   * Process the unseen messages of a folder, only those changed since the last run when the
+   * folder can be resynchronized, and close it. Once processed, the state the folder was opened
+   * in is added to the states to save when the run has completed.
+   *
+   * @param store the store
+   * @param folder the folder
+   * @param opened the folder states to save, by folder key
+   * @throws EmailRuleProcessorException the email rule processor exception
+   * @throws MessagingException the messaging exception
+   */
+  @SuppressWarnings("try")
+  private void processFolder(final Store store, final Folder folder,
+      final Map<String, FolderState> opened)
+      throws EmailRuleProcessorException, MessagingException {
+    final String folderKey = folderStates == null ? null
+        : FolderStateStore.keyOf(props.valueOf(MailProps.USERNAME),
+            props.valueOf(MailProps.HOST), folder.getFullName());
+    final boolean condstore = folderKey != null && folder instanceof IMAPFolder
+        && store instanceof IMAPStore && ((IMAPStore) store).hasCapability("CONDSTORE");
+    final long[] changed = openFolder(store, folder, condstore,
+        condstore ? folderStates.get(folderKey) : null);
+    final FolderState state = condstore ? new FolderState(((UIDFolder) folder).getUIDValidity(),
+        ((IMAPFolder) folder).getHighestModSeq()) : null;
+
+    if (changed != null) {
+      LOGGER.info("{} holds {} unseen messages changed since the last run",
+          folder.getFullName(), changed.length);
+      processWindows(folder, prioritized(folder, changed));
+    } else if (folder instanceof UIDFolder) {
+      final long[] unseen = searchUnseen(folder);
+      LOGGER.info("{} contains {} unseen messages", folder.getFullName(), unseen.length);
+      processWindows(folder, prioritized(folder, unseen));
+    } else {
+      final Message[] messages;
+
+      try (final Span span = Trace.begin(Phase.SEARCH, folder.getFullName())) {
+        messages = imap.call(() -> folder.search(UNSEEN));
+      }
+
+      LOGGER.info("{} contains {} unseen messages", folder.getFullName(), messages.length);
+      processUnseen(folder, messages);
+    }
+
+    if (shadow != null) {
+      shadow.expire(folder);
+    }
+
+    imap.call(() -> {
+      folder.close(false);
+      return null;
+    });
+
+    if (state != null) {
+      opened.put(folderKey, state);
+    }
+  }
+
+  /**
+   * Save the states of the folders processed, once the run has completed.
+   *
+   * @param opened the folder states, by folder key
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  private void saveFolderStates(final Map<String, FolderState> opened)
+      throws EmailRuleProcessorException {
+    for (final Map.Entry<String, FolderState> state : opened.entrySet()) {
+      folderStates.put(state.getKey(), state.getValue());
+    }
+  }
+
+  /**
+   * Open a folder. When the server supports CONDSTORE and the folder was synchronized by an
+   * earlier run under the same UIDVALIDITY, only the messages changed since that run's
+   * HIGHESTMODSEQ are returned: straight from the SELECT with QRESYNC, which also reports the
+   * messages expunged since, or from a CHANGEDSINCE fetch with CONDSTORE alone. Only the UIDs of
+   * the changed messages still unseen are kept; the flags came with the changes, so no search is
+   * needed.
+   *
+   * @param store the store
+   * @param folder the folder
+   * @param condstore whether the server supports CONDSTORE
+   * @param state the state of the folder as of the last completed run, or null
+   * @return the UIDs of the unseen messages changed since the last run, in ascending order, or
+   *         null when the whole folder is searched
+   * @throws EmailRuleProcessorException the email rule processor exception
+   * @throws MessagingException the messaging exception
+   */
+  @SuppressWarnings("try")
+  private long[] openFolder(final Store store, final Folder folder, final boolean condstore,
+      final FolderState state) throws EmailRuleProcessorException, MessagingException {
+    if (!condstore) {
+      imap.call(() -> {
+        folder.open(Folder.READ_WRITE);
+        return null;
+      });
+
+      return null;
+    }
+
+    final IMAPFolder imapFolder = (IMAPFolder) folder;
+
+    if (state != null && ((IMAPStore) store).hasCapability("QRESYNC")) {
+      final List<MailEvent> events = imap.call(() -> imapFolder.open(Folder.READ_WRITE,
+          new ResyncData(state.getUidValidity(), state.getHighestModSeq())));
+
+      if (!state.isResyncable(imapFolder.getUIDValidity())) {
+        return null;
+      }
+
+      final List<Message> changed = new ArrayList<Message>();
+      int vanished = 0;
+
+      for (final MailEvent event : events == null ? Collections.<MailEvent>emptyList()
+          : events) {
+        if (event instanceof MessageVanishedEvent) {
+          vanished += ((MessageVanishedEvent) event).getUIDs().length;
+        } else if (event instanceof MessageChangedEvent) {
+          changed.add(((MessageChangedEvent) event).getMessage());
+        }
+      }
+
+      LOGGER.info("QRESYNC from HIGHESTMODSEQ {}: {} messages changed, {} expunged",
+          state.getHighestModSeq(), changed.size(), vanished);
+
+      return unseenUids(imapFolder, changed.toArray(new Message[changed.size()]));
+    }
+
+    if (((IMAPStore) store).hasCapability("ENABLE")) {
+      imap.call(() -> imapFolder.open(Folder.READ_WRITE, ResyncData.CONDSTORE));
+    } else {
+      // CONDSTORE without ENABLE: the first CHANGEDSINCE fetch turns it on implicitly
+      imap.call(() -> {
+        imapFolder.open(Folder.READ_WRITE);
+        return null;
+      });
+    }
+
+    if (state == null || !state.isResyncable(imapFolder.getUIDValidity())) {
+      return null;
+    }
+
+    final Message[] changed;
+
+    try (final Span span = Trace.begin(Phase.SEARCH, folder.getFullName())) {
+      changed = imap.call(() -> imapFolder.getMessagesByUIDChangedSince(1, UIDFolder.LASTUID,
+          state.getHighestModSeq()));
+    }
+
+    LOGGER.info("CONDSTORE from HIGHESTMODSEQ {}: {} messages changed",
+        state.getHighestModSeq(), changed.length);
+
+    return unseenUids(imapFolder, changed);
+  }
+
+  /**
+   * The UIDs of the changed messages still in the folder and unseen, in ascending order.
+   *
+   * @param folder the folder
+   * @param changed the changed messages, with their flags
+   * @return the UIDs
+   * @throws MessagingException the messaging exception
+   */
+  private static long[] unseenUids(final UIDFolder folder, final Message[] changed)
+      throws MessagingException {
+    final LongStream.Builder uids = LongStream.builder();
 
-        final Message message = messages[i];
-        processMessage(message);
+    for (final Message message : changed) {
+      if (!message.isExpunged() && !message.isSet(Flags.Flag.SEEN)) {
+        uids.add(folder.getUID(message));
+      }
+    }
+
+    return uids.build().sorted().toArray();
+  }
+
+  /**
+   * Process the unseen messages of the inbox over the non-blocking IMAP engine, fetching a window
+   * of messages at a time in pipelined UID FETCH commands.
+   *
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  @SuppressWarnings("try")
+  private void processNioInbox() throws EmailRuleProcessorException {
+    final NioMailbox mailbox = new NioMailbox(nioEngine, session, props,
+        requirements.contains(DataRequirement.STRUCTURE));
+
+    if (leases != null) {
+      LOGGER.warn("UID-range leases are not supported by the nio engine; ignoring them");
+    }
+
+    final String folderKey = folderStates == null ? null
+        : FolderStateStore.keyOf(props.valueOf(MailProps.USERNAME),
+            props.valueOf(MailProps.HOST), "INBOX");
+    final FolderState state = folderKey == null ? null : folderStates.get(folderKey);
+
+    try {
+      imap.call(() -> {
+        mailbox.open("INBOX");
+        return null;
+      });
+
+      final boolean resync = mailbox.getHighestModSeq() > 0 && state != null
+          && state.isResyncable(mailbox.getUidValidity());
+      final String criteria = resync ? "UNSEEN MODSEQ " + (state.getHighestModSeq() + 1)
+          : "UNSEEN";
+      final long[] unseen;
 
-        LOGGER.info("... DONE ... PROCESSING MESSAGE: {}", i);
+      try (final Span span = Trace.begin(Phase.SEARCH, "INBOX")) {
+        final long[] found = imap.call(() -> mailbox.search(criteria));
+
+        if (scheduler == null || found.length <= windowSize) {
+          unseen = found;
+        } else {
+          final LongStream.Builder priority = LongStream.builder();
+
+          for (final String key : scheduler.searchCriteria()) {
+            Arrays.stream(imap.call(() -> mailbox.search(criteria + " " + key)))
+                .forEach(priority);
+          }
+
+          unseen = PriorityScheduler.priorityFirst(found, priority.build().toArray());
+        }
       }
 
-      inbox.close(false);
-      store.close();
+      LOGGER.info("inbox contains {} unseen messages{}", unseen.length,
+          resync ? " changed since HIGHESTMODSEQ " + state.getHighestModSeq() : "");
+
+      for (int from = 0; from < unseen.length; from += windowSize) {
+        final int start = from;
+        final int end = Math.min(unseen.length, from + windowSize);
+        final Message[] messages;
+
+        try (final Span span = Trace.begin(Phase.FETCH, "INBOX")) {
+          messages = imap.call(() -> mailbox.fetch(unseen, start, end));
+        }
+
+        processMessages(messages, null);
+      }
+
+      completeRun();
+
+      if (folderKey != null && mailbox.getHighestModSeq() > 0) {
+        folderStates.put(folderKey,
+            new FolderState(mailbox.getUidValidity(), mailbox.getHighestModSeq()));
+      }
     } catch (MessagingException exception) {
       LOGGER.error("FATAL: ", exception);
       throw new EmailRuleProcessorException(exception);
+    } finally {
+      mailbox.close();
+    }
+
+    limiters.report();
+  }
+
+  /**
+   * Report and flush once every message of the run has been through the rules.
+   *
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  private void completeRun() throws EmailRuleProcessorException {
+    if (deduplicator != null) {
+      deduplicator.report();
+    }
+
+    if (journal != null) {
+      journal.compact();
+    }
+
+    if (scheduler != null) {
+      scheduler.report();
+    }
+
+    if (bulkheads != null) {
+      bulkheads.report();
+    }
+
+    for (final ProcessingRule rule : processingRules) {
+      rule.runCompleted();
+    }
+
+    if (shadow != null) {
+      shadow.runCompleted();
+    }
+  }
+
+  /**
+   * Process the unseen messages of a folder, by UID, in windows, fetching each window by UID and
+   * closing and reopening the folder between windows, which drops every message object and all
+   * the content the folder cached for the window. Memory stays flat however large the backlog,
+   * and messages expunged in the meantime are simply not returned. Should UIDVALIDITY change, the
+   * folder is searched again for its unseen messages.
+   *
+   * @param folder the folder
+   * @param candidates the UIDs of the unseen messages, in the order to process them
+   * @throws EmailRuleProcessorException the email rule processor exception
+   * @throws MessagingException the messaging exception
+   */
+  private void processWindows(final Folder folder, final long[] candidates)
+      throws EmailRuleProcessorException, MessagingException {
+    final UIDFolder uidFolder = (UIDFolder) folder;
+    long uidValidity = uidFolder.getUIDValidity();
+    long[] unseen = candidates;
+    int from = 0;
+    int windows = 0;
+    long processed = 0;
+
+    while (from < unseen.length) {
+      final long[] uids = Arrays.copyOfRange(unseen, from,
+          Math.min(unseen.length, from + windowSize));
+      final Message[] window = present(imap.call(() -> uidFolder.getMessagesByUID(uids)));
+
+      LOGGER.info("window {} of UIDs {} to {} holds {} unseen messages", windows + 1, uids[0],
+          uids[uids.length - 1], window.length);
+      processUnseen(folder, window);
+
+      from += uids.length;
+      processed += window.length;
+      windows++;
+
+      if (from >= unseen.length) {
+        break;
+      }
+
+      if (shadow != null) {
+        shadow.expire(folder);
+      }
+
+      imap.call(() -> {
+        folder.close(false);
+        folder.open(Folder.READ_WRITE);
+        return null;
+      });
+
+      if (uidFolder.getUIDValidity() != uidValidity) {
+        LOGGER.warn("UIDVALIDITY of {} changed; searching it again", folder.getFullName());
+        uidValidity = uidFolder.getUIDValidity();
+        unseen = prioritized(folder, searchUnseen(folder));
+        from = 0;
+      }
+    }
+
+    LOGGER.info("processed {} unseen messages in {} windows", processed, windows);
+  }
+
+  /**
+   * The UIDs of the unseen messages of a folder, in ascending order, from a single UID SEARCH
+   * that creates no message objects.
+   *
+   * @param folder the folder
+   * @return the UIDs
+   * @throws EmailRuleProcessorException the email rule processor exception
+   * @throws MessagingException the messaging exception
+   */
+  @SuppressWarnings("try")
+  private long[] searchUnseen(final Folder folder)
+      throws EmailRuleProcessorException, MessagingException {
+    try (final Span span = Trace.begin(Phase.SEARCH, folder.getFullName())) {
+      if (folder instanceof IMAPFolder) {
+        final long[] uids = (long[]) imap.call(() -> ((IMAPFolder) folder)
+            .doCommand(protocol -> uidSearch(protocol, "UNSEEN")));
+        Arrays.sort(uids);
+
+        return uids;
+      }
+
+      final Message[] messages = imap.call(() -> folder.search(UNSEEN));
+      final FetchProfile profile = new FetchProfile();
+      profile.add(UIDFolder.FetchProfileItem.UID);
+      fetch(folder, messages, profile);
+
+      final long[] uids = new long[messages.length];
+
+      for (int i = 0; i < messages.length; i++) {
+        uids[i] = ((UIDFolder) folder).getUID(messages[i]);
+      }
+
+      Arrays.sort(uids);
+
+      return uids;
+    }
+  }
+
+  /**
+   * Put the UIDs of the unseen messages that may be of above normal priority first, from a UID
+   * SEARCH per priority key, when priority scheduling is enabled, so they are processed in the
+   * first windows wherever they sit in the folder.
+   *
+   * @param folder the folder
+   * @param unseen the UIDs of the unseen messages, in ascending order
+   * @return the UIDs, priority first
+   * @throws EmailRuleProcessorException the email rule processor exception
+   * @throws MessagingException the messaging exception
+   */
+  @SuppressWarnings("try")
+  private long[] prioritized(final Folder folder, final long[] unseen)
+      throws EmailRuleProcessorException, MessagingException {
+    if (scheduler == null || unseen.length <= windowSize || !(folder instanceof IMAPFolder)) {
+      return unseen;
+    }
+
+    final LongStream.Builder found = LongStream.builder();
+
+    try (final Span span = Trace.begin(Phase.SEARCH, folder.getFullName())) {
+      for (final String key : scheduler.searchCriteria()) {
+        final long[] uids = (long[]) imap.call(() -> ((IMAPFolder) folder)
+            .doCommand(protocol -> uidSearch(protocol, "UNSEEN " + key)));
+        Arrays.stream(uids).forEach(found);
+      }
+    }
+
+    final long[] priority = found.build().distinct().toArray();
+
+    LOGGER.info("{} holds {} unseen messages of possibly above normal priority",
+        folder.getFullName(), priority.length);
+
+    return PriorityScheduler.priorityFirst(unseen, priority);
+  }
+
+  /**
+   * Issue UID SEARCH and collect the UIDs of the untagged SEARCH responses.
+   *
+   * @param protocol the protocol
+   * @param criteria the search criteria
+   * @return the UIDs, as a long[]
+   * @throws ProtocolException the protocol exception
+   */
+  private static Object uidSearch(final IMAPProtocol protocol, final String criteria)
+      throws ProtocolException {
+    final Response[] responses = protocol.command("UID SEARCH " + criteria, null);
+    final Response result = responses[responses.length - 1];
+    final LongStream.Builder uids = LongStream.builder();
+
+    if (result.isOK()) {
+      for (int i = 0; i < responses.length - 1; i++) {
+        if (responses[i] instanceof IMAPResponse
+            && ((IMAPResponse) responses[i]).keyEquals("SEARCH")) {
+          for (long uid = responses[i].readLong(); uid != -1; uid = responses[i].readLong()) {
+            uids.add(uid);
+          }
+
+          responses[i] = null;
+        }
+      }
+    }
+
+    protocol.notifyResponseHandlers(responses);
+    protocol.handleResult(result);
+
+    return uids.build().toArray();
+  }
+
+  /**
+   * The messages still in the folder, of those fetched by UID.
+   *
+   * @param messages the messages, null where a UID has been expunged
+   * @return the messages present
+   */
+  private static Message[] present(final Message[] messages) {
+    final List<Message> present = new ArrayList<Message>(messages.length);
+
+    for (final Message message : messages) {
+      if (message != null) {
+        present.add(message);
+      }
+    }
+
+    return present.toArray(new Message[present.size()]);
+  }
+
+  /**
+   * Fetch what the rules declared for the unseen messages, in one FETCH, and process them; parts
+   * are fetched as rules read them.
+   *
+   * @param folder the folder
+   * @param messages the unseen messages
+   * @throws EmailRuleProcessorException the email rule processor exception
+   * @throws MessagingException the messaging exception
+   */
+  private void processUnseen(final Folder folder, final Message[] messages)
+      throws EmailRuleProcessorException, MessagingException {
+    final FetchProfile profile = fetchProfile(folder);
+
+    if (leases != null && folder instanceof UIDFolder) {
+      profile.add(UIDFolder.FetchProfileItem.UID);
+      fetch(folder, messages, profile);
+      processLeased(folder, messages);
+    } else {
+      fetch(folder, messages, profile);
+      processMessages(messages, null);
+    }
+  }
+
+  /**
+   * Process the messages in the UID ranges this instance can lease, leaving the ranges leased by
+   * other instances to them.
+   *
+   * @param folder the folder
+   * @param messages the messages
+   * @throws EmailRuleProcessorException the email rule processor exception
+   * @throws MessagingException the messaging exception
+   */
+  private void processLeased(final Folder folder, final Message[] messages)
+      throws EmailRuleProcessorException, MessagingException {
+    final UIDFolder uidFolder = (UIDFolder) folder;
+    final String folderKey = props.valueOf(MailProps.USERNAME) + "@"
+        + props.valueOf(MailProps.HOST) + "/" + folder.getFullName() + ";"
+        + uidFolder.getUIDValidity();
+    final Map<Long, List<Message>> ranges = new TreeMap<Long, List<Message>>();
+
+    for (final Message message : messages) {
+      final Long start = leases.rangeStart(uidFolder.getUID(message));
+      List<Message> range = ranges.get(start);
+
+      if (range == null) {
+        range = new ArrayList<Message>();
+        ranges.put(start, range);
+      }
+
+      range.add(message);
+    }
+
+    for (final Map.Entry<Long, List<Message>> range : ranges.entrySet()) {
+      final Lease lease = leases.acquire(folderKey, range.getKey());
+
+      if (lease == null) {
+        LOGGER.info("UID range from {} is leased by another instance; skipping", range.getKey());
+        continue;
+      }
+
+      try {
+        final Message[] leased = range.getValue().toArray(new Message[range.getValue().size()]);
+
+        // another instance may have finished some of these since the search; the flags cached
+        // by the first fetch are stale, so ask the server again
+        final Message[] unseen = imap.call(() -> folder.search(UNSEEN, leased));
+
+        processMessages(unseen, lease);
+      } finally {
+        leases.release(lease);
+      }
+    }
+  }
+
+  /**
+   * Process messages, skipping duplicates, in priority order when priority scheduling is enabled.
+   * When the messages are leased, messages already seen are skipped and processing stops if the
+   * lease is lost.
+   *
+   * @param batch the messages
+   * @param lease the lease covering the messages, or null
+   * @throws EmailRuleProcessorException the email rule processor exception
+   * @throws MessagingException the messaging exception
+   */
+  private void processMessages(final Message[] batch, final Lease lease)
+      throws EmailRuleProcessorException, MessagingException {
+    final Message[] messages = scheduler == null ? batch : scheduler.order(batch);
+
+    for (int i = 0; i < messages.length; i++) {
+      final Message message = messages[i];
+
+      if (lease != null && !leases.isHeld(lease)) {
+        LOGGER.warn("lease {} lost; leaving {} messages", lease, messages.length - i);
+        return;
+      }
+
+      if (lease != null && message.isSet(Flags.Flag.SEEN)) {
+        LOGGER.info("............ SKIPPING SEEN MESSAGE: {}", i);
+        continue;
+      }
+
+      if (isDuplicate(message)) {
+        LOGGER.info("............ SKIPPING DUPLICATE MESSAGE: {}", i);
+        continue;
+      }
+
+      LOGGER.info("............ PROCESSING MESSAGE: {}", i);
+
+      processMessage(message);
+
+      if (scheduler != null) {
+        scheduler.processed(message);
+      }
+
+      if (deduplicator != null) {
+        deduplicator.record(message);
+      }
+
+      LOGGER.info("... DONE ... PROCESSING MESSAGE: {}", i);
+    }
+  }
+
+  /**
+   * The fetch profile covering the data the rules and the processor's own services declared, and
+   * nothing more.
+   *
+   * @param folder the folder
+   * @return the fetch profile
+   */
+  private FetchProfile fetchProfile(final Folder folder) {
+    final FetchProfile profile = new FetchProfile();
+
+    if (requirements.contains(DataRequirement.UID_FLAGS)) {
+      profile.add(FetchProfile.Item.FLAGS);
+
+      if (folder instanceof UIDFolder) {
+        profile.add(UIDFolder.FetchProfileItem.UID);
+      }
+    }
+
+    if (requirements.contains(DataRequirement.ENVELOPE)) {
+      profile.add(FetchProfile.Item.ENVELOPE);
+    }
+
+    if (requirements.contains(DataRequirement.HEADERS) && folder instanceof IMAPFolder) {
+      profile.add(IMAPFolder.FetchProfileItem.HEADERS);
+    } else if (scheduler != null) {
+      for (final String header : PriorityScorer.HEADERS) {
+        profile.add(header);
+      }
+    }
+
+    if (requirements.contains(DataRequirement.STRUCTURE)) {
+      profile.add(FetchProfile.Item.CONTENT_INFO);
+    }
+
+    return profile;
+  }
+
+  /**
+   * Fetch items for the messages under the IMAP concurrency limit.
+   *
+   * @param folder the folder
+   * @param messages the messages
+   * @param profile the fetch profile
+   * @throws EmailRuleProcessorException the email rule processor exception
+   * @throws MessagingException the messaging exception
+   */
+  @SuppressWarnings("try")
+  private void fetch(final Folder folder, final Message[] messages, final FetchProfile profile)
+      throws EmailRuleProcessorException, MessagingException {
+    if (messages.length == 0
+        || (profile.getItems().length == 0 && profile.getHeaderNames().length == 0)) {
+      return;
+    }
+
+    try (final Span span = Trace.begin(Phase.FETCH, folder.getFullName())) {
+      imap.call(() -> {
+        folder.fetch(messages, profile);
+        return null;
+      });
+    }
+  }
+
+  /**
+   * Checks if the message has already been processed from another mailbox or folder. Duplicates
+   * are flagged SEEN, when so configured, so they leave the unseen set.
+   *
+   * @param message the message
+   * @return true, if the message is a duplicate
+   * @throws EmailRuleProcessorException the email rule processor exception
+   * @throws MessagingException the messaging exception
+   */
+  @SuppressWarnings("try")
+  private boolean isDuplicate(final Message message)
+      throws EmailRuleProcessorException, MessagingException {
+    if (deduplicator == null || !deduplicator.isDuplicate(message)) {
+      return false;
+    }
+
+    if (deduplicator.isMarkSeen()) {
+      final String key = journal == null ? null : ProcessingJournal.keyOf(message);
+
+      if (key == null || !journal.isFlagCommitted(key, SEEN)) {
+        enterMessage(message);
+
+        try (final Span span = Trace.begin(Phase.FLAG, SEEN)) {
+          imap.call(() -> {
+            message.setFlag(Flags.Flag.SEEN, true);
+            return null;
+          });
+        } finally {
+          Trace.exitMessage();
+        }
+
+        if (key != null) {
+          journal.flagCommitted(key, SEEN);
+        }
+      }
     }
+
+    return true;
   }
 
   /**
@@ -113,11 +981,276 @@ public class EmailRulesProcessor {
    * @throws EmailRuleProcessorException the mail processor exception
    */
   public void processMessage(final Message message) throws EmailRuleProcessorException {
+    processMessage(new MessageContext(message, requirements, imap));
+  }
+
+  /**
+   * Process message, sharing the message context between the rules.
+   *
+   * @param context the message context
+   * @throws EmailRuleProcessorException the mail processor exception
+   */
+  @SuppressWarnings("try")
+  public void processMessage(final MessageContext context) throws EmailRuleProcessorException {
+    enterMessage(context.getMessage());
+
+    if (senderStats != null) {
+      recordSender(context);
+    }
+
+    try (final Span span = Trace.begin(Phase.MESSAGE)) {
+      processRules(context);
+    } finally {
+      Trace.exitMessage();
+    }
+
+    if (shadow != null) {
+      shadow.submit(context);
+    }
+  }
+
+  /**
+   * Run every rule over the message, skipping those the journal shows completed before a restart.
+   *
+   * @param context the message context
+   * @throws EmailRuleProcessorException the mail processor exception
+   */
+  @SuppressWarnings("try")
+  private void processRules(final MessageContext context) throws EmailRuleProcessorException {
+    final String key = journal == null ? null : ProcessingJournal.keyOf(context.getMessage());
+    final Set<String> completed = key == null ? Collections.<String>emptySet()
+        : journal.started(key);
+
     for (final ProcessingRule rule : processingRules) {
+      if (completed.contains(rule.ruleName())) {
+        LOGGER.info("............ ............  skipping rule {}, completed before restart",
+            rule.ruleName());
+        journal.skipped();
+        continue;
+      }
+
       LOGGER.info("............ ............  processing rule {}", rule.ruleName());
-      rule.processMessageRule(message);
+      Trace.enterRule(rule.ruleName());
+
+      final RuleProfile profile = shadow == null ? null : shadow.activeProfile(rule);
+      final long allocated = profile == null ? 0L : RuleProfile.allocatedBytes();
+      final long started = System.nanoTime();
+      final boolean ruleCompleted;
+
+      try (final Span span = Trace.begin(Phase.RULE)) {
+        ruleCompleted = bulkheads == null ? runRule(rule, context) : bulkheads.run(rule, context);
+      } finally {
+        Trace.enterRule(null);
+      }
+
+      final long elapsed = System.nanoTime() - started;
+
+      if (profile != null) {
+        profile.record(elapsed, RuleProfile.allocatedBytes() - allocated);
+      }
+
+      if (!ruleCompleted) {
+        LOGGER.info("............ ... SKIPPED .. processing rule {}", rule.ruleName());
+        continue;
+      }
+
+      context.ruleTimed(rule.ruleName(), elapsed);
+
+      if (key != null) {
+        journal.ruleCompleted(key, rule.ruleName());
+      }
+
       LOGGER.info("............ ... DONE ... processing rule {}", rule.ruleName());
     }
+
+    if (key != null) {
+      journal.completed(key);
+    }
+  }
+
+  /**
+   * Add the message to the statistics of its senders before the rules read them.
+   *
+   * @param context the message context
+   */
+  private void recordSender(final MessageContext context) {
+    try {
+      senderStats.record(context.getEmail().getFrom(), context.getMessage().getSize());
+    } catch (MessagingException exception) {
+      LOGGER.debug("sender statistics not recorded: {}", exception.getMessage());
+    }
+  }
+
+  /**
+   * Run a rule over the message on this thread.
+   *
+   * @param rule the rule
+   * @param context the message context
+   * @return true, the rule having completed
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  private static boolean runRule(final ProcessingRule rule, final MessageContext context)
+      throws EmailRuleProcessorException {
+    rule.processMessageRule(context);
+
+    return true;
+  }
+
+  /**
+   * Tell the tracer which message this thread is on, when anything is recording. The UID is
+   * already cached by the windowed walk and the size comes with the envelope; neither is fetched
+   * just for tracing.
+   *
+   * @param message the message
+   */
+  private void enterMessage(final Message message) {
+    if (!Trace.isEnabled()) {
+      return;
+    }
+
+    long uid = -1L;
+    long size = -1L;
+
+    try {
+      if (message instanceof NioMessage) {
+        uid = ((NioMessage) message).getUid();
+      } else if (message.getFolder() instanceof UIDFolder) {
+        uid = ((UIDFolder) message.getFolder()).getUID(message);
+      }
+
+      if (requirements.contains(DataRequirement.ENVELOPE)) {
+        size = message.getSize();
+      }
+    } catch (MessagingException exception) {
+      LOGGER.debug("trace identifiers unavailable: {}", exception.getMessage());
+    }
+
+    Trace.enterMessage(uid, size);
+  }
+
+  /**
+   * Close the processing rules and the shared services.
+   *
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  @Override
+  public void close() throws EmailRuleProcessorException {
+    if (shadow != null) {
+      shadow.close();
+    }
+
+    if (bulkheads != null) {
+      bulkheads.close();
+    }
+
+    for (final ProcessingRule rule : processingRules) {
+      rule.close();
+    }
+
+    if (mailSender != null) {
+      mailSender.close();
+    }
+
+    if (senderStats != null) {
+      senderStats.close();
+    }
+
+    if (deduplicator != null) {
+      deduplicator.close();
+    }
+
+    if (journal != null) {
+      journal.close();
+    }
+
+    if (leases != null) {
+      leases.close();
+    }
+
+    if (folders != null) {
+      folders.close();
+    }
+
+    if (nioEngine != null) {
+      nioEngine.close();
+    }
+
+    Trace.closeChrome();
+  }
+
+  /**
+   * Initialize the services shared with the processing rules.
+   *
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  private void initializeServices() throws EmailRuleProcessorException {
+    final String chromeTrace = props.valueOf(Trace.CHROME_FILE);
+
+    if (chromeTrace != null) {
+      Trace.exportChrome(new ChromeTraceWriter(new File(chromeTrace)));
+    }
+
+    ruleContext.register(HostLimiters.class, limiters);
+    AddressPool.INSTANCE.setCapacity(props.intValueOf(AddressPool.CAPACITY,
+        AddressPool.DEFAULT_CAPACITY));
+
+    if ("nio".equalsIgnoreCase(props.valueOf(ENGINE, "javamail"))) {
+      nioEngine = new ImapEngine(props.intValueOf(ImapEngine.THREADS, 2));
+      ruleContext.register(ImapEngine.class, nioEngine);
+    }
+
+    if (props.valueOf(MailProps.SMTP_HOST) != null) {
+      mailSender = new MailSender(new TransportPool(props), props);
+      ruleContext.register(MailSender.class, mailSender);
+    }
+
+    if (props.booleanValueOf(MessageDeduplicator.ENABLED, false)) {
+      deduplicator = new MessageDeduplicator(props);
+      requirements.add(DataRequirement.ENVELOPE);
+    }
+
+    if (props.booleanValueOf(ProcessingJournal.ENABLED, false)) {
+      journal = new ProcessingJournal(props);
+      requirements.add(DataRequirement.UID_FLAGS);
+    }
+
+    if (props.booleanValueOf(FolderStateStore.ENABLED, false)) {
+      folderStates = new FolderStateStore(props);
+    }
+
+    if (props.booleanValueOf(FolderScanner.ENABLED, false)) {
+      if (nioEngine != null) {
+        LOGGER.warn("folder-wide processing is not supported by the nio engine; "
+            + "only the inbox is processed");
+      } else {
+        folders = new FolderScanner(props, imap);
+      }
+    }
+
+    if (props.booleanValueOf(SenderStatsStore.ENABLED, false)) {
+      senderStats = new SenderStatsStore(props);
+      ruleContext.register(SenderStatsStore.class, senderStats);
+      requirements.add(DataRequirement.ENVELOPE);
+    }
+
+    if (props.booleanValueOf(RuleBulkheads.ENABLED, false)) {
+      bulkheads = new RuleBulkheads(props);
+    }
+
+    if (props.booleanValueOf(PriorityScheduler.ENABLED, false)) {
+      scheduler = new PriorityScheduler(props);
+      requirements.add(DataRequirement.ENVELOPE);
+    }
+
+    if (props.booleanValueOf(LeaseCoordinator.ENABLED, false)) {
+      leases = new LeaseCoordinator(props);
+      requirements.add(DataRequirement.UID_FLAGS);
+    }
+
+    if (props.booleanValueOf(ShadowRuleSet.ENABLED, false)) {
+      shadow = new ShadowRuleSet(ruleContext);
+      requirements.add(DataRequirement.UID_FLAGS);
+    }
   }
 
   /**
@@ -142,13 +1275,13 @@ public class EmailRulesProcessor {
   }
 
   /**
-   * Load rule keys.
+   * Load rule keys, in the numeric order of their suffixes.
    *
    * @param properties the properties
    * @return the sets the
    */
   private Set<String> loadRuleKeys(final Properties properties) {
-    final Set<String> propKeys = new TreeSet<String>();
+    final Set<String> propKeys = new TreeSet<String>(new RuleKeyComparator());
 
     for (final Object obj : properties.keySet()) {
       final String key = obj.toString();
@@ -164,22 +1297,25 @@ public class EmailRulesProcessor {
   /**
    * Load processing rules.
    *
-   * @return the properties
+   * @param properties the properties
    * @throws EmailRuleProcessorException the mail processor exception
    */
   @SuppressWarnings({ "unchecked" })
-  private void loadProcessingRules() throws EmailRuleProcessorException {
+  private void loadProcessingRules(final Properties properties)
+      throws EmailRuleProcessorException {
     try {
-      final Properties properties = loadProperties();
       final Set<String> propKeys = loadRuleKeys(properties);
 
       for (final String key : propKeys) {
         final String className = properties.getProperty(key);
         final Class<? extends ProcessingRule> rule = (Class<? extends ProcessingRule>) Class
             .forName(className);
-        processingRules.add(rule.newInstance());
+        final ProcessingRule processingRule = rule.getDeclaredConstructor().newInstance();
+        processingRule.initialize(ruleContext);
+        processingRules.add(processingRule);
+        requirements.addAll(processingRule.dataRequirements());
       }
-    } catch (ClassNotFoundException | InstantiationException | IllegalAccessException exception) {
+    } catch (ReflectiveOperationException exception) {
       LOGGER.error("FATAL: ", exception);
       throw new EmailRuleProcessorException(exception);
     }
@@ -191,16 +1327,20 @@ public class EmailRulesProcessor {
    * @return the store
    * @throws EmailRuleProcessorException the mail processor exception
    */
+  @SuppressWarnings("try")
   private Store connect() throws EmailRuleProcessorException {
     final String provider = props.valueOf(MailProps.PROVIDER);
     final String host = props.valueOf(MailProps.HOST);
     final String username = props.valueOf(MailProps.USERNAME);
     final String password = props.valueOf(MailProps.PASSWORD);
-    Store store;
+    final Store store;
 
-    try {
+    try (final Span span = Trace.begin(Phase.CONNECT, host)) {
       store = session.getStore(provider);
-      store.connect(host, username, password);
+      imap.call(() -> {
+        store.connect(host, username, password);
+        return null;
+      });
     } catch (MessagingException exception) {
       LOGGER.error("FATAL: ", exception);
       throw new EmailRuleProcessorException(exception);
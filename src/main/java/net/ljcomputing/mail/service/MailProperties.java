@@ -16,6 +16,7 @@
 
 package net.ljcomputing.mail.service;
 
+import java.io.File;
 import java.util.Properties;
 
 /**
@@ -26,6 +27,9 @@ import java.util.Properties;
  */
 public class MailProperties {
   
+  /** The local data directory property. */
+  public static final String DATA_DIRECTORY = "email.data.dir";
+
   /** The properties. */
   private final Properties properties;
   
@@ -56,4 +60,105 @@ public class MailProperties {
   public String valueOf(final MailProps key) {
     return properties.getProperty(key.toString());
   }
+
+  /**
+   * The directory holding the processor's local state (stores, indexes, journals), created if
+   * it does not exist.
+   *
+   * @return the directory
+   */
+  public File dataDirectory() {
+    final String defaultDirectory = new StringBuilder(System.getProperty("user.home"))
+        .append(File.separator).append(".ljcomputing-mail").toString();
+    final File directory = new File(valueOf(DATA_DIRECTORY, defaultDirectory));
+    directory.mkdirs();
+
+    return directory;
+  }
+
+  /**
+   * Value of the given JavaMail property key, or the default when the key is not set.
+   *
+   * @param key the key
+   * @param defaultValue the default value
+   * @return the string
+   */
+  public String valueOf(final MailProps key, final String defaultValue) {
+    return valueOf(key.toString(), defaultValue);
+  }
+
+  /**
+   * Value of the given property key.
+   *
+   * @param key the key
+   * @return the string
+   */
+  public String valueOf(final String key) {
+    return properties.getProperty(key);
+  }
+
+  /**
+   * Value of the given property key, or the default when the key is not set.
+   *
+   * @param key the key
+   * @param defaultValue the default value
+   * @return the string
+   */
+  public String valueOf(final String key, final String defaultValue) {
+    final String value = properties.getProperty(key);
+
+    return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+  }
+
+  /**
+   * Integer value of the given property key, or the default when the key is not set.
+   *
+   * @param key the key
+   * @param defaultValue the default value
+   * @return the int
+   */
+  public int intValueOf(final String key, final int defaultValue) {
+    final String value = valueOf(key, null);
+
+    return value == null ? defaultValue : Integer.parseInt(value);
+  }
+
+  /**
+   * Long value of the given property key, or the default when the key is not set.
+   *
+   * @param key the key
+   * @param defaultValue the default value
+   * @return the long
+   */
+  public long longValueOf(final String key, final long defaultValue) {
+    final String value = valueOf(key, null);
+
+    return value == null ? defaultValue : Long.parseLong(value);
+  }
+
+  /**
+   * Double value of the given property key, or the default when the key is not set.
+   *
+   * @param key the key
+   * @param defaultValue the default value
+   * @return the double
+   */
+  public double doubleValueOf(final String key, final double defaultValue) {
+    final String value = valueOf(key, null);
+
+    return value == null ? defaultValue : Double.parseDouble(value);
+  }
+
+  /**
+   * Boolean value of the given property key, or the default when the key is not set.
+   *
+   * @param key the key
+   * @param defaultValue the default value
+   * @return true, if the property is set to "true"
+   */
+  public boolean booleanValueOf(final String key, final boolean defaultValue) {
+    final String value = valueOf(key, null);
+
+    return value == null ? defaultValue : Boolean.parseBoolean(value);
+  }
 }
@@ -26,5 +26,10 @@ public enum MailProps {
   PROVIDER,
   HOST,
   USERNAME,
-  PASSWORD;
+  PASSWORD,
+  SMTP_PROVIDER,
+  SMTP_HOST,
+  SMTP_PORT,
+  SMTP_USERNAME,
+  SMTP_PASSWORD;
 }
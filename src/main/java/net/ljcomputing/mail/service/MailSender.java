@@ -0,0 +1,312 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+
+/**
+ * Asynchronous SMTP mail sender. Messages are submitted to a bounded queue and drained by a small
+ * number of sender threads, each of which sends whatever has accumulated (up to the batch size)
+ * over a single pooled transport.
+ *
+ * @author James G. Willmore
+ *
+ */
+public class MailSender {
+
+  /** The Constant logger. */
+  private final static Logger LOGGER = LoggerFactory.getLogger(MailSender.class);
+
+  /** The queue capacity property. */
+  public static final String QUEUE_CAPACITY = "email.smtp.queue.capacity";
+
+  /** The submit timeout (ms) property, how long a submit waits on a full queue. */
+  public static final String SUBMIT_TIMEOUT = "email.smtp.queue.timeout";
+
+  /** The batch size property, the most messages sent over one connection per session. */
+  public static final String BATCH_SIZE = "email.smtp.batch.size";
+
+  /** The sender thread count property. */
+  public static final String SENDERS = "email.smtp.senders";
+
+  /** The transport pool. */
+  private final TransportPool pool;
+
+  /** The outgoing message queue. */
+  private final BlockingQueue<Message> queue;
+
+  /** The sender threads. */
+  private final ExecutorService senders;
+
+  /** The batch size. */
+  private final int batchSize;
+
+  /** The submit timeout in milliseconds. */
+  private final long submitTimeout;
+
+  /** The count of messages sent. */
+  private final AtomicLong sent = new AtomicLong();
+
+  /** The count of messages that could not be sent. */
+  private final AtomicLong failed = new AtomicLong();
+
+  /** Whether the sender accepts new messages. */
+  private volatile boolean running = true;
+
+  /**
+   * Instantiates a new mail sender.
+   *
+   * @param pool the transport pool
+   * @param properties the properties
+   */
+  public MailSender(final TransportPool pool, final MailProperties properties) {
+    this.pool = pool;
+    this.queue = new ArrayBlockingQueue<Message>(properties.intValueOf(QUEUE_CAPACITY, 1000));
+    this.batchSize = properties.intValueOf(BATCH_SIZE, 50);
+    this.submitTimeout = properties.longValueOf(SUBMIT_TIMEOUT, 10000L);
+
+    final int senderCount = properties.intValueOf(SENDERS, 2);
+    this.senders = Executors.newFixedThreadPool(senderCount, new SenderThreadFactory());
+
+    for (int s = 0; s < senderCount; s++) {
+      senders.execute(new Runnable() {
+        @Override
+        public void run() {
+          drain();
+        }
+      });
+    }
+  }
+
+  /**
+   * Create an empty message bound to the SMTP session.
+   *
+   * @return the mime message
+   */
+  public MimeMessage createMessage() {
+    return new MimeMessage(pool.getSession());
+  }
+
+  /**
+   * Submit a message for asynchronous delivery. Blocks while the queue is full, up to the submit
+   * timeout.
+   *
+   * @param message the message
+   * @throws EmailRuleProcessorException when the queue stays full or the sender is closed
+   */
+  public void submit(final Message message) throws EmailRuleProcessorException {
+    if (!running) {
+      throw new EmailRuleProcessorException("mail sender has been closed.");
+    }
+
+    try {
+      message.saveChanges();
+
+      if (!queue.offer(message, submitTimeout, TimeUnit.MILLISECONDS)) {
+        throw new EmailRuleProcessorException("mail sender queue is full.");
+      }
+    } catch (MessagingException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    } catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
+  /**
+   * Send the given messages synchronously over a single pooled transport.
+   *
+   * @param messages the messages
+   * @return the number of messages sent
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public int send(final List<? extends Message> messages) throws EmailRuleProcessorException {
+    try {
+      for (final Message message : messages) {
+        message.saveChanges();
+      }
+    } catch (MessagingException exception) {
+      throw new EmailRuleProcessorException(exception);
+    }
+
+    return sendBatch(messages);
+  }
+
+  /**
+   * Gets the count of messages sent.
+   *
+   * @return the sent count
+   */
+  public long getSent() {
+    return sent.get();
+  }
+
+  /**
+   * Gets the count of messages that could not be sent.
+   *
+   * @return the failed count
+   */
+  public long getFailed() {
+    return failed.get();
+  }
+
+  /**
+   * Stop accepting messages, deliver everything already queued and close the transport pool.
+   */
+  public void close() {
+    if (!running) {
+      return;
+    }
+
+    running = false;
+    senders.shutdown();
+
+    try {
+      if (!senders.awaitTermination(1, TimeUnit.MINUTES)) {
+        LOGGER.warn("mail sender closed with {} messages still queued", queue.size());
+        senders.shutdownNow();
+      }
+    } catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+      senders.shutdownNow();
+    }
+
+    pool.close();
+    LOGGER.info("mail sender closed: {} sent, {} failed", sent.get(), failed.get());
+  }
+
+  /**
+   * Drain the queue in batches until the sender is closed and the queue is empty.
+   */
+  private void drain() {
+    final List<Message> batch = new ArrayList<Message>(batchSize);
+
+    while (running || !queue.isEmpty()) {
+      try {
+        final Message first = queue.poll(100, TimeUnit.MILLISECONDS);
+
+        if (first != null) {
+          batch.add(first);
+          queue.drainTo(batch, batchSize - 1);
+          sendBatch(batch);
+        }
+      } catch (InterruptedException exception) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (EmailRuleProcessorException exception) {
+        LOGGER.error("failed to send batch: {}", exception.getMessage());
+      } finally {
+        batch.clear();
+      }
+    }
+  }
+
+  /**
+   * Send a batch over one transport. A connection failure invalidates the transport and retries
+   * the unsent remainder once on a fresh one; a rejected message is counted and skipped.
+   *
+   * @param batch the batch
+   * @return the number of messages sent
+   * @throws EmailRuleProcessorException when no transport could be borrowed
+   */
+  private int sendBatch(final List<? extends Message> batch) throws EmailRuleProcessorException {
+    int next = 0;
+    int sentInBatch = 0;
+    int retries = 0;
+
+    while (next < batch.size() && retries < 2) {
+      final Transport transport;
+
+      try {
+        transport = pool.borrow();
+      } catch (EmailRuleProcessorException exception) {
+        failed.addAndGet(batch.size() - next);
+        throw exception;
+      }
+
+      try {
+        for (; next < batch.size(); next++) {
+          final Message message = batch.get(next);
+
+          try {
+            transport.sendMessage(message, message.getAllRecipients());
+            sent.incrementAndGet();
+            sentInBatch++;
+          } catch (SendFailedException exception) {
+            failed.incrementAndGet();
+            LOGGER.warn("message rejected: {}", exception.getMessage());
+          }
+        }
+
+        pool.release(transport);
+      } catch (MessagingException exception) {
+        LOGGER.warn("SMTP transport failed, retrying on a new connection: {}",
+            exception.getMessage());
+        pool.invalidate(transport);
+        retries++;
+      }
+    }
+
+    if (next < batch.size()) {
+      failed.addAndGet(batch.size() - next);
+      LOGGER.error("gave up sending {} messages", batch.size() - next);
+    }
+
+    return sentInBatch;
+  }
+
+  /**
+   * Thread factory for the daemon sender threads.
+   */
+  private static class SenderThreadFactory implements ThreadFactory {
+
+    /** The thread counter. */
+    private final AtomicInteger counter = new AtomicInteger();
+
+    /**
+     * @see java.util.concurrent.ThreadFactory#newThread(java.lang.Runnable)
+     */
+    @Override
+    public Thread newThread(final Runnable runnable) {
+      final Thread thread = new Thread(runnable, "mail-sender-" + counter.incrementAndGet());
+      thread.setDaemon(true);
+
+      return thread;
+    }
+  }
+}
@@ -0,0 +1,258 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.service;
+
+import java.util.Properties;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+
+/**
+ * A bounded pool of connected, authenticated SMTP transports. Transports are handed out most
+ * recently used first, so a quiet pool keeps reusing the same warm connection, and idle transports
+ * are closed once they have sat unused longer than the idle timeout.
+ *
+ * @author James G. Willmore
+ *
+ */
+public class TransportPool {
+
+  /** The Constant logger. */
+  private final static Logger LOGGER = LoggerFactory.getLogger(TransportPool.class);
+
+  /** The maximum number of transports property. */
+  public static final String POOL_SIZE = "email.smtp.pool.size";
+
+  /** The idle timeout (ms) property. */
+  public static final String IDLE_TIMEOUT = "email.smtp.pool.idle.timeout";
+
+  /** The borrow timeout (ms) property. */
+  public static final String BORROW_TIMEOUT = "email.smtp.pool.borrow.timeout";
+
+  /** The SMTP session. */
+  private final Session session;
+
+  /** The transport protocol. */
+  private final String protocol;
+
+  /** The SMTP host. */
+  private final String host;
+
+  /** The SMTP port. */
+  private final int port;
+
+  /** The SMTP username. */
+  private final String username;
+
+  /** The SMTP password. */
+  private final String password;
+
+  /** The idle timeout in milliseconds. */
+  private final long idleTimeout;
+
+  /** The borrow timeout in milliseconds. */
+  private final long borrowTimeout;
+
+  /** The permits, one for every transport that may be open at once. */
+  private final Semaphore permits;
+
+  /** The idle transports, most recently used first. */
+  private final BlockingDeque<IdleTransport> idle = new LinkedBlockingDeque<IdleTransport>();
+
+  /** Whether the pool has been closed. */
+  private volatile boolean closed;
+
+  /**
+   * Instantiates a new transport pool.
+   *
+   * @param properties the properties
+   */
+  public TransportPool(final MailProperties properties) {
+    this.protocol = properties.valueOf(MailProps.SMTP_PROVIDER, "smtp");
+    this.host = properties.valueOf(MailProps.SMTP_HOST);
+    this.port = Integer.parseInt(properties.valueOf(MailProps.SMTP_PORT, "-1"));
+    this.username = properties.valueOf(MailProps.SMTP_USERNAME);
+    this.password = properties.valueOf(MailProps.SMTP_PASSWORD);
+    this.idleTimeout = properties.longValueOf(IDLE_TIMEOUT, 30000L);
+    this.borrowTimeout = properties.longValueOf(BORROW_TIMEOUT, 30000L);
+    this.permits = new Semaphore(properties.intValueOf(POOL_SIZE, 4), true);
+    this.session = Session.getInstance(sessionProperties(properties.getProperties()));
+  }
+
+  /**
+   * Session properties for the SMTP session.
+   *
+   * @param properties the properties
+   * @return the properties
+   */
+  private Properties sessionProperties(final Properties properties) {
+    final Properties smtpProperties = new Properties();
+    smtpProperties.putAll(properties);
+
+    if (username != null) {
+      smtpProperties.setProperty("mail." + protocol + ".auth", "true");
+    }
+
+    return smtpProperties;
+  }
+
+  /**
+   * Gets the SMTP session.
+   *
+   * @return the session
+   */
+  public Session getSession() {
+    return session;
+  }
+
+  /**
+   * Borrow a connected transport, waiting up to the borrow timeout for one to become available.
+   *
+   * @return the transport
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public Transport borrow() throws EmailRuleProcessorException {
+    if (closed) {
+      throw new EmailRuleProcessorException("transport pool has been closed.");
+    }
+
+    try {
+      if (!permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+        throw new EmailRuleProcessorException("timed out waiting for an SMTP transport.");
+      }
+    } catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+      throw new EmailRuleProcessorException(exception);
+    }
+
+    final long now = System.currentTimeMillis();
+    IdleTransport candidate;
+
+    while ((candidate = idle.pollFirst()) != null) {
+      if (now - candidate.since < idleTimeout) {
+        return candidate.transport;
+      }
+
+      closeQuietly(candidate.transport);
+    }
+
+    try {
+      return open();
+    } catch (MessagingException exception) {
+      permits.release();
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
+  /**
+   * Return a healthy transport to the pool.
+   *
+   * @param transport the transport
+   */
+  public void release(final Transport transport) {
+    if (closed) {
+      closeQuietly(transport);
+    } else {
+      idle.offerFirst(new IdleTransport(transport, System.currentTimeMillis()));
+    }
+
+    permits.release();
+  }
+
+  /**
+   * Close a broken transport instead of returning it to the pool.
+   *
+   * @param transport the transport
+   */
+  public void invalidate(final Transport transport) {
+    closeQuietly(transport);
+    permits.release();
+  }
+
+  /**
+   * Close the pool and every idle transport.
+   */
+  public void close() {
+    closed = true;
+    IdleTransport candidate;
+
+    while ((candidate = idle.pollFirst()) != null) {
+      closeQuietly(candidate.transport);
+    }
+  }
+
+  /**
+   * Open and authenticate a new transport.
+   *
+   * @return the transport
+   * @throws MessagingException the messaging exception
+   */
+  private Transport open() throws MessagingException {
+    final Transport transport = session.getTransport(protocol);
+    transport.connect(host, port, username, password);
+    LOGGER.debug("opened SMTP transport to {}", host);
+
+    return transport;
+  }
+
+  /**
+   * Close a transport, ignoring any failure.
+   *
+   * @param transport the transport
+   */
+  private static void closeQuietly(final Transport transport) {
+    try {
+      transport.close();
+    } catch (MessagingException exception) {
+      LOGGER.debug("failed to close SMTP transport: {}", exception.getMessage());
+    }
+  }
+
+  /**
+   * An idle transport and the time it was returned to the pool.
+   */
+  private static class IdleTransport {
+
+    /** The transport. */
+    private final Transport transport;
+
+    /** The time the transport was returned to the pool. */
+    private final long since;
+
+    /**
+     * Instantiates a new idle transport.
+     *
+     * @param transport the transport
+     * @param since the since
+     */
+    private IdleTransport(final Transport transport, final long since) {
+      this.transport = transport;
+      this.since = since;
+    }
+  }
+}
@@ -0,0 +1,206 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.shadow;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.ljcomputing.mail.priority.LatencyHistogram;
+
+/**
+ * The cost of one rule of a rule set: the latency of each message through the rule, and the heap
+ * the rule allocated for it on the thread that ran it. Allocation is read from the JVM's per-thread
+ * allocation counter where the JVM provides one, and reads zero elsewhere.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public final class RuleProfile {
+
+  /** The JVM's thread allocation counters, or null when the JVM does not provide them. */
+  private static final com.sun.management.ThreadMXBean ALLOCATION = allocationCounters();
+
+  /** The rule name. */
+  private final String rule;
+
+  /** The latencies, in microseconds. */
+  private final LatencyHistogram latency = new LatencyHistogram();
+
+  /** The total latency, in nanoseconds. */
+  private final LongAdder nanos = new LongAdder();
+
+  /** The bytes allocated. */
+  private final LongAdder allocated = new LongAdder();
+
+  /** The count of messages the rule failed on. */
+  private final LongAdder failures = new LongAdder();
+
+  /**
+   * Instantiates a new rule profile.
+   *
+   * @param rule the rule name
+   */
+  RuleProfile(final String rule) {
+    this.rule = rule;
+  }
+
+  /**
+   * Checks if allocation is measured.
+   *
+   * @return true, if the JVM counts the bytes each thread allocates
+   */
+  public static boolean isAllocationMeasured() {
+    return ALLOCATION != null;
+  }
+
+  /**
+   * The bytes the current thread has allocated since it started; the difference of two readings
+   * is what the thread allocated in between.
+   *
+   * @return the bytes, or 0 when allocation is not measured
+   */
+  public static long allocatedBytes() {
+    return ALLOCATION == null ? 0L
+        : ALLOCATION.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  /**
+   * Record a message through the rule.
+   *
+   * @param elapsed the latency in nanoseconds
+   * @param bytes the bytes allocated
+   */
+  public void record(final long elapsed, final long bytes) {
+    latency.record(TimeUnit.NANOSECONDS.toMicros(elapsed));
+    nanos.add(elapsed);
+    allocated.add(Math.max(0L, bytes));
+  }
+
+  /**
+   * Record a message the rule failed on.
+   */
+  public void failed() {
+    failures.increment();
+  }
+
+  /**
+   * Gets the rule name.
+   *
+   * @return the rule name
+   */
+  public String getRule() {
+    return rule;
+  }
+
+  /**
+   * Gets the count of messages through the rule.
+   *
+   * @return the count
+   */
+  public long getCount() {
+    return latency.getCount();
+  }
+
+  /**
+   * Gets the count of messages the rule failed on.
+   *
+   * @return the count
+   */
+  public long getFailures() {
+    return failures.sum();
+  }
+
+  /**
+   * The latency at or below which the given fraction of messages fall.
+   *
+   * @param fraction the fraction, e.g. 0.99
+   * @return the latency in microseconds
+   */
+  public long percentile(final double fraction) {
+    return latency.percentile(fraction);
+  }
+
+  /**
+   * Gets the largest latency.
+   *
+   * @return the latency in microseconds
+   */
+  public long getMax() {
+    return latency.getMax();
+  }
+
+  /**
+   * Gets the mean latency.
+   *
+   * @return the latency in microseconds
+   */
+  public long getMeanMicros() {
+    final long count = getCount();
+
+    return count == 0 ? 0L : TimeUnit.NANOSECONDS.toMicros(nanos.sum() / count);
+  }
+
+  /**
+   * Gets the mean bytes allocated per message.
+   *
+   * @return the bytes
+   */
+  public long getMeanAllocated() {
+    final long count = getCount();
+
+    return count == 0 ? 0L : allocated.sum() / count;
+  }
+
+  /**
+   * Clear the profile.
+   */
+  void reset() {
+    latency.reset();
+    nanos.reset();
+    allocated.reset();
+    failures.reset();
+  }
+
+  /**
+   * The JVM's thread allocation counters, switched on.
+   *
+   * @return the counters, or null when the JVM does not provide them
+   */
+  private static com.sun.management.ThreadMXBean allocationCounters() {
+    final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+      return null;
+    }
+
+    final com.sun.management.ThreadMXBean counters = (com.sun.management.ThreadMXBean) threads;
+
+    try {
+      if (!counters.isThreadAllocatedMemorySupported()) {
+        return null;
+      }
+
+      counters.setThreadAllocatedMemoryEnabled(true);
+    } catch (UnsupportedOperationException | SecurityException exception) {
+      return null;
+    }
+
+    return counters;
+  }
+}
@@ -0,0 +1,677 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.shadow;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Store;
+import javax.mail.UIDFolder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.mail.imap.IMAPMessage;
+
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.rules.DataRequirement;
+import net.ljcomputing.mail.rules.MessageContext;
+import net.ljcomputing.mail.rules.ProcessingRule;
+import net.ljcomputing.mail.rules.RuleContext;
+import net.ljcomputing.mail.rules.RuleKeyComparator;
+import net.ljcomputing.mail.service.MailProperties;
+import net.ljcomputing.mail.service.MailProps;
+
+/**
+ * A second rule set run on the messages the active rules have processed, to learn what a change
+ * of rules would cost before rolling it out. The shadow rules run on their own thread, fed by a
+ * bounded queue the processor never waits on: when the queue is full the message is dropped from
+ * the shadow run, never held back from the active one. Messages of UID folders are read again, by
+ * UID, on the shadow thread's own read-only connection, so the shadow rules never contend with
+ * the active ones for theirs, and are queued as identifiers only. Other messages are read through
+ * the active rules' folder, but the processor never waits on the shadow thread to close it: the
+ * messages queued before a close are skipped as stale, and a read the close cuts short fails like
+ * any other shadow rule failure. Side effects are suppressed; flag writes
+ * through the message context are counted but not made, rules given the shadow rule context
+ * send, store and export nothing, and file sinks (archive, index, thread journal, digests) are
+ * redirected under the shadow directory. The latency and allocation of every rule of both sets
+ * are reported side by side after each run.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class ShadowRuleSet {
+
+  /** The Constant logger. */
+  private final static Logger LOGGER = LoggerFactory.getLogger(ShadowRuleSet.class);
+
+  /** The property enabling the shadow rule set. */
+  public static final String ENABLED = "email.shadow.enabled";
+
+  /** The prefix of the shadow rule properties, each naming a rule class. */
+  public static final String RULE_PREFIX = "email.shadow.rule.";
+
+  /** The directory the file sinks of the shadow rules are redirected to property. */
+  public static final String DIRECTORY = "email.shadow.dir";
+
+  /** The queue capacity (messages) property. */
+  public static final String QUEUE_CAPACITY = "email.shadow.queue.capacity";
+
+  /** The shadow rules, in the order of their properties. */
+  private final List<ProcessingRule> rules = new ArrayList<ProcessingRule>();
+
+  /** The message data the shadow rules read. */
+  private final Set<DataRequirement> requirements = EnumSet.noneOf(DataRequirement.class);
+
+  /** The profiles of the active rules, by rule name. */
+  private final Map<String, RuleProfile> active = new ConcurrentHashMap<String, RuleProfile>();
+
+  /** The profiles of the shadow rules, by rule name; only the shadow thread uses them. */
+  private final Map<String, RuleProfile> shadow = new HashMap<String, RuleProfile>();
+
+  /** The properties of the active rules, naming the server the shadow thread connects to. */
+  private final MailProperties properties;
+
+  /** The queue feeding the shadow thread. */
+  private final BlockingQueue<Task> queue;
+
+  /** The count of messages dropped from the shadow run, the queue being full. */
+  private final AtomicLong dropped = new AtomicLong();
+
+  /** The message data available to the shadow rules: what either rule set declared. */
+  private Set<DataRequirement> available;
+
+  /** The shadow thread. */
+  private Thread runner;
+
+  /** The generation of each folder, by full name; messages of earlier ones can not be read. */
+  private final Map<String, AtomicInteger> generations =
+      new ConcurrentHashMap<String, AtomicInteger>();
+
+  /** The session the shadow thread connects in, or null when every message is detached. */
+  private Session session;
+
+  /** The shadow thread's own store, connected on first use; only the shadow thread uses it. */
+  private Store store;
+
+  /** The shadow thread's folders, opened read-only, by full name; only it uses them. */
+  private final Map<String, Folder> folders = new HashMap<String, Folder>();
+
+  /** The count of messages through the shadow rules; only the shadow thread uses it. */
+  private long evaluated;
+
+  /** The count of messages skipped, their folder closed; only the shadow thread uses it. */
+  private long stale;
+
+  /** The count of flag writes suppressed; only the shadow thread uses it. */
+  private long suppressedFlags;
+
+  /**
+   * Load and initialize the shadow rules.
+   *
+   * @param context the context of the active rules, whose services the shadow rules share
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public ShadowRuleSet(final RuleContext context) throws EmailRuleProcessorException {
+    this.properties = context.getProperties();
+    final File directory = new File(properties.valueOf(DIRECTORY,
+        new File(properties.dataDirectory(), "shadow").getPath()));
+    final RuleContext shadowContext = context
+        .shadow(new MailProperties(shadowProperties(properties.getProperties(), directory)));
+
+    this.queue = new ArrayBlockingQueue<Task>(properties.intValueOf(QUEUE_CAPACITY, 1000));
+    loadRules(properties.getProperties(), shadowContext);
+
+    if (rules.isEmpty()) {
+      throw new EmailRuleProcessorException("no " + RULE_PREFIX + "* rules have been configured.");
+    }
+
+    for (final DataRequirement requirement : EnumSet.copyOf(requirements)) {
+      if (requirement.needsStructure()) {
+        requirements.add(DataRequirement.STRUCTURE);
+      }
+    }
+  }
+
+  /**
+   * Start the shadow thread.
+   *
+   * @param activeRequirements the message data the active rules and services read
+   * @param session the session the shadow thread opens its own connection in
+   */
+  public void start(final Set<DataRequirement> activeRequirements, final Session session) {
+    this.session = session;
+    final Set<DataRequirement> beyond = EnumSet.copyOf(requirements);
+    beyond.removeAll(activeRequirements);
+    available = EnumSet.copyOf(requirements);
+    available.addAll(activeRequirements);
+
+    if (!beyond.isEmpty()) {
+      LOGGER.warn("shadow rules also read {}, which the shadow thread fetches per message on "
+          + "its own connection", beyond);
+    }
+
+    runner = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        drain();
+      }
+    }, "shadow-rules");
+    runner.setDaemon(true);
+    runner.start();
+
+    LOGGER.info("shadow rule set of {} rules started", rules.size());
+  }
+
+  /**
+   * The profile of an active rule, for the processor to record the rule's cost in.
+   *
+   * @param rule the active rule
+   * @return the profile
+   */
+  public RuleProfile activeProfile(final ProcessingRule rule) {
+    RuleProfile profile = active.get(rule.ruleName());
+
+    if (profile == null) {
+      profile = new RuleProfile(rule.ruleName());
+      final RuleProfile raced = active.putIfAbsent(rule.ruleName(), profile);
+      profile = raced == null ? profile : raced;
+    }
+
+    return profile;
+  }
+
+  /**
+   * Queue a message the active rules are done with for the shadow rules, without waiting; when
+   * the queue is full the message is dropped from the shadow run.
+   *
+   * @param context the message context of the active rules
+   */
+  public void submit(final MessageContext context) {
+    final Message message = context.getMessage();
+    final Folder folder = message.getFolder();
+    final String name = folder == null ? null : folder.getFullName();
+    final Task task;
+
+    try {
+      task = session != null && folder instanceof UIDFolder
+          ? new Task(name, ((UIDFolder) folder).getUIDValidity(),
+              ((UIDFolder) folder).getUID(message))
+          : new Task(context, name, generationOf(name));
+    } catch (MessagingException exception) {
+      LOGGER.debug("message not queued for the shadow rules: {}", exception.getMessage());
+      dropped.incrementAndGet();
+      return;
+    }
+
+    if (!queue.offer(task)) {
+      dropped.incrementAndGet();
+    }
+  }
+
+  /**
+   * Mark the messages of a folder queued so far as unreadable, the folder being about to close,
+   * without waiting on a read in progress. The shadow thread skips them rather than read from a
+   * closed folder; messages it reads on its own connection are not affected.
+   *
+   * @param folder the folder
+   */
+  public void expire(final Folder folder) {
+    AtomicInteger generation = generations.get(folder.getFullName());
+
+    if (generation == null) {
+      generation = new AtomicInteger();
+      final AtomicInteger raced = generations.putIfAbsent(folder.getFullName(), generation);
+      generation = raced == null ? generation : raced;
+    }
+
+    generation.incrementAndGet();
+  }
+
+  /**
+   * Queue the end of a run: the shadow thread runs the shadow rules' run completion and reports
+   * once it has caught up with the messages queued before it.
+   */
+  public void runCompleted() {
+    enqueue(new Task(false));
+  }
+
+  /**
+   * Stop the shadow thread, once it has caught up, and close the shadow rules.
+   *
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public void close() throws EmailRuleProcessorException {
+    if (runner != null) {
+      enqueue(new Task(true));
+
+      try {
+        runner.join(TimeUnit.MINUTES.toMillis(1));
+      } catch (InterruptedException exception) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    for (final ProcessingRule rule : rules) {
+      rule.close();
+    }
+  }
+
+  /**
+   * Queue a marker without waiting, dropping the oldest message to make room for it.
+   *
+   * @param marker the marker
+   */
+  private void enqueue(final Task marker) {
+    while (!queue.offer(marker)) {
+      if (queue.poll() != null) {
+        dropped.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * The current generation of a folder.
+   *
+   * @param folder the folder full name, or null
+   * @return the generation
+   */
+  private int generationOf(final String folder) {
+    final AtomicInteger generation = folder == null ? null : generations.get(folder);
+
+    return generation == null ? 0 : generation.get();
+  }
+
+  /**
+   * The shadow thread: run the shadow rules over each queued message until closed.
+   */
+  private void drain() {
+    while (true) {
+      final Task task;
+
+      try {
+        task = queue.take();
+      } catch (InterruptedException exception) {
+        return;
+      }
+
+      if (task.last) {
+        disconnect();
+        return;
+      }
+
+      if (task.uid >= 0) {
+        evaluateCopy(task);
+      } else if (task.context == null) {
+        completeRun();
+        disconnect();
+      } else {
+        evaluateShared(task);
+      }
+    }
+  }
+
+  /**
+   * Run the shadow rules over a copy of a message read by UID on the shadow thread's own
+   * connection. Messages expunged since, or of a folder whose UIDVALIDITY changed, are skipped.
+   *
+   * @param task the task
+   */
+  private void evaluateCopy(final Task task) {
+    final Message copy;
+
+    try {
+      copy = readOnlyCopy(task);
+    } catch (MessagingException exception) {
+      LOGGER.warn("shadow connection failed; reconnecting for the next message: {}",
+          exception.getMessage());
+      stale++;
+      disconnect();
+      return;
+    }
+
+    if (copy == null) {
+      stale++;
+    } else {
+      evaluate(new MessageContext(copy, available, true));
+    }
+  }
+
+  /**
+   * Run the shadow rules over the message the active rules read, unless its folder has been
+   * closed since.
+   *
+   * @param task the task
+   */
+  private void evaluateShared(final Task task) {
+    if (task.generation != generationOf(task.folder)) {
+      stale++;
+    } else {
+      evaluate(new MessageContext(task.context, available));
+    }
+  }
+
+  /**
+   * The copy of a message in the shadow thread's own folder, connecting and opening the folder
+   * read-only on first use.
+   *
+   * @param task the task
+   * @return the copy, or null when the message is no longer there
+   * @throws MessagingException the messaging exception
+   */
+  private Message readOnlyCopy(final Task task) throws MessagingException {
+    if (store == null) {
+      final Store connecting = session.getStore(properties.valueOf(MailProps.PROVIDER));
+      connecting.connect(properties.valueOf(MailProps.HOST),
+          properties.valueOf(MailProps.USERNAME), properties.valueOf(MailProps.PASSWORD));
+      store = connecting;
+    }
+
+    Folder folder = folders.get(task.folder);
+
+    if (folder == null) {
+      folder = store.getFolder(task.folder);
+      folder.open(Folder.READ_ONLY);
+      folders.put(task.folder, folder);
+    }
+
+    final UIDFolder uidFolder = (UIDFolder) folder;
+    final Message copy = uidFolder.getUIDValidity() == task.uidValidity
+        ? uidFolder.getMessageByUID(task.uid) : null;
+
+    if (copy instanceof IMAPMessage) {
+      // not every server leaves \Seen alone when a message of a read-only folder is read
+      ((IMAPMessage) copy).setPeek(true);
+    }
+
+    return copy;
+  }
+
+  /**
+   * Close the shadow thread's own folders and connection; the next message read on it opens
+   * them again, seeing the messages delivered since.
+   */
+  private void disconnect() {
+    try {
+      for (final Folder folder : folders.values()) {
+        if (folder.isOpen()) {
+          folder.close(false);
+        }
+      }
+
+      if (store != null) {
+        store.close();
+      }
+    } catch (MessagingException exception) {
+      LOGGER.debug("shadow connection not closed cleanly: {}", exception.getMessage());
+    }
+
+    folders.clear();
+    store = null;
+  }
+
+  /**
+   * Run every shadow rule over a message, recording its cost. A failing rule does not stop the
+   * rules after it.
+   *
+   * @param context the shadow message context
+   */
+  private void evaluate(final MessageContext context) {
+    for (final ProcessingRule rule : rules) {
+      final RuleProfile profile = shadowProfile(rule);
+      final long allocated = RuleProfile.allocatedBytes();
+      final long started = System.nanoTime();
+
+      try {
+        rule.processMessageRule(context);
+        profile.record(System.nanoTime() - started, RuleProfile.allocatedBytes() - allocated);
+      } catch (EmailRuleProcessorException | RuntimeException exception) {
+        profile.failed();
+        LOGGER.debug("shadow rule {} failed: {}", rule.ruleName(), exception.getMessage());
+      }
+    }
+
+    suppressedFlags += context.getSuppressedFlags();
+    evaluated++;
+  }
+
+  /**
+   * Complete the shadow run and report it.
+   */
+  private void completeRun() {
+    for (final ProcessingRule rule : rules) {
+      try {
+        rule.runCompleted();
+      } catch (EmailRuleProcessorException | RuntimeException exception) {
+        LOGGER.error("shadow rule {} failed to complete its run: {}", rule.ruleName(),
+            exception.getMessage());
+      }
+    }
+
+    report();
+  }
+
+  /**
+   * Log the cost of every rule of both sets, side by side by rule name, and start over.
+   */
+  private void report() {
+    LOGGER.info("shadow run: {} messages evaluated, {} dropped (queue full), {} stale "
+        + "(folder closed), {} flag writes suppressed", evaluated, dropped.getAndSet(0), stale,
+        suppressedFlags);
+    evaluated = 0;
+    stale = 0;
+    suppressedFlags = 0;
+
+    final Set<String> names = new TreeSet<String>(active.keySet());
+    names.addAll(shadow.keySet());
+    long activeMicros = 0;
+    long shadowMicros = 0;
+
+    for (final String name : names) {
+      activeMicros += report("active", active.get(name));
+      shadowMicros += report("shadow", shadow.get(name));
+    }
+
+    LOGGER.info("rules per message: active {} us, shadow {} us{}", activeMicros, shadowMicros,
+        RuleProfile.isAllocationMeasured() ? "" : "; allocation is not measured by this JVM");
+  }
+
+  /**
+   * Log the cost of one rule of one set, and start it over.
+   *
+   * @param set the rule set
+   * @param profile the profile, or null when the set has no such rule
+   * @return the mean latency of the rule, in microseconds
+   */
+  private static long report(final String set, final RuleProfile profile) {
+    if (profile == null || profile.getCount() + profile.getFailures() == 0) {
+      return 0L;
+    }
+
+    final long mean = profile.getMeanMicros();
+    LOGGER.info("{} {}: {} messages, {} failed, mean {} us, p50 {} us, p99 {} us, max {} us, "
+        + "{} bytes allocated per message", set, profile.getRule(), profile.getCount(),
+        profile.getFailures(), mean, profile.percentile(0.5), profile.percentile(0.99),
+        profile.getMax(), profile.getMeanAllocated());
+    profile.reset();
+
+    return mean;
+  }
+
+  /**
+   * The profile of a shadow rule.
+   *
+   * @param rule the shadow rule
+   * @return the profile
+   */
+  private RuleProfile shadowProfile(final ProcessingRule rule) {
+    RuleProfile profile = shadow.get(rule.ruleName());
+
+    if (profile == null) {
+      profile = new RuleProfile(rule.ruleName());
+      shadow.put(rule.ruleName(), profile);
+    }
+
+    return profile;
+  }
+
+  /**
+   * Load and initialize the shadow rules, in the order of their property keys.
+   *
+   * @param properties the properties
+   * @param context the shadow rule context
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  private void loadRules(final Properties properties, final RuleContext context)
+      throws EmailRuleProcessorException {
+    final Set<String> keys = new TreeSet<String>(new RuleKeyComparator());
+
+    for (final String key : properties.stringPropertyNames()) {
+      if (key.startsWith(RULE_PREFIX)) {
+        keys.add(key);
+      }
+    }
+
+    try {
+      for (final String key : keys) {
+        final Class<? extends ProcessingRule> rule = Class.forName(properties.getProperty(key))
+            .asSubclass(ProcessingRule.class);
+        final ProcessingRule processingRule = rule.getDeclaredConstructor().newInstance();
+        processingRule.initialize(context);
+        rules.add(processingRule);
+        requirements.addAll(processingRule.dataRequirements());
+      }
+    } catch (ReflectiveOperationException | ClassCastException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
+  /**
+   * The properties of the shadow rules: the application properties with every directory and
+   * file moved under the shadow directory, so the shadow rules never write where the active
+   * ones do.
+   *
+   * @param properties the application properties
+   * @param directory the shadow directory
+   * @return the shadow properties
+   */
+  private static Properties shadowProperties(final Properties properties,
+      final File directory) {
+    final Properties shadowProperties = new Properties();
+    shadowProperties.putAll(properties);
+
+    for (final String key : properties.stringPropertyNames()) {
+      if (key.endsWith(".dir") || key.endsWith(".file")) {
+        shadowProperties.setProperty(key,
+            new File(directory, new File(properties.getProperty(key)).getName()).getPath());
+      }
+    }
+
+    shadowProperties.setProperty(MailProperties.DATA_DIRECTORY, directory.getPath());
+
+    return shadowProperties;
+  }
+
+  /**
+   * A message queued for the shadow thread, or a marker. A message read again by UID is held by
+   * its identifiers alone, so the queue does not keep the active rules' context alive.
+   */
+  private static class Task {
+
+    /** The message context of the active rules, or null for a marker or a message read by UID. */
+    private final MessageContext context;
+
+    /** The full name of the folder of the message, or null. */
+    private final String folder;
+
+    /** The folder generation the message was read in. */
+    private final int generation;
+
+    /** The UIDVALIDITY of the folder of a message read again by UID. */
+    private final long uidValidity;
+
+    /** The UID of a message read again by UID, or -1 for one read through the active folder. */
+    private final long uid;
+
+    /** Whether this marks the end of the shadow thread. */
+    private final boolean last;
+
+    /**
+     * Instantiates a task for a message the shadow thread reads again, by UID.
+     *
+     * @param folder the folder full name
+     * @param uidValidity the UIDVALIDITY of the folder
+     * @param uid the UID of the message
+     */
+    private Task(final String folder, final long uidValidity, final long uid) {
+      this.context = null;
+      this.folder = folder;
+      this.generation = 0;
+      this.uidValidity = uidValidity;
+      this.uid = uid;
+      this.last = false;
+    }
+
+    /**
+     * Instantiates a task for a message the shadow thread reads through the active folder.
+     *
+     * @param context the message context
+     * @param folder the folder full name, or null
+     * @param generation the folder generation
+     */
+    private Task(final MessageContext context, final String folder, final int generation) {
+      this.context = context;
+      this.folder = folder;
+      this.generation = generation;
+      this.uidValidity = -1L;
+      this.uid = -1L;
+      this.last = false;
+    }
+
+    /**
+     * Instantiates a marker.
+     *
+     * @param last whether this marks the end of the shadow thread, rather than of a run
+     */
+    private Task(final boolean last) {
+      this.context = null;
+      this.folder = null;
+      this.generation = 0;
+      this.uidValidity = -1L;
+      this.uid = -1L;
+      this.last = last;
+    }
+  }
+}
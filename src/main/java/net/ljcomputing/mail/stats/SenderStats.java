@@ -0,0 +1,185 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.stats;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The statistics of one sender address or domain. Every counter is striped or lock-free, so
+ * parallel workers recording and reading the same busy sender do not contend on a lock.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public final class SenderStats {
+
+  /** The width of a recent bucket: the last hour is counted in 12 of them. */
+  private static final long RECENT_WIDTH = TimeUnit.MINUTES.toMillis(5);
+
+  /** The width of a daily bucket: the last day is counted in 24 of them. */
+  private static final long DAILY_WIDTH = TimeUnit.HOURS.toMillis(1);
+
+  /** The count of messages. */
+  private final LongAdder messages = new LongAdder();
+
+  /** The count of bytes. */
+  private final LongAdder bytes = new LongAdder();
+
+  /** The messages of the last hour. */
+  private final SlidingWindow lastHour = new SlidingWindow(12, RECENT_WIDTH);
+
+  /** The messages of the last day. */
+  private final SlidingWindow lastDay = new SlidingWindow(24, DAILY_WIDTH);
+
+  /** The time the sender was first seen. */
+  private final long firstSeen;
+
+  /** The time the sender was last seen. */
+  private volatile long lastSeen;
+
+  /**
+   * Instantiates new sender statistics.
+   *
+   * @param firstSeen the time the sender was first seen
+   */
+  SenderStats(final long firstSeen) {
+    this.firstSeen = firstSeen;
+    this.lastSeen = firstSeen;
+  }
+
+  /**
+   * Record a message.
+   *
+   * @param size the message size, or -1
+   * @param now the current time
+   */
+  void record(final long size, final long now) {
+    messages.increment();
+
+    if (size > 0) {
+      bytes.add(size);
+    }
+
+    lastHour.add(now);
+    lastDay.add(now);
+
+    if (now > lastSeen) {
+      lastSeen = now;
+    }
+  }
+
+  /**
+   * Gets the count of messages ever seen from the sender, the message being processed included.
+   *
+   * @return the messages
+   */
+  public long getMessages() {
+    return messages.sum();
+  }
+
+  /**
+   * Gets the count of bytes ever seen from the sender.
+   *
+   * @return the bytes
+   */
+  public long getBytes() {
+    return bytes.sum();
+  }
+
+  /**
+   * Checks if the message being processed is the first ever seen from the sender.
+   *
+   * @return true, if a first-time sender
+   */
+  public boolean isFirstTime() {
+    return messages.sum() <= 1;
+  }
+
+  /**
+   * Gets the count of messages from the sender in the last hour, in five-minute steps.
+   *
+   * @return the messages
+   */
+  public long getLastHour() {
+    return lastHour.sum(System.currentTimeMillis());
+  }
+
+  /**
+   * Gets the count of messages from the sender in the last day, in hourly steps.
+   *
+   * @return the messages
+   */
+  public long getLastDay() {
+    return lastDay.sum(System.currentTimeMillis());
+  }
+
+  /**
+   * Gets the time the sender was first seen.
+   *
+   * @return the first seen time in milliseconds since the epoch
+   */
+  public long getFirstSeen() {
+    return firstSeen;
+  }
+
+  /**
+   * Gets the time the sender was last seen.
+   *
+   * @return the last seen time in milliseconds since the epoch
+   */
+  public long getLastSeen() {
+    return lastSeen;
+  }
+
+  /**
+   * Write the statistics to a snapshot.
+   *
+   * @param out the output
+   * @param now the current time
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  void write(final DataOutputStream out, final long now) throws IOException {
+    out.writeLong(firstSeen);
+    out.writeLong(lastSeen);
+    out.writeLong(messages.sum());
+    out.writeLong(bytes.sum());
+    lastHour.write(out, now);
+    lastDay.write(out, now);
+  }
+
+  /**
+   * Read statistics from a snapshot.
+   *
+   * @param in the input
+   * @return the sender statistics
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  static SenderStats read(final DataInputStream in) throws IOException {
+    final SenderStats stats = new SenderStats(in.readLong());
+    stats.lastSeen = in.readLong();
+    stats.messages.add(in.readLong());
+    stats.bytes.add(in.readLong());
+    stats.lastHour.read(in);
+    stats.lastDay.read(in);
+
+    return stats;
+  }
+}
@@ -0,0 +1,377 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.stats;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.ljcomputing.mail.domain.EmailAddress;
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.service.MailProperties;
+
+/**
+ * In-memory statistics of every sender address and domain, updated by the rules processor for
+ * each message and read by rules through the rule context. Entries are keyed by the interned
+ * address and domain strings of the {@link net.ljcomputing.mail.domain.AddressPool}, looked up in
+ * concurrent hash maps, and snapshotted to disk periodically and on close so a restart begins
+ * warm. A new sender arriving with the capacity reached first drops the least recently seen,
+ * with some headroom so the next new senders do not each pay for a sweep.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class SenderStatsStore {
+
+  /** The Constant logger. */
+  private final static Logger LOGGER = LoggerFactory.getLogger(SenderStatsStore.class);
+
+  /** The property enabling sender statistics. */
+  public static final String ENABLED = "email.stats.enabled";
+
+  /** The snapshot file property. */
+  public static final String FILE = "email.stats.file";
+
+  /** The snapshot interval (seconds) property. */
+  public static final String SNAPSHOT_INTERVAL = "email.stats.snapshot.interval";
+
+  /** The most addresses, and separately domains, kept property. */
+  public static final String CAPACITY = "email.stats.capacity";
+
+  /** The snapshot file magic number. */
+  private static final int MAGIC = 0x53535401;
+
+  /** The snapshot file. */
+  private final File file;
+
+  /** The most addresses, and separately domains, kept. */
+  private final int capacity;
+
+  /** The statistics by address. */
+  private final Map<String, SenderStats> addresses = new ConcurrentHashMap<String, SenderStats>();
+
+  /** The statistics by domain. */
+  private final Map<String, SenderStats> domains = new ConcurrentHashMap<String, SenderStats>();
+
+  /** The snapshot thread. */
+  private final ScheduledExecutorService snapshots;
+
+  /**
+   * Open the store, loading the last snapshot.
+   *
+   * @param properties the properties
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public SenderStatsStore(final MailProperties properties) throws EmailRuleProcessorException {
+    this.file = new File(properties.valueOf(FILE,
+        new File(properties.dataDirectory(), "sender-stats.snapshot").getPath()));
+    this.capacity = properties.intValueOf(CAPACITY, 100000);
+
+    try {
+      load();
+    } catch (IOException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+
+    this.snapshots = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable runnable) {
+        final Thread thread = new Thread(runnable, "sender-stats-snapshot");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    final long interval = properties.longValueOf(SNAPSHOT_INTERVAL, 300L);
+    snapshots.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        snapshotQuietly();
+      }
+    }, interval, interval, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Record a message from its senders.
+   *
+   * @param from the senders
+   * @param size the message size, or -1
+   */
+  public void record(final List<EmailAddress> from, final long size) {
+    final long now = System.currentTimeMillis();
+
+    for (final EmailAddress sender : from) {
+      if (sender.getAddress() != null && !sender.getAddress().isEmpty()) {
+        statsOf(addresses, key(sender.getAddress()), now).record(size, now);
+      }
+
+      if (sender.getDomain() != null) {
+        statsOf(domains, sender.getDomain(), now).record(size, now);
+      }
+    }
+  }
+
+  /**
+   * The statistics of a sender address.
+   *
+   * @param address the address
+   * @return the statistics, or null if the sender has never been seen
+   */
+  public SenderStats address(final String address) {
+    return address == null ? null : addresses.get(key(address));
+  }
+
+  /**
+   * The statistics of a sender domain.
+   *
+   * @param domain the domain
+   * @return the statistics, or null if the domain has never been seen
+   */
+  public SenderStats domain(final String domain) {
+    return domain == null ? null : domains.get(domain.toLowerCase(Locale.ENGLISH));
+  }
+
+  /**
+   * Gets the count of sender addresses held.
+   *
+   * @return the size
+   */
+  public int size() {
+    return addresses.size();
+  }
+
+  /**
+   * Write a snapshot, forcing it to disk before it replaces the last one.
+   *
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public synchronized void snapshot() throws EmailRuleProcessorException {
+    final long now = System.currentTimeMillis();
+    final File written = new File(file.getPath() + ".tmp");
+
+    try {
+      try (final FileOutputStream fos = new FileOutputStream(written);
+          final DataOutputStream out = new DataOutputStream(
+              new BufferedOutputStream(fos, 64 * 1024))) {
+        out.writeInt(MAGIC);
+        write(out, addresses, now);
+        write(out, domains, now);
+        out.flush();
+        fos.getFD().sync();
+      }
+
+      Files.move(written.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+
+    LOGGER.debug("snapshotted {} sender addresses and {} domains", addresses.size(),
+        domains.size());
+  }
+
+  /**
+   * Stop the snapshot thread and write a final snapshot.
+   *
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public void close() throws EmailRuleProcessorException {
+    snapshots.shutdown();
+
+    try {
+      snapshots.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+    }
+
+    snapshot();
+  }
+
+  /**
+   * Write a snapshot, logging rather than throwing any failure.
+   */
+  private void snapshotQuietly() {
+    try {
+      snapshot();
+    } catch (EmailRuleProcessorException exception) {
+      LOGGER.error("failed to snapshot sender statistics: {}", exception.getMessage());
+    }
+  }
+
+  /**
+   * The statistics for a key, created if they do not exist. New keys are added one at a time, and
+   * with the capacity reached the least recently seen senders are dropped first.
+   *
+   * @param stats the statistics
+   * @param key the key
+   * @param now the current time
+   * @return the sender statistics
+   */
+  private SenderStats statsOf(final Map<String, SenderStats> stats, final String key,
+      final long now) {
+    final SenderStats existing = stats.get(key);
+
+    if (existing != null) {
+      return existing;
+    }
+
+    synchronized (stats) {
+      if (stats.size() >= capacity && !stats.containsKey(key)) {
+        evict(stats, Math.max(0, capacity - 1 - capacity / 16));
+      }
+
+      return stats.computeIfAbsent(key, k -> new SenderStats(now));
+    }
+  }
+
+  /**
+   * Drop the least recently seen senders beyond a number.
+   *
+   * @param stats the statistics
+   * @param keep the number of senders to keep
+   */
+  private static void evict(final Map<String, SenderStats> stats, final int keep) {
+    final int excess = stats.size() - keep;
+
+    if (excess <= 0) {
+      return;
+    }
+
+    final List<SenderStats> senders = new ArrayList<SenderStats>(stats.values());
+    final long[] lastSeen = new long[senders.size()];
+
+    for (int s = 0; s < lastSeen.length; s++) {
+      lastSeen[s] = senders.get(s).getLastSeen();
+    }
+
+    Arrays.sort(lastSeen);
+    final long cutoff = lastSeen[Math.min(lastSeen.length, excess) - 1];
+    final Iterator<SenderStats> held = stats.values().iterator();
+
+    while (held.hasNext()) {
+      if (held.next().getLastSeen() <= cutoff) {
+        held.remove();
+      }
+    }
+  }
+
+  /**
+   * Write the statistics of one map.
+   *
+   * @param out the output
+   * @param stats the statistics
+   * @param now the current time
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void write(final DataOutputStream out, final Map<String, SenderStats> stats,
+      final long now) throws IOException {
+    final List<Map.Entry<String, SenderStats>> senders =
+        new ArrayList<Map.Entry<String, SenderStats>>(stats.entrySet());
+    out.writeInt(senders.size());
+
+    for (final Map.Entry<String, SenderStats> sender : senders) {
+      out.writeUTF(sender.getKey());
+      sender.getValue().write(out, now);
+    }
+  }
+
+  /**
+   * Load the last snapshot, if there is one.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void load() throws IOException {
+    if (!file.exists()) {
+      if (file.getParentFile() != null) {
+        file.getParentFile().mkdirs();
+      }
+
+      return;
+    }
+
+    try (final DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+      if (in.readInt() != MAGIC) {
+        throw new IOException(file + " is not a sender statistics snapshot");
+      }
+
+      read(in, addresses);
+      read(in, domains);
+    }
+
+    evict(addresses, capacity);
+    evict(domains, capacity);
+
+    LOGGER.info("loaded statistics of {} sender addresses and {} domains from {}",
+        addresses.size(), domains.size(), file);
+  }
+
+  /**
+   * Read the statistics of one map.
+   *
+   * @param in the input
+   * @param stats the statistics
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void read(final DataInputStream in, final Map<String, SenderStats> stats)
+      throws IOException {
+    final int count = in.readInt();
+
+    for (int s = 0; s < count; s++) {
+      stats.put(in.readUTF(), SenderStats.read(in));
+    }
+  }
+
+  /**
+   * The key of an address: the address itself, lower cased only when it is not already.
+   *
+   * @param address the address
+   * @return the key
+   */
+  private static String key(final String address) {
+    for (int c = 0; c < address.length(); c++) {
+      if (Character.isUpperCase(address.charAt(c))) {
+        return address.toLowerCase(Locale.ENGLISH);
+      }
+    }
+
+    return address;
+  }
+}
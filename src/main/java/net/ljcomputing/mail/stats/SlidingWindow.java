@@ -0,0 +1,169 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.stats;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free count of events over a sliding window of fixed-width time buckets. Each bucket packs
+ * the epoch it counts (the time divided by the bucket width) into its upper bits and the count
+ * into the lower 24, so a bucket left over from an earlier turn of the ring is reset and counted
+ * into by the same compare-and-set.
+ * 
+ * @author James G. Willmore
+ *
+ */
+final class SlidingWindow {
+
+  /** The bits holding the count. */
+  private static final int COUNT_BITS = 24;
+
+  /** The count mask; a bucket's count saturates at it. */
+  private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+  /** The bucket width in milliseconds. */
+  private final long width;
+
+  /** The packed buckets. */
+  private final AtomicLongArray buckets;
+
+  /**
+   * Instantiates a new sliding window.
+   *
+   * @param count the number of buckets
+   * @param width the bucket width in milliseconds
+   */
+  SlidingWindow(final int count, final long width) {
+    this.width = width;
+    this.buckets = new AtomicLongArray(count);
+  }
+
+  /**
+   * Count an event.
+   *
+   * @param now the time of the event
+   */
+  void add(final long now) {
+    final long epoch = now / width;
+    final int bucket = (int) (epoch % buckets.length());
+
+    while (true) {
+      final long packed = buckets.get(bucket);
+      final long updated;
+
+      if (packed >>> COUNT_BITS == epoch) {
+        if ((packed & COUNT_MASK) == COUNT_MASK) {
+          return;
+        }
+
+        updated = packed + 1;
+      } else if (packed >>> COUNT_BITS > epoch) {
+        return;
+      } else {
+        updated = epoch << COUNT_BITS | 1;
+      }
+
+      if (buckets.compareAndSet(bucket, packed, updated)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * The count of events within the window ending now.
+   *
+   * @param now the current time
+   * @return the count
+   */
+  long sum(final long now) {
+    final long epoch = now / width;
+    long sum = 0;
+
+    for (int bucket = 0; bucket < buckets.length(); bucket++) {
+      final long packed = buckets.get(bucket);
+
+      if (epoch - (packed >>> COUNT_BITS) < buckets.length()) {
+        sum += packed & COUNT_MASK;
+      }
+    }
+
+    return sum;
+  }
+
+  /**
+   * Write the buckets still within the window.
+   *
+   * @param out the output
+   * @param now the current time
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  void write(final DataOutputStream out, final long now) throws IOException {
+    final long epoch = now / width;
+    int live = 0;
+
+    for (int bucket = 0; bucket < buckets.length(); bucket++) {
+      if (isLive(buckets.get(bucket), epoch)) {
+        live++;
+      }
+    }
+
+    out.writeByte(live);
+
+    for (int bucket = 0; bucket < buckets.length() && live > 0; bucket++) {
+      final long packed = buckets.get(bucket);
+
+      if (isLive(packed, epoch)) {
+        out.writeByte(bucket);
+        out.writeLong(packed);
+        live--;
+      }
+    }
+  }
+
+  /**
+   * Read buckets written by {@link #write(DataOutputStream, long)}.
+   *
+   * @param in the input
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  void read(final DataInputStream in) throws IOException {
+    final int live = in.readUnsignedByte();
+
+    for (int b = 0; b < live; b++) {
+      final int bucket = in.readUnsignedByte();
+      final long packed = in.readLong();
+
+      if (bucket < buckets.length()) {
+        buckets.set(bucket, packed);
+      }
+    }
+  }
+
+  /**
+   * Checks if a packed bucket holds events within the window.
+   *
+   * @param packed the packed bucket
+   * @param epoch the current epoch
+   * @return true, if live
+   */
+  private boolean isLive(final long packed, final long epoch) {
+    return (packed & COUNT_MASK) != 0 && epoch - (packed >>> COUNT_BITS) < buckets.length();
+  }
+}
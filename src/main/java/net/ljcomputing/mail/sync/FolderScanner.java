@@ -0,0 +1,422 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.sync;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+import javax.mail.Store;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.protocol.Status;
+
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.limit.AdaptiveLimiter;
+import net.ljcomputing.mail.service.MailProperties;
+import net.ljcomputing.mail.service.MailProps;
+
+/**
+ * Finds the folders of the mailbox that changed since they were last processed, and processes
+ * them a number at a time. The folders are LISTed once and the list is kept for a while; each run
+ * then asks every folder for its STATUS, one command that opens nothing, and skips those whose
+ * status matches the checkpoint saved when they were last processed.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class FolderScanner {
+
+  /** The Constant logger. */
+  private final static Logger LOGGER = LoggerFactory.getLogger(FolderScanner.class);
+
+  /** The property enabling folder-wide processing. */
+  public static final String ENABLED = "email.folders.enabled";
+
+  /** The LIST pattern property. */
+  public static final String PATTERN = "email.folders.pattern";
+
+  /** The property limiting the folders to the subscribed ones (LSUB). */
+  public static final String SUBSCRIBED = "email.folders.subscribed";
+
+  /** The comma separated full names of the folders never processed property. */
+  public static final String EXCLUDE = "email.folders.exclude";
+
+  /** The interval (seconds) the folder list is kept before it is LISTed again property. */
+  public static final String LIST_INTERVAL = "email.folders.list.interval";
+
+  /** The number of folders processed at a time property. */
+  public static final String CONCURRENCY = "email.folders.concurrency";
+
+  /** The checkpoint file property. */
+  public static final String FILE = "email.folders.file";
+
+  /** The STATUS items asked for. */
+  private static final String[] ITEMS = { "UIDVALIDITY", "UIDNEXT", "MESSAGES", "UNSEEN" };
+
+  /** The STATUS items asked for of a CONDSTORE server. */
+  private static final String[] MODSEQ_ITEMS = { "UIDVALIDITY", "UIDNEXT", "MESSAGES", "UNSEEN",
+      "HIGHESTMODSEQ" };
+
+  /** The IMAP concurrency limiter. */
+  private final AdaptiveLimiter imap;
+
+  /** The username. */
+  private final String username;
+
+  /** The host. */
+  private final String host;
+
+  /** The LIST pattern. */
+  private final String pattern;
+
+  /** Whether only subscribed folders are processed. */
+  private final boolean subscribed;
+
+  /** The full names of the folders never processed. */
+  private final Set<String> exclude = new HashSet<String>();
+
+  /** The interval the folder list is kept, in milliseconds. */
+  private final long listInterval;
+
+  /** The workers processing the changed folders. */
+  private final ExecutorService workers;
+
+  /** The checkpoint file. */
+  private final File file;
+
+  /** The checkpoints, as saved by {@link FolderStatus#toString()}, by folder key. */
+  private final Properties checkpoints = new Properties();
+
+  /** The statuses of the changed folders before they were processed, by full name. */
+  private final Map<String, FolderStatus> before = new ConcurrentHashMap<String, FolderStatus>();
+
+  /** The checkpoints of the folders processed in this run, by full name. */
+  private final Map<String, FolderStatus> settled = new ConcurrentHashMap<String, FolderStatus>();
+
+  /** The full names of the selectable folders, as last LISTed, or null. */
+  private List<String> names;
+
+  /** The time the folders were last LISTed. */
+  private long listedAt;
+
+  /** Whether the server supports CONDSTORE. */
+  private volatile boolean condstore;
+
+  /**
+   * Instantiates a new folder scanner, loading the checkpoints saved by earlier runs.
+   *
+   * @param properties the properties
+   * @param imap the IMAP concurrency limiter
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public FolderScanner(final MailProperties properties, final AdaptiveLimiter imap)
+      throws EmailRuleProcessorException {
+    this.imap = imap;
+    this.username = properties.valueOf(MailProps.USERNAME);
+    this.host = properties.valueOf(MailProps.HOST);
+    this.pattern = properties.valueOf(PATTERN, "*");
+    this.subscribed = properties.booleanValueOf(SUBSCRIBED, true);
+    this.listInterval = TimeUnit.SECONDS.toMillis(properties.longValueOf(LIST_INTERVAL, 3600L));
+    this.workers = Executors.newFixedThreadPool(
+        Math.max(1, properties.intValueOf(CONCURRENCY, 2)), new WorkerThreadFactory());
+    this.file = new File(properties.valueOf(FILE,
+        new File(properties.dataDirectory(), "folder-checkpoints.properties").getPath()));
+
+    for (final String name : properties.valueOf(EXCLUDE, "").split(",")) {
+      if (!name.trim().isEmpty()) {
+        exclude.add(name.trim());
+      }
+    }
+
+    if (file.exists()) {
+      try (final InputStream in = new FileInputStream(file)) {
+        checkpoints.load(in);
+      } catch (IOException exception) {
+        LOGGER.error("FATAL: ", exception);
+        throw new EmailRuleProcessorException(exception);
+      }
+    }
+  }
+
+  /**
+   * The folders changed since their last checkpoint, LISTing the folders first when the list
+   * has expired.
+   *
+   * @param store the connected store
+   * @return the changed folders, closed
+   * @throws EmailRuleProcessorException the email rule processor exception
+   * @throws MessagingException the messaging exception
+   */
+  public List<Folder> changed(final Store store)
+      throws EmailRuleProcessorException, MessagingException {
+    if (!(store instanceof IMAPStore)) {
+      throw new EmailRuleProcessorException("folder-wide processing needs an IMAP store.");
+    }
+
+    condstore = ((IMAPStore) store).hasCapability("CONDSTORE");
+    before.clear();
+
+    final List<String> listed = list(store);
+    final List<Folder> changed = new ArrayList<Folder>();
+
+    for (final String name : listed) {
+      final Folder folder = store.getFolder(name);
+      final FolderStatus status;
+
+      try {
+        status = status(folder);
+      } catch (MessagingException exception) {
+        // most likely deleted since it was LISTed
+        LOGGER.warn("no STATUS for folder {}, LISTing again next run: {}", name,
+            exception.getMessage());
+        listedAt = 0L;
+        continue;
+      }
+
+      if (status.equals(checkpointOf(name))) {
+        continue;
+      }
+
+      before.put(name, status);
+      changed.add(folder);
+    }
+
+    LOGGER.info("{} of {} folders changed since their last checkpoint", changed.size(),
+        listed.size());
+
+    return changed;
+  }
+
+  /**
+   * Process folders, a number at a time, each on a worker thread. A folder processed without
+   * failure is checkpointed; a failing folder does not stop the others.
+   *
+   * @param folders the folders
+   * @param task the processing of one folder
+   * @throws EmailRuleProcessorException the failure of the first folder that failed
+   */
+  public void process(final List<Folder> folders, final FolderTask task)
+      throws EmailRuleProcessorException {
+    final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+
+    for (final Folder folder : folders) {
+      futures.add(workers.submit(() -> {
+        task.process(folder);
+        settle(folder);
+        return null;
+      }));
+    }
+
+    EmailRuleProcessorException failure = null;
+
+    for (int f = 0; f < futures.size(); f++) {
+      try {
+        futures.get(f).get();
+      } catch (InterruptedException exception) {
+        Thread.currentThread().interrupt();
+        throw new EmailRuleProcessorException(exception);
+      } catch (ExecutionException exception) {
+        final Throwable cause = exception.getCause();
+        LOGGER.error("folder {} failed: {}", folders.get(f).getFullName(), cause.getMessage());
+
+        if (failure == null) {
+          failure = cause instanceof EmailRuleProcessorException
+              ? (EmailRuleProcessorException) cause : new EmailRuleProcessorException(cause);
+        }
+      }
+    }
+
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Save the checkpoints of the folders processed since the last save. Called once the run has
+   * completed, so a folder is only checkpointed once everything the rules did with it is durable.
+   *
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public synchronized void checkpoint() throws EmailRuleProcessorException {
+    if (settled.isEmpty()) {
+      return;
+    }
+
+    for (final Map.Entry<String, FolderStatus> checkpoint : settled.entrySet()) {
+      checkpoints.setProperty(FolderStateStore.keyOf(username, host, checkpoint.getKey()),
+          checkpoint.getValue().toString());
+    }
+
+    settled.clear();
+    final File temporary = new File(file.getPath() + ".tmp");
+
+    try {
+      try (final OutputStream out = new FileOutputStream(temporary)) {
+        checkpoints.store(out, "folder statuses as of their last processing");
+      }
+
+      Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
+  /**
+   * Stop the workers.
+   */
+  public void close() {
+    workers.shutdown();
+  }
+
+  /**
+   * The full names of the selectable folders, LISTing them when the list has expired. The inbox
+   * is always included, subscribed or not, unless excluded.
+   *
+   * @param store the store
+   * @return the full names
+   * @throws EmailRuleProcessorException the email rule processor exception
+   * @throws MessagingException the messaging exception
+   */
+  private synchronized List<String> list(final Store store)
+      throws EmailRuleProcessorException, MessagingException {
+    final long now = System.currentTimeMillis();
+
+    if (names != null && now - listedAt < listInterval) {
+      return names;
+    }
+
+    final Folder root = store.getDefaultFolder();
+    final Folder[] listed = imap
+        .call(() -> subscribed ? root.listSubscribed(pattern) : root.list(pattern));
+    final Set<String> selectable = new LinkedHashSet<String>();
+
+    if (!exclude.contains("INBOX")) {
+      selectable.add("INBOX");
+    }
+
+    for (final Folder folder : listed) {
+      if ((folder.getType() & Folder.HOLDS_MESSAGES) != 0
+          && !exclude.contains(folder.getFullName())
+          && !"INBOX".equalsIgnoreCase(folder.getFullName())) {
+        selectable.add(folder.getFullName());
+      }
+    }
+
+    names = new ArrayList<String>(selectable);
+    listedAt = now;
+    LOGGER.info("LISTed {} folders matching {}", names.size(), pattern);
+    LOGGER.debug("folders: {}", names);
+
+    return names;
+  }
+
+  /**
+   * The STATUS of a folder, in one command, without opening it.
+   *
+   * @param folder the folder
+   * @return the status
+   * @throws EmailRuleProcessorException the email rule processor exception
+   * @throws MessagingException the messaging exception
+   */
+  private FolderStatus status(final Folder folder)
+      throws EmailRuleProcessorException, MessagingException {
+    final IMAPFolder imapFolder = (IMAPFolder) folder;
+    final String[] items = condstore ? MODSEQ_ITEMS : ITEMS;
+    final Status status = imap.call(() -> (Status) imapFolder
+        .doCommand(protocol -> protocol.status(imapFolder.getFullName(), items)));
+
+    return new FolderStatus(status.uidvalidity, status.uidnext, status.total, status.unseen,
+        status.highestmodseq);
+  }
+
+  /**
+   * Record the checkpoint of a folder just processed.
+   *
+   * @param folder the folder, closed
+   * @throws EmailRuleProcessorException the email rule processor exception
+   * @throws MessagingException the messaging exception
+   */
+  private void settle(final Folder folder)
+      throws EmailRuleProcessorException, MessagingException {
+    final FolderStatus status = before.get(folder.getFullName());
+
+    if (status != null) {
+      settled.put(folder.getFullName(), FolderStatus.checkpoint(status, status(folder)));
+    }
+  }
+
+  /**
+   * The checkpoint of a folder.
+   *
+   * @param name the folder full name
+   * @return the checkpoint, or null
+   */
+  private synchronized FolderStatus checkpointOf(final String name) {
+    final String value = checkpoints.getProperty(FolderStateStore.keyOf(username, host, name));
+
+    return value == null ? null : FolderStatus.parse(value);
+  }
+
+  /**
+   * Thread factory for the daemon folder workers.
+   */
+  private static class WorkerThreadFactory implements ThreadFactory {
+
+    /** The thread counter. */
+    private final AtomicInteger counter = new AtomicInteger();
+
+    /**
+     * @see java.util.concurrent.ThreadFactory#newThread(java.lang.Runnable)
+     */
+    @Override
+    public Thread newThread(final Runnable runnable) {
+      final Thread thread = new Thread(runnable, "folder-worker-" + counter.incrementAndGet());
+      thread.setDaemon(true);
+
+      return thread;
+    }
+  }
+}
@@ -0,0 +1,80 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.sync;
+
+/**
+ * The state of a folder as of the last completed run: its UIDVALIDITY and HIGHESTMODSEQ.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class FolderState {
+
+  /** The uid validity. */
+  private final long uidValidity;
+
+  /** The highest mod seq. */
+  private final long highestModSeq;
+
+  /**
+   * Instantiates a new folder state.
+   *
+   * @param uidValidity the uid validity
+   * @param highestModSeq the highest mod seq
+   */
+  public FolderState(final long uidValidity, final long highestModSeq) {
+    this.uidValidity = uidValidity;
+    this.highestModSeq = highestModSeq;
+  }
+
+  /**
+   * Gets the uid validity.
+   *
+   * @return the uid validity
+   */
+  public long getUidValidity() {
+    return uidValidity;
+  }
+
+  /**
+   * Gets the highest mod seq.
+   *
+   * @return the highest mod seq
+   */
+  public long getHighestModSeq() {
+    return highestModSeq;
+  }
+
+  /**
+   * Checks if changes since this state can be asked for: the server reported a HIGHESTMODSEQ and
+   * the folder still has the same UIDVALIDITY.
+   *
+   * @param currentUidValidity the folder's current uid validity
+   * @return true, if the folder can be resynchronized from this state
+   */
+  public boolean isResyncable(final long currentUidValidity) {
+    return highestModSeq > 0 && uidValidity == currentUidValidity;
+  }
+
+  /**
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return uidValidity + ":" + highestModSeq;
+  }
+}
@@ -0,0 +1,135 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.sync;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.service.MailProperties;
+
+/**
+ * The folder states of the last completed runs, by folder key, kept in a small properties file
+ * that is replaced atomically on every update.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class FolderStateStore {
+
+  /** The Constant logger. */
+  private final static Logger LOGGER = LoggerFactory.getLogger(FolderStateStore.class);
+
+  /** The resynchronization enabled property. */
+  public static final String ENABLED = "email.resync.enabled";
+
+  /** The state file. */
+  private final File file;
+
+  /** The states, as "uidvalidity:highestmodseq" by folder key. */
+  private final Properties states = new Properties();
+
+  /**
+   * Open the store, loading the states saved by earlier runs.
+   *
+   * @param properties the properties
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public FolderStateStore(final MailProperties properties) throws EmailRuleProcessorException {
+    this.file = new File(properties.dataDirectory(), "folder-state.properties");
+
+    if (file.exists()) {
+      try (final InputStream in = new FileInputStream(file)) {
+        states.load(in);
+      } catch (IOException exception) {
+        LOGGER.error("FATAL: ", exception);
+        throw new EmailRuleProcessorException(exception);
+      }
+    }
+  }
+
+  /**
+   * The key of a folder.
+   *
+   * @param username the username
+   * @param host the host
+   * @param folder the folder full name
+   * @return the key
+   */
+  public static String keyOf(final String username, final String host, final String folder) {
+    return username + "@" + host + "/" + folder;
+  }
+
+  /**
+   * Gets the state of a folder as of its last completed run.
+   *
+   * @param key the folder key
+   * @return the state, or null
+   */
+  public synchronized FolderState get(final String key) {
+    final String value = states.getProperty(key);
+
+    if (value == null) {
+      return null;
+    }
+
+    final int colon = value.indexOf(':');
+
+    try {
+      return new FolderState(Long.parseLong(value.substring(0, colon)),
+          Long.parseLong(value.substring(colon + 1)));
+    } catch (NumberFormatException | StringIndexOutOfBoundsException exception) {
+      LOGGER.warn("ignoring unreadable folder state for {}: {}", key, value);
+      return null;
+    }
+  }
+
+  /**
+   * Save the state of a folder once a run has completed.
+   *
+   * @param key the folder key
+   * @param state the state
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public synchronized void put(final String key, final FolderState state)
+      throws EmailRuleProcessorException {
+    states.setProperty(key, state.toString());
+    final File temporary = new File(file.getPath() + ".tmp");
+
+    try {
+      try (final OutputStream out = new FileOutputStream(temporary)) {
+        states.store(out, "folder states of the last completed runs");
+      }
+
+      Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+}
@@ -0,0 +1,175 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.sync;
+
+/**
+ * The STATUS of a folder (UIDVALIDITY, UIDNEXT, MESSAGES, UNSEEN and, with CONDSTORE,
+ * HIGHESTMODSEQ), cheap to ask for without opening the folder. A folder whose status matches its
+ * checkpoint has not changed since it was last processed.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class FolderStatus {
+
+  /** The uid validity. */
+  private final long uidValidity;
+
+  /** The uid next. */
+  private final long uidNext;
+
+  /** The message count. */
+  private final long messages;
+
+  /** The unseen message count. */
+  private final long unseen;
+
+  /** The highest mod seq, or 0 without CONDSTORE. */
+  private final long highestModSeq;
+
+  /**
+   * Instantiates a new folder status.
+   *
+   * @param uidValidity the uid validity
+   * @param uidNext the uid next
+   * @param messages the message count
+   * @param unseen the unseen message count
+   * @param highestModSeq the highest mod seq, or 0
+   */
+  public FolderStatus(final long uidValidity, final long uidNext, final long messages,
+      final long unseen, final long highestModSeq) {
+    this.uidValidity = uidValidity;
+    this.uidNext = uidNext;
+    this.messages = messages;
+    this.unseen = unseen;
+    this.highestModSeq = highestModSeq;
+  }
+
+  /**
+   * The checkpoint of a folder processed between two statuses. The rules' own flag changes, seen
+   * in UNSEEN and HIGHESTMODSEQ after the run, must not make the folder look changed next time;
+   * messages that arrived or were expunged during the run must, so UIDVALIDITY, UIDNEXT and
+   * MESSAGES are taken from before it.
+   *
+   * @param before the status before the folder was processed
+   * @param after the status after the folder was processed
+   * @return the checkpoint
+   */
+  public static FolderStatus checkpoint(final FolderStatus before, final FolderStatus after) {
+    return new FolderStatus(before.uidValidity, before.uidNext, before.messages, after.unseen,
+        after.highestModSeq);
+  }
+
+  /**
+   * Parse a status saved by {@link #toString()}.
+   *
+   * @param value the value
+   * @return the status, or null when the value cannot be read
+   */
+  public static FolderStatus parse(final String value) {
+    final String[] fields = value.split(":");
+
+    if (fields.length != 5) {
+      return null;
+    }
+
+    try {
+      return new FolderStatus(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+          Long.parseLong(fields[2]), Long.parseLong(fields[3]), Long.parseLong(fields[4]));
+    } catch (NumberFormatException exception) {
+      return null;
+    }
+  }
+
+  /**
+   * Gets the uid validity.
+   *
+   * @return the uid validity
+   */
+  public long getUidValidity() {
+    return uidValidity;
+  }
+
+  /**
+   * Gets the uid next.
+   *
+   * @return the uid next
+   */
+  public long getUidNext() {
+    return uidNext;
+  }
+
+  /**
+   * Gets the message count.
+   *
+   * @return the message count
+   */
+  public long getMessages() {
+    return messages;
+  }
+
+  /**
+   * Gets the unseen message count.
+   *
+   * @return the unseen message count
+   */
+  public long getUnseen() {
+    return unseen;
+  }
+
+  /**
+   * Gets the highest mod seq.
+   *
+   * @return the highest mod seq, or 0
+   */
+  public long getHighestModSeq() {
+    return highestModSeq;
+  }
+
+  /**
+   * @see java.lang.Object#equals(java.lang.Object)
+   */
+  @Override
+  public boolean equals(final Object other) {
+    if (!(other instanceof FolderStatus)) {
+      return false;
+    }
+
+    final FolderStatus status = (FolderStatus) other;
+
+    return uidValidity == status.uidValidity && uidNext == status.uidNext
+        && messages == status.messages && unseen == status.unseen
+        && highestModSeq == status.highestModSeq;
+  }
+
+  /**
+   * @see java.lang.Object#hashCode()
+   */
+  @Override
+  public int hashCode() {
+    return Long.hashCode(uidValidity) * 31 + Long.hashCode(uidNext) * 17
+        + Long.hashCode(highestModSeq);
+  }
+
+  /**
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return uidValidity + ":" + uidNext + ":" + messages + ":" + unseen + ":" + highestModSeq;
+  }
+}
@@ -0,0 +1,40 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.sync;
+
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+
+/**
+ * The processing of one folder, run by a {@link FolderScanner} worker.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public interface FolderTask {
+
+  /**
+   * Process the folder.
+   *
+   * @param folder the folder
+   * @throws EmailRuleProcessorException the email rule processor exception
+   * @throws MessagingException the messaging exception
+   */
+  void process(Folder folder) throws EmailRuleProcessorException, MessagingException;
+}
@@ -0,0 +1,127 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.threading;
+
+/**
+ * A snapshot of the conversation a message belongs to, as it stood when the snapshot was taken.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class MailThread {
+
+  /** The Message-ID of the message. */
+  private final String messageId;
+
+  /** The Message-ID at the root of the thread. */
+  private final String threadId;
+
+  /** The Message-ID of the parent, or null for the root. */
+  private final String parentId;
+
+  /** The count of messages seen in the thread. */
+  private final int messageCount;
+
+  /** The depth of the message in the thread. */
+  private final int depth;
+
+  /**
+   * Instantiates a new mail thread snapshot.
+   *
+   * @param container the container of the message
+   */
+  MailThread(final ThreadContainer container) {
+    final ThreadContainer root = container.root();
+    this.messageId = container.messageId;
+    this.threadId = root.messageId;
+    this.parentId = container.parent == null ? null : container.parent.messageId;
+    this.messageCount = root.messages;
+    this.depth = container.depth();
+  }
+
+  /**
+   * Gets the Message-ID of the message.
+   *
+   * @return the message id
+   */
+  public String getMessageId() {
+    return messageId;
+  }
+
+  /**
+   * Gets the thread id, the Message-ID at the root of the thread. The root may be a message that
+   * has been referenced but never seen.
+   *
+   * @return the thread id
+   */
+  public String getThreadId() {
+    return threadId;
+  }
+
+  /**
+   * Gets the Message-ID of the message this one replies to.
+   *
+   * @return the parent id, or null for the root
+   */
+  public String getParentId() {
+    return parentId;
+  }
+
+  /**
+   * Gets the count of messages seen in the thread.
+   *
+   * @return the message count
+   */
+  public int getMessageCount() {
+    return messageCount;
+  }
+
+  /**
+   * Gets the count of replies seen in the thread, every message but the first.
+   *
+   * @return the reply count
+   */
+  public int getReplyCount() {
+    return Math.max(0, messageCount - 1);
+  }
+
+  /**
+   * Gets the depth of the message in the thread, zero for the root.
+   *
+   * @return the depth
+   */
+  public int getDepth() {
+    return depth;
+  }
+
+  /**
+   * Checks if the message is the root of its thread.
+   *
+   * @return true, if the message is the root
+   */
+  public boolean isRoot() {
+    return messageId.equals(threadId);
+  }
+
+  /**
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return threadId + " (" + messageCount + " messages)";
+  }
+}
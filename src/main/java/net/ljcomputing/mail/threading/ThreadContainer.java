@@ -0,0 +1,144 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.threading;
+
+/**
+ * A node of the threading tree, one per Message-ID seen either on a message or in another
+ * message's references. A container whose message has not been seen yet is a placeholder that
+ * still ties its replies together.
+ * 
+ * @author James G. Willmore
+ *
+ */
+final class ThreadContainer {
+
+  /** The Message-ID. */
+  final String messageId;
+
+  /** The parent, or null for a thread root. */
+  ThreadContainer parent;
+
+  /** The most recently linked child. */
+  ThreadContainer firstChild;
+
+  /** The next sibling. */
+  ThreadContainer nextSibling;
+
+  /** Whether the message itself has been seen. */
+  boolean present;
+
+  /** The count of seen messages in this subtree, this container included. */
+  int messages;
+
+  /**
+   * Instantiates a new thread container.
+   *
+   * @param messageId the message id
+   */
+  ThreadContainer(final String messageId) {
+    this.messageId = messageId;
+  }
+
+  /**
+   * The root of the thread holding this container.
+   *
+   * @return the root
+   */
+  ThreadContainer root() {
+    ThreadContainer root = this;
+
+    while (root.parent != null) {
+      root = root.parent;
+    }
+
+    return root;
+  }
+
+  /**
+   * The number of ancestors of this container.
+   *
+   * @return the depth
+   */
+  int depth() {
+    int depth = 0;
+
+    for (ThreadContainer ancestor = parent; ancestor != null; ancestor = ancestor.parent) {
+      depth++;
+    }
+
+    return depth;
+  }
+
+  /**
+   * Checks if this container is the other or one of its ancestors.
+   *
+   * @param other the other container
+   * @return true, if this container is the other or an ancestor of it
+   */
+  boolean isAncestorOf(final ThreadContainer other) {
+    for (ThreadContainer node = other; node != null; node = node.parent) {
+      if (node == this) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Link a child under this container, adding its messages to this container and its ancestors.
+   *
+   * @param child the child, which must be a root
+   */
+  void adopt(final ThreadContainer child) {
+    child.parent = this;
+    child.nextSibling = firstChild;
+    firstChild = child;
+
+    for (ThreadContainer node = this; node != null; node = node.parent) {
+      node.messages += child.messages;
+    }
+  }
+
+  /**
+   * Unlink this container from its parent, taking its messages from its former ancestors.
+   */
+  void detach() {
+    if (parent == null) {
+      return;
+    }
+
+    if (parent.firstChild == this) {
+      parent.firstChild = nextSibling;
+    } else {
+      ThreadContainer sibling = parent.firstChild;
+
+      while (sibling.nextSibling != this) {
+        sibling = sibling.nextSibling;
+      }
+
+      sibling.nextSibling = nextSibling;
+    }
+
+    for (ThreadContainer node = parent; node != null; node = node.parent) {
+      node.messages -= messages;
+    }
+
+    parent = null;
+    nextSibling = null;
+  }
+}
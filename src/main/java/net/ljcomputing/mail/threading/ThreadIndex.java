@@ -0,0 +1,494 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.threading;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.service.MailProperties;
+
+/**
+ * Incremental conversation threading index, after Jamie Zawinski's threading algorithm. Every
+ * Message-ID seen on a message or in its References/In-Reply-To headers has a container in a hash
+ * table, so attaching a new message costs a hash lookup per reference plus a walk up its (short)
+ * ancestry, never a re-thread of the mailbox. Replies with no references at all are grouped under
+ * the thread root carrying the same base subject. Each message attached is appended to a journal
+ * that is replayed when the index is opened.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class ThreadIndex {
+
+  /** The Constant logger. */
+  private final static Logger LOGGER = LoggerFactory.getLogger(ThreadIndex.class);
+
+  /** The journal file property. */
+  public static final String FILE = "email.thread.file";
+
+  /** The most references kept per message; older ones add nothing the nearer ones lack. */
+  private static final int MAX_REFERENCES = 64;
+
+  /** The longest subject journaled. */
+  private static final int MAX_SUBJECT = 256;
+
+  /** The Message-ID pattern. */
+  private static final Pattern MESSAGE_ID = Pattern.compile("<[^<>\\s]{1,998}>");
+
+  /** The reply and forward subject prefix pattern. */
+  private static final Pattern REPLY_PREFIX = Pattern
+      .compile("^\\s*(?:(?:re|fwd?|aw)(?:\\[\\d+\\])?\\s*:\\s*)+", Pattern.CASE_INSENSITIVE);
+
+  /** The journal file. */
+  private final File file;
+
+  /** The containers, keyed by Message-ID. */
+  private final Map<String, ThreadContainer> containers = new HashMap<String, ThreadContainer>();
+
+  /** The container first seen with each base subject, for grouping replies without references. */
+  private final Map<String, ThreadContainer> subjects = new HashMap<String, ThreadContainer>();
+
+  /** The count of messages attached. */
+  private int size;
+
+  /** The journal stream. */
+  private DataOutputStream journal;
+
+  /**
+   * Open the index, replaying its journal.
+   *
+   * @param properties the properties
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public ThreadIndex(final MailProperties properties) throws EmailRuleProcessorException {
+    this(new File(properties.valueOf(FILE,
+        new File(properties.dataDirectory(), "threads.journal").getPath())));
+  }
+
+  /**
+   * Open the index, replaying its journal.
+   *
+   * @param file the journal file
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public ThreadIndex(final File file) throws EmailRuleProcessorException {
+    this.file = file;
+
+    try {
+      load();
+    } catch (IOException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+
+    LOGGER.info("loaded {} threaded messages from {}", size, file);
+  }
+
+  /**
+   * Attach a message to its thread.
+   *
+   * @param messageId the Message-ID
+   * @param references the Message-IDs the message refers to, oldest first
+   * @param subject the subject
+   * @return the thread of the message
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public synchronized MailThread add(final String messageId, final List<String> references,
+      final String subject) throws EmailRuleProcessorException {
+    final List<String> kept = references.size() > MAX_REFERENCES
+        ? references.subList(references.size() - MAX_REFERENCES, references.size()) : references;
+    final String truncated = subject == null || subject.length() <= MAX_SUBJECT ? subject
+        : subject.substring(0, MAX_SUBJECT);
+    final ThreadContainer container = attach(messageId, kept, truncated);
+
+    if (container != null) {
+      try {
+        journal.writeUTF(messageId);
+        journal.writeByte(kept.size());
+
+        for (final String reference : kept) {
+          journal.writeUTF(reference);
+        }
+
+        journal.writeUTF(truncated == null ? "" : truncated);
+      } catch (IOException exception) {
+        LOGGER.error("FATAL: ", exception);
+        throw new EmailRuleProcessorException(exception);
+      }
+    }
+
+    return new MailThread(containers.get(messageId));
+  }
+
+  /**
+   * The thread of a message.
+   *
+   * @param messageId the Message-ID
+   * @return the thread, or null if the Message-ID has never been seen
+   */
+  public synchronized MailThread threadOf(final String messageId) {
+    final ThreadContainer container = containers.get(messageId);
+
+    return container == null ? null : new MailThread(container);
+  }
+
+  /**
+   * The Message-IDs of the messages seen in the thread of a message, root first, depth first.
+   *
+   * @param messageId the Message-ID
+   * @return the Message-IDs, empty if the Message-ID has never been seen
+   */
+  public synchronized List<String> messagesOf(final String messageId) {
+    final ThreadContainer container = containers.get(messageId);
+
+    if (container == null) {
+      return Collections.emptyList();
+    }
+
+    final ThreadContainer root = container.root();
+    final List<String> messages = new ArrayList<String>(root.messages);
+    final Deque<ThreadContainer> pending = new ArrayDeque<ThreadContainer>();
+    pending.push(root);
+
+    while (!pending.isEmpty()) {
+      final ThreadContainer node = pending.pop();
+
+      if (node.present) {
+        messages.add(node.messageId);
+      }
+
+      for (ThreadContainer child = node.firstChild; child != null; child = child.nextSibling) {
+        pending.push(child);
+      }
+    }
+
+    return messages;
+  }
+
+  /**
+   * Gets the count of messages attached.
+   *
+   * @return the size
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Flush newly attached messages to the journal.
+   *
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public synchronized void flush() throws EmailRuleProcessorException {
+    try {
+      journal.flush();
+    } catch (IOException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
+  /**
+   * Flush and close the index.
+   *
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public synchronized void close() throws EmailRuleProcessorException {
+    try {
+      journal.close();
+    } catch (IOException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
+  /**
+   * The Message-ID in a header value.
+   *
+   * @param value the header value, or null
+   * @return the Message-ID, or null if the value holds none
+   */
+  public static String messageId(final String value) {
+    if (value == null) {
+      return null;
+    }
+
+    final Matcher matcher = MESSAGE_ID.matcher(value);
+
+    return matcher.find() ? matcher.group() : null;
+  }
+
+  /**
+   * The Message-IDs a message refers to, oldest first: its References followed by its
+   * In-Reply-To, when that is not already the last reference.
+   *
+   * @param references the References header value, or null
+   * @param inReplyTo the In-Reply-To header value, or null
+   * @return the Message-IDs
+   */
+  public static List<String> references(final String references, final String inReplyTo) {
+    final List<String> ids = new ArrayList<String>();
+    collect(references, ids);
+    final String replyTo = messageId(inReplyTo);
+
+    if (replyTo != null && (ids.isEmpty() || !ids.get(ids.size() - 1).equals(replyTo))) {
+      ids.add(replyTo);
+    }
+
+    return ids;
+  }
+
+  /**
+   * The subject stripped of reply and forward prefixes, in lower case.
+   *
+   * @param subject the subject
+   * @return the base subject, empty for no subject
+   */
+  public static String baseSubject(final String subject) {
+    if (subject == null) {
+      return "";
+    }
+
+    return REPLY_PREFIX.matcher(subject).replaceFirst("").trim().toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Collect the Message-IDs in a header value.
+   *
+   * @param value the header value, or null
+   * @param ids the ids
+   */
+  private static void collect(final String value, final List<String> ids) {
+    if (value != null) {
+      final Matcher matcher = MESSAGE_ID.matcher(value);
+
+      while (matcher.find()) {
+        ids.add(matcher.group());
+      }
+    }
+  }
+
+  /**
+   * Attach a message to the tree.
+   *
+   * @param messageId the Message-ID
+   * @param references the references, oldest first
+   * @param subject the subject, or null
+   * @return the container of the message, or null if the message was already attached
+   */
+  private ThreadContainer attach(final String messageId, final List<String> references,
+      final String subject) {
+    final ThreadContainer container = containerOf(messageId);
+
+    if (container.present) {
+      return null;
+    }
+
+    container.present = true;
+
+    for (ThreadContainer node = container; node != null; node = node.parent) {
+      node.messages++;
+    }
+
+    ThreadContainer previous = null;
+
+    for (final String reference : references) {
+      if (reference.equals(messageId)) {
+        continue;
+      }
+
+      final ThreadContainer referenced = containerOf(reference);
+
+      if (previous != null && referenced.parent == null && !referenced.isAncestorOf(previous)) {
+        previous.adopt(referenced);
+      }
+
+      previous = referenced;
+    }
+
+    final String base = baseSubject(subject);
+
+    if (previous != null) {
+      if (previous != container.parent && !container.isAncestorOf(previous)) {
+        container.detach();
+        previous.adopt(container);
+      }
+    } else if (container.parent == null && !base.isEmpty()
+        && !base.equals(subject.trim().toLowerCase(Locale.ROOT))) {
+      final ThreadContainer original = subjects.get(base);
+
+      if (original != null) {
+        final ThreadContainer root = original.root();
+
+        if (!container.isAncestorOf(root)) {
+          root.adopt(container);
+        }
+      }
+    }
+
+    if (!base.isEmpty() && !subjects.containsKey(base)) {
+      subjects.put(base, container);
+    }
+
+    size++;
+
+    return container;
+  }
+
+  /**
+   * The container for a Message-ID, created if it does not exist.
+   *
+   * @param messageId the Message-ID
+   * @return the container
+   */
+  private ThreadContainer containerOf(final String messageId) {
+    ThreadContainer container = containers.get(messageId);
+
+    if (container == null) {
+      container = new ThreadContainer(messageId);
+      containers.put(messageId, container);
+    }
+
+    return container;
+  }
+
+  /**
+   * Replay the journal, cutting off a torn final record, and open it for appending.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void load() throws IOException {
+    long complete = 0;
+
+    if (file.exists()) {
+      final CountingInputStream counter = new CountingInputStream(
+          new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+
+      try (final DataInputStream in = new DataInputStream(counter)) {
+        while (true) {
+          final String messageId = in.readUTF();
+          final int count = in.readUnsignedByte();
+          final List<String> references = new ArrayList<String>(count);
+
+          for (int r = 0; r < count; r++) {
+            references.add(in.readUTF());
+          }
+
+          attach(messageId, references, in.readUTF());
+          complete = counter.count;
+        }
+      } catch (EOFException exception) {
+        // end of file, or a torn final record that is cut off below
+      }
+
+      if (complete < file.length()) {
+        LOGGER.warn("discarding {} bytes of a torn record from {}", file.length() - complete,
+            file);
+
+        try (final RandomAccessFile truncate = new RandomAccessFile(file, "rw")) {
+          truncate.setLength(complete);
+        }
+      }
+    } else if (file.getParentFile() != null) {
+      file.getParentFile().mkdirs();
+    }
+
+    journal = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(file, true), 64 * 1024));
+  }
+
+  /**
+   * Input stream counting the bytes read through it.
+   */
+  private static class CountingInputStream extends FilterInputStream {
+
+    /** The bytes read. */
+    private long count;
+
+    /**
+     * Instantiates a new counting input stream.
+     *
+     * @param in the underlying stream
+     */
+    private CountingInputStream(final InputStream in) {
+      super(in);
+    }
+
+    /**
+     * @see java.io.FilterInputStream#read()
+     */
+    @Override
+    public int read() throws IOException {
+      final int read = super.read();
+
+      if (read >= 0) {
+        count++;
+      }
+
+      return read;
+    }
+
+    /**
+     * @see java.io.FilterInputStream#read(byte[], int, int)
+     */
+    @Override
+    public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+      final int read = super.read(buffer, offset, length);
+
+      if (read > 0) {
+        count += read;
+      }
+
+      return read;
+    }
+
+    /**
+     * @see java.io.FilterInputStream#skip(long)
+     */
+    @Override
+    public long skip(final long length) throws IOException {
+      final long skipped = super.skip(length);
+      count += skipped;
+
+      return skipped;
+    }
+  }
+}
@@ -0,0 +1,191 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.trace;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+
+/**
+ * Writes spans as Chrome trace events (the JSON format read by chrome://tracing and Perfetto).
+ * Every span is a complete ("X") event on the thread that ran it, carrying the message UID, size
+ * and rule as arguments.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class ChromeTraceWriter {
+
+  /** The Constant logger. */
+  private final static Logger LOGGER = LoggerFactory.getLogger(ChromeTraceWriter.class);
+
+  /** The trace file. */
+  private final File file;
+
+  /** The writer. */
+  private final Writer writer;
+
+  /** The nano time the trace started, the origin of every timestamp. */
+  private final long originNanos = System.nanoTime();
+
+  /** The line being built, reused under the writer lock. */
+  private final StringBuilder line = new StringBuilder(256);
+
+  /** The ids of the threads already named in the trace. */
+  private final Set<Long> threads = new HashSet<Long>();
+
+  /** The number of events written. */
+  private long events;
+
+  /** Whether the first event has been written. */
+  private boolean first = true;
+
+  /** Whether the writer has been closed. */
+  private boolean closed;
+
+  /**
+   * Instantiates a new chrome trace writer.
+   *
+   * @param file the trace file
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  public ChromeTraceWriter(final File file) throws EmailRuleProcessorException {
+    this.file = file;
+
+    try {
+      this.writer = new BufferedWriter(
+          new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 16);
+      writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+    } catch (IOException exception) {
+      LOGGER.error("FATAL: ", exception);
+      throw new EmailRuleProcessorException(exception);
+    }
+  }
+
+  /**
+   * Write one span.
+   *
+   * @param span the span
+   * @param endNanos the end time in nanoseconds
+   */
+  public synchronized void write(final Span span, final long endNanos) {
+    if (closed) {
+      return;
+    }
+
+    final long start = TimeUnit.NANOSECONDS.toMicros(span.getStartNanos() - originNanos);
+    final long duration = TimeUnit.NANOSECONDS.toMicros(endNanos - span.getStartNanos());
+    final Thread thread = Thread.currentThread();
+
+    line.setLength(0);
+
+    if (threads.add(thread.getId())) {
+      line.append(first ? "" : ",\n");
+      line.append("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":")
+          .append(thread.getId()).append(",\"args\":{\"name\":");
+      quote(thread.getName());
+      line.append("}}");
+      first = false;
+    }
+
+    line.append(first ? "" : ",\n");
+    line.append("{\"name\":");
+    quote(span.getPhase() == Phase.RULE && span.getRule() != null ? span.getRule()
+        : span.getPhase().label());
+    line.append(",\"cat\":\"").append(span.getPhase().label()).append('"');
+    line.append(",\"ph\":\"X\",\"pid\":1,\"tid\":").append(thread.getId());
+    line.append(",\"ts\":").append(start).append(",\"dur\":").append(duration);
+    line.append(",\"args\":{\"uid\":").append(span.getUid());
+    line.append(",\"size\":").append(span.getSize());
+
+    if (span.getRule() != null) {
+      line.append(",\"rule\":");
+      quote(span.getRule());
+    }
+
+    if (span.getDetail() != null) {
+      line.append(",\"detail\":");
+      quote(span.getDetail());
+    }
+
+    line.append("}}");
+
+    try {
+      writer.append(line);
+      first = false;
+      events++;
+    } catch (IOException exception) {
+      closed = true;
+      LOGGER.error("chrome trace disabled, failed to write {}: {}", file,
+          exception.getMessage());
+    }
+  }
+
+  /**
+   * Close the trace.
+   */
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+
+    closed = true;
+
+    try {
+      writer.write("\n]}\n");
+      writer.close();
+      LOGGER.info("wrote {} trace events to {}", events, file);
+    } catch (IOException exception) {
+      LOGGER.error("failed to close chrome trace {}: {}", file, exception.getMessage());
+    }
+  }
+
+  /**
+   * Append a quoted, escaped JSON string to the line.
+   *
+   * @param value the value
+   */
+  private void quote(final String value) {
+    line.append('"');
+
+    for (int c = 0; c < value.length(); c++) {
+      final char character = value.charAt(c);
+
+      if (character == '"' || character == '\\') {
+        line.append('\\').append(character);
+      } else if (character < 0x20) {
+        line.append(String.format("\\u%04x", (int) character));
+      } else {
+        line.append(character);
+      }
+    }
+
+    line.append('"');
+  }
+}
@@ -0,0 +1,62 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.trace;
+
+/**
+ * The traced phases of processing.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public enum Phase {
+
+  /** Connecting to the store. */
+  CONNECT,
+
+  /** Searching a folder. */
+  SEARCH,
+
+  /** Fetching message data. */
+  FETCH,
+
+  /** Processing one message through every rule. */
+  MESSAGE,
+
+  /** Walking the MIME structure of a message. */
+  PARSE,
+
+  /** One rule processing one message. */
+  RULE,
+
+  /** Writing an attachment. */
+  ATTACHMENT,
+
+  /** Committing a flag to the server. */
+  FLAG;
+
+  /** The lower-case name, as shown in traces. */
+  private final String label = name().toLowerCase();
+
+  /**
+   * Gets the label shown in traces.
+   *
+   * @return the label
+   */
+  public String label() {
+    return label;
+  }
+}
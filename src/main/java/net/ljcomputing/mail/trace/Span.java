@@ -0,0 +1,146 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.trace;
+
+/**
+ * One traced span, closed when the traced work is done. Spans are begun through {@link Trace}
+ * and closed with try-with-resources.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class Span implements AutoCloseable {
+
+  /** The span handed out while nothing is recording. */
+  static final Span NOOP = new Span(null, null, null, -1L, -1L, null) {
+    @Override
+    public void close() {
+    }
+  };
+
+  /** The phase. */
+  private final Phase phase;
+
+  /** The rule running when the span began, or null. */
+  private final String rule;
+
+  /** The detail, or null. */
+  private final String detail;
+
+  /** The message UID, or -1. */
+  private final long uid;
+
+  /** The message size, or -1. */
+  private final long size;
+
+  /** The flight recorder event, or null when not recording. */
+  private final Object event;
+
+  /** The start time in nanoseconds. */
+  private final long startNanos;
+
+  /**
+   * Instantiates a new span.
+   *
+   * @param phase the phase
+   * @param rule the rule
+   * @param detail the detail
+   * @param uid the uid
+   * @param size the size
+   * @param event the flight recorder event
+   */
+  Span(final Phase phase, final String rule, final String detail, final long uid,
+      final long size, final Object event) {
+    this.phase = phase;
+    this.rule = rule;
+    this.detail = detail;
+    this.uid = uid;
+    this.size = size;
+    this.event = event;
+    this.startNanos = System.nanoTime();
+  }
+
+  /**
+   * Gets the phase.
+   *
+   * @return the phase
+   */
+  public Phase getPhase() {
+    return phase;
+  }
+
+  /**
+   * Gets the rule running when the span began.
+   *
+   * @return the rule, or null
+   */
+  public String getRule() {
+    return rule;
+  }
+
+  /**
+   * Gets the detail.
+   *
+   * @return the detail, or null
+   */
+  public String getDetail() {
+    return detail;
+  }
+
+  /**
+   * Gets the message UID.
+   *
+   * @return the uid, or -1
+   */
+  public long getUid() {
+    return uid;
+  }
+
+  /**
+   * Gets the message size.
+   *
+   * @return the size, or -1
+   */
+  public long getSize() {
+    return size;
+  }
+
+  /**
+   * Gets the start time in nanoseconds.
+   *
+   * @return the start nanos
+   */
+  long getStartNanos() {
+    return startNanos;
+  }
+
+  /**
+   * End the span, committing it to the flight recorder and the Chrome trace.
+   * 
+   * @see java.lang.AutoCloseable#close()
+   */
+  @Override
+  public void close() {
+    final long endNanos = System.nanoTime();
+
+    if (event != null) {
+      Trace.commit(event, this);
+    }
+
+    Trace.export(this, endNanos);
+  }
+}
@@ -0,0 +1,50 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.trace;
+
+/**
+ * Where spans go besides the Chrome trace. The Flight Recorder implementation is compiled apart
+ * from the rest of the code, for Java 11, and loaded by name so the code compiled for Java 8
+ * never links against jdk.jfr.
+ * 
+ * @author James G. Willmore
+ *
+ */
+interface SpanRecorder {
+
+  /**
+   * Checks if spans are being recorded.
+   *
+   * @return true, if enabled
+   */
+  boolean isEnabled();
+
+  /**
+   * Begin a span event.
+   *
+   * @return the event
+   */
+  Object begin();
+
+  /**
+   * End and commit a span event.
+   *
+   * @param event the event
+   * @param span the span
+   */
+  void commit(Object event, Span span);
+}
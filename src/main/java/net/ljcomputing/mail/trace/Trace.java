@@ -0,0 +1,237 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.trace;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per-message timeline tracing. Spans go to JDK Flight Recorder as
+ * <code>net.ljcomputing.mail.Span</code> events while a recording has them enabled, and to a
+ * Chrome trace file when one has been opened. With neither, {@link #begin(Phase)} hands back a
+ * shared no-op span and costs a couple of field reads.
+ * 
+ * <p>
+ * The message and rule a thread is working on are held per thread, so spans begun deep inside a
+ * rule (an attachment write, a flag commit) carry the message UID, size and rule name without
+ * them being passed around.
+ * </p>
+ * 
+ * @author James G. Willmore
+ *
+ */
+public final class Trace {
+
+  /** The Constant logger. */
+  private final static Logger LOGGER = LoggerFactory.getLogger(Trace.class);
+
+  /** The Chrome trace file property. */
+  public static final String CHROME_FILE = "email.trace.chrome.file";
+
+  /** The Flight Recorder implementation class, compiled separately for Java 11. */
+  private static final String JFR_SUPPORT = "net.ljcomputing.mail.trace.JfrSupport";
+
+  /** The Flight Recorder span recorder, or null when this runtime does not have it. */
+  private static final SpanRecorder JFR = loadFlightRecorder();
+
+  /** The Chrome trace writer, or null. */
+  private static volatile ChromeTraceWriter chrome;
+
+  /** The message and rule each thread is working on. */
+  private static final ThreadLocal<Current> CURRENT = new ThreadLocal<Current>() {
+    @Override
+    protected Current initialValue() {
+      return new Current();
+    }
+  };
+
+  /**
+   * Instantiates a new trace.
+   */
+  private Trace() {
+  }
+
+  /**
+   * Checks if spans are being recorded anywhere.
+   *
+   * @return true, if enabled
+   */
+  public static boolean isEnabled() {
+    return chrome != null || JFR != null && JFR.isEnabled();
+  }
+
+  /**
+   * Begin a span.
+   *
+   * @param phase the phase
+   * @return the span
+   */
+  public static Span begin(final Phase phase) {
+    return begin(phase, null);
+  }
+
+  /**
+   * Begin a span.
+   *
+   * @param phase the phase
+   * @param detail the detail: an attachment filename, a flag, a message count
+   * @return the span
+   */
+  public static Span begin(final Phase phase, final String detail) {
+    final boolean recording = JFR != null && JFR.isEnabled();
+
+    if (!recording && chrome == null) {
+      return Span.NOOP;
+    }
+
+    final Current current = CURRENT.get();
+
+    return new Span(phase, current.rule, detail, current.uid, current.size,
+        recording ? JFR.begin() : null);
+  }
+
+  /**
+   * Mark the start of a message on this thread.
+   *
+   * @param uid the message UID, or -1
+   * @param size the message size, or -1
+   */
+  public static void enterMessage(final long uid, final long size) {
+    final Current current = CURRENT.get();
+    current.uid = uid;
+    current.size = size;
+  }
+
+  /**
+   * Mark the end of the message on this thread.
+   */
+  public static void exitMessage() {
+    final Current current = CURRENT.get();
+    current.uid = -1L;
+    current.size = -1L;
+    current.rule = null;
+  }
+
+  /**
+   * The UID of the message this thread is on, for handing it to another thread.
+   *
+   * @return the UID, or -1
+   */
+  public static long currentUid() {
+    return CURRENT.get().uid;
+  }
+
+  /**
+   * The size of the message this thread is on, for handing it to another thread.
+   *
+   * @return the size, or -1
+   */
+  public static long currentSize() {
+    return CURRENT.get().size;
+  }
+
+  /**
+   * Mark the rule this thread is running, or null once it returns.
+   *
+   * @param rule the rule name
+   */
+  public static void enterRule(final String rule) {
+    CURRENT.get().rule = rule;
+  }
+
+  /**
+   * Start writing spans to a Chrome trace file.
+   *
+   * @param writer the writer
+   */
+  public static synchronized void exportChrome(final ChromeTraceWriter writer) {
+    closeChrome();
+    chrome = writer;
+  }
+
+  /**
+   * Stop writing spans to the Chrome trace file and close it.
+   */
+  public static synchronized void closeChrome() {
+    final ChromeTraceWriter writer = chrome;
+    chrome = null;
+
+    if (writer != null) {
+      writer.close();
+    }
+  }
+
+  /**
+   * Export a closed span to the Chrome trace, if one is open.
+   *
+   * @param span the span
+   * @param endNanos the end time in nanoseconds
+   */
+  static void export(final Span span, final long endNanos) {
+    final ChromeTraceWriter writer = chrome;
+
+    if (writer != null) {
+      writer.write(span, endNanos);
+    }
+  }
+
+  /**
+   * Commit a Flight Recorder span event.
+   *
+   * @param event the event begun by {@link #begin(Phase, String)}
+   * @param span the span
+   */
+  static void commit(final Object event, final Span span) {
+    JFR.commit(event, span);
+  }
+
+  /**
+   * Load the Flight Recorder span recorder, if this runtime has Flight Recorder.
+   *
+   * @return the recorder, or null if not available
+   */
+  private static SpanRecorder loadFlightRecorder() {
+    try {
+      Class.forName("jdk.jfr.Event");
+
+      final SpanRecorder recorder = Class.forName(JFR_SUPPORT).asSubclass(SpanRecorder.class)
+          .getDeclaredConstructor().newInstance();
+      recorder.isEnabled();
+
+      return recorder;
+    } catch (ReflectiveOperationException | LinkageError exception) {
+      LOGGER.debug("flight recorder not available: {}", exception.getMessage());
+
+      return null;
+    }
+  }
+
+  /**
+   * The message and rule a thread is working on.
+   */
+  private static class Current {
+
+    /** The message UID. */
+    private long uid = -1L;
+
+    /** The message size. */
+    private long size = -1L;
+
+    /** The rule name. */
+    private String rule;
+  }
+}
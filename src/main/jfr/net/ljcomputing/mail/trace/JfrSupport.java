@@ -0,0 +1,83 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.trace;
+
+import jdk.jfr.EventType;
+
+/**
+ * The Flight Recorder side of tracing. This and {@link MailSpanEvent} are compiled for Java 11
+ * on their own and loaded by name from {@link Trace}, so nothing touches jdk.jfr on a runtime
+ * that does not have it.
+ * 
+ * @author James G. Willmore
+ *
+ */
+final class JfrSupport implements SpanRecorder {
+
+  /** The span event type. */
+  private static final EventType TYPE = EventType.getEventType(MailSpanEvent.class);
+
+  /**
+   * Instantiates a new jfr support.
+   */
+  JfrSupport() {
+  }
+
+  /**
+   * Checks if a recording has the span event enabled.
+   *
+   * @return true, if enabled
+   */
+  @Override
+  public boolean isEnabled() {
+    return TYPE.isEnabled();
+  }
+
+  /**
+   * Begin a span event.
+   *
+   * @return the event
+   */
+  @Override
+  public Object begin() {
+    final MailSpanEvent event = new MailSpanEvent();
+    event.begin();
+
+    return event;
+  }
+
+  /**
+   * End and commit a span event.
+   *
+   * @param event the event
+   * @param span the span
+   */
+  @Override
+  public void commit(final Object event, final Span span) {
+    final MailSpanEvent spanEvent = (MailSpanEvent) event;
+    spanEvent.end();
+
+    if (spanEvent.shouldCommit()) {
+      spanEvent.phase = span.getPhase().label();
+      spanEvent.rule = span.getRule();
+      spanEvent.detail = span.getDetail();
+      spanEvent.uid = span.getUid();
+      spanEvent.size = span.getSize();
+      spanEvent.commit();
+    }
+  }
+}
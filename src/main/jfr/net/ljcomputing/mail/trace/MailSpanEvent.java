@@ -0,0 +1,61 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.trace;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for one traced span of message processing.
+ * 
+ * @author James G. Willmore
+ *
+ */
+@Name("net.ljcomputing.mail.Span")
+@Label("Mail Processing Span")
+@Category("Mail")
+@Description("A phase of processing a message: connect, search, fetch, message, parse, rule, "
+    + "attachment or flag.")
+@StackTrace(false)
+class MailSpanEvent extends Event {
+
+  /** The phase. */
+  @Label("Phase")
+  String phase;
+
+  /** The rule running, if any. */
+  @Label("Rule")
+  String rule;
+
+  /** The phase detail: an attachment filename, a flag, a message count. */
+  @Label("Detail")
+  String detail;
+
+  /** The message UID, or -1. */
+  @Label("UID")
+  long uid;
+
+  /** The message size, or -1. */
+  @Label("Size")
+  @DataAmount
+  long size;
+}
@@ -0,0 +1,21 @@
+Digest of ${summary.messages} messages (${summary.bytes} bytes) since ${summary.started?datetime}
+
+Top senders:
+<#list summary.topSenders as sender>
+  ${sender.count?left_pad(8)}  ${sender.name!"(none)"}
+</#list>
+
+Top sender domains:
+<#list summary.topDomains as domain>
+  ${domain.count?left_pad(8)}  ${domain.name!"(none)"}
+</#list>
+
+Largest attachments (${summary.attachments} attachments, ${summary.attachmentBytes} bytes):
+<#list summary.largestAttachments as attachment>
+  ${attachment.size?left_pad(12)}  ${attachment.detail!"(no filename)"} - ${attachment.subject!"(no subject)"} (${attachment.from!"no sender"})
+</#list>
+
+Flagged messages (${summary.flaggedCount}):
+<#list summary.flagged as message>
+  ${message.from!"(no sender)"}: ${message.subject!"(no subject)"}
+</#list>
@@ -0,0 +1,274 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.archive;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.service.MailProperties;
+
+/**
+ * Tests of the message archive: the sparse block index, segment rolling, recovery of a torn
+ * segment tail and a failing writer thread.
+ *
+ * @author James G. Willmore
+ *
+ */
+public class MessageArchiveTest {
+
+  /** The number of messages archived. */
+  private static final int MESSAGES = 200;
+
+  /** The volume name. */
+  private static final String VOLUME = MessageArchive.volumeOf("INBOX/Sub", 42L);
+
+  /** The data directory. */
+  @Rule
+  public final TemporaryFolder dataDirectory = new TemporaryFolder();
+
+  /**
+   * Messages fill several blocks and roll over several segments; every index entry points at the
+   * next whole block, and every message reads back, before and after reopening.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void blocksAreIndexedAndSegmentsRoll() throws Exception {
+    final MessageArchive archive = new MessageArchive(properties());
+
+    try {
+      for (int uid = 1; uid <= MESSAGES; uid++) {
+        archive.append(VOLUME, uid, raw(uid));
+      }
+
+      archive.flush();
+      assertArchived(archive);
+      assertNull(archive.read(VOLUME, MESSAGES + 1));
+      assertNull(archive.read("missing-1", 1));
+    } finally {
+      archive.close();
+    }
+
+    final File[] segments = segmentFiles();
+    assertTrue(String.valueOf(segments.length), segments.length > 2);
+
+    for (final File segment : segments) {
+      final int blocks = assertIndexed(segment);
+      assertTrue(segment.getName(), blocks > 1);
+      assertTrue(segment.getName(), segment.length() <= 16 * 1024);
+    }
+
+    final MessageArchive reopened = new MessageArchive(properties());
+
+    try {
+      assertArchived(reopened);
+    } finally {
+      reopened.close();
+    }
+  }
+
+  /**
+   * A block written to a segment but not to its index is recovered on opening, and bytes torn
+   * after the last whole block are cut off.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void tornTailIsRecovered() throws Exception {
+    final MessageArchive archive = new MessageArchive(properties());
+
+    for (int uid = 1; uid <= MESSAGES; uid++) {
+      archive.append(VOLUME, uid, raw(uid));
+    }
+
+    archive.close();
+
+    final File[] segments = segmentFiles();
+    final File last = segments[segments.length - 1];
+    final File index = indexOf(last);
+    final long length = last.length();
+    final long indexLength = index.length();
+
+    try (final RandomAccessFile file = new RandomAccessFile(index, "rw")) {
+      file.setLength(indexLength - ArchiveSegment.INDEX_ENTRY);
+    }
+
+    try (final RandomAccessFile file = new RandomAccessFile(last, "rw")) {
+      file.seek(length);
+      file.write(new byte[] { 0x4d, 0x41, 0x52, 0x43, 0, 0, 1 });
+    }
+
+    final MessageArchive reopened = new MessageArchive(properties());
+
+    try {
+      assertArchived(reopened);
+      assertEquals(length, last.length());
+      assertEquals(indexLength, index.length());
+      assertIndexed(last);
+
+      reopened.append(VOLUME, MESSAGES + 1, raw(MESSAGES + 1));
+      reopened.flush();
+      assertArrayEquals(raw(MESSAGES + 1), reopened.read(VOLUME, MESSAGES + 1));
+    } finally {
+      reopened.close();
+    }
+  }
+
+  /**
+   * A runtime failure in the writer thread is reported to the next flush rather than leaving it
+   * waiting forever.
+   *
+   * @throws Exception the exception
+   */
+  @Test(timeout = 30000)
+  public void writerFailureReleasesFlush() throws Exception {
+    final MessageArchive archive = new MessageArchive(properties());
+
+    try {
+      archive.append(VOLUME, 1, null);
+      archive.flush();
+      fail("flush after a failed append");
+    } catch (EmailRuleProcessorException exception) {
+      assertTrue(String.valueOf(exception.getCause()),
+          exception.getCause() instanceof NullPointerException);
+    }
+
+    try {
+      archive.append(VOLUME, 2, raw(2));
+      fail("append after a failed append");
+    } catch (EmailRuleProcessorException exception) {
+      assertTrue(String.valueOf(exception.getCause()),
+          exception.getCause() instanceof NullPointerException);
+    }
+  }
+
+  /**
+   * Assert every message reads back.
+   *
+   * @param archive the archive
+   * @throws Exception the exception
+   */
+  private static void assertArchived(final MessageArchive archive) throws Exception {
+    for (int uid = 1; uid <= MESSAGES; uid++) {
+      assertArrayEquals(String.valueOf(uid), raw(uid), archive.read(VOLUME, uid));
+    }
+  }
+
+  /**
+   * Assert the segment's index has one entry per block, each starting where the one before it
+   * ended and taking up the UIDs after it, and that the blocks cover the whole segment.
+   *
+   * @param segment the segment file
+   * @return the number of blocks
+   * @throws Exception the exception
+   */
+  private static int assertIndexed(final File segment) throws Exception {
+    final ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(indexOf(segment).toPath()));
+    final ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(segment.toPath()));
+    assertEquals(0, index.remaining() % ArchiveSegment.INDEX_ENTRY);
+
+    long end = 0;
+    long lastUid = -1;
+    int blocks = 0;
+
+    while (index.hasRemaining()) {
+      final long first = index.getLong();
+      final long last = index.getLong();
+      final long offset = index.getLong();
+
+      assertEquals(end, offset);
+      assertTrue(lastUid < 0 || first == lastUid + 1);
+      assertTrue(first <= last);
+      assertEquals(ArchiveSegment.BLOCK_MAGIC, data.getInt((int) offset));
+
+      end = offset + ArchiveSegment.HEADER + data.getInt((int) offset + 4);
+      lastUid = last;
+      blocks++;
+    }
+
+    assertEquals(segment.length(), end);
+
+    return blocks;
+  }
+
+  /**
+   * The segment files of the volume, oldest first.
+   *
+   * @return the segment files
+   */
+  private File[] segmentFiles() {
+    final File volume = new File(new File(dataDirectory.getRoot(), "archive"), VOLUME);
+    final File[] segments = volume.listFiles((directory, name) -> name.endsWith(".arc"));
+    Arrays.sort(segments);
+
+    return segments;
+  }
+
+  /**
+   * The index file of a segment.
+   *
+   * @param segment the segment file
+   * @return the index file
+   */
+  private static File indexOf(final File segment) {
+    return new File(segment.getParentFile(), segment.getName().replace(".arc", ".idx"));
+  }
+
+  /**
+   * A raw message that deflate cannot shrink much, so blocks and segments fill quickly.
+   *
+   * @param uid the uid
+   * @return the raw message
+   */
+  private static byte[] raw(final int uid) {
+    final byte[] raw = new byte[300 + uid % 7 * 100];
+    new Random(uid).nextBytes(raw);
+
+    return raw;
+  }
+
+  /**
+   * The archive properties: small blocks and segments.
+   *
+   * @return the mail properties
+   */
+  private MailProperties properties() {
+    final Properties props = new Properties();
+    props.setProperty(MailProperties.DATA_DIRECTORY, dataDirectory.getRoot().getPath());
+    props.setProperty(MessageArchive.BLOCK_SIZE, "4096");
+    props.setProperty(MessageArchive.SEGMENT_SIZE, String.valueOf(16 * 1024));
+    props.setProperty(MessageArchive.FLUSH_INTERVAL, "100");
+
+    return new MailProperties(props);
+  }
+}
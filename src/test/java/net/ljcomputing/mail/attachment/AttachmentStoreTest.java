@@ -0,0 +1,256 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.attachment;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.ljcomputing.mail.service.MailProperties;
+
+/**
+ * Tests of the content-addressed attachment store and its reference index.
+ *
+ * @author James G. Willmore
+ *
+ */
+public class AttachmentStoreTest {
+
+  /** The in-memory threshold, in bytes. */
+  private static final int THRESHOLD = 1024;
+
+  /** The data directory. */
+  @Rule
+  public final TemporaryFolder dataDirectory = new TemporaryFolder();
+
+  /**
+   * Content held in memory or spilled to disk is stored once as a blob named by its hash, every
+   * use of it is indexed, and no spill file is left behind.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void contentIsStoredOnceAndEveryUseIndexed() throws Exception {
+    final byte[] small = content(100);
+    final byte[] large = content(10 * THRESHOLD);
+    final AttachmentStore store = new AttachmentStore(properties());
+
+    try {
+      final AttachmentReference first = store.store("<1@example.org>", "small.txt",
+          new ByteArrayInputStream(small));
+      final AttachmentReference again = store.store("<2@example.org>", "small.txt",
+          new ByteArrayInputStream(small));
+      final AttachmentReference spilled = store.store("<1@example.org>", "../large.bin",
+          new ByteArrayInputStream(large));
+      final AttachmentReference spilledAgain = store.store("<2@example.org>", "large.bin",
+          new ByteArrayInputStream(large));
+
+      assertFalse(first.isDuplicate());
+      assertTrue(again.isDuplicate());
+      assertFalse(spilled.isDuplicate());
+      assertTrue(spilledAgain.isDuplicate());
+      assertEquals(first.getSha256(), again.getSha256());
+      assertEquals("large.bin", spilled.getFilename());
+      assertEquals(large.length, spilled.getSize());
+
+      final File blob = store.blobFile(spilled.getSha256());
+      assertEquals(spilled.getSha256().substring(0, 2), blob.getParentFile().getParentFile()
+          .getName());
+      assertArrayEquals(large, Files.readAllBytes(blob.toPath()));
+      assertArrayEquals(small, Files.readAllBytes(store.blobFile(first.getSha256()).toPath()));
+      assertEquals(0, spillFiles().length);
+    } finally {
+      store.close();
+    }
+
+    final AttachmentStore reopened = new AttachmentStore(properties());
+
+    try {
+      final List<AttachmentReference> references = reopened.references("<2@example.org>");
+      assertEquals(2, references.size());
+      assertEquals("small.txt", references.get(0).getFilename());
+      assertEquals(small.length, references.get(0).getSize());
+      assertEquals("large.bin", references.get(1).getFilename());
+      assertEquals(large.length, references.get(1).getSize());
+    } finally {
+      reopened.close();
+    }
+  }
+
+  /**
+   * A reference is indexed as the length-prefixed UTF-8 message id and filename, the 32 bytes of
+   * the content hash and the size.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void referenceIndexFormat() throws Exception {
+    final AttachmentStore store = new AttachmentStore(properties());
+    final AttachmentReference reference;
+
+    try {
+      reference = store.store("<1@example.org>", "résumé.txt",
+          new ByteArrayInputStream(content(10)));
+      store.flush();
+    } finally {
+      store.close();
+    }
+
+    final File index = new File(new File(dataDirectory.getRoot(), "attachments"),
+        "references.idx");
+
+    try (final DataInputStream in = new DataInputStream(new FileInputStream(index))) {
+      assertEquals("<1@example.org>", string(in));
+      assertEquals("résumé.txt", string(in));
+
+      final byte[] hash = new byte[32];
+      in.readFully(hash);
+      final StringBuilder hex = new StringBuilder();
+
+      for (final byte b : hash) {
+        hex.append(String.format("%02x", b));
+      }
+
+      assertEquals(reference.getSha256(), hex.toString());
+      assertEquals(10, in.readLong());
+      assertEquals(-1, in.read());
+    }
+  }
+
+  /**
+   * Content that fails part way through reading, after it was spilled to disk, leaves neither a
+   * spill file nor a blob.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void failedReadLeavesNoSpillFile() throws Exception {
+    final AttachmentStore store = new AttachmentStore(properties());
+
+    try {
+      store.store("<1@example.org>", "broken.bin", new FailingStream(5 * THRESHOLD));
+      fail("the read failure was not thrown");
+    } catch (IOException exception) {
+      assertEquals("connection lost", exception.getMessage());
+    } finally {
+      store.close();
+    }
+
+    assertEquals(0, spillFiles().length);
+    assertEquals(0, new File(new File(dataDirectory.getRoot(), "attachments"), "blobs")
+        .listFiles().length);
+  }
+
+  /**
+   * The store properties, with a small in-memory threshold.
+   *
+   * @return the properties
+   */
+  private MailProperties properties() {
+    final Properties props = new Properties();
+    props.setProperty(MailProperties.DATA_DIRECTORY, dataDirectory.getRoot().getPath());
+    props.setProperty(AttachmentStore.MEMORY_THRESHOLD, String.valueOf(THRESHOLD));
+
+    return new MailProperties(props);
+  }
+
+  /**
+   * The files left in the spill directory.
+   *
+   * @return the files
+   */
+  private File[] spillFiles() {
+    return new File(new File(dataDirectory.getRoot(), "attachments"), "spill").listFiles();
+  }
+
+  /**
+   * Content of a given length.
+   *
+   * @param length the length
+   * @return the content
+   */
+  private static byte[] content(final int length) {
+    final byte[] content = new byte[length];
+
+    for (int b = 0; b < length; b++) {
+      content[b] = (byte) (b * 31 + length);
+    }
+
+    return content;
+  }
+
+  /**
+   * Read a length-prefixed UTF-8 string.
+   *
+   * @param in the in
+   * @return the string
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static String string(final DataInputStream in) throws IOException {
+    final byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * A stream that fails, as a dropped connection would, after a number of bytes.
+   */
+  private static class FailingStream extends InputStream {
+
+    /** The bytes left before the failure. */
+    private int remaining;
+
+    /**
+     * Instantiates a new failing stream.
+     *
+     * @param length the bytes before the failure
+     */
+    private FailingStream(final int length) {
+      this.remaining = length;
+    }
+
+    /**
+     * @see java.io.InputStream#read()
+     */
+    @Override
+    public int read() throws IOException {
+      if (remaining-- <= 0) {
+        throw new IOException("connection lost");
+      }
+
+      return 'x';
+    }
+  }
+}
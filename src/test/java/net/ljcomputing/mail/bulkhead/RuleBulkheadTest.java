@@ -0,0 +1,313 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.bulkhead;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.rules.MessageContext;
+import net.ljcomputing.mail.rules.ProcessingRule;
+
+/**
+ * Tests of the rule bulkheads and their circuit breakers: deadline cancellation, refusal by a
+ * saturated executor, and the breaker opening, half opening and closing.
+ *
+ * @author James G. Willmore
+ *
+ */
+public class RuleBulkheadTest {
+
+  /** The message context the rules run over. */
+  private MessageContext context;
+
+  /**
+   * Create the message context.
+   */
+  @Before
+  public void setUp() {
+    context = new MessageContext(new MimeMessage(Session.getInstance(new Properties())));
+  }
+
+  /**
+   * A rule overrunning its deadline is interrupted and reported as not completed, leaving the
+   * thread free for the next message; a rule's own failure is passed on and is not a breaker
+   * failure.
+   *
+   * @throws Exception the exception
+   */
+  @Test(timeout = 30000)
+  public void deadlineCancelsSleepingRule() throws Exception {
+    final CircuitBreaker breaker = new CircuitBreaker("sleeping", 2, 60000L);
+    final RuleBulkhead bulkhead = new RuleBulkhead("sleeping", 1, 1, 200L, breaker);
+    final SleepingRule sleeping = new SleepingRule();
+
+    try {
+      final long start = System.nanoTime();
+      assertFalse(bulkhead.run(sleeping, context));
+      assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000L);
+      assertTrue(sleeping.interrupted.await(5, TimeUnit.SECONDS));
+
+      final CountingRule counting = new CountingRule();
+      assertTrue(bulkhead.run(counting, context));
+      assertEquals(1, counting.calls.get());
+      assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+      assertFalse(bulkhead.run(sleeping, context));
+
+      try {
+        bulkhead.run(new FailingRule(), context);
+        fail("rule failure not passed on");
+      } catch (EmailRuleProcessorException exception) {
+        assertEquals("failing", exception.getMessage());
+      }
+
+      assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    } finally {
+      bulkhead.close();
+    }
+  }
+
+  /**
+   * A rule that ignores interrupts ties up its thread past the deadline: the next invocation
+   * waits in the queue, one more is refused at once, and the failures open the breaker, which
+   * then skips the rule without running it. Once the open period has passed a single trial call
+   * goes through and, completing, closes the breaker.
+   *
+   * @throws Exception the exception
+   */
+  @Test(timeout = 30000)
+  public void stuckRuleIsRefusedThenSkipped() throws Exception {
+    final CircuitBreaker breaker = new CircuitBreaker("stuck", 3, 1000L);
+    final RuleBulkhead bulkhead = new RuleBulkhead("stuck", 1, 1, 500L, breaker);
+    final StuckRule stuck = new StuckRule();
+
+    try {
+      assertFalse(bulkhead.run(stuck, context));
+      assertTrue(stuck.started.await(5, TimeUnit.SECONDS));
+
+      final FutureTask<Boolean> queued = new FutureTask<Boolean>(
+          () -> bulkhead.run(stuck, context));
+      new Thread(queued, "queued").start();
+      Thread.sleep(100L);
+
+      final long start = System.nanoTime();
+      assertFalse(bulkhead.run(stuck, context));
+      assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 250L);
+      assertFalse(result(queued));
+      assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+      final CountingRule counting = new CountingRule();
+      assertFalse(bulkhead.run(counting, context));
+      assertEquals(0, counting.calls.get());
+      assertEquals(1, stuck.calls.get());
+
+      stuck.release.countDown();
+      Thread.sleep(1100L);
+
+      assertTrue(bulkhead.run(counting, context));
+      assertEquals(1, counting.calls.get());
+      assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    } finally {
+      stuck.release.countDown();
+      bulkhead.close();
+    }
+  }
+
+  /**
+   * The breaker opens after its run of consecutive failures, lets one trial call through once
+   * open long enough, reopens when the trial fails and closes when it succeeds.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void breakerHalfOpensForOneTrial() throws Exception {
+    final CircuitBreaker breaker = new CircuitBreaker("breaker", 2, 200L);
+
+    breaker.failed();
+    breaker.succeeded();
+    breaker.failed();
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    assertTrue(breaker.allow());
+
+    breaker.failed();
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertFalse(breaker.allow());
+
+    Thread.sleep(250L);
+    assertTrue(breaker.allow());
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    assertFalse(breaker.allow());
+
+    breaker.failed();
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertFalse(breaker.allow());
+
+    Thread.sleep(250L);
+    assertTrue(breaker.allow());
+    breaker.succeeded();
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    assertTrue(breaker.allow());
+
+    breaker.failed();
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+  }
+
+  /**
+   * The result of an invocation run on another thread.
+   *
+   * @param invocation the invocation
+   * @return the result
+   * @throws Exception the exception
+   */
+  private static boolean result(final Future<Boolean> invocation) throws Exception {
+    return invocation.get(5, TimeUnit.SECONDS);
+  }
+
+  /**
+   * A rule sleeping far past any deadline, noting when it is interrupted.
+   */
+  public static class SleepingRule implements ProcessingRule {
+
+    /** Counted down when the rule is interrupted. */
+    private final CountDownLatch interrupted = new CountDownLatch(1);
+
+    /**
+     * @see net.ljcomputing.mail.rules.ProcessingRule#ruleName()
+     */
+    @Override
+    public String ruleName() {
+      return "Sleeping";
+    }
+
+    /**
+     * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(javax.mail.Message)
+     */
+    @Override
+    public void processMessageRule(final Message message) throws EmailRuleProcessorException {
+      try {
+        Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+      } catch (InterruptedException exception) {
+        interrupted.countDown();
+      }
+    }
+  }
+
+  /**
+   * A rule that ignores interrupts and runs until released.
+   */
+  public static class StuckRule implements ProcessingRule {
+
+    /** Counted down once the rule has started. */
+    private final CountDownLatch started = new CountDownLatch(1);
+
+    /** Counted down to let the rule return. */
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    /** The calls. */
+    private final AtomicInteger calls = new AtomicInteger();
+
+    /**
+     * @see net.ljcomputing.mail.rules.ProcessingRule#ruleName()
+     */
+    @Override
+    public String ruleName() {
+      return "Stuck";
+    }
+
+    /**
+     * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(javax.mail.Message)
+     */
+    @Override
+    public void processMessageRule(final Message message) throws EmailRuleProcessorException {
+      calls.incrementAndGet();
+      started.countDown();
+
+      while (true) {
+        try {
+          release.await();
+          return;
+        } catch (InterruptedException exception) {
+          // ignored: the rule does not honour cancellation
+        }
+      }
+    }
+  }
+
+  /**
+   * A rule counting its calls.
+   */
+  public static class CountingRule implements ProcessingRule {
+
+    /** The calls. */
+    private final AtomicInteger calls = new AtomicInteger();
+
+    /**
+     * @see net.ljcomputing.mail.rules.ProcessingRule#ruleName()
+     */
+    @Override
+    public String ruleName() {
+      return "Counting";
+    }
+
+    /**
+     * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(javax.mail.Message)
+     */
+    @Override
+    public void processMessageRule(final Message message) throws EmailRuleProcessorException {
+      calls.incrementAndGet();
+    }
+  }
+
+  /**
+   * A rule that always fails.
+   */
+  public static class FailingRule implements ProcessingRule {
+
+    /**
+     * @see net.ljcomputing.mail.rules.ProcessingRule#ruleName()
+     */
+    @Override
+    public String ruleName() {
+      return "Failing";
+    }
+
+    /**
+     * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(javax.mail.Message)
+     */
+    @Override
+    public void processMessageRule(final Message message) throws EmailRuleProcessorException {
+      throw new EmailRuleProcessorException("failing");
+    }
+  }
+}
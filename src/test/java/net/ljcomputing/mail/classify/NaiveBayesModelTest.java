@@ -0,0 +1,222 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.classify;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of Naive Bayes training, the mapped model format and classification.
+ *
+ * @author James G. Willmore
+ *
+ */
+public class NaiveBayesModelTest {
+
+  /** The most characters of a text scanned. */
+  private static final int MAX_CHARS = 4096;
+
+  /** The words of invoices. */
+  private static final String[] INVOICE = { "invoice", "payment", "due", "amount", "account",
+      "balance", "remittance", "overdue" };
+
+  /** The words of newsletters. */
+  private static final String[] NEWSLETTER = { "weekly", "unsubscribe", "digest", "stories",
+      "subscribers", "edition", "read", "more" };
+
+  /** The data directory. */
+  @Rule
+  public final TemporaryFolder dataDirectory = new TemporaryFolder();
+
+  /**
+   * A model trained on labelled messages, written and mapped back, classifies unseen messages
+   * of each category.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void trainedModelClassifiesUnseenMessages() throws Exception {
+    final NaiveBayesTrainer trainer = new NaiveBayesTrainer(MAX_CHARS);
+
+    for (int doc = 0; doc < 40; doc++) {
+      trainer.train("invoices", "Invoice " + doc, text(INVOICE, doc));
+      trainer.train("newsletters", "Weekly digest " + doc, text(NEWSLETTER, doc));
+    }
+
+    assertEquals(Arrays.asList("invoices", "newsletters"), trainer.getCategories());
+
+    final File file = dataDirectory.newFile("model.nbc");
+    assertTrue(trainer.write(file, 2) > 0);
+
+    final NaiveBayesClassifier classifier =
+        new NaiveBayesClassifier(new NaiveBayesModel(file), MAX_CHARS);
+
+    assertEquals(0, classifier.classify("Your invoice", "The payment is overdue; amount due"));
+    assertEquals("invoices", classifier.category());
+    assertTrue(classifier.confidence() > 0.9);
+
+    assertEquals(1, classifier.classify("This week", "Read more stories, or unsubscribe"));
+    assertEquals("newsletters", classifier.category());
+    assertTrue(classifier.confidence() > 0.9);
+  }
+
+  /**
+   * The model file holds the header, the category names and log priors, and a power-of-two
+   * feature table; a message of features the model lacks falls back on the priors.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void modelFileFormat() throws Exception {
+    final NaiveBayesTrainer trainer = new NaiveBayesTrainer(MAX_CHARS);
+    trainer.train("a", "alpha", "alpha beta");
+    trainer.train("a", "alpha", "alpha gamma");
+    trainer.train("a", "alpha", "alpha delta");
+    trainer.train("b", "omega", "omega beta");
+
+    final File file = dataDirectory.newFile("model.nbc");
+    trainer.write(file, 1);
+    final int capacity;
+    final long header;
+
+    try (final DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+      assertEquals(NaiveBayesModel.MAGIC, in.readInt());
+      assertEquals(NaiveBayesModel.VERSION, in.readInt());
+      assertEquals(2, in.readInt());
+      capacity = in.readInt();
+      assertEquals(1, Integer.bitCount(capacity));
+      assertTrue(capacity >= 2 * trainer.getFeatures() - 1);
+      assertEquals("a", in.readUTF());
+      assertEquals(Math.log(0.75), in.readFloat(), 1e-6);
+      assertEquals("b", in.readUTF());
+      assertEquals(Math.log(0.25), in.readFloat(), 1e-6);
+      header = 16 + 2 * (2 + 1 + 4);
+    }
+
+    assertEquals(header + (long) capacity * (8 + 4 * 2), file.length());
+
+    final NaiveBayesClassifier classifier =
+        new NaiveBayesClassifier(new NaiveBayesModel(file), MAX_CHARS);
+    assertEquals(0, classifier.classify("unrelated", "words entirely"));
+    assertEquals(0.75, classifier.confidence(), 1e-6);
+    assertEquals(1, classifier.classify("omega", "omega"));
+  }
+
+  /**
+   * A file that is not a model, or a model cut short, is refused.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void corruptModelIsRefused() throws Exception {
+    final File notModel = dataDirectory.newFile("not-a-model.nbc");
+
+    try (final RandomAccessFile out = new RandomAccessFile(notModel, "rw")) {
+      out.writeInt(0x12345678);
+      out.writeInt(NaiveBayesModel.VERSION);
+    }
+
+    assertRefused(notModel);
+
+    final NaiveBayesTrainer trainer = new NaiveBayesTrainer(MAX_CHARS);
+    trainer.train("a", "alpha", "alpha beta");
+    trainer.train("b", "omega", "omega beta");
+
+    final File truncated = dataDirectory.newFile("truncated.nbc");
+    trainer.write(truncated, 1);
+
+    try (final RandomAccessFile out = new RandomAccessFile(truncated, "rw")) {
+      out.setLength(out.length() - 1);
+    }
+
+    assertRefused(truncated);
+  }
+
+  /**
+   * The primitive map keeps every key's sum as it grows.
+   */
+  @Test
+  public void longFloatMapGrows() {
+    final LongFloatMap map = new LongFloatMap(16);
+
+    for (long key = 1; key <= 10000; key++) {
+      map.add(key * 0x9E3779B97F4A7C15L, 1f);
+      map.add(key * 0x9E3779B97F4A7C15L, key);
+    }
+
+    assertEquals(10000, map.size());
+
+    for (long key = 1; key <= 10000; key++) {
+      assertEquals(key + 1f, map.get(key * 0x9E3779B97F4A7C15L, -1f), 0f);
+    }
+
+    assertEquals(-1f, map.get(3L, -1f), 0f);
+
+    final double[] total = new double[1];
+    map.forEach((key, value) -> total[0] += value);
+    assertEquals(10000 + 10000 * 10001 / 2.0, total[0], 0.0);
+
+    map.clear();
+    assertEquals(0, map.size());
+    assertEquals(-1f, map.get(0x9E3779B97F4A7C15L, -1f), 0f);
+  }
+
+  /**
+   * Assert that a file is refused as a model.
+   *
+   * @param file the file
+   */
+  private static void assertRefused(final File file) {
+    try {
+      new NaiveBayesModel(file);
+    } catch (IOException exception) {
+      return;
+    }
+
+    throw new AssertionError(file + " was accepted as a model");
+  }
+
+  /**
+   * A message body of a category's words, varied by document.
+   *
+   * @param words the category's words
+   * @param doc the document number
+   * @return the text
+   */
+  private static String text(final String[] words, final int doc) {
+    final StringBuilder text = new StringBuilder();
+
+    for (int w = 0; w < words.length; w++) {
+      if ((doc + w) % 3 != 0) {
+        text.append(words[w]).append(' ');
+      }
+    }
+
+    return text.append("message").append(doc).toString();
+  }
+}
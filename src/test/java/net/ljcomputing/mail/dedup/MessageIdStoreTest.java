@@ -0,0 +1,164 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.dedup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of the Message-ID hash store and its Bloom filter.
+ *
+ * @author James G. Willmore
+ *
+ */
+public class MessageIdStoreTest {
+
+  /** The number of hashes stored. */
+  private static final int HASHES = 5000;
+
+  /** The size of a (hash, minute) record. */
+  private static final int RECORD = 12;
+
+  /** The data directory. */
+  @Rule
+  public final TemporaryFolder dataDirectory = new TemporaryFolder();
+
+  /**
+   * Hashes added, a zero hash among them, are held after the store is reopened, each written
+   * once as a 12-byte record.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void hashesSurviveReopen() throws Exception {
+    final File file = new File(dataDirectory.getRoot(), "message-ids.dat");
+    final MessageIdStore first = new MessageIdStore(file, 1, TimeUnit.DAYS);
+
+    for (long hash = 0; hash < HASHES; hash++) {
+      first.add(hash * 0x9E3779B97F4A7C15L);
+    }
+
+    first.add(5L * 0x9E3779B97F4A7C15L);
+    first.close();
+
+    assertEquals(HASHES * RECORD, file.length());
+
+    final MessageIdStore second = new MessageIdStore(file, 1, TimeUnit.DAYS);
+
+    try {
+      assertEquals(HASHES, second.size());
+
+      for (long hash = 0; hash < HASHES; hash++) {
+        assertTrue(second.contains(hash * 0x9E3779B97F4A7C15L));
+      }
+
+      assertFalse(second.contains(HASHES * 0x9E3779B97F4A7C15L));
+    } finally {
+      second.close();
+    }
+
+    assertEquals(HASHES * RECORD, file.length());
+  }
+
+  /**
+   * Opening the store drops the hashes older than the time-to-live, and a torn final record,
+   * and compacts the file to the hashes kept.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void expiredHashesAreCompactedAway() throws Exception {
+    final File file = new File(dataDirectory.getRoot(), "message-ids.dat");
+    final int now = (int) TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis());
+
+    try (final DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(file)))) {
+      record(out, 11L, now - 120);
+      record(out, 12L, now - 10);
+      record(out, 13L, now - 61);
+      record(out, 14L, now);
+      out.write(new byte[5]);
+    }
+
+    final MessageIdStore store = new MessageIdStore(file, 60, TimeUnit.MINUTES);
+
+    try {
+      assertEquals(2, store.size());
+      assertFalse(store.contains(11L));
+      assertTrue(store.contains(12L));
+      assertFalse(store.contains(13L));
+      assertTrue(store.contains(14L));
+      assertEquals(2 * RECORD, file.length());
+
+      store.add(11L);
+      assertTrue(store.contains(11L));
+    } finally {
+      store.close();
+    }
+
+    assertEquals(3 * RECORD, file.length());
+  }
+
+  /**
+   * The Bloom filter never misses a hash put into it and rarely claims one that was not.
+   */
+  @Test
+  public void bloomFilterHasNoFalseNegatives() {
+    final BloomFilter filter = new BloomFilter(HASHES, 0.01);
+
+    for (long hash = 0; hash < HASHES; hash++) {
+      filter.put(hash * 0x9E3779B97F4A7C15L);
+    }
+
+    int falsePositives = 0;
+
+    for (long hash = 0; hash < HASHES; hash++) {
+      assertTrue(filter.mightContain(hash * 0x9E3779B97F4A7C15L));
+
+      if (filter.mightContain(-hash - 1)) {
+        falsePositives++;
+      }
+    }
+
+    assertTrue(String.valueOf(falsePositives), falsePositives < HASHES / 50);
+  }
+
+  /**
+   * Write a (hash, minute) record.
+   *
+   * @param out the output
+   * @param hash the hash
+   * @param minute the minute
+   * @throws Exception the exception
+   */
+  private static void record(final DataOutputStream out, final long hash, final int minute)
+      throws Exception {
+    out.writeLong(hash);
+    out.writeInt(minute);
+  }
+}
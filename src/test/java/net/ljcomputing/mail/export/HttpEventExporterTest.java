@@ -0,0 +1,283 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.export;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.icegreen.greenmail.junit.GreenMailRule;
+import com.icegreen.greenmail.user.GreenMailUser;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import net.ljcomputing.mail.rules.impl.ExportMessage;
+import net.ljcomputing.mail.service.EmailRulesProcessor;
+import net.ljcomputing.mail.service.MailProperties;
+import net.ljcomputing.mail.service.MailProps;
+
+/**
+ * Tests of the event exporter against an in-process HTTP endpoint.
+ *
+ * @author James G. Willmore
+ *
+ */
+public class HttpEventExporterTest {
+
+  /** The data directory. */
+  @Rule
+  public final TemporaryFolder dataDirectory = new TemporaryFolder();
+
+  /** The in-process IMAP server. */
+  @Rule
+  public final GreenMailRule imap = new GreenMailRule(ServerSetupTest.IMAP);
+
+  /** The in-process HTTP endpoint. */
+  private HttpServer endpoint;
+
+  /** The events received, in order. */
+  private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+  /** The count of POSTs received. */
+  private volatile int posts;
+
+  /** The content encoding of the last POST. */
+  private volatile String encoding;
+
+  /** The status the endpoint answers with. */
+  private volatile int status = 200;
+
+  /**
+   * Start the endpoint.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @Before
+  public void setUp() throws IOException {
+    endpoint = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    endpoint.createContext("/events", this::receive);
+    endpoint.start();
+  }
+
+  /**
+   * Stop the endpoint.
+   */
+  @After
+  public void tearDown() {
+    endpoint.stop(0);
+  }
+
+  /**
+   * Events are POSTed as gzip-compressed NDJSON in batches of at most the batch size.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void eventsArePostedInBatches() throws Exception {
+    final HttpEventExporter exporter = new HttpEventExporter(new MailProperties(properties()));
+
+    try {
+      for (int event = 0; event < 25; event++) {
+        exporter.submit(new JsonLine().field("event", event).toString());
+      }
+
+      exporter.flush();
+    } finally {
+      exporter.close();
+    }
+
+    assertEquals(25, events.size());
+    assertEquals("{\"event\":0}", events.get(0));
+    assertEquals("{\"event\":24}", events.get(24));
+    assertEquals(3, posts);
+    assertEquals("gzip", encoding);
+  }
+
+  /**
+   * Batches the endpoint is unavailable for are spilled to disk and delivered, oldest first and
+   * ahead of newer ones, once it is back.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void unavailableEndpointSpillsAndRedelivers() throws Exception {
+    final Properties props = properties();
+    props.setProperty(HttpEventExporter.PROBE_INTERVAL, "200");
+    final HttpEventExporter exporter = new HttpEventExporter(new MailProperties(props));
+
+    try {
+      status = 503;
+      exporter.submit("{\"event\":\"early\"}");
+      exporter.flush();
+
+      assertEquals(0, events.size());
+      assertEquals(1, spilled().length);
+
+      status = 200;
+      Thread.sleep(300);
+      exporter.submit("{\"event\":\"late\"}");
+      exporter.flush();
+    } finally {
+      exporter.close();
+    }
+
+    assertEquals(Arrays.asList("{\"event\":\"early\"}", "{\"event\":\"late\"}"), events);
+    assertEquals(0, spilled().length);
+  }
+
+  /**
+   * Batches the endpoint rejects are dropped, neither retried nor spilled.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void rejectedBatchesAreDropped() throws Exception {
+    final HttpEventExporter exporter = new HttpEventExporter(new MailProperties(properties()));
+
+    try {
+      status = 400;
+      exporter.submit("{\"event\":\"rejected\"}");
+      exporter.flush();
+    } finally {
+      exporter.close();
+    }
+
+    assertEquals(1, posts);
+    assertEquals(0, spilled().length);
+  }
+
+  /**
+   * The export rule sends one event per processed message.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void processedMessagesAreExported() throws Exception {
+    final GreenMailUser user = imap.setUser("user@localhost", "user", "secret");
+    final Session session = Session.getInstance(new Properties());
+
+    for (int number = 0; number < 3; number++) {
+      final MimeMessage message = new MimeMessage(session);
+      message.setFrom("someone@localhost");
+      message.setSubject("message " + number);
+      message.setText("body " + number);
+      user.deliver(message);
+    }
+
+    final Properties props = properties();
+    props.setProperty("mail.imap.port", String.valueOf(ServerSetupTest.IMAP.getPort()));
+    props.setProperty(MailProps.PROVIDER.toString(), "imap");
+    props.setProperty(MailProps.HOST.toString(), "localhost");
+    props.setProperty(MailProps.USERNAME.toString(), "user");
+    props.setProperty(MailProps.PASSWORD.toString(), "secret");
+    props.setProperty("email.rules.1", ExportMessage.class.getName());
+
+    try (final EmailRulesProcessor processor = new EmailRulesProcessor(props)) {
+      processor.processInbox();
+    }
+
+    assertEquals(3, events.size());
+
+    for (int number = 0; number < 3; number++) {
+      final String event = events.get(number);
+      assertTrue(event, event.startsWith("{\"folder\":\"INBOX\",\"uid\":" + (number + 1) + ","));
+      assertTrue(event, event.contains("\"from\":\"someone@localhost\""));
+      assertTrue(event, event.contains("\"subject\":\"message " + number + "\""));
+    }
+  }
+
+  /**
+   * The exporter properties for the endpoint, retrying quickly.
+   *
+   * @return the properties
+   */
+  private Properties properties() {
+    final Properties props = new Properties();
+    props.setProperty(HttpEventExporter.URL,
+        "http://localhost:" + endpoint.getAddress().getPort() + "/events");
+    props.setProperty(HttpEventExporter.BATCH_SIZE, "10");
+    props.setProperty(HttpEventExporter.RETRIES, "1");
+    props.setProperty(HttpEventExporter.BACKOFF, "10");
+    props.setProperty(MailProperties.DATA_DIRECTORY, dataDirectory.getRoot().getPath());
+
+    return props;
+  }
+
+  /**
+   * The batches spilled to disk.
+   *
+   * @return the spilled files
+   */
+  private File[] spilled() {
+    final File[] files = new File(dataDirectory.getRoot(), "export-spill").listFiles();
+
+    return files == null ? new File[0] : files;
+  }
+
+  /**
+   * Answer a POST, recording its events when accepting it.
+   *
+   * @param exchange the exchange
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void receive(final HttpExchange exchange) throws IOException {
+    posts++;
+    encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+    final List<String> lines = new ArrayList<String>();
+
+    try (final BufferedReader in = new BufferedReader(new InputStreamReader(
+        new GZIPInputStream(exchange.getRequestBody()), StandardCharsets.UTF_8))) {
+      String line;
+
+      while ((line = in.readLine()) != null) {
+        lines.add(line);
+      }
+    }
+
+    final int answer = status;
+
+    if (answer == 200) {
+      events.addAll(lines);
+    }
+
+    exchange.sendResponseHeaders(answer, -1);
+    exchange.close();
+  }
+}
@@ -0,0 +1,289 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.ljcomputing.mail.service.MailProperties;
+
+/**
+ * Tests of the on-disk inverted index: flushes, merges, searches during merges, reopening and
+ * the clean-up of orphaned segment files.
+ *
+ * @author James G. Willmore
+ *
+ */
+public class MailIndexTest {
+
+  /** The number of documents indexed. */
+  private static final int DOCUMENTS = 1000;
+
+  /** The documents buffered before a flush. */
+  private static final int FLUSH_DOCS = 100;
+
+  /** The segments merged at once. */
+  private static final int MERGE_FACTOR = 3;
+
+  /** The date of the first document. */
+  private static final long EPOCH = 1500000000000L;
+
+  /** The data directory. */
+  @Rule
+  public final TemporaryFolder dataDirectory = new TemporaryFolder();
+
+  /**
+   * Documents flushed to segments and merged are found, newest first, by searches running
+   * while the merges happen and after the index is reopened; merged-away segment files are
+   * deleted once unread.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void flushMergeSearchReopen() throws Exception {
+    final MailIndex index = new MailIndex(properties());
+    final List<String> expected = expected("even", "mod3");
+
+    try {
+      for (int doc = 0; doc < DOCUMENTS; doc++) {
+        assertEquals(doc, index.add(document(doc)));
+      }
+
+      assertEquals(DOCUMENTS / FLUSH_DOCS, manifest().size());
+      assertEquals(expected, search(index, "even", "mod3"));
+
+      final AtomicBoolean merging = new AtomicBoolean(true);
+      final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+      final List<Thread> searchers = new ArrayList<Thread>();
+
+      for (int s = 0; s < 4; s++) {
+        searchers.add(new Thread(() -> {
+          while (merging.get()) {
+            final List<String> hits = search(index, "even", "mod3");
+
+            if (!expected.equals(hits)) {
+              failures.add(hits.size() + " hits");
+            }
+          }
+        }));
+      }
+
+      for (final Thread searcher : searchers) {
+        searcher.start();
+      }
+
+      try {
+        while (manifest().size() > MERGE_FACTOR) {
+          index.merge();
+        }
+      } finally {
+        merging.set(false);
+
+        for (final Thread searcher : searchers) {
+          searcher.join();
+        }
+      }
+
+      assertTrue(failures.toString(), failures.isEmpty());
+      assertEquals(new TreeSet<String>(manifest()), segmentFiles());
+      assertEquals(DOCUMENTS, index.docCount());
+    } finally {
+      index.close();
+    }
+
+    final MailIndex reopened = new MailIndex(properties());
+
+    try {
+      assertEquals(DOCUMENTS, reopened.docCount());
+      assertEquals(expected, search(reopened, "even", "mod3"));
+      assertEquals(DOCUMENTS, reopened.add(document(DOCUMENTS)));
+
+      final List<IndexHit> dated = reopened.search(new IndexQuery().subject("odd")
+          .dated(new Date(EPOCH + 11000L), new Date(EPOCH + 15000L)));
+      assertEquals(3, dated.size());
+      assertEquals("<15@example.org>", dated.get(0).getMessageId());
+      assertEquals("<13@example.org>", dated.get(1).getMessageId());
+      assertEquals("<11@example.org>", dated.get(2).getMessageId());
+      assertEquals("message 15", dated.get(0).getSubject());
+    } finally {
+      reopened.close();
+    }
+  }
+
+  /**
+   * Segment files the manifest does not name, left by a merge whose deletes did not happen, are
+   * removed when the index is opened, and their numbers are not reused.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void orphanSegmentsAreDeletedOnOpen() throws Exception {
+    final MailIndex index = new MailIndex(properties());
+
+    try {
+      for (int doc = 0; doc < FLUSH_DOCS; doc++) {
+        index.add(document(doc));
+      }
+    } finally {
+      index.close();
+    }
+
+    final File directory = new File(dataDirectory.getRoot(), "index");
+    final File orphan = new File(directory, "segment-000000000041.seg");
+    Files.write(orphan.toPath(), new byte[] { 1, 2, 3 });
+
+    final MailIndex reopened = new MailIndex(properties());
+
+    try {
+      assertFalse(orphan.exists());
+      assertEquals(FLUSH_DOCS, reopened.docCount());
+
+      reopened.add(document(FLUSH_DOCS));
+      reopened.flush();
+
+      assertEquals("segment-000000000042.seg", manifest().get(1));
+    } finally {
+      reopened.close();
+    }
+  }
+
+  /**
+   * The index properties, merging only when asked to.
+   *
+   * @return the properties
+   */
+  private MailProperties properties() {
+    final Properties props = new Properties();
+    props.setProperty(MailProperties.DATA_DIRECTORY, dataDirectory.getRoot().getPath());
+    props.setProperty(MailIndex.FLUSH_DOCS, String.valueOf(FLUSH_DOCS));
+    props.setProperty(MailIndex.MERGE_FACTOR, String.valueOf(MERGE_FACTOR));
+    props.setProperty(MailIndex.MERGE_INTERVAL, "3600");
+
+    return new MailProperties(props);
+  }
+
+  /**
+   * A document, its subject saying whether its number is even and its body what it is modulo
+   * three.
+   *
+   * @param doc the document number
+   * @return the document
+   */
+  private static IndexDocument document(final int doc) {
+    final Set<String> terms = new HashSet<String>();
+    final String subject = "message " + doc;
+    IndexTokenizer.words(IndexTokenizer.SUBJECT, subject + (doc % 2 == 0 ? " even" : " odd"),
+        terms, Integer.MAX_VALUE);
+    IndexTokenizer.words(IndexTokenizer.BODY, "mod" + (doc % 3), terms, Integer.MAX_VALUE);
+
+    return new IndexDocument("<" + doc + "@example.org>", subject, EPOCH + doc * 1000L, terms);
+  }
+
+  /**
+   * The Message-IDs of the documents a search should find, newest first.
+   *
+   * @param subject the subject word
+   * @param body the body word
+   * @return the Message-IDs
+   */
+  private static List<String> expected(final String subject, final String body) {
+    final List<String> expected = new ArrayList<String>();
+
+    for (int doc = DOCUMENTS - 1; doc >= 0; doc--) {
+      if ((doc % 2 == 0) == "even".equals(subject) && body.equals("mod" + (doc % 3))) {
+        expected.add("<" + doc + "@example.org>");
+      }
+    }
+
+    return expected;
+  }
+
+  /**
+   * Search the index.
+   *
+   * @param index the index
+   * @param subject the subject word
+   * @param body the body word
+   * @return the Message-IDs found
+   */
+  private static List<String> search(final MailIndex index, final String subject,
+      final String body) {
+    final List<String> found = new ArrayList<String>();
+
+    for (final IndexHit hit : index
+        .search(new IndexQuery().subject(subject).body(body).limit(DOCUMENTS))) {
+      found.add(hit.getMessageId());
+    }
+
+    return found;
+  }
+
+  /**
+   * The segment files named by the manifest.
+   *
+   * @return the names
+   * @throws Exception the exception
+   */
+  private List<String> manifest() throws Exception {
+    final List<String> names = new ArrayList<String>();
+    final File manifest = new File(new File(dataDirectory.getRoot(), "index"),
+        "segments.manifest");
+
+    for (final String line : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+      if (!line.trim().isEmpty()) {
+        names.add(line.trim());
+      }
+    }
+
+    return names;
+  }
+
+  /**
+   * The segment files in the index directory.
+   *
+   * @return the names
+   */
+  private Set<String> segmentFiles() {
+    final Set<String> names = new TreeSet<String>();
+
+    for (final File file : new File(dataDirectory.getRoot(), "index").listFiles()) {
+      if (file.getName().endsWith(".seg")) {
+        names.add(file.getName());
+      }
+    }
+
+    return names;
+  }
+}
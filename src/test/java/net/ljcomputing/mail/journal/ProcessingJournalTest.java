@@ -0,0 +1,157 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.journal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Properties;
+
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.Store;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.icegreen.greenmail.junit.GreenMailRule;
+import com.icegreen.greenmail.util.ServerSetupTest;
+
+import net.ljcomputing.mail.service.MailProperties;
+
+/**
+ * Tests of the processing journal's keys, recovery and compaction.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class ProcessingJournalTest {
+
+  /** The data directory. */
+  @Rule
+  public final TemporaryFolder dataDirectory = new TemporaryFolder();
+
+  /** The in-process IMAP server. */
+  @Rule
+  public final GreenMailRule imap = new GreenMailRule(ServerSetupTest.IMAP);
+
+  /** The properties. */
+  private Properties props;
+
+  /**
+   * Point the journal at the data directory.
+   */
+  @Before
+  public void setUp() {
+    props = new Properties();
+    props.setProperty(MailProperties.DATA_DIRECTORY, dataDirectory.getRoot().getPath());
+  }
+
+  /**
+   * Unfinished messages, and the rules completed for them, survive a restart.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void unfinishedMessagesAreRecovered() throws Exception {
+    final ProcessingJournal journal = new ProcessingJournal(new MailProperties(props));
+    journal.started("INBOX;1;1");
+    journal.ruleCompleted("INBOX;1;1", "MarkMessageAsSeen");
+    journal.started("INBOX;1;2");
+    journal.completed("INBOX;1;2");
+    journal.close();
+
+    final ProcessingJournal reopened = new ProcessingJournal(new MailProperties(props));
+    assertEquals(Collections.singleton("MarkMessageAsSeen"), reopened.started("INBOX;1;1"));
+    assertTrue(reopened.started("INBOX;1;2").isEmpty());
+    reopened.close();
+  }
+
+  /**
+   * The journal is compacted at the end of a run and whenever it outgrows the compaction size.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void journalIsCompactedWhileRunning() throws Exception {
+    props.setProperty(ProcessingJournal.COMPACT_BYTES, "4096");
+    final ProcessingJournal journal = new ProcessingJournal(new MailProperties(props));
+    final File file = new File(dataDirectory.getRoot(), "journal.log");
+
+    for (int message = 0; message < 10000; message++) {
+      final String key = "INBOX;1;" + message;
+      journal.started(key);
+      journal.ruleCompleted(key, "MarkMessageAsSeen");
+      journal.completed(key);
+    }
+
+    journal.sync();
+    assertTrue(file.length() <= 4096 + 128);
+
+    journal.started("INBOX;1;unfinished");
+    journal.compact();
+    assertTrue(file.length() > 0);
+    assertTrue(file.length() < 128);
+    journal.close();
+  }
+
+  /**
+   * Copies of one message in two folders have different keys.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void copiesInTwoFoldersHaveDifferentKeys() throws Exception {
+    imap.setUser("user@localhost", "user", "secret");
+    final Session session = Session.getInstance(new Properties());
+    final Store store = session.getStore("imap");
+    store.connect("localhost", ServerSetupTest.IMAP.getPort(), "user", "secret");
+
+    try {
+      final MimeMessage message = new MimeMessage(session);
+      message.setFrom("someone@localhost");
+      message.setSubject("copied");
+      message.setText("body");
+      message.setHeader("Message-ID", "<copied@localhost>");
+
+      final Folder inbox = store.getFolder("INBOX");
+      final Folder archive = store.getFolder("Archive");
+      archive.create(Folder.HOLDS_MESSAGES);
+      inbox.appendMessages(new Message[] { message });
+      archive.appendMessages(new Message[] { message });
+      inbox.open(Folder.READ_ONLY);
+      archive.open(Folder.READ_ONLY);
+
+      final String inboxKey = ProcessingJournal.keyOf(inbox.getMessage(1));
+      final String archiveKey = ProcessingJournal.keyOf(archive.getMessage(1));
+      assertTrue(inboxKey.startsWith("INBOX;"));
+      assertNotEquals(inboxKey, archiveKey);
+
+      inbox.close(false);
+      archive.close(false);
+    } finally {
+      store.close();
+    }
+  }
+}
@@ -0,0 +1,253 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.lease;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Store;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.icegreen.greenmail.junit.GreenMailRule;
+import com.icegreen.greenmail.user.GreenMailUser;
+import com.icegreen.greenmail.util.ServerSetupTest;
+
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.rules.ProcessingRule;
+import net.ljcomputing.mail.rules.impl.MarkMessageAsSeen;
+import net.ljcomputing.mail.service.EmailRulesProcessor;
+import net.ljcomputing.mail.service.MailProperties;
+import net.ljcomputing.mail.service.MailProps;
+
+/**
+ * Tests of several processor instances, each in its own JVM, sharing one mailbox through UID-range
+ * leases kept in one lease directory.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class LeaseCoordinatorTest {
+
+  /** The record file system property, read by the recording rule. */
+  private static final String RECORD_FILE = "lease.test.records";
+
+  /** The number of messages in the mailbox. */
+  private static final int MESSAGES = 200;
+
+  /** The number of instances. */
+  private static final int INSTANCES = 3;
+
+  /** The working directory. */
+  @Rule
+  public final TemporaryFolder directory = new TemporaryFolder();
+
+  /** The in-process IMAP server. */
+  @Rule
+  public final GreenMailRule imap = new GreenMailRule(ServerSetupTest.IMAP);
+
+  /**
+   * Every message is processed exactly once, by one of the instances, and is left seen.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void instancesProcessEveryMessageOnce() throws Exception {
+    final GreenMailUser user = imap.setUser("user@localhost", "user", "secret");
+    final Session session = Session.getInstance(new Properties());
+
+    for (int number = 0; number < MESSAGES; number++) {
+      final MimeMessage message = new MimeMessage(session);
+      message.setFrom("someone@localhost");
+      message.setSubject("message " + number);
+      message.setText("body " + number);
+      user.deliver(message);
+    }
+
+    final File leaseDirectory = directory.newFolder("leases");
+    final File records = directory.newFile("records.txt");
+    final List<Process> processes = new ArrayList<Process>();
+    final List<File> outputs = new ArrayList<File>();
+
+    for (int instance = 0; instance < INSTANCES; instance++) {
+      final File output = new File(directory.getRoot(), "instance-" + instance + ".log");
+      final ProcessBuilder builder = new ProcessBuilder(
+          new File(new File(System.getProperty("java.home"), "bin"), "java").getPath(),
+          "-cp", System.getProperty("java.class.path"),
+          "-D" + RECORD_FILE + "=" + records.getPath(),
+          Instance.class.getName(),
+          String.valueOf(ServerSetupTest.IMAP.getPort()), leaseDirectory.getPath(),
+          "instance-" + instance, directory.newFolder("data-" + instance).getPath());
+      builder.redirectErrorStream(true);
+      builder.redirectOutput(output);
+      processes.add(builder.start());
+      outputs.add(output);
+    }
+
+    for (int instance = 0; instance < INSTANCES; instance++) {
+      final Process process = processes.get(instance);
+      assertTrue("instance " + instance + " timed out", process.waitFor(2, TimeUnit.MINUTES));
+      assertEquals("instance " + instance + " failed:\n" + tail(outputs.get(instance)), 0,
+          process.exitValue());
+    }
+
+    final Map<String, Integer> processed = new HashMap<String, Integer>();
+
+    for (final String subject : Files.readAllLines(records.toPath(), StandardCharsets.UTF_8)) {
+      final Integer count = processed.get(subject);
+      processed.put(subject, count == null ? 1 : count + 1);
+    }
+
+    assertEquals(MESSAGES, processed.size());
+
+    for (final Map.Entry<String, Integer> entry : processed.entrySet()) {
+      assertEquals(entry.getKey() + " processed more than once", Integer.valueOf(1),
+          entry.getValue());
+    }
+
+    assertEquals(0, unseen(session));
+  }
+
+  /**
+   * The number of unseen messages left in the inbox.
+   *
+   * @param session the session
+   * @return the count
+   * @throws MessagingException the messaging exception
+   */
+  private int unseen(final Session session) throws MessagingException {
+    final Store store = session.getStore("imap");
+    store.connect("localhost", ServerSetupTest.IMAP.getPort(), "user", "secret");
+
+    try {
+      final Folder inbox = store.getFolder("INBOX");
+      inbox.open(Folder.READ_ONLY);
+
+      try {
+        return inbox.getUnreadMessageCount();
+      } finally {
+        inbox.close(false);
+      }
+    } finally {
+      store.close();
+    }
+  }
+
+  /**
+   * The end of an instance's output.
+   *
+   * @param output the output file
+   * @return the last lines
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static String tail(final File output) throws IOException {
+    final List<String> lines = Files.readAllLines(output.toPath(), StandardCharsets.UTF_8);
+
+    return String.join("\n", lines.subList(Math.max(0, lines.size() - 40), lines.size()));
+  }
+
+  /**
+   * One processor instance, run in its own JVM.
+   */
+  public static class Instance {
+
+    /**
+     * Process the inbox once, leasing small UID ranges.
+     *
+     * @param args the IMAP port, lease directory, instance name and data directory
+     * @throws EmailRuleProcessorException the email rule processor exception
+     */
+    public static void main(final String[] args) throws EmailRuleProcessorException {
+      final Properties props = new Properties();
+      props.setProperty("mail.imap.port", args[0]);
+      props.setProperty(MailProps.PROVIDER.toString(), "imap");
+      props.setProperty(MailProps.HOST.toString(), "localhost");
+      props.setProperty(MailProps.USERNAME.toString(), "user");
+      props.setProperty(MailProps.PASSWORD.toString(), "secret");
+      props.setProperty(LeaseCoordinator.ENABLED, "true");
+      props.setProperty(LeaseCoordinator.DIRECTORY, args[1]);
+      props.setProperty(LeaseCoordinator.OWNER, args[2]);
+      props.setProperty(LeaseCoordinator.RANGE_SIZE, "10");
+      props.setProperty(MailProperties.DATA_DIRECTORY, args[3]);
+      props.setProperty("email.rules.1", RecordingRule.class.getName());
+      props.setProperty("email.rules.2", MarkMessageAsSeen.class.getName());
+
+      try (final EmailRulesProcessor processor = new EmailRulesProcessor(props)) {
+        processor.processInbox();
+      }
+
+      System.exit(0);
+    }
+  }
+
+  /**
+   * A rule appending the subject of every message it processes to the shared record file.
+   */
+  public static class RecordingRule implements ProcessingRule {
+
+    /**
+     * @see net.ljcomputing.mail.rules.ProcessingRule#ruleName()
+     */
+    @Override
+    public String ruleName() {
+      return "Recording Rule";
+    }
+
+    /**
+     * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(javax.mail.Message)
+     */
+    @Override
+    public void processMessageRule(final Message message) throws EmailRuleProcessorException {
+      try (final FileChannel channel = FileChannel.open(
+          new File(System.getProperty(RECORD_FILE)).toPath(), StandardOpenOption.WRITE,
+          StandardOpenOption.APPEND)) {
+        final FileLock lock = channel.lock();
+
+        try {
+          channel.write(ByteBuffer.wrap(
+              (message.getSubject() + "\n").getBytes(StandardCharsets.UTF_8)));
+        } finally {
+          lock.release();
+        }
+      } catch (IOException | MessagingException exception) {
+        throw new EmailRuleProcessorException(exception);
+      }
+    }
+  }
+}
@@ -0,0 +1,310 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.metadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.icegreen.greenmail.junit.GreenMailRule;
+import com.icegreen.greenmail.user.GreenMailUser;
+import com.icegreen.greenmail.util.ServerSetupTest;
+
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.rules.impl.WriteMessageMetadata;
+import net.ljcomputing.mail.service.EmailRulesProcessor;
+import net.ljcomputing.mail.service.MailProperties;
+import net.ljcomputing.mail.service.MailProps;
+
+/**
+ * Tests of the columnar metadata writer and reader.
+ *
+ * @author James G. Willmore
+ *
+ */
+public class MetadataWriterTest {
+
+  /** The data directory. */
+  @Rule
+  public final TemporaryFolder dataDirectory = new TemporaryFolder();
+
+  /** The in-process IMAP server. */
+  @Rule
+  public final GreenMailRule imap = new GreenMailRule(ServerSetupTest.IMAP);
+
+  /**
+   * Rows read back as written, columns first set part way through and values left unset
+   * reading as null, or -1 for numbers.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void rowsReadBackAsWritten() throws Exception {
+    final MetadataWriter writer = writer(1024 * 1024);
+
+    try {
+      writer.append(new MetadataRow().set("uid", 10L).set("domain", "example.org"));
+      writer.append(new MetadataRow().set("uid", 3L).set("domain", "example.org")
+          .set("size", 2048L));
+      writer.append(new MetadataRow().set("uid", 12L).set("size", 100L));
+    } finally {
+      writer.close();
+    }
+
+    final MetadataReader reader = reader(writer);
+
+    assertEquals(3, reader.rows());
+    assertEquals(Arrays.asList("uid", "domain", "size"), new ArrayList<String>(reader.columns()));
+    assertEquals(Arrays.asList(10L, 3L, 12L), longs(reader, "uid"));
+    assertEquals(Arrays.asList(-1L, 2048L, 100L), longs(reader, "size"));
+    assertEquals(Arrays.asList("example.org", "example.org", null), strings(reader, "domain"));
+    assertEquals(Arrays.asList(-1L, -1L, -1L), longs(reader, "absent"));
+  }
+
+  /**
+   * Rows spread over many row groups read back in order, a column missing from some groups
+   * reading as null in their rows.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void rowsSpanRowGroups() throws Exception {
+    final MetadataWriter writer = writer(64);
+
+    try {
+      for (int row = 0; row < 1000; row++) {
+        final MetadataRow metadata = new MetadataRow().set("uid", row);
+
+        if (row >= 500) {
+          metadata.set("folder", "folder " + (row % 3));
+        }
+
+        writer.append(metadata);
+      }
+    } finally {
+      writer.close();
+    }
+
+    final MetadataReader reader = reader(writer);
+    final List<Long> uids = longs(reader, "uid");
+    final List<String> folders = strings(reader, "folder");
+
+    assertEquals(1000, reader.rows());
+    assertEquals(1000, uids.size());
+    assertEquals(1000, folders.size());
+
+    for (int row = 0; row < 1000; row++) {
+      assertEquals(row, uids.get(row).longValue());
+      assertEquals(row >= 500 ? "folder " + (row % 3) : null, folders.get(row));
+    }
+  }
+
+  /**
+   * A file cut short in its last row group, as by a crash mid-write, reads back every row group
+   * before it.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void partialRowGroupIsIgnored() throws Exception {
+    final MetadataWriter writer = writer(1024 * 1024);
+
+    try {
+      for (int row = 0; row < 10; row++) {
+        writer.append(new MetadataRow().set("uid", row));
+      }
+
+      writer.flush();
+
+      for (int row = 10; row < 20; row++) {
+        writer.append(new MetadataRow().set("uid", row));
+      }
+    } finally {
+      writer.close();
+    }
+
+    final File file = MetadataReader.files(writer.getDirectory()).get(0);
+
+    try (final RandomAccessFile cut = new RandomAccessFile(file, "rw")) {
+      cut.setLength(cut.length() - 3);
+    }
+
+    final MetadataReader reader = new MetadataReader(file);
+
+    assertEquals(10, reader.rows());
+    assertEquals(10, longs(reader, "uid").size());
+    assertEquals(9L, longs(reader, "uid").get(9).longValue());
+  }
+
+  /**
+   * A column set as a number and then as text in the same row group is refused.
+   *
+   * @throws Exception the exception
+   */
+  @Test(expected = EmailRuleProcessorException.class)
+  public void columnTypeChangeFails() throws Exception {
+    final MetadataWriter writer = writer(1024 * 1024);
+
+    try {
+      writer.append(new MetadataRow().set("size", 1L));
+      writer.append(new MetadataRow().set("size", "large"));
+    } finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * A column scanned as the wrong type is refused.
+   *
+   * @throws Exception the exception
+   */
+  @Test(expected = EmailRuleProcessorException.class)
+  public void wrongColumnTypeScanFails() throws Exception {
+    final MetadataWriter writer = writer(1024 * 1024);
+
+    try {
+      writer.append(new MetadataRow().set("size", 1L));
+    } finally {
+      writer.close();
+    }
+
+    strings(reader(writer), "size");
+  }
+
+  /**
+   * The metadata rule writes one row per processed message.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void processedMessagesAreWritten() throws Exception {
+    final GreenMailUser user = imap.setUser("user@localhost", "user", "secret");
+    final Session session = Session.getInstance(new Properties());
+
+    for (int number = 0; number < 3; number++) {
+      final MimeMessage message = new MimeMessage(session);
+      message.setFrom("someone@example.org");
+      message.setRecipients(MimeMessage.RecipientType.TO, "user@localhost");
+      message.setSubject("message " + number);
+      message.setText("body " + number);
+      user.deliver(message);
+    }
+
+    final Properties props = new Properties();
+    props.setProperty("mail.imap.port", String.valueOf(ServerSetupTest.IMAP.getPort()));
+    props.setProperty(MailProps.PROVIDER.toString(), "imap");
+    props.setProperty(MailProps.HOST.toString(), "localhost");
+    props.setProperty(MailProps.USERNAME.toString(), "user");
+    props.setProperty(MailProps.PASSWORD.toString(), "secret");
+    props.setProperty(MailProperties.DATA_DIRECTORY, dataDirectory.getRoot().getPath());
+    props.setProperty("email.rules.1", WriteMessageMetadata.class.getName());
+
+    try (final EmailRulesProcessor processor = new EmailRulesProcessor(props)) {
+      processor.processInbox();
+    }
+
+    final List<File> files =
+        MetadataReader.files(new File(dataDirectory.getRoot(), "metadata"));
+    assertEquals(1, files.size());
+
+    final MetadataReader reader = new MetadataReader(files.get(0));
+
+    assertEquals(3, reader.rows());
+    assertEquals(Arrays.asList("INBOX", "INBOX", "INBOX"),
+        strings(reader, WriteMessageMetadata.FOLDER));
+    assertEquals(Arrays.asList(1L, 2L, 3L), longs(reader, WriteMessageMetadata.UID));
+    assertEquals(Arrays.asList("example.org", "example.org", "example.org"),
+        strings(reader, WriteMessageMetadata.SENDER_DOMAIN));
+    assertEquals(Arrays.asList(1L, 1L, 1L), longs(reader, WriteMessageMetadata.RECIPIENTS));
+
+    for (final long size : longs(reader, WriteMessageMetadata.SIZE)) {
+      assertTrue(size > 0);
+    }
+  }
+
+  /**
+   * A writer into the data directory.
+   *
+   * @param rowGroupSize the row group size
+   * @return the writer
+   */
+  private MetadataWriter writer(final int rowGroupSize) {
+    final Properties props = new Properties();
+    props.setProperty(MailProperties.DATA_DIRECTORY, dataDirectory.getRoot().getPath());
+    props.setProperty(MetadataWriter.ROW_GROUP_SIZE, String.valueOf(rowGroupSize));
+
+    return new MetadataWriter(new MailProperties(props));
+  }
+
+  /**
+   * A reader of the one file a writer wrote.
+   *
+   * @param writer the writer
+   * @return the reader
+   */
+  private static MetadataReader reader(final MetadataWriter writer) {
+    final List<File> files = MetadataReader.files(writer.getDirectory());
+    assertEquals(1, files.size());
+
+    return new MetadataReader(files.get(0));
+  }
+
+  /**
+   * The values of a number column.
+   *
+   * @param reader the reader
+   * @param column the column
+   * @return the values
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  private static List<Long> longs(final MetadataReader reader, final String column)
+      throws EmailRuleProcessorException {
+    final List<Long> values = new ArrayList<Long>();
+    reader.scanLongs(column, values::add);
+
+    return values;
+  }
+
+  /**
+   * The values of a text column.
+   *
+   * @param reader the reader
+   * @param column the column
+   * @return the values
+   * @throws EmailRuleProcessorException the email rule processor exception
+   */
+  private static List<String> strings(final MetadataReader reader, final String column)
+      throws EmailRuleProcessorException {
+    final List<String> values = new ArrayList<String>();
+    reader.scanStrings(column, values::add);
+
+    return values;
+  }
+}
@@ -0,0 +1,94 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.nio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests of the incremental IMAP response parser.
+ *
+ * @author James G. Willmore
+ *
+ */
+public class ImapResponseParserTest {
+
+  /**
+   * A response with a literal, fed a byte at a time, comes out as one line with its literal.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void literalSpansReads() throws Exception {
+    final ImapResponseParser parser = new ImapResponseParser();
+    final List<ImapLine> lines = new ArrayList<ImapLine>();
+    final byte[] response = ("* 1 FETCH (UID 7 BODY[] {5}\r\nhello)\r\n" + "a1 OK done\r\n")
+        .getBytes(StandardCharsets.US_ASCII);
+
+    for (final byte next : response) {
+      parser.feed(ByteBuffer.wrap(new byte[] { next }), lines);
+    }
+
+    assertEquals(2, lines.size());
+    assertEquals("* 1 FETCH (UID 7 BODY[] {5})", lines.get(0).getText());
+    assertArrayEquals("hello".getBytes(StandardCharsets.US_ASCII),
+        lines.get(0).getLiterals().get(0));
+    assertEquals("a1", lines.get(1).getTag());
+  }
+
+  /**
+   * Literal sizes past the largest accepted, or past an int, are refused before anything is
+   * allocated.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void oversizedLiteralsAreRefused() throws Exception {
+    assertEquals(ImapResponseParser.MAX_LITERAL,
+        ImapResponseParser.literalSize("* 1 FETCH (BODY[] {" + ImapResponseParser.MAX_LITERAL
+            + "}"));
+    assertRefused("* 1 FETCH (BODY[] {" + (ImapResponseParser.MAX_LITERAL + 1L) + "}");
+    assertRefused("* 1 FETCH (BODY[] {4294967301}");
+    assertRefused("* 1 FETCH (BODY[] {99999999999999999999+}");
+  }
+
+  /**
+   * Assert feeding a segment announcing a literal is refused.
+   *
+   * @param segment the segment
+   */
+  private static void assertRefused(final String segment) {
+    try {
+      new ImapResponseParser().feed(
+          ByteBuffer.wrap((segment + "\r\n").getBytes(StandardCharsets.US_ASCII)),
+          new ArrayList<ImapLine>());
+      fail(segment);
+    } catch (IOException exception) {
+      assertEquals("IMAP literal exceeds " + ImapResponseParser.MAX_LITERAL + " bytes",
+          exception.getMessage());
+    }
+  }
+}
@@ -0,0 +1,273 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.rules.MessageContext;
+import net.ljcomputing.mail.rules.ProcessingRule;
+import net.ljcomputing.mail.rules.impl.MarkMessageAsSeen;
+import net.ljcomputing.mail.service.EmailRulesProcessor;
+import net.ljcomputing.mail.service.MailProperties;
+import net.ljcomputing.mail.service.MailProps;
+
+/**
+ * Tests of the non-blocking IMAP engine against a stand-in IMAP server.
+ *
+ * @author James G. Willmore
+ *
+ */
+public class NioMailboxTest {
+
+  /** The number of messages in the mailbox. */
+  private static final int MESSAGES = 500;
+
+  /** The messages per pipelined UID FETCH. */
+  private static final int CHUNK = 50;
+
+  /** The data directory. */
+  @Rule
+  public final TemporaryFolder dataDirectory = new TemporaryFolder();
+
+  /** The stand-in server. */
+  private StandInImapServer server;
+
+  /** The engine. */
+  private ImapEngine engine;
+
+  /**
+   * Start the stand-in server and the engine.
+   *
+   * @throws Exception the exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    server = new StandInImapServer(MESSAGES, true);
+    engine = new ImapEngine(1);
+    Recorder.SUBJECTS.clear();
+  }
+
+  /**
+   * Stop the engine and the stand-in server.
+   *
+   * @throws Exception the exception
+   */
+  @After
+  public void tearDown() throws Exception {
+    engine.close();
+    server.close();
+  }
+
+  /**
+   * The processor, on the nio engine, runs every unseen message through the rules once, fetching
+   * them in pipelined chunks, and the rules' flag writes reach the server.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void processorMarksEveryUnseenMessageSeen() throws Exception {
+    final Properties props = properties();
+    props.setProperty(EmailRulesProcessor.ENGINE, "nio");
+    props.setProperty(EmailRulesProcessor.WINDOW_SIZE, "200");
+    props.setProperty("email.rules.1", Recorder.class.getName());
+    props.setProperty("email.rules.2", MarkMessageAsSeen.class.getName());
+
+    try (final EmailRulesProcessor processor = new EmailRulesProcessor(props)) {
+      processor.processInbox();
+    }
+
+    assertEquals(MESSAGES, Recorder.SUBJECTS.size());
+    assertEquals(0, server.unseen());
+    assertEquals(MESSAGES / CHUNK, server.count("UID FETCH"));
+    assertEquals(MESSAGES, server.count("UID STORE"));
+  }
+
+  /**
+   * A mailbox fetch returns every message whole, with its UID and flags, from responses the
+   * server writes in pieces.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void fetchReturnsEveryMessage() throws Exception {
+    server.setSeen(7, true);
+    final NioMailbox mailbox = mailbox("secret", true);
+
+    try {
+      mailbox.open("INBOX");
+      assertEquals(StandInImapServer.UID_VALIDITY, mailbox.getUidValidity());
+      assertTrue(mailbox.getHighestModSeq() > 0);
+
+      final long[] unseen = mailbox.search("UNSEEN");
+      assertEquals(MESSAGES - 1, unseen.length);
+
+      final Message[] messages = mailbox.fetch(unseen, 0, unseen.length);
+      assertEquals(unseen.length, messages.length);
+
+      final Set<String> subjects = new HashSet<String>();
+
+      for (final Message message : messages) {
+        final NioMessage nio = (NioMessage) message;
+        assertEquals("message " + nio.getUid(), nio.getSubject());
+        assertEquals(StandInImapServer.message(nio.getUid()).length, nio.getSize());
+        assertTrue(nio.getContent().toString().startsWith("body of message " + nio.getUid()));
+        subjects.add(nio.getSubject());
+      }
+
+      assertEquals(unseen.length, subjects.size());
+      assertTrue(!subjects.contains("message 7"));
+    } finally {
+      mailbox.close();
+    }
+  }
+
+  /**
+   * A refused login fails the open rather than leaving it waiting.
+   *
+   * @throws Exception the exception
+   */
+  @Test(expected = MessagingException.class)
+  public void refusedLoginFails() throws Exception {
+    final NioMailbox mailbox = mailbox("bad", false);
+
+    try {
+      mailbox.open("INBOX");
+    } finally {
+      mailbox.close();
+    }
+  }
+
+  /**
+   * An idling connection hears of new messages as they arrive, and DONE ends the idle.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void idleHearsOfNewMessages() throws Exception {
+    final ImapConnection connection =
+        engine.connect("localhost", server.getPort()).get(10, TimeUnit.SECONDS);
+    final CountDownLatch exists = new CountDownLatch(1);
+
+    try {
+      connection.login("user", "secret").get(10, TimeUnit.SECONDS);
+      connection.select("INBOX").get(10, TimeUnit.SECONDS);
+      connection.idle(line -> {
+        if (line.getText().endsWith((MESSAGES + 1) + " EXISTS")) {
+          exists.countDown();
+        }
+      }).get(10, TimeUnit.SECONDS);
+
+      server.add(1);
+
+      assertTrue(exists.await(10, TimeUnit.SECONDS));
+      assertEquals("OK", connection.done().get(10, TimeUnit.SECONDS).getStatus());
+    } finally {
+      connection.close();
+    }
+  }
+
+  /**
+   * A mailbox on the stand-in server.
+   *
+   * @param password the password
+   * @param wholeMessage whether to fetch whole messages
+   * @return the mailbox
+   */
+  private NioMailbox mailbox(final String password, final boolean wholeMessage) {
+    final Properties props = properties();
+    props.setProperty(MailProps.PASSWORD.toString(), password);
+
+    return new NioMailbox(engine, Session.getInstance(new Properties()),
+        new MailProperties(props), wholeMessage);
+  }
+
+  /**
+   * The processor properties for the stand-in server.
+   *
+   * @return the properties
+   */
+  private Properties properties() {
+    final Properties props = new Properties();
+    props.setProperty(NioMailbox.PORT, String.valueOf(server.getPort()));
+    props.setProperty(NioMailbox.TIMEOUT, "10000");
+    props.setProperty(NioMailbox.FETCH_CHUNK, String.valueOf(CHUNK));
+    props.setProperty(MailProps.PROVIDER.toString(), "imap");
+    props.setProperty(MailProps.HOST.toString(), "localhost");
+    props.setProperty(MailProps.USERNAME.toString(), "user");
+    props.setProperty(MailProps.PASSWORD.toString(), "secret");
+    props.setProperty(MailProperties.DATA_DIRECTORY, dataDirectory.getRoot().getPath());
+
+    return props;
+  }
+
+  /**
+   * A rule recording the subject of every message it sees.
+   */
+  public static class Recorder implements ProcessingRule {
+
+    /** The subjects seen. */
+    static final Set<String> SUBJECTS = Collections.synchronizedSet(new HashSet<String>());
+
+    /**
+     * @see net.ljcomputing.mail.rules.ProcessingRule#ruleName()
+     */
+    @Override
+    public String ruleName() {
+      return "Recorder";
+    }
+
+    /**
+     * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(javax.mail.Message)
+     */
+    @Override
+    public void processMessageRule(final Message message) throws EmailRuleProcessorException {
+      processMessageRule(new MessageContext(message));
+    }
+
+    /**
+     * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(net.ljcomputing.mail.rules.MessageContext)
+     */
+    @Override
+    public void processMessageRule(final MessageContext context)
+        throws EmailRuleProcessorException {
+      try {
+        SUBJECTS.add(context.getMessage().getSubject());
+      } catch (MessagingException exception) {
+        throw new EmailRuleProcessorException(exception);
+      }
+    }
+  }
+}
@@ -0,0 +1,714 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.nio;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A stand-in IMAP server holding one mailbox, INBOX, whose UIDs are its message numbers and which
+ * never expunges. It speaks just enough IMAP4rev1, CONDSTORE, QRESYNC and IDLE for the JavaMail
+ * provider and the non-blocking engine to process the mailbox, writes every FETCH response in
+ * several pieces to exercise incremental parsing, and records every command it receives. The
+ * password "bad" is refused.
+ *
+ * @author James G. Willmore
+ *
+ */
+public class StandInImapServer implements Closeable {
+
+  /** The UIDVALIDITY of the mailbox. */
+  public static final long UID_VALIDITY = 42L;
+
+  /** The CHANGEDSINCE modifier of a FETCH. */
+  private static final Pattern CHANGED_SINCE = Pattern.compile("CHANGEDSINCE (\\d+)");
+
+  /** The MODSEQ criterion of a SEARCH. */
+  private static final Pattern MODSEQ = Pattern.compile("MODSEQ (\\d+)");
+
+  /** The QRESYNC parameter of a SELECT. */
+  private static final Pattern QRESYNC = Pattern.compile("QRESYNC \\((\\d+) (\\d+)");
+
+  /** The server socket. */
+  private final ServerSocket serverSocket;
+
+  /** Whether the server announces CONDSTORE and QRESYNC. */
+  private final boolean condstore;
+
+  /** The commands received, without their tags. */
+  private final List<String> commands = Collections.synchronizedList(new ArrayList<String>());
+
+  /** The clients idling. */
+  private final Set<Client> idlers = ConcurrentHashMap.newKeySet();
+
+  /** The number of messages. */
+  private int messages;
+
+  /** The seen messages, by UID. */
+  private final BitSet seen = new BitSet();
+
+  /** The mod-sequence of each message, by UID. */
+  private long[] modSeqs = new long[1024];
+
+  /** The highest mod-sequence of the mailbox. */
+  private long highestModSeq = 1L;
+
+  /**
+   * Start a server on an ephemeral local port.
+   *
+   * @param messages the number of messages in the mailbox
+   * @param condstore whether to announce CONDSTORE and QRESYNC
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public StandInImapServer(final int messages, final boolean condstore) throws IOException {
+    this.serverSocket = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+    this.condstore = condstore;
+    add(messages);
+
+    final Thread acceptor = new Thread(this::accept, "stand-in-imap");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  /**
+   * Gets the port.
+   *
+   * @return the port
+   */
+  public int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  /**
+   * Deliver new messages, telling idling clients of them.
+   *
+   * @param count the number of messages
+   */
+  public void add(final int count) {
+    final int exists;
+
+    synchronized (this) {
+      for (int i = 0; i < count; i++) {
+        messages++;
+
+        if (messages >= modSeqs.length) {
+          modSeqs = Arrays.copyOf(modSeqs, modSeqs.length * 2);
+        }
+
+        modSeqs[messages] = ++highestModSeq;
+      }
+
+      exists = messages;
+    }
+
+    for (final Client client : idlers) {
+      client.send("* " + exists + " EXISTS");
+    }
+  }
+
+  /**
+   * Set or clear the seen flag of a message, as another client would.
+   *
+   * @param uid the uid
+   * @param flag whether the message is seen
+   */
+  public synchronized void setSeen(final int uid, final boolean flag) {
+    seen.set(uid, flag);
+    modSeqs[uid] = ++highestModSeq;
+  }
+
+  /**
+   * The number of unseen messages.
+   *
+   * @return the count
+   */
+  public synchronized int unseen() {
+    return messages - seen.cardinality();
+  }
+
+  /**
+   * The commands received so far, without their tags.
+   *
+   * @return the commands
+   */
+  public List<String> commands() {
+    synchronized (commands) {
+      return new ArrayList<String>(commands);
+    }
+  }
+
+  /**
+   * The number of commands received so far that start with a prefix, ignoring case.
+   *
+   * @param prefix the prefix
+   * @return the count
+   */
+  public int count(final String prefix) {
+    int count = 0;
+
+    for (final String command : commands()) {
+      if (command.toUpperCase(Locale.ROOT).startsWith(prefix.toUpperCase(Locale.ROOT))) {
+        count++;
+      }
+    }
+
+    return count;
+  }
+
+  /**
+   * Forget the commands received so far.
+   */
+  public void clearCommands() {
+    commands.clear();
+  }
+
+  /**
+   * Stop accepting connections.
+   *
+   * @see java.io.Closeable#close()
+   */
+  @Override
+  public void close() throws IOException {
+    serverSocket.close();
+  }
+
+  /**
+   * Accept connections until the server socket is closed.
+   */
+  private void accept() {
+    while (true) {
+      try {
+        final Thread client = new Thread(new Client(serverSocket.accept()), "stand-in-client");
+        client.setDaemon(true);
+        client.start();
+      } catch (IOException exception) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * The text of a message.
+   *
+   * @param uid the uid
+   * @return the message
+   */
+  static byte[] message(final long uid) {
+    return ("Message-ID: <" + uid + "@stand-in>\r\nFrom: sender" + uid % 7
+        + "@example.org\r\nTo: user@localhost\r\nSubject: message " + uid
+        + "\r\nContent-Type: text/plain\r\n\r\nbody of message " + uid + "\r\n")
+            .getBytes(StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * The header of a message.
+   *
+   * @param uid the uid
+   * @return the header
+   */
+  static byte[] header(final long uid) {
+    final String message = new String(message(uid), StandardCharsets.US_ASCII);
+
+    return message.substring(0, message.indexOf("\r\n\r\n") + 4)
+        .getBytes(StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * A connected client.
+   */
+  private class Client implements Runnable {
+
+    /** The socket. */
+    private final Socket socket;
+
+    /** The output. */
+    private OutputStream out;
+
+    /** Whether the client enabled QRESYNC. */
+    private boolean qresync;
+
+    /**
+     * Instantiates a new client.
+     *
+     * @param socket the socket
+     */
+    Client(final Socket socket) {
+      this.socket = socket;
+    }
+
+    /**
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    public void run() {
+      try {
+        socket.setTcpNoDelay(true);
+        out = new BufferedOutputStream(socket.getOutputStream());
+        final BufferedReader in = new BufferedReader(
+            new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+        send("* OK stand-in IMAP ready");
+        String line;
+
+        while ((line = in.readLine()) != null) {
+          final String[] words = line.split(" ", 3);
+          commands.add(line.substring(words[0].length() + 1));
+
+          if (!command(words[0], words[1].toUpperCase(Locale.ROOT),
+              words.length > 2 ? words[2] : "", in)) {
+            return;
+          }
+        }
+      } catch (IOException exception) {
+        // the client went away
+      } finally {
+        idlers.remove(this);
+
+        try {
+          socket.close();
+        } catch (IOException exception) {
+          // closing anyway
+        }
+      }
+    }
+
+    /**
+     * Answer a command.
+     *
+     * @param tag the tag
+     * @param name the command name
+     * @param arguments the arguments
+     * @param in the input, read by IDLE until DONE
+     * @return false, once the client has logged out
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private boolean command(final String tag, final String name, final String arguments,
+        final BufferedReader in) throws IOException {
+      switch (name) {
+        case "CAPABILITY":
+          send("* CAPABILITY " + capabilities());
+          send(tag + " OK CAPABILITY completed");
+          break;
+        case "LOGIN":
+          send(arguments.endsWith(" bad") || arguments.endsWith(" \"bad\"")
+              ? tag + " NO [AUTHENTICATIONFAILED] invalid credentials"
+              : tag + " OK [CAPABILITY " + capabilities() + "] LOGIN completed");
+          break;
+        case "ENABLE":
+          qresync = arguments.toUpperCase(Locale.ROOT).contains("QRESYNC");
+          send("* ENABLED" + (qresync ? " QRESYNC" : ""));
+          send(tag + " OK ENABLE completed");
+          break;
+        case "SELECT":
+        case "EXAMINE":
+          select(tag, arguments.toUpperCase(Locale.ROOT));
+          break;
+        case "STATUS":
+          status(tag, arguments.toUpperCase(Locale.ROOT));
+          break;
+        case "FETCH":
+        case "SEARCH":
+        case "STORE":
+          dispatch(tag, name, false, arguments);
+          break;
+        case "UID":
+          final String[] words = arguments.split(" ", 2);
+          dispatch(tag, words[0].toUpperCase(Locale.ROOT), true,
+              words.length > 1 ? words[1] : "");
+          break;
+        case "IDLE":
+          idle(tag, in);
+          break;
+        case "NOOP":
+        case "CHECK":
+        case "CLOSE":
+        case "UNSELECT":
+          send(tag + " OK " + name + " completed");
+          break;
+        case "LOGOUT":
+          send("* BYE stand-in IMAP logging out");
+          send(tag + " OK LOGOUT completed");
+          return false;
+        default:
+          send(tag + " BAD unknown command " + name);
+      }
+
+      return true;
+    }
+
+    /**
+     * The capabilities announced.
+     *
+     * @return the capabilities
+     */
+    private String capabilities() {
+      return "IMAP4rev1 LITERAL+ UIDPLUS IDLE" + (condstore ? " CONDSTORE QRESYNC ENABLE" : "");
+    }
+
+    /**
+     * Answer a FETCH, SEARCH or STORE, by message number or UID.
+     *
+     * @param tag the tag
+     * @param name the command name
+     * @param uid whether the command is a UID command
+     * @param arguments the arguments
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void dispatch(final String tag, final String name, final boolean uid,
+        final String arguments) throws IOException {
+      switch (name) {
+        case "FETCH":
+          fetch(tag, uid, arguments);
+          break;
+        case "SEARCH":
+          search(tag, arguments.toUpperCase(Locale.ROOT));
+          break;
+        case "STORE":
+          store(tag, uid, arguments);
+          break;
+        default:
+          send(tag + " BAD unknown command " + name);
+      }
+    }
+
+    /**
+     * Answer a SELECT, reporting the messages changed since the client's last state when it asks
+     * for QRESYNC.
+     *
+     * @param tag the tag
+     * @param arguments the arguments, in upper case
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void select(final String tag, final String arguments) throws IOException {
+      synchronized (StandInImapServer.this) {
+        send("* FLAGS (\\Seen \\Flagged \\Deleted)");
+        send("* OK [PERMANENTFLAGS (\\Seen \\Flagged \\Deleted \\*)] flags");
+        send("* " + messages + " EXISTS");
+        send("* 0 RECENT");
+        send("* OK [UIDVALIDITY " + UID_VALIDITY + "] UIDs valid");
+        send("* OK [UIDNEXT " + (messages + 1) + "] next UID");
+
+        if (condstore) {
+          send("* OK [HIGHESTMODSEQ " + highestModSeq + "] highest");
+        }
+
+        final Matcher resync = QRESYNC.matcher(arguments);
+
+        if (condstore && resync.find() && Long.parseLong(resync.group(1)) == UID_VALIDITY) {
+          final long since = Long.parseLong(resync.group(2));
+
+          for (int message = 1; message <= messages; message++) {
+            if (modSeqs[message] > since) {
+              send("* " + message + " FETCH (UID " + message + " FLAGS (" + flags(message)
+                  + ") MODSEQ (" + modSeqs[message] + "))");
+            }
+          }
+        }
+      }
+
+      send(tag + " OK [READ-WRITE] SELECT completed");
+    }
+
+    /**
+     * Answer a STATUS of INBOX.
+     *
+     * @param tag the tag
+     * @param arguments the arguments, in upper case
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void status(final String tag, final String arguments) throws IOException {
+      final List<String> items = new ArrayList<String>();
+
+      synchronized (StandInImapServer.this) {
+        if (arguments.contains("MESSAGES")) {
+          items.add("MESSAGES " + messages);
+        }
+
+        if (arguments.contains("UNSEEN")) {
+          items.add("UNSEEN " + (messages - seen.cardinality()));
+        }
+
+        if (arguments.contains("UIDNEXT")) {
+          items.add("UIDNEXT " + (messages + 1));
+        }
+
+        if (arguments.contains("UIDVALIDITY")) {
+          items.add("UIDVALIDITY " + UID_VALIDITY);
+        }
+
+        if (condstore && arguments.contains("HIGHESTMODSEQ")) {
+          items.add("HIGHESTMODSEQ " + highestModSeq);
+        }
+      }
+
+      send("* STATUS INBOX (" + String.join(" ", items) + ")");
+      send(tag + " OK STATUS completed");
+    }
+
+    /**
+     * Answer a FETCH, each response written in pieces.
+     *
+     * @param tag the tag
+     * @param uid whether the command is a UID FETCH
+     * @param arguments the arguments
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void fetch(final String tag, final boolean uid, final String arguments)
+        throws IOException {
+      final String[] words = arguments.split(" ", 2);
+      final String items = words[1].toUpperCase(Locale.ROOT);
+      final Matcher changedSince = CHANGED_SINCE.matcher(items);
+      final long since = changedSince.find() ? Long.parseLong(changedSince.group(1)) : -1L;
+
+      for (final int message : set(words[0])) {
+        final long modSeq;
+        final String flags;
+
+        synchronized (StandInImapServer.this) {
+          modSeq = modSeqs[message];
+          flags = flags(message);
+        }
+
+        if (modSeq <= since) {
+          continue;
+        }
+
+        final List<String> attributes = new ArrayList<String>();
+
+        if (uid || items.contains("UID")) {
+          attributes.add("UID " + message);
+        }
+
+        if (items.contains("FLAGS") || items.contains("FAST") || items.contains("ALL")) {
+          attributes.add("FLAGS (" + flags + ")");
+        }
+
+        if (condstore && (since >= 0 || items.contains("MODSEQ"))) {
+          attributes.add("MODSEQ (" + modSeq + ")");
+        }
+
+        if (items.contains("RFC822.SIZE")) {
+          attributes.add("RFC822.SIZE " + message(message).length);
+        }
+
+        if (items.contains("INTERNALDATE")) {
+          attributes.add("INTERNALDATE \"01-Jan-2017 00:00:00 +0000\"");
+        }
+
+        final byte[] body = items.contains("BODY.PEEK[HEADER]") ? header(message)
+            : items.contains("BODY.PEEK[]") || items.contains("BODY[]") ? message(message)
+                : null;
+        final StringBuilder response = new StringBuilder("* ").append(message)
+            .append(" FETCH (").append(String.join(" ", attributes));
+
+        if (body != null) {
+          response.append(attributes.isEmpty() ? "" : " ").append("BODY[")
+              .append(items.contains("[HEADER]") ? "HEADER" : "").append("] {")
+              .append(body.length).append("}\r\n");
+        }
+
+        writeInPieces(response.toString().getBytes(StandardCharsets.US_ASCII),
+            body == null ? new byte[0] : body);
+      }
+
+      send(tag + " OK FETCH completed");
+    }
+
+    /**
+     * Write a FETCH response in several flushed pieces, splitting both the line and the literal.
+     *
+     * @param line the response up to the literal
+     * @param literal the literal, possibly empty
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private synchronized void writeInPieces(final byte[] line, final byte[] literal)
+        throws IOException {
+      out.write(line, 0, line.length / 2);
+      out.flush();
+      out.write(line, line.length / 2, line.length - line.length / 2);
+      out.write(literal, 0, literal.length / 3);
+      out.flush();
+      out.write(literal, literal.length / 3, literal.length - literal.length / 3);
+      out.write(")\r\n".getBytes(StandardCharsets.US_ASCII));
+      out.flush();
+    }
+
+    /**
+     * Answer a SEARCH for UNSEEN, MODSEQ and a message set; UIDs are message numbers.
+     *
+     * @param tag the tag
+     * @param criteria the criteria, in upper case
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void search(final String tag, final String criteria) throws IOException {
+      final Matcher modSeq = MODSEQ.matcher(criteria);
+      final long since = modSeq.find() ? Long.parseLong(modSeq.group(1)) : -1L;
+      List<Integer> within = null;
+
+      for (final String criterion : criteria.replaceAll("MODSEQ \\d+", "").split(" ")) {
+        if (!criterion.isEmpty() && Character.isDigit(criterion.charAt(0))) {
+          within = set(criterion);
+        }
+      }
+
+      final StringBuilder results = new StringBuilder("* SEARCH");
+
+      synchronized (StandInImapServer.this) {
+        for (int message = 1; message <= messages; message++) {
+          if ((within == null || within.contains(message))
+              && !(criteria.contains("UNSEEN") && seen.get(message))
+              && modSeqs[message] >= since) {
+            results.append(' ').append(message);
+          }
+        }
+      }
+
+      send(results.toString());
+      send(tag + " OK SEARCH completed");
+    }
+
+    /**
+     * Answer a STORE of the seen flag; other flags are accepted and ignored.
+     *
+     * @param tag the tag
+     * @param uid whether the command is a UID STORE
+     * @param arguments the arguments
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void store(final String tag, final boolean uid, final String arguments)
+        throws IOException {
+      final String[] words = arguments.split(" ", 2);
+      final String action = words[1].toUpperCase(Locale.ROOT);
+
+      for (final int message : set(words[0])) {
+        final String flags;
+        final long modSeq;
+
+        synchronized (StandInImapServer.this) {
+          if (action.contains("\\SEEN")) {
+            seen.set(message, action.startsWith("+"));
+            modSeqs[message] = ++highestModSeq;
+          }
+
+          flags = flags(message);
+          modSeq = modSeqs[message];
+        }
+
+        if (!action.contains(".SILENT")) {
+          send("* " + message + " FETCH (" + (uid ? "UID " + message + " " : "") + "FLAGS ("
+              + flags + ")" + (condstore ? " MODSEQ (" + modSeq + ")" : "") + ")");
+        }
+      }
+
+      send(tag + " OK STORE completed");
+    }
+
+    /**
+     * Idle until DONE, passing on deliveries.
+     *
+     * @param tag the tag
+     * @param in the input
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void idle(final String tag, final BufferedReader in) throws IOException {
+      idlers.add(this);
+      send("+ idling");
+
+      try {
+        String line;
+
+        while ((line = in.readLine()) != null && !"DONE".equalsIgnoreCase(line)) {
+          // only DONE ends an IDLE
+        }
+      } finally {
+        idlers.remove(this);
+      }
+
+      send(tag + " OK IDLE terminated");
+    }
+
+    /**
+     * The flags of a message, called holding the server lock.
+     *
+     * @param message the message
+     * @return the flags
+     */
+    private String flags(final int message) {
+      return seen.get(message) ? "\\Seen" : "";
+    }
+
+    /**
+     * The message numbers of a sequence set; UIDs are message numbers.
+     *
+     * @param spec the sequence set
+     * @return the message numbers that exist
+     */
+    private List<Integer> set(final String spec) {
+      final List<Integer> set = new ArrayList<Integer>();
+      final int last;
+
+      synchronized (StandInImapServer.this) {
+        last = messages;
+      }
+
+      for (final String range : spec.split(",")) {
+        final String[] ends = range.split(":");
+        final int first = "*".equals(ends[0]) ? last : Integer.parseInt(ends[0]);
+        final int end = ends.length == 1 ? first
+            : "*".equals(ends[1]) ? last : (int) Math.min(last, Long.parseLong(ends[1]));
+
+        for (int message = Math.min(first, end); message <= Math.max(first, end)
+            && message <= last; message++) {
+          set.add(message);
+        }
+      }
+
+      return set;
+    }
+
+    /**
+     * Send a line.
+     *
+     * @param line the line
+     */
+    private synchronized void send(final String line) {
+      try {
+        out.write((line + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+      } catch (IOException exception) {
+        // the client went away; its reader will notice
+      }
+    }
+  }
+}
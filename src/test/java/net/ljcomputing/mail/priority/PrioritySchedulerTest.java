@@ -0,0 +1,227 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.priority;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.icegreen.greenmail.junit.GreenMailRule;
+import com.icegreen.greenmail.user.GreenMailUser;
+import com.icegreen.greenmail.util.ServerSetupTest;
+
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.rules.MessageContext;
+import net.ljcomputing.mail.rules.ProcessingRule;
+import net.ljcomputing.mail.service.EmailRulesProcessor;
+import net.ljcomputing.mail.service.MailProperties;
+import net.ljcomputing.mail.service.MailProps;
+
+/**
+ * Tests of priority scheduling across processing windows, against an in-process IMAP server.
+ *
+ * @author James G. Willmore
+ *
+ */
+public class PrioritySchedulerTest {
+
+  /** The number of normal messages, delivered ahead of the priority ones. */
+  private static final int MESSAGES = 20;
+
+  /** The number of messages per window. */
+  private static final int WINDOW = 5;
+
+  /** The data directory. */
+  @Rule
+  public final TemporaryFolder dataDirectory = new TemporaryFolder();
+
+  /** The in-process IMAP server. */
+  @Rule
+  public final GreenMailRule imap = new GreenMailRule(ServerSetupTest.IMAP);
+
+  /** The mailbox user. */
+  private GreenMailUser user;
+
+  /** The session. */
+  private Session session;
+
+  /**
+   * Create the mailbox user.
+   */
+  @Before
+  public void setUp() {
+    user = imap.setUser("user@localhost", "user", "secret");
+    session = Session.getInstance(new Properties());
+    Recorder.SUBJECTS.clear();
+  }
+
+  /**
+   * Priority messages delivered after a backlog of several windows are processed first, not in
+   * the last window.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void priorityMessagesLeadTheFirstWindow() throws Exception {
+    for (int number = 0; number < MESSAGES; number++) {
+      deliver("someone@localhost", "normal " + number, null);
+    }
+
+    deliver("boss@example.com", "allowlisted", null);
+    deliver("someone@localhost", "important", "high");
+    deliver("someone@localhost", "unimportant", "low");
+
+    final Properties props = properties();
+    props.setProperty(PriorityScheduler.ENABLED, "true");
+    props.setProperty(PriorityScorer.SENDERS, "@example.com");
+
+    try (final EmailRulesProcessor processor = new EmailRulesProcessor(props)) {
+      processor.processInbox();
+    }
+
+    assertEquals(MESSAGES + 3, Recorder.SUBJECTS.size());
+    assertEquals(new HashSet<String>(Arrays.asList("allowlisted", "important")),
+        new HashSet<String>(Recorder.SUBJECTS.subList(0, 2)));
+    assertEquals("normal 0", Recorder.SUBJECTS.get(2));
+  }
+
+  /**
+   * Without priority scheduling the messages are processed in mailbox order.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void mailboxOrderWithoutScheduling() throws Exception {
+    for (int number = 0; number < MESSAGES; number++) {
+      deliver("someone@localhost", "normal " + number, null);
+    }
+
+    deliver("boss@example.com", "allowlisted", null);
+
+    try (final EmailRulesProcessor processor = new EmailRulesProcessor(properties())) {
+      processor.processInbox();
+    }
+
+    assertEquals("allowlisted", Recorder.SUBJECTS.get(MESSAGES));
+  }
+
+  /**
+   * Priority UIDs move to the front, each part keeping its order.
+   */
+  @Test
+  public void priorityFirstKeepsOrder() {
+    assertArrayEquals(new long[] { 4, 9, 1, 2, 3, 5 },
+        PriorityScheduler.priorityFirst(new long[] { 1, 2, 3, 4, 5, 9 }, new long[] { 9, 4, 7 }));
+    assertArrayEquals(new long[] { 1, 2 },
+        PriorityScheduler.priorityFirst(new long[] { 1, 2 }, new long[0]));
+  }
+
+  /**
+   * Deliver a message.
+   *
+   * @param from the sender
+   * @param subject the subject
+   * @param importance the Importance header, or null
+   * @throws MessagingException the messaging exception
+   */
+  private void deliver(final String from, final String subject, final String importance)
+      throws MessagingException {
+    final MimeMessage message = new MimeMessage(session);
+    message.setFrom(from);
+    message.setSubject(subject);
+    message.setText(subject);
+
+    if (importance != null) {
+      message.setHeader("Importance", importance);
+    }
+
+    user.deliver(message);
+  }
+
+  /**
+   * The processor properties for the in-process server.
+   *
+   * @return the properties
+   */
+  private Properties properties() {
+    final Properties props = new Properties();
+    props.setProperty("mail.imap.port", String.valueOf(ServerSetupTest.IMAP.getPort()));
+    props.setProperty(MailProps.PROVIDER.toString(), "imap");
+    props.setProperty(MailProps.HOST.toString(), "localhost");
+    props.setProperty(MailProps.USERNAME.toString(), "user");
+    props.setProperty(MailProps.PASSWORD.toString(), "secret");
+    props.setProperty(MailProperties.DATA_DIRECTORY, dataDirectory.getRoot().getPath());
+    props.setProperty(EmailRulesProcessor.WINDOW_SIZE, String.valueOf(WINDOW));
+    props.setProperty("email.rules.1", Recorder.class.getName());
+
+    return props;
+  }
+
+  /**
+   * A rule recording the subject of every message, in the order processed.
+   */
+  public static class Recorder implements ProcessingRule {
+
+    /** The subjects, in the order processed. */
+    static final List<String> SUBJECTS = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * @see net.ljcomputing.mail.rules.ProcessingRule#ruleName()
+     */
+    @Override
+    public String ruleName() {
+      return "Recorder";
+    }
+
+    /**
+     * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(javax.mail.Message)
+     */
+    @Override
+    public void processMessageRule(final Message message) throws EmailRuleProcessorException {
+      processMessageRule(new MessageContext(message));
+    }
+
+    /**
+     * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(net.ljcomputing.mail.rules.MessageContext)
+     */
+    @Override
+    public void processMessageRule(final MessageContext context)
+        throws EmailRuleProcessorException {
+      try {
+        SUBJECTS.add(context.getMessage().getSubject());
+      } catch (MessagingException exception) {
+        throw new EmailRuleProcessorException(exception);
+      }
+    }
+  }
+}
@@ -0,0 +1,173 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.EnumSet;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+
+import javax.mail.Flags;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.ljcomputing.mail.domain.MessagePart;
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.limit.AdaptiveLimiter;
+
+/**
+ * Tests that the server reads and writes of a message context run under its IMAP limit, and
+ * only once the data they read has been declared.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class MessageContextTest {
+
+  /** A limiter of one slot, rejecting callers after 200 ms. */
+  private final AdaptiveLimiter limiter = new AdaptiveLimiter("localhost", 1, 1, 1, 2.0, 200L);
+
+  /** Released to free the slot held by the holder. */
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  /** The thread holding the only slot. */
+  private Thread holder;
+
+  /** The message. */
+  private MimeMessage message;
+
+  /**
+   * Take the only slot of the limiter.
+   *
+   * @throws Exception the exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    message = new MimeMessage(Session.getInstance(new Properties()));
+    message.setSubject("limited");
+    message.setText("the body");
+    message.saveChanges();
+
+    final CountDownLatch held = new CountDownLatch(1);
+    holder = new Thread(() -> {
+      try {
+        limiter.call(() -> {
+          held.countDown();
+
+          try {
+            release.await();
+          } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+          }
+
+          return null;
+        });
+      } catch (Exception exception) {
+        throw new IllegalStateException(exception);
+      }
+    });
+    holder.start();
+    held.await();
+  }
+
+  /**
+   * Free the slot.
+   *
+   * @throws Exception the exception
+   */
+  @After
+  public void tearDown() throws Exception {
+    release.countDown();
+    holder.join();
+  }
+
+  /**
+   * A flag write waits for the limit.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void flagWritesRunUnderTheLimit() throws Exception {
+    final MessageContext context = new MessageContext(message,
+        EnumSet.allOf(DataRequirement.class), limiter);
+
+    try {
+      context.setFlags(new Flags(Flags.Flag.SEEN), true);
+      fail("the flag write did not wait for the limit");
+    } catch (EmailRuleProcessorException exception) {
+      assertEquals(1, limiter.getRejected());
+    }
+
+    release.countDown();
+    holder.join();
+    context.setFlags(new Flags(Flags.Flag.SEEN), true);
+    assertTrue(message.isSet(Flags.Flag.SEEN));
+  }
+
+  /**
+   * Part reads wait for the limit.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void partReadsRunUnderTheLimit() throws Exception {
+    final MessageContext context = new MessageContext(message,
+        EnumSet.allOf(DataRequirement.class), limiter);
+
+    try {
+      context.getText();
+      fail("the part read did not wait for the limit");
+    } catch (EmailRuleProcessorException exception) {
+      assertEquals(1, limiter.getRejected());
+    }
+
+    release.countDown();
+    holder.join();
+    assertEquals("the body", context.getText().trim());
+  }
+
+  /**
+   * A part is only streamed when the active rules declared the attachments, whichever rule
+   * asks for it.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void partStreamsNeedDeclaredAttachments() throws Exception {
+    final MessagePart part = new MessagePart(message, "1");
+    final MessageContext undeclared = new MessageContext(message,
+        EnumSet.of(DataRequirement.STRUCTURE, DataRequirement.TEXT));
+
+    try {
+      undeclared.read(part, content -> content.read());
+      fail("an undeclared part was streamed");
+    } catch (EmailRuleProcessorException exception) {
+      assertTrue(exception.getMessage(), exception.getMessage().contains("ATTACHMENTS"));
+    }
+
+    final MessageContext declared = new MessageContext(message,
+        EnumSet.of(DataRequirement.ATTACHMENTS));
+    assertEquals((int) 't', (int) declared.read(part, content -> content.read()));
+  }
+}
@@ -0,0 +1,60 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.rules;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+/**
+ * Tests of the rule key order.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class RuleKeyComparatorTest {
+
+  /**
+   * Keys sort by the number ending them, not by their text.
+   */
+  @Test
+  public void keysSortNumerically() {
+    final Set<String> keys = new TreeSet<String>(new RuleKeyComparator());
+    keys.addAll(Arrays.asList("email.rules.10", "email.rules.2", "email.rules.1",
+        "email.rules.custom", "email.rules.11", "email.rules.3"));
+
+    assertEquals(Arrays.asList("email.rules.1", "email.rules.2", "email.rules.3",
+        "email.rules.10", "email.rules.11", "email.rules.custom"), new ArrayList<String>(keys));
+  }
+
+  /**
+   * Keys with the same number are still told apart.
+   */
+  @Test
+  public void keysWithTheSameNumberAreKept() {
+    final Set<String> keys = new TreeSet<String>(new RuleKeyComparator());
+    keys.addAll(Arrays.asList("email.shadow.rules.2", "email.shadow.rules.02"));
+
+    assertEquals(Arrays.asList("email.shadow.rules.02", "email.shadow.rules.2"),
+        new ArrayList<String>(keys));
+  }
+}
@@ -0,0 +1,202 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.icegreen.greenmail.junit.GreenMailRule;
+import com.icegreen.greenmail.user.GreenMailUser;
+import com.icegreen.greenmail.util.ServerSetupTest;
+
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.rules.MessageContext;
+import net.ljcomputing.mail.rules.ProcessingRule;
+
+/**
+ * Tests of the rules processor against an in-process IMAP server.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class EmailRulesProcessorTest {
+
+  /** The number of messages in the soak test. */
+  private static final int MESSAGES = 3000;
+
+  /** The number of messages per window in the soak test. */
+  private static final int WINDOW = 100;
+
+  /** The data directory. */
+  @Rule
+  public final TemporaryFolder dataDirectory = new TemporaryFolder();
+
+  /** The in-process IMAP server. */
+  @Rule
+  public final GreenMailRule imap = new GreenMailRule(ServerSetupTest.IMAP);
+
+  /** The mailbox user. */
+  private GreenMailUser user;
+
+  /** The session. */
+  private Session session;
+
+  /**
+   * Create the mailbox user.
+   */
+  @Before
+  public void setUp() {
+    user = imap.setUser("user@localhost", "user", "secret");
+    session = Session.getInstance(new Properties());
+    HeapProbe.reset();
+  }
+
+  /**
+   * A backlog larger than many windows is processed without the heap growing: the messages of
+   * every window but the current one are released, and the heap in use stays flat.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void windowsKeepTheHeapFlat() throws Exception {
+    final char[] body = new char[1024];
+    Arrays.fill(body, 'x');
+
+    for (int number = 0; number < MESSAGES; number++) {
+      final MimeMessage message = new MimeMessage(session);
+      message.setFrom("someone@localhost");
+      message.setSubject("message " + number);
+      message.setText(number + " " + new String(body));
+      user.deliver(message);
+    }
+
+    final Properties props = properties();
+    props.setProperty(EmailRulesProcessor.WINDOW_SIZE, String.valueOf(WINDOW));
+    props.setProperty("email.rules.1", HeapProbe.class.getName());
+
+    try (final EmailRulesProcessor processor = new EmailRulesProcessor(props)) {
+      processor.processInbox();
+    }
+
+    assertEquals(MESSAGES, HeapProbe.MESSAGES.size());
+    assertEquals(0, HeapProbe.retained);
+
+    final long first = HeapProbe.HEAP.get(0);
+
+    for (final long used : HeapProbe.HEAP) {
+      assertTrue("heap grew from " + first + " to " + used, used < first + 32L * 1024 * 1024);
+    }
+  }
+
+  /**
+   * The processor properties for the in-process server.
+   *
+   * @return the properties
+   */
+  private Properties properties() {
+    final Properties props = new Properties();
+    props.setProperty("mail.imap.port", String.valueOf(ServerSetupTest.IMAP.getPort()));
+    props.setProperty(MailProps.PROVIDER.toString(), "imap");
+    props.setProperty(MailProps.HOST.toString(), "localhost");
+    props.setProperty(MailProps.USERNAME.toString(), "user");
+    props.setProperty(MailProps.PASSWORD.toString(), "secret");
+    props.setProperty(MailProperties.DATA_DIRECTORY, dataDirectory.getRoot().getPath());
+
+    return props;
+  }
+
+  /**
+   * A rule keeping track of every message and, at the start of every window, checking that
+   * the messages of the windows before the last have been released and sampling the heap.
+   */
+  public static class HeapProbe implements ProcessingRule {
+
+    /** The messages processed. */
+    static final List<WeakReference<Message>> MESSAGES = new ArrayList<WeakReference<Message>>();
+
+    /** The heap in use at the start of every window after the second. */
+    static final List<Long> HEAP = new ArrayList<Long>();
+
+    /** The most messages of earlier windows found still reachable. */
+    static int retained;
+
+    /**
+     * Forget the earlier run.
+     */
+    static void reset() {
+      MESSAGES.clear();
+      HEAP.clear();
+      retained = 0;
+    }
+
+    /**
+     * @see net.ljcomputing.mail.rules.ProcessingRule#ruleName()
+     */
+    @Override
+    public String ruleName() {
+      return "Heap Probe";
+    }
+
+    /**
+     * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(javax.mail.Message)
+     */
+    @Override
+    public void processMessageRule(final Message message) throws EmailRuleProcessorException {
+      processMessageRule(new MessageContext(message));
+    }
+
+    /**
+     * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(net.ljcomputing.mail.rules.MessageContext)
+     */
+    @Override
+    public void processMessageRule(final MessageContext context)
+        throws EmailRuleProcessorException {
+      final int processed = MESSAGES.size();
+
+      if (processed >= 2 * WINDOW && processed % WINDOW == 0) {
+        System.gc();
+        int reachable = 0;
+
+        for (int i = 0; i < processed - WINDOW; i++) {
+          if (MESSAGES.get(i).get() != null) {
+            reachable++;
+          }
+        }
+
+        retained = Math.max(retained, reachable);
+        HEAP.add(Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
+      }
+
+      MESSAGES.add(new WeakReference<Message>(context.getMessage()));
+    }
+  }
+}
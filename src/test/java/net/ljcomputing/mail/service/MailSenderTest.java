@@ -0,0 +1,214 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.Message;
+import javax.mail.Message.RecipientType;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetupTest;
+
+import net.ljcomputing.mail.rules.RuleContext;
+import net.ljcomputing.mail.rules.impl.AutoReplyMessage;
+import net.ljcomputing.mail.rules.impl.ForwardMessage;
+
+/**
+ * Tests of the pooled SMTP sender and the sending rules against an in-process SMTP server.
+ * 
+ * @author James G. Willmore
+ *
+ */
+public class MailSenderTest {
+
+  /** The in-process SMTP server. */
+  private GreenMail smtp;
+
+  /** The properties. */
+  private MailProperties properties;
+
+  /** The mail sender. */
+  private MailSender sender;
+
+  /**
+   * Start the SMTP server and the sender.
+   */
+  @Before
+  public void setUp() {
+    smtp = new GreenMail(ServerSetupTest.SMTP);
+    smtp.setUser("sender@localhost", "sender", "secret");
+    smtp.start();
+
+    final Properties props = new Properties();
+    props.setProperty(MailProps.SMTP_HOST.name(), "localhost");
+    props.setProperty(MailProps.SMTP_PORT.name(), String.valueOf(ServerSetupTest.SMTP.getPort()));
+    props.setProperty(MailProps.SMTP_USERNAME.name(), "sender");
+    props.setProperty(MailProps.SMTP_PASSWORD.name(), "secret");
+    props.setProperty(TransportPool.POOL_SIZE, "2");
+    props.setProperty(MailSender.SENDERS, "2");
+    props.setProperty(MailSender.BATCH_SIZE, "10");
+    props.setProperty(AutoReplyMessage.REPLY_FROM, "noreply@localhost");
+    props.setProperty(ForwardMessage.FORWARD_FROM, "noreply@localhost");
+    props.setProperty(ForwardMessage.FORWARD_TO, "escalations@localhost");
+    properties = new MailProperties(props);
+    sender = new MailSender(new TransportPool(properties), properties);
+  }
+
+  /**
+   * Close the sender and stop the SMTP server.
+   */
+  @After
+  public void tearDown() {
+    sender.close();
+    smtp.stop();
+  }
+
+  /**
+   * Every submitted message is delivered once the sender is closed.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void submittedMessagesAreDelivered() throws Exception {
+    for (int m = 0; m < 100; m++) {
+      final MimeMessage message = sender.createMessage();
+      message.setFrom(new InternetAddress("sender@localhost"));
+      message.setRecipient(RecipientType.TO, new InternetAddress("user" + (m % 5) + "@localhost"));
+      message.setSubject("message " + m);
+      message.setText("body " + m);
+      sender.submit(message);
+    }
+
+    sender.close();
+
+    assertTrue(smtp.waitForIncomingEmail(5000, 100));
+    assertEquals(100, smtp.getReceivedMessages().length);
+    assertEquals(100, sender.getSent());
+    assertEquals(0, sender.getFailed());
+  }
+
+  /**
+   * A batch sent synchronously is delivered over one connection.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void batchIsSentSynchronously() throws Exception {
+    final List<MimeMessage> batch = new ArrayList<MimeMessage>();
+
+    for (int m = 0; m < 25; m++) {
+      batch.add(message("user" + m + "@localhost", "batch " + m, null));
+    }
+
+    assertEquals(25, sender.send(batch));
+    assertTrue(smtp.waitForIncomingEmail(5000, 25));
+    assertEquals(25, smtp.getReceivedMessages().length);
+  }
+
+  /**
+   * The auto reply rule answers people but not automated messages.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void autoReplySkipsAutomatedMessages() throws Exception {
+    final AutoReplyMessage rule = new AutoReplyMessage();
+    rule.initialize(context());
+
+    rule.processMessageRule(message("person@localhost", "question", null));
+    rule.processMessageRule(message("robot@localhost", "notice", "auto-generated"));
+    sender.close();
+
+    assertTrue(smtp.waitForIncomingEmail(5000, 1));
+    final MimeMessage[] received = smtp.getReceivedMessages();
+    assertEquals(1, received.length);
+    assertEquals("person@localhost",
+        ((InternetAddress) received[0].getRecipients(RecipientType.TO)[0]).getAddress());
+    assertEquals("auto-replied", received[0].getHeader("Auto-Submitted", null));
+  }
+
+  /**
+   * The forward rule sends the message on to the forward address.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void forwardSendsToForwardAddress() throws Exception {
+    final ForwardMessage rule = new ForwardMessage();
+    rule.initialize(context());
+
+    rule.processMessageRule(message("person@localhost", "escalate me", null));
+    sender.close();
+
+    assertTrue(smtp.waitForIncomingEmail(5000, 1));
+    final MimeMessage[] received = smtp.getReceivedMessages();
+    assertEquals(1, received.length);
+    assertEquals("escalations@localhost",
+        ((InternetAddress) received[0].getRecipients(RecipientType.TO)[0]).getAddress());
+  }
+
+  /**
+   * A rule context holding the sender.
+   *
+   * @return the rule context
+   */
+  private RuleContext context() {
+    final RuleContext context = new RuleContext(properties);
+    context.register(MailSender.class, sender);
+
+    return context;
+  }
+
+  /**
+   * An incoming message to reply to or forward.
+   *
+   * @param from the sender
+   * @param subject the subject
+   * @param autoSubmitted the Auto-Submitted header, or null
+   * @return the message
+   * @throws MessagingException the messaging exception
+   */
+  private MimeMessage message(final String from, final String subject,
+      final String autoSubmitted) throws MessagingException {
+    final MimeMessage message = sender.createMessage();
+    message.setFrom(new InternetAddress(from));
+    message.setRecipient(Message.RecipientType.TO, new InternetAddress("sender@localhost"));
+    message.setSubject(subject);
+    message.setText("text");
+
+    if (autoSubmitted != null) {
+      message.setHeader("Auto-Submitted", autoSubmitted);
+    }
+
+    message.saveChanges();
+
+    return message;
+  }
+}
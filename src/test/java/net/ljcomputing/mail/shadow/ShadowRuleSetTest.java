@@ -0,0 +1,365 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.shadow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.Store;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.icegreen.greenmail.junit.GreenMailRule;
+import com.icegreen.greenmail.user.GreenMailUser;
+import com.icegreen.greenmail.util.ServerSetupTest;
+
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.rules.DataRequirement;
+import net.ljcomputing.mail.rules.MessageContext;
+import net.ljcomputing.mail.rules.ProcessingRule;
+import net.ljcomputing.mail.rules.impl.DigestReport;
+import net.ljcomputing.mail.rules.impl.MarkMessageAsSeen;
+import net.ljcomputing.mail.rules.impl.PrintMessageUsingTemplate;
+import net.ljcomputing.mail.service.EmailRulesProcessor;
+import net.ljcomputing.mail.service.MailProperties;
+import net.ljcomputing.mail.service.MailProps;
+
+/**
+ * Tests of the shadow rule set against in-process IMAP and POP3 servers.
+ *
+ * @author James G. Willmore
+ *
+ */
+public class ShadowRuleSetTest {
+
+  /** The number of messages in the mailbox. */
+  private static final int MESSAGES = 4;
+
+  /** The data directory. */
+  @Rule
+  public final TemporaryFolder dataDirectory = new TemporaryFolder();
+
+  /** The in-process mail servers. */
+  @Rule
+  public final GreenMailRule mail = new GreenMailRule(ServerSetupTest.SMTP_POP3_IMAP);
+
+  /**
+   * Deliver the messages.
+   *
+   * @throws Exception the exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    final GreenMailUser user = mail.setUser("user@localhost", "user", "secret");
+    final Session session = Session.getInstance(new Properties());
+
+    for (int number = 0; number < MESSAGES; number++) {
+      final MimeMessage message = new MimeMessage(session);
+      message.setFrom("someone@localhost");
+      message.setSubject("shadow " + number);
+      message.setText("body of shadow " + number);
+      user.deliver(message);
+    }
+
+    ActiveRecorder.FOLDERS.clear();
+    ShadowReader.FOLDERS.clear();
+    ShadowReader.MODES.clear();
+    ShadowReader.TEXTS.clear();
+    ShadowReader.FAILURES.clear();
+    ShadowReader.release = null;
+  }
+
+  /**
+   * The shadow rules read copies of the messages on the shadow thread's own read-only
+   * connection, never the active rules' folder, and leave the messages unseen.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void shadowReadsOnItsOwnReadOnlyConnection() throws Exception {
+    final Properties props = properties("imap");
+    props.setProperty(ShadowRuleSet.RULE_PREFIX + "1", ShadowReader.class.getName());
+    props.setProperty(ShadowRuleSet.RULE_PREFIX + "2", MarkMessageAsSeen.class.getName());
+    process(props);
+
+    assertEquals(MESSAGES, ShadowReader.TEXTS.size());
+    assertTrue(ShadowReader.FAILURES.toString(), ShadowReader.FAILURES.isEmpty());
+
+    for (int number = 0; number < MESSAGES; number++) {
+      assertTrue(ShadowReader.TEXTS.contains("body of shadow " + number));
+    }
+
+    assertEquals(Collections.nCopies(MESSAGES, Folder.READ_ONLY), ShadowReader.MODES);
+
+    for (final Folder folder : ShadowReader.FOLDERS) {
+      for (final Folder active : ActiveRecorder.FOLDERS) {
+        assertNotSame(active, folder);
+      }
+    }
+
+    assertEquals(MESSAGES, unseen());
+  }
+
+  /**
+   * The processor closes the active rules' folder without waiting on a shadow rule reading
+   * through it: messages of folders with no UIDs are read shared, and those still queued when
+   * the folder closes are skipped.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void folderCloseDoesNotWaitForSharedRead() throws Exception {
+    final Properties props = properties("pop3");
+    props.setProperty(ShadowRuleSet.RULE_PREFIX + "1", ShadowReader.class.getName());
+    props.setProperty(ShadowRuleSet.ENABLED, "true");
+    props.setProperty("email.rules.1", ActiveRecorder.class.getName());
+    ShadowReader.release = new CountDownLatch(1);
+
+    try (final EmailRulesProcessor processor = new EmailRulesProcessor(props)) {
+      processor.processInbox();
+      ShadowReader.release.countDown();
+    }
+
+    assertEquals(MESSAGES, ActiveRecorder.FOLDERS.size());
+    assertFalse(ShadowReader.FAILURES.toString(),
+        ShadowReader.FAILURES.contains(ShadowReader.HELD));
+    assertTrue(ShadowReader.FOLDERS.size() <= 1);
+  }
+
+  /**
+   * Shadow rules that print to standard out write under the shadow directory instead.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void shadowOutputIsRedirected() throws Exception {
+    final Properties props = properties("imap");
+    props.setProperty(ShadowRuleSet.RULE_PREFIX + "1", DigestReport.class.getName());
+    props.setProperty(ShadowRuleSet.RULE_PREFIX + "2", PrintMessageUsingTemplate.class.getName());
+    final ByteArrayOutputStream captured = new ByteArrayOutputStream();
+    final PrintStream out = System.out;
+    System.setOut(new PrintStream(captured, true, "UTF-8"));
+
+    try {
+      process(props);
+    } finally {
+      System.setOut(out);
+    }
+
+    final String stdout = new String(captured.toByteArray(), StandardCharsets.UTF_8);
+    assertFalse(stdout, stdout.contains("Digest of"));
+    assertFalse(stdout, stdout.contains("Subject: shadow"));
+
+    final File shadow = new File(dataDirectory.getRoot(), "shadow");
+    final File[] digests = new File(shadow, "digest").listFiles();
+    assertEquals(1, digests.length);
+    assertTrue(read(digests[0]).startsWith("Digest of " + MESSAGES + " messages"));
+    assertTrue(read(new File(shadow, "printed-messages.txt")).contains("Subject: shadow 0"));
+  }
+
+  /**
+   * Run the processor once, with the active recorder as the only active rule.
+   *
+   * @param props the properties
+   * @throws Exception the exception
+   */
+  private void process(final Properties props) throws Exception {
+    props.setProperty(ShadowRuleSet.ENABLED, "true");
+    props.setProperty("email.rules.1", ActiveRecorder.class.getName());
+
+    try (final EmailRulesProcessor processor = new EmailRulesProcessor(props)) {
+      processor.processInbox();
+    }
+  }
+
+  /**
+   * The count of unseen messages on the IMAP server.
+   *
+   * @return the count
+   * @throws Exception the exception
+   */
+  private int unseen() throws Exception {
+    final Properties props = new Properties();
+    props.setProperty("mail.imap.port", String.valueOf(ServerSetupTest.IMAP.getPort()));
+    final Store store = Session.getInstance(props).getStore("imap");
+    store.connect("localhost", "user", "secret");
+
+    try {
+      return store.getFolder("INBOX").getUnreadMessageCount();
+    } finally {
+      store.close();
+    }
+  }
+
+  /**
+   * The processor properties for one of the in-process servers.
+   *
+   * @param provider the provider, imap or pop3
+   * @return the properties
+   */
+  private Properties properties(final String provider) {
+    final Properties props = new Properties();
+    props.setProperty("mail.imap.port", String.valueOf(ServerSetupTest.IMAP.getPort()));
+    props.setProperty("mail.pop3.port", String.valueOf(ServerSetupTest.POP3.getPort()));
+    props.setProperty(MailProps.PROVIDER.toString(), provider);
+    props.setProperty(MailProps.HOST.toString(), "localhost");
+    props.setProperty(MailProps.USERNAME.toString(), "user");
+    props.setProperty(MailProps.PASSWORD.toString(), "secret");
+    props.setProperty(MailProperties.DATA_DIRECTORY, dataDirectory.getRoot().getPath());
+
+    return props;
+  }
+
+  /**
+   * Read a file.
+   *
+   * @param file the file
+   * @return the content
+   * @throws Exception the exception
+   */
+  private static String read(final File file) throws Exception {
+    return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * An active rule recording the folder of every message it sees.
+   */
+  public static class ActiveRecorder implements ProcessingRule {
+
+    /** The folders seen. */
+    static final List<Folder> FOLDERS = Collections.synchronizedList(new ArrayList<Folder>());
+
+    /**
+     * @see net.ljcomputing.mail.rules.ProcessingRule#ruleName()
+     */
+    @Override
+    public String ruleName() {
+      return "Active Recorder";
+    }
+
+    /**
+     * @see net.ljcomputing.mail.rules.ProcessingRule#dataRequirements()
+     */
+    @Override
+    public Set<DataRequirement> dataRequirements() {
+      return EnumSet.of(DataRequirement.UID_FLAGS);
+    }
+
+    /**
+     * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(javax.mail.Message)
+     */
+    @Override
+    public void processMessageRule(final Message message) throws EmailRuleProcessorException {
+      FOLDERS.add(message.getFolder());
+    }
+  }
+
+  /**
+   * A shadow rule reading the text of every message, once an optional latch is released, and
+   * recording its folder, the folder's mode, its text or the failure to read it.
+   */
+  public static class ShadowReader implements ProcessingRule {
+
+    /** The folders seen. */
+    static final List<Folder> FOLDERS = Collections.synchronizedList(new ArrayList<Folder>());
+
+    /** The modes of the folders seen, as they were seen. */
+    static final List<Integer> MODES = Collections.synchronizedList(new ArrayList<Integer>());
+
+    /** The texts read. */
+    static final List<String> TEXTS = Collections.synchronizedList(new ArrayList<String>());
+
+    /** The failures to read. */
+    static final List<String> FAILURES = Collections.synchronizedList(new ArrayList<String>());
+
+    /** The failure recorded when the latch is never released. */
+    static final String HELD = "held";
+
+    /** The latch to wait on before reading each message, or null. */
+    static volatile CountDownLatch release;
+
+    /**
+     * @see net.ljcomputing.mail.rules.ProcessingRule#ruleName()
+     */
+    @Override
+    public String ruleName() {
+      return "Shadow Reader";
+    }
+
+    /**
+     * @see net.ljcomputing.mail.rules.ProcessingRule#dataRequirements()
+     */
+    @Override
+    public Set<DataRequirement> dataRequirements() {
+      return EnumSet.of(DataRequirement.TEXT);
+    }
+
+    /**
+     * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(javax.mail.Message)
+     */
+    @Override
+    public void processMessageRule(final Message message) throws EmailRuleProcessorException {
+      processMessageRule(new MessageContext(message));
+    }
+
+    /**
+     * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(net.ljcomputing.mail.rules.MessageContext)
+     */
+    @Override
+    public void processMessageRule(final MessageContext context)
+        throws EmailRuleProcessorException {
+      final Folder folder = context.getMessage().getFolder();
+      FOLDERS.add(folder);
+      MODES.add(folder.getMode());
+
+      try {
+        final CountDownLatch latch = release;
+
+        if (latch != null && !latch.await(10, TimeUnit.SECONDS)) {
+          FAILURES.add(HELD);
+        }
+
+        TEXTS.add(context.getText().trim());
+      } catch (EmailRuleProcessorException | RuntimeException | InterruptedException exception) {
+        FAILURES.add(exception.toString());
+      }
+    }
+  }
+}
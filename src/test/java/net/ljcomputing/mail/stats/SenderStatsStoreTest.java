@@ -0,0 +1,201 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.stats;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.internet.InternetAddress;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.ljcomputing.mail.domain.AddressPool;
+import net.ljcomputing.mail.domain.EmailAddress;
+import net.ljcomputing.mail.service.MailProperties;
+
+/**
+ * Tests of the sender statistics store.
+ *
+ * @author James G. Willmore
+ *
+ */
+public class SenderStatsStoreTest {
+
+  /** The number of recording threads. */
+  private static final int THREADS = 8;
+
+  /** The number of messages each thread records. */
+  private static final int RECORDS = 10000;
+
+  /** The data directory. */
+  @Rule
+  public final TemporaryFolder dataDirectory = new TemporaryFolder();
+
+  /**
+   * Threads recording messages from the same sender at once lose none of them.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void concurrentRecordsAreAllCounted() throws Exception {
+    final SenderStatsStore store = new SenderStatsStore(properties(100));
+
+    try {
+      final List<EmailAddress> from = from("busy@example.org");
+      final List<Thread> threads = new ArrayList<Thread>();
+
+      for (int t = 0; t < THREADS; t++) {
+        threads.add(new Thread(() -> {
+          for (int record = 0; record < RECORDS; record++) {
+            store.record(from, 100);
+          }
+        }));
+      }
+
+      for (final Thread thread : threads) {
+        thread.start();
+      }
+
+      for (final Thread thread : threads) {
+        thread.join();
+      }
+
+      final SenderStats sender = store.address("busy@example.org");
+      assertEquals(THREADS * RECORDS, sender.getMessages());
+      assertEquals(THREADS * RECORDS * 100L, sender.getBytes());
+      assertEquals(THREADS * RECORDS, sender.getLastHour());
+      assertEquals(THREADS * RECORDS, sender.getLastDay());
+      assertFalse(sender.isFirstTime());
+      assertEquals(THREADS * RECORDS, store.domain("EXAMPLE.org").getMessages());
+    } finally {
+      store.close();
+    }
+  }
+
+  /**
+   * The statistics snapshotted on close are loaded by the next store.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void snapshotSurvivesRestart() throws Exception {
+    final SenderStatsStore first = new SenderStatsStore(properties(100));
+    first.record(from("once@example.org"), 10);
+    first.record(from("twice@example.net"), 20);
+    first.record(from("twice@example.net"), 30);
+    final long firstSeen = first.address("twice@example.net").getFirstSeen();
+    first.close();
+
+    final SenderStatsStore second = new SenderStatsStore(properties(100));
+
+    try {
+      assertEquals(2, second.size());
+      assertTrue(second.address("once@example.org").isFirstTime());
+
+      final SenderStats twice = second.address("twice@example.net");
+      assertEquals(2, twice.getMessages());
+      assertEquals(50, twice.getBytes());
+      assertEquals(2, twice.getLastHour());
+      assertEquals(firstSeen, twice.getFirstSeen());
+      assertEquals(2, second.domain("example.net").getMessages());
+      assertNull(second.address("never@example.org"));
+    } finally {
+      second.close();
+    }
+  }
+
+  /**
+   * Beyond the capacity, a new sender drops the least recently seen senders.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void recordDropsLeastRecentlySeen() throws Exception {
+    final SenderStatsStore store = new SenderStatsStore(properties(2));
+
+    try {
+      for (final String sender : new String[] { "a@example.org", "b@example.org",
+          "c@example.org" }) {
+        store.record(from(sender), 1);
+        Thread.sleep(5);
+      }
+
+      assertEquals(2, store.size());
+      assertNull(store.address("a@example.org"));
+      assertNotNull(store.address("b@example.org"));
+      assertNotNull(store.address("c@example.org"));
+    } finally {
+      store.close();
+    }
+  }
+
+  /**
+   * A stream of new senders never holds more than the capacity, without a snapshot.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void capacityHoldsBetweenSnapshots() throws Exception {
+    final SenderStatsStore store = new SenderStatsStore(properties(10));
+
+    try {
+      for (int s = 0; s < 200; s++) {
+        store.record(from("sender" + s + "@example.org"), 1);
+        assertTrue(store.size() <= 10);
+      }
+
+      assertNotNull(store.address("sender199@example.org"));
+    } finally {
+      store.close();
+    }
+  }
+
+  /**
+   * The store properties, snapshotting into the data directory.
+   *
+   * @param capacity the capacity
+   * @return the properties
+   */
+  private MailProperties properties(final int capacity) {
+    final Properties props = new Properties();
+    props.setProperty(MailProperties.DATA_DIRECTORY, dataDirectory.getRoot().getPath());
+    props.setProperty(SenderStatsStore.CAPACITY, String.valueOf(capacity));
+
+    return new MailProperties(props);
+  }
+
+  /**
+   * The senders of a message from one address.
+   *
+   * @param address the address
+   * @return the senders
+   * @throws Exception the exception
+   */
+  private static List<EmailAddress> from(final String address) throws Exception {
+    return Collections.singletonList(AddressPool.INSTANCE.intern(new InternetAddress(address)));
+  }
+}
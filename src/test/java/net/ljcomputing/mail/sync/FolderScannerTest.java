@@ -0,0 +1,279 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.sync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Store;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.icegreen.greenmail.junit.GreenMailRule;
+import com.icegreen.greenmail.util.ServerSetupTest;
+
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.limit.HostLimiters;
+import net.ljcomputing.mail.rules.MessageContext;
+import net.ljcomputing.mail.rules.ProcessingRule;
+import net.ljcomputing.mail.rules.impl.MarkMessageAsSeen;
+import net.ljcomputing.mail.service.EmailRulesProcessor;
+import net.ljcomputing.mail.service.MailProperties;
+import net.ljcomputing.mail.service.MailProps;
+
+/**
+ * Tests of the folder scanner and its folder status checkpoints against an in-process IMAP
+ * server.
+ *
+ * @author James G. Willmore
+ *
+ */
+public class FolderScannerTest {
+
+  /** The data directory. */
+  @Rule
+  public final TemporaryFolder dataDirectory = new TemporaryFolder();
+
+  /** The in-process IMAP server. */
+  @Rule
+  public final GreenMailRule imap = new GreenMailRule(ServerSetupTest.IMAP);
+
+  /** The store the test mailbox is set up through. */
+  private Store store;
+
+  /**
+   * Set up a mailbox of an inbox, a work folder and an excluded trash folder, two unseen
+   * messages in each of the first two and one in the trash.
+   *
+   * @throws Exception the exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    imap.setUser("user@localhost", "user", "secret");
+    final Properties props = new Properties();
+    props.setProperty("mail.imap.port", String.valueOf(ServerSetupTest.IMAP.getPort()));
+    store = Session.getInstance(props).getStore("imap");
+    store.connect("localhost", "user", "secret");
+
+    for (final String name : new String[] { "Work", "Trash" }) {
+      store.getFolder(name).create(Folder.HOLDS_MESSAGES);
+    }
+
+    append("INBOX", "inbox 1");
+    append("INBOX", "inbox 2");
+    append("Work", "work 1");
+    append("Work", "work 2");
+    append("Trash", "trash 1");
+    Recorder.SEEN.clear();
+  }
+
+  /**
+   * Close the store.
+   *
+   * @throws Exception the exception
+   */
+  @After
+  public void tearDown() throws Exception {
+    store.close();
+  }
+
+  /**
+   * A status survives being saved and read back; what cannot be read is no checkpoint at all.
+   */
+  @Test
+  public void statusRoundTrips() {
+    final FolderStatus status = new FolderStatus(42L, 101L, 100L, 3L, 7000L);
+
+    assertEquals("42:101:100:3:7000", status.toString());
+    assertEquals(status, FolderStatus.parse(status.toString()));
+    assertEquals(status.hashCode(), FolderStatus.parse(status.toString()).hashCode());
+    assertNull(FolderStatus.parse("42:101:100:3"));
+    assertNull(FolderStatus.parse("42:101:x:3:7000"));
+    assertNull(FolderStatus.parse(""));
+  }
+
+  /**
+   * A checkpoint keeps the arrivals counted before the folder was processed and the flag
+   * changes made while it was.
+   */
+  @Test
+  public void checkpointKeepsArrivalsBeforeAndFlagsAfter() {
+    final FolderStatus before = new FolderStatus(42L, 101L, 100L, 3L, 7000L);
+    final FolderStatus after = new FolderStatus(42L, 103L, 102L, 2L, 7005L);
+
+    assertEquals(new FolderStatus(42L, 101L, 100L, 2L, 7005L),
+        FolderStatus.checkpoint(before, after));
+  }
+
+  /**
+   * The first run processes every folder but the excluded one; the rules' own flag changes do
+   * not make a folder look changed, so the next run skips every folder until a message arrives
+   * in one, and then processes that folder alone.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void onlyChangedFoldersAreProcessed() throws Exception {
+    assertEquals(new TreeSet<String>(Arrays.asList("INBOX/inbox 1", "INBOX/inbox 2",
+        "Work/work 1", "Work/work 2")), run());
+
+    assertEquals(Collections.emptyList(), changed());
+    assertEquals(Collections.emptySet(), run());
+
+    append("Work", "work 3");
+
+    assertEquals(Collections.singletonList("Work"), changed());
+    assertEquals(Collections.singleton("Work/work 3"), run());
+    assertEquals(Collections.emptyList(), changed());
+  }
+
+  /**
+   * Run the processor once over the changed folders.
+   *
+   * @return the folder and subject of every message processed
+   * @throws Exception the exception
+   */
+  private Set<String> run() throws Exception {
+    Recorder.SEEN.clear();
+    final Properties props = properties();
+    props.setProperty("email.rules.1", Recorder.class.getName());
+    props.setProperty("email.rules.2", MarkMessageAsSeen.class.getName());
+
+    try (final EmailRulesProcessor processor = new EmailRulesProcessor(props)) {
+      processor.processInbox();
+    }
+
+    return new TreeSet<String>(Recorder.SEEN);
+  }
+
+  /**
+   * The full names of the folders a new scanner, loading the saved checkpoints, finds changed.
+   *
+   * @return the full names
+   * @throws Exception the exception
+   */
+  private List<String> changed() throws Exception {
+    final MailProperties props = new MailProperties(properties());
+    final FolderScanner scanner =
+        new FolderScanner(props, new HostLimiters(props).forHost("localhost"));
+
+    try {
+      final List<String> names = new ArrayList<String>();
+
+      for (final Folder folder : scanner.changed(store)) {
+        names.add(folder.getFullName());
+      }
+
+      return names;
+    } finally {
+      scanner.close();
+    }
+  }
+
+  /**
+   * Append an unseen message to a folder.
+   *
+   * @param name the folder full name
+   * @param subject the subject
+   * @throws Exception the exception
+   */
+  private void append(final String name, final String subject) throws Exception {
+    final MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+    message.setFrom("someone@localhost");
+    message.setSubject(subject);
+    message.setText("body of " + subject);
+    store.getFolder(name).appendMessages(new Message[] { message });
+  }
+
+  /**
+   * The processor properties, processing every folder but the trash.
+   *
+   * @return the properties
+   */
+  private Properties properties() {
+    final Properties props = new Properties();
+    props.setProperty("mail.imap.port", String.valueOf(ServerSetupTest.IMAP.getPort()));
+    props.setProperty(MailProps.PROVIDER.toString(), "imap");
+    props.setProperty(MailProps.HOST.toString(), "localhost");
+    props.setProperty(MailProps.USERNAME.toString(), "user");
+    props.setProperty(MailProps.PASSWORD.toString(), "secret");
+    props.setProperty(MailProperties.DATA_DIRECTORY, dataDirectory.getRoot().getPath());
+    props.setProperty(FolderScanner.ENABLED, "true");
+    props.setProperty(FolderScanner.SUBSCRIBED, "false");
+    props.setProperty(FolderScanner.EXCLUDE, "Trash");
+
+    return props;
+  }
+
+  /**
+   * A rule recording the folder and subject of every message it sees.
+   */
+  public static class Recorder implements ProcessingRule {
+
+    /** The folders and subjects seen. */
+    static final Set<String> SEEN = Collections.synchronizedSet(new TreeSet<String>());
+
+    /**
+     * @see net.ljcomputing.mail.rules.ProcessingRule#ruleName()
+     */
+    @Override
+    public String ruleName() {
+      return "Recorder";
+    }
+
+    /**
+     * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(javax.mail.Message)
+     */
+    @Override
+    public void processMessageRule(final Message message) throws EmailRuleProcessorException {
+      processMessageRule(new MessageContext(message));
+    }
+
+    /**
+     * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(net.ljcomputing.mail.rules.MessageContext)
+     */
+    @Override
+    public void processMessageRule(final MessageContext context)
+        throws EmailRuleProcessorException {
+      final Message message = context.getMessage();
+
+      try {
+        SEEN.add(message.getFolder().getFullName() + "/" + message.getSubject());
+      } catch (MessagingException exception) {
+        throw new EmailRuleProcessorException(exception);
+      }
+    }
+  }
+}
@@ -0,0 +1,255 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.sync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.UIDFolder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.ljcomputing.mail.exception.EmailRuleProcessorException;
+import net.ljcomputing.mail.nio.NioMailbox;
+import net.ljcomputing.mail.nio.NioMessage;
+import net.ljcomputing.mail.nio.StandInImapServer;
+import net.ljcomputing.mail.rules.DataRequirement;
+import net.ljcomputing.mail.rules.MessageContext;
+import net.ljcomputing.mail.rules.ProcessingRule;
+import net.ljcomputing.mail.service.EmailRulesProcessor;
+import net.ljcomputing.mail.service.MailProperties;
+import net.ljcomputing.mail.service.MailProps;
+
+/**
+ * Tests of CONDSTORE/QRESYNC resynchronization against a stand-in IMAP server.
+ *
+ * @author James G. Willmore
+ *
+ */
+public class FolderStateStoreTest {
+
+  /** The number of messages in the mailbox. */
+  private static final int MESSAGES = 20;
+
+  /** The data directory. */
+  @Rule
+  public final TemporaryFolder dataDirectory = new TemporaryFolder();
+
+  /** The stand-in server. */
+  private StandInImapServer server;
+
+  /**
+   * Start the stand-in server.
+   *
+   * @throws Exception the exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    server = new StandInImapServer(MESSAGES, true);
+  }
+
+  /**
+   * Stop the stand-in server.
+   *
+   * @throws Exception the exception
+   */
+  @After
+  public void tearDown() throws Exception {
+    server.close();
+  }
+
+  /**
+   * Unless enabled, every run processes every unseen message, and no folder state is kept.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void resyncIsOffByDefault() throws Exception {
+    final Properties props = properties();
+
+    assertEquals(MESSAGES, run(props).size());
+    server.setSeen(5, false);
+    assertEquals(MESSAGES, run(props).size());
+
+    assertFalse(new File(dataDirectory.getRoot(), "folder-state.properties").exists());
+
+    for (final String command : server.commands()) {
+      assertFalse(command, command.toUpperCase().contains("QRESYNC"));
+    }
+  }
+
+  /**
+   * Once enabled, a second run over QRESYNC processes only the messages changed since the first.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void resyncProcessesOnlyChangedMessages() throws Exception {
+    final Properties props = properties();
+    props.setProperty(FolderStateStore.ENABLED, "true");
+
+    assertEquals(MESSAGES, run(props).size());
+    server.setSeen(5, false);
+    server.setSeen(6, true);
+    server.clearCommands();
+
+    assertEquals(Collections.singleton(5L), run(props));
+    assertEquals(1, server.count("SELECT INBOX (QRESYNC"));
+  }
+
+  /**
+   * The messages changed since the last run are processed a window at a time by UID, the folder
+   * closed and reopened between windows.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void resyncWalksChangedMessagesInWindows() throws Exception {
+    final Properties props = properties();
+    props.setProperty(FolderStateStore.ENABLED, "true");
+    props.setProperty(EmailRulesProcessor.WINDOW_SIZE, "2");
+
+    assertEquals(MESSAGES, run(props).size());
+    server.setSeen(3, false);
+    server.setSeen(5, false);
+    server.setSeen(7, false);
+    server.clearCommands();
+
+    assertEquals(new TreeSet<Long>(Arrays.asList(3L, 5L, 7L)), run(props));
+    assertEquals(1, server.count("SELECT INBOX (QRESYNC"));
+    assertEquals(2, server.count("SELECT INBOX"));
+  }
+
+  /**
+   * Once enabled, a second run on the nio engine searches only the messages changed since the
+   * first.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void nioResyncProcessesOnlyChangedMessages() throws Exception {
+    final Properties props = properties();
+    props.setProperty(FolderStateStore.ENABLED, "true");
+    props.setProperty(EmailRulesProcessor.ENGINE, "nio");
+
+    assertEquals(MESSAGES, run(props).size());
+    server.setSeen(9, false);
+    server.clearCommands();
+
+    assertEquals(Collections.singleton(9L), run(props));
+    assertEquals(1, server.count("UID SEARCH UNSEEN MODSEQ"));
+  }
+
+  /**
+   * Run the processor once.
+   *
+   * @param props the properties
+   * @return the UIDs processed
+   * @throws Exception the exception
+   */
+  private Set<Long> run(final Properties props) throws Exception {
+    Recorder.UIDS.clear();
+
+    try (final EmailRulesProcessor processor = new EmailRulesProcessor(props)) {
+      processor.processInbox();
+    }
+
+    return new TreeSet<Long>(Recorder.UIDS);
+  }
+
+  /**
+   * The processor properties for the stand-in server, on either engine.
+   *
+   * @return the properties
+   */
+  private Properties properties() {
+    final Properties props = new Properties();
+    props.setProperty("mail.imap.port", String.valueOf(server.getPort()));
+    props.setProperty(NioMailbox.PORT, String.valueOf(server.getPort()));
+    props.setProperty(MailProps.PROVIDER.toString(), "imap");
+    props.setProperty(MailProps.HOST.toString(), "localhost");
+    props.setProperty(MailProps.USERNAME.toString(), "user");
+    props.setProperty(MailProps.PASSWORD.toString(), "secret");
+    props.setProperty(MailProperties.DATA_DIRECTORY, dataDirectory.getRoot().getPath());
+    props.setProperty("email.rules.1", Recorder.class.getName());
+
+    return props;
+  }
+
+  /**
+   * A rule recording the UID of every message it sees, and leaving it unseen.
+   */
+  public static class Recorder implements ProcessingRule {
+
+    /** The UIDs seen. */
+    static final Set<Long> UIDS = Collections.synchronizedSet(new TreeSet<Long>());
+
+    /**
+     * @see net.ljcomputing.mail.rules.ProcessingRule#ruleName()
+     */
+    @Override
+    public String ruleName() {
+      return "Recorder";
+    }
+
+    /**
+     * @see net.ljcomputing.mail.rules.ProcessingRule#dataRequirements()
+     */
+    @Override
+    public Set<DataRequirement> dataRequirements() {
+      return EnumSet.of(DataRequirement.UID_FLAGS);
+    }
+
+    /**
+     * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(javax.mail.Message)
+     */
+    @Override
+    public void processMessageRule(final Message message) throws EmailRuleProcessorException {
+      processMessageRule(new MessageContext(message));
+    }
+
+    /**
+     * @see net.ljcomputing.mail.rules.ProcessingRule#processMessageRule(net.ljcomputing.mail.rules.MessageContext)
+     */
+    @Override
+    public void processMessageRule(final MessageContext context)
+        throws EmailRuleProcessorException {
+      final Message message = context.getMessage();
+
+      try {
+        UIDS.add(message instanceof NioMessage ? ((NioMessage) message).getUid()
+            : ((UIDFolder) message.getFolder()).getUID(message));
+      } catch (MessagingException exception) {
+        throw new EmailRuleProcessorException(exception);
+      }
+    }
+  }
+}
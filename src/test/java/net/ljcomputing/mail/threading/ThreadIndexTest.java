@@ -0,0 +1,262 @@
+/**
+           Copyright 2017, James G. Willmore
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package net.ljcomputing.mail.threading;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of the conversation threading index: reference linking, loop prevention, subject
+ * grouping, subtree message counts and journal replay.
+ *
+ * @author James G. Willmore
+ *
+ */
+public class ThreadIndexTest {
+
+  /** The data directory. */
+  @Rule
+  public final TemporaryFolder dataDirectory = new TemporaryFolder();
+
+  /**
+   * Replies link under the last message they refer to, and a reply seen before the messages it
+   * refers to hangs under placeholders that the messages fill in later.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void repliesLinkUnderTheirReferences() throws Exception {
+    final ThreadIndex index = index();
+
+    try {
+      index.add("<a@x>", refs(), "Plan");
+      index.add("<b@x>", refs("<a@x>"), "Re: Plan");
+      index.add("<c@x>", refs("<a@x>", "<b@x>"), "Re: Plan");
+      final MailThread d = index.add("<d@x>", refs("<a@x>"), "Re: Plan");
+
+      assertEquals("<a@x>", d.getThreadId());
+      assertEquals("<a@x>", d.getParentId());
+      assertEquals(4, d.getMessageCount());
+      assertEquals(3, d.getReplyCount());
+      assertEquals(2, index.threadOf("<c@x>").getDepth());
+      assertEquals("<b@x>", index.threadOf("<c@x>").getParentId());
+      assertTrue(index.threadOf("<a@x>").isRoot());
+      assertEquals(Arrays.asList("<a@x>", "<b@x>", "<c@x>", "<d@x>"),
+          index.messagesOf("<c@x>"));
+
+      final MailThread early = index.add("<r@y>", refs("<p@y>", "<q@y>"), "Re: Early");
+      assertEquals("<p@y>", early.getThreadId());
+      assertEquals("<q@y>", early.getParentId());
+      assertEquals(1, early.getMessageCount());
+
+      final MailThread late = index.add("<q@y>", refs("<p@y>"), "Re: Early");
+      assertEquals("<p@y>", late.getThreadId());
+      assertEquals(2, late.getMessageCount());
+      assertEquals(Arrays.asList("<q@y>", "<r@y>"), index.messagesOf("<r@y>"));
+      assertEquals(2, index.threadOf("<p@y>").getMessageCount());
+
+      assertNull(index.threadOf("<never@x>"));
+      assertEquals(Collections.emptyList(), index.messagesOf("<never@x>"));
+      assertEquals(6, index.size());
+    } finally {
+      index.close();
+    }
+  }
+
+  /**
+   * References that would make a message its own ancestor are ignored rather than linked into a
+   * loop, and a message seen twice is counted once.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void referenceLoopsAreNotLinked() throws Exception {
+    final ThreadIndex index = index();
+
+    try {
+      index.add("<a@x>", refs("<b@x>"), "Loop");
+      final MailThread b = index.add("<b@x>", refs("<a@x>"), "Re: Loop");
+
+      assertEquals("<b@x>", b.getThreadId());
+      assertTrue(b.isRoot());
+      assertEquals(2, b.getMessageCount());
+      assertEquals("<b@x>", index.threadOf("<a@x>").getParentId());
+
+      final MailThread self = index.add("<s@x>", refs("<s@x>"), "Self");
+      assertTrue(self.isRoot());
+      assertEquals(1, self.getMessageCount());
+
+      index.add("<c@x>", refs("<a@x>", "<c@x>", "<b@x>"), "Re: Loop");
+      assertEquals("<b@x>", index.threadOf("<c@x>").getThreadId());
+      assertEquals(3, index.threadOf("<b@x>").getMessageCount());
+
+      index.add("<b@x>", refs("<c@x>"), "Re: Loop");
+      assertEquals(3, index.threadOf("<b@x>").getMessageCount());
+      assertEquals(4, index.size());
+    } finally {
+      index.close();
+    }
+  }
+
+  /**
+   * Replies without references are grouped under the thread root of the first message with the
+   * same base subject; messages whose subject is not a reply start threads of their own.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void repliesWithoutReferencesGroupBySubject() throws Exception {
+    final ThreadIndex index = index();
+
+    try {
+      index.add("<a@x>", refs(), "Budget");
+      index.add("<b@x>", refs("<a@x>"), "Re: Budget");
+
+      final MailThread bare = index.add("<c@x>", refs(), "RE: Fwd: budget ");
+      assertEquals("<a@x>", bare.getThreadId());
+      assertEquals("<a@x>", bare.getParentId());
+      assertEquals(3, bare.getMessageCount());
+
+      final MailThread again = index.add("<d@x>", refs(), "Budget");
+      assertTrue(again.isRoot());
+      assertEquals(1, again.getMessageCount());
+
+      final MailThread orphan = index.add("<e@x>", refs(), "Re: Unknown");
+      assertTrue(orphan.isRoot());
+
+      final MailThread later = index.add("<f@x>", refs(), "Re: unknown");
+      assertEquals("<e@x>", later.getThreadId());
+
+      assertEquals("budget", ThreadIndex.baseSubject("Re[2]: AW: fwd:  Budget "));
+      assertEquals("", ThreadIndex.baseSubject(null));
+    } finally {
+      index.close();
+    }
+  }
+
+  /**
+   * Moving a subtree to the parent a message's own references name takes its messages off the
+   * counts of its former ancestors and adds them to the new ones.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void subtreeCountsFollowReparenting() throws Exception {
+    final ThreadIndex index = index();
+
+    try {
+      index.add("<c@x>", refs("<a@x>", "<b@x>"), "Re: Move");
+      index.add("<d@x>", refs("<a@x>", "<b@x>", "<c@x>"), "Re: Move");
+      assertEquals("<a@x>", index.threadOf("<d@x>").getThreadId());
+      assertEquals(2, index.threadOf("<a@x>").getMessageCount());
+
+      final MailThread b = index.add("<b@x>", refs("<z@x>"), "Re: Move");
+      assertEquals("<z@x>", b.getThreadId());
+      assertEquals(3, b.getMessageCount());
+      assertEquals(0, index.threadOf("<a@x>").getMessageCount());
+      assertEquals("<z@x>", index.threadOf("<d@x>").getThreadId());
+      assertEquals(3, index.threadOf("<d@x>").getDepth());
+      assertEquals(Arrays.asList("<b@x>", "<c@x>", "<d@x>"), index.messagesOf("<d@x>"));
+
+      index.add("<a@x>", refs(), "Move");
+      assertEquals(1, index.threadOf("<a@x>").getMessageCount());
+      assertEquals(3, index.threadOf("<z@x>").getMessageCount());
+    } finally {
+      index.close();
+    }
+  }
+
+  /**
+   * The journal replays into the same threads, and a torn final record is cut off so later
+   * records append cleanly.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void journalReplaysAndDropsTornRecord() throws Exception {
+    final File file = new File(dataDirectory.getRoot(), "threads.journal");
+    final ThreadIndex first = new ThreadIndex(file);
+    first.add("<a@x>", refs(), "Plan");
+    first.add("<c@x>", refs("<a@x>", "<b@x>"), "Re: Plan");
+    first.add("<d@x>", refs(), "Re: plan");
+    first.close();
+
+    final long length = file.length();
+
+    try (final DataOutputStream out = new DataOutputStream(new FileOutputStream(file, true))) {
+      out.writeUTF("<torn@x>");
+      out.writeByte(2);
+      out.writeUTF("<a@x>");
+    }
+
+    final ThreadIndex second = new ThreadIndex(file);
+
+    try {
+      assertEquals(length, file.length());
+      assertEquals(3, second.size());
+      assertNull(second.threadOf("<torn@x>"));
+      assertEquals("<b@x>", second.threadOf("<c@x>").getParentId());
+      assertEquals("<a@x>", second.threadOf("<d@x>").getThreadId());
+      assertEquals(3, second.threadOf("<a@x>").getMessageCount());
+
+      second.add("<e@x>", refs("<a@x>"), "Re: Plan");
+    } finally {
+      second.close();
+    }
+
+    final ThreadIndex third = new ThreadIndex(file);
+
+    try {
+      assertEquals(4, third.size());
+      assertEquals(4, third.threadOf("<e@x>").getMessageCount());
+    } finally {
+      third.close();
+    }
+  }
+
+  /**
+   * Open an index journaling to the data directory.
+   *
+   * @return the thread index
+   * @throws Exception the exception
+   */
+  private ThreadIndex index() throws Exception {
+    return new ThreadIndex(new File(dataDirectory.getRoot(), "threads.journal"));
+  }
+
+  /**
+   * The references, oldest first.
+   *
+   * @param ids the Message-IDs
+   * @return the references
+   */
+  private static List<String> refs(final String... ids) {
+    return Arrays.asList(ids);
+  }
+}